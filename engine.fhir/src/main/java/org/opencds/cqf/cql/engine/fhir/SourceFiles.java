@@ -0,0 +1,82 @@
+package org.opencds.cqf.cql.engine.fhir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Helpers for the providers that answer from indexed local files (e.g. the R4FileTerminologyProvider and the
+ * BulkExportRetrieveProvider): listing the source files, fingerprinting them to tell when an index is stale, and
+ * choosing where an index is stored by default.
+ */
+public final class SourceFiles {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private SourceFiles() {
+    }
+
+    /**
+     * Returns the regular files in the directory (searched recursively) whose names end with one of the extensions,
+     * in sorted order.
+     */
+    public static List<Path> list(Path directory, String... extensions) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> hasExtension(path, extensions))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Returns a fingerprint of the files that changes whenever a file is added, removed or modified.
+     */
+    public static long fingerprint(List<Path> files) throws IOException {
+        long hash = FNV_OFFSET;
+        for (Path file : files) {
+            String entry = file.toString() + '|' + Files.size(file) + '|' + Files.getLastModifiedTime(file).toMillis();
+            hash = hash(hash, entry);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the default index file of a source, in the temporary directory rather than next to the source, so the
+     * source can be read-only. The name of the file is derived from the path of the source, so the index is reused by
+     * later providers of the same source.
+     *
+     * @param prefix - the prefix of the name of the index file, naming the kind of index.
+     * @param source - the file or directory that is indexed.
+     */
+    public static Path defaultIndexFile(String prefix, Path source) {
+        long hash = hash(FNV_OFFSET, source.toAbsolutePath().normalize().toString());
+        return Paths.get(System.getProperty("java.io.tmpdir"))
+                .resolve(String.format("%s-%016x.idx", prefix, hash));
+    }
+
+    private static boolean hasExtension(Path path, String... extensions) {
+        String name = path.toString();
+        for (String extension : extensions) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // FNV-1a over the UTF-8 bytes of the value
+    private static long hash(long hash, String value) {
+        long result = hash;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            result = (result ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return result;
+    }
+}
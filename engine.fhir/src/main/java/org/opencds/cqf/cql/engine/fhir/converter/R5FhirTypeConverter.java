@@ -9,6 +9,7 @@ import org.hl7.fhir.r5.model.*;
 import org.opencds.cqf.cql.engine.runtime.*;
 import org.opencds.cqf.cql.engine.runtime.Quantity;
 import org.opencds.cqf.cql.engine.runtime.Ratio;
+import org.opencds.cqf.cql.engine.runtime.SpecializedInterval;
 import org.opencds.cqf.cql.engine.runtime.Tuple;
 import org.apache.commons.lang3.NotImplementedException;
 import org.hl7.fhir.instance.model.api.IBase;
@@ -290,7 +291,7 @@ class R5FhirTypeConverter extends BaseFhirTypeConverter {
             return new Interval(toCqlQuantity(range.getLow()), true, toCqlQuantity(range.getHigh()), true);
         } else if (value.fhirType().equals("Period")) {
             Period period = (Period)value;
-            return new Interval(toCqlTemporal(period.getStartElement()), true, toCqlTemporal(period.getEndElement()), true);
+            return SpecializedInterval.create(toCqlTemporal(period.getStartElement()), true, toCqlTemporal(period.getEndElement()), true);
         } else {
             throw new IllegalArgumentException("value is not a FHIR Range or Period");
         }
@@ -443,6 +443,33 @@ public abstract class FhirModelResolver<BaseType, BaseDateTimeType, TimeType, Si
         return toJavaPrimitive(child.getMax() < 1 ? values : values.get(0), base);
     }
 
+    /*
+    The children of a resource or composite element, with the values of repeating children returned individually.
+        Primitive children are returned as elements rather than as the values they hold, as resolvePath returns them,
+        so they keep their id and extensions. Primitives themselves have no elements.
+     */
+    @Override
+    public Iterable<Object> resolveElements(Object target) {
+        if (!(target instanceof IBase) || target instanceof IPrimitiveType) {
+            return null;
+        }
+
+        BaseRuntimeElementCompositeDefinition<?> definition;
+        try {
+            definition = resolveRuntimeDefinition((IBase) target);
+        }
+        catch (UnknownType e) {
+            return null;
+        }
+
+        List<Object> elements = new ArrayList<>();
+        for (BaseRuntimeChildDefinition child : definition.getChildren()) {
+            elements.addAll(child.getAccessor().getValues((IBase) target));
+        }
+
+        return elements;
+    }
+
     protected BaseRuntimeElementCompositeDefinition<?> resolveRuntimeDefinition(IBase base) {
         if (base instanceof IAnyResource) {
             return getFhirContext().getResourceDefinition((IAnyResource) base);
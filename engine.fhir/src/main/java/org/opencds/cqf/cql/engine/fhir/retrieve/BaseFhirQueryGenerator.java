@@ -9,6 +9,7 @@ import org.opencds.cqf.cql.engine.fhir.exception.FhirVersionMisMatchException;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveInclude;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.DateTime;
 import org.opencds.cqf.cql.engine.runtime.Interval;
@@ -19,6 +20,7 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.context.RuntimeSearchParam;
 import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.DateRangeParam;
@@ -331,6 +333,37 @@ public abstract class BaseFhirQueryGenerator implements FhirVersionIntegrityChec
         return maps;
     }
 
+    // Adds an _include (or, for a reverse include, an _revinclude) of each related type to the queries. Includes of the
+    // retrieved type itself are skipped, as the included resources couldn't be told apart from the retrieved ones, and
+    // so are includes by a property that has no reference search parameter.
+    public void addIncludes(String dataType, List<SearchParameterMap> queries, List<RetrieveInclude> includes) {
+        if (queries == null || includes == null) {
+            return;
+        }
+
+        for (RetrieveInclude include : includes) {
+            String relatedDataType = include.getRelatedDataType();
+            if (relatedDataType == null || include.getRelatedProperty() == null || relatedDataType.equals(dataType)) {
+                continue;
+            }
+
+            RuntimeSearchParam param = this.searchParameterResolver.getSearchParameterDefinition(
+                include.isReverse() ? relatedDataType : dataType, include.getRelatedProperty(),
+                RestSearchParameterTypeEnum.REFERENCE);
+            if (param == null) {
+                continue;
+            }
+
+            for (SearchParameterMap query : queries) {
+                if (include.isReverse()) {
+                    query.addRevInclude(new Include(relatedDataType + ":" + param.getName()));
+                } else {
+                    query.addInclude(new Include(dataType + ":" + param.getName() + ":" + relatedDataType));
+                }
+            }
+        }
+    }
+
     protected SearchParameterMap getBaseMap(Pair<String, IQueryParameterType> templateParam, Pair<String, IQueryParameterType> contextParam,
                                             List<Pair<String, DateRangeParam>> dateRangeParams, List<Pair<String, List<TokenOrListParam>>> codeParams) {
         SearchParameterMap baseMap = new SearchParameterMap();
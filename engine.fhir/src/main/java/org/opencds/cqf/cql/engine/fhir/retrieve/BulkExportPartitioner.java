@@ -0,0 +1,411 @@
+package org.opencds.cqf.cql.engine.fhir.retrieve;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.exception.DataProviderException;
+import org.opencds.cqf.cql.engine.fhir.model.FhirModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Regroups the NDJSON files of a FHIR Bulk Data export, which hold the resources of one type each, by patient, so that
+ * a population can be evaluated one patient at a time in a single pass over data larger than the memory.
+ *
+ * {@link #partition(Path)} reads the .ndjson files of an export directory in parallel and routes each resource to the
+ * patient referenced at the path returned by {@link FhirModelResolver#getContextPath(String, String)}. The resources
+ * of each reader are buffered up to a bounded size, then sorted by patient and spilled to a run file in the work
+ * directory. Resources that belong to no patient (e.g. Medications) are kept in memory and shared by all patients, so
+ * the memory needed grows with them: they aren't bounded by {@link #setMaxBufferedBytes(long)}, and an export whose
+ * shared resources don't fit in memory can't be partitioned.
+ *
+ * {@link #forEachPatient(BiConsumer)} merges the sorted runs and hands each patient's complete record to the consumer,
+ * as a RetrieveProvider over the patient's resources and the shared ones, holding only one patient's resources in
+ * memory at a time. At most {@link #setMaxMergeFanIn(int)} runs are read at once: if there are more, groups of them are
+ * first merged into longer runs.
+ */
+public class BulkExportPartitioner implements AutoCloseable {
+
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_MERGE_FAN_IN = 64;
+
+    private final FhirModelResolver<?, ?, ?, ?, ?, ?, ?, ?> modelResolver;
+    private final FhirContext fhirContext;
+    private final Path workDirectory;
+    private long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxMergeFanIn = DEFAULT_MAX_MERGE_FAN_IN;
+    private TerminologyProvider terminologyProvider;
+
+    private final List<Path> runs = new ArrayList<>();
+    private IndexedFhirRetrieveProvider shared;
+
+    /**
+     * @param modelResolver - the model resolver of the FHIR version of the export.
+     * @param workDirectory - the directory the sorted runs are written to.
+     */
+    public BulkExportPartitioner(FhirModelResolver<?, ?, ?, ?, ?, ?, ?, ?> modelResolver, Path workDirectory) {
+        this.modelResolver = modelResolver;
+        this.fhirContext = modelResolver.getFhirContext();
+        this.workDirectory = workDirectory;
+        this.shared = new IndexedFhirRetrieveProvider(modelResolver);
+    }
+
+    /**
+     * Sets the size of the NDJSON lines buffered before they are spilled to a run, shared by the reading threads.
+     */
+    public void setMaxBufferedBytes(long value) {
+        if (value < 1) {
+            throw new IllegalArgumentException("value must be > 0");
+        }
+        this.maxBufferedBytes = value;
+    }
+
+    public long getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    public void setThreads(int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException("value must be > 0");
+        }
+        this.threads = value;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of runs merged at once, each of which holds an open file and a read buffer.
+     */
+    public void setMaxMergeFanIn(int value) {
+        if (value < 2) {
+            throw new IllegalArgumentException("value must be > 1");
+        }
+        this.maxMergeFanIn = value;
+    }
+
+    public int getMaxMergeFanIn() {
+        return maxMergeFanIn;
+    }
+
+    /**
+     * Sets the terminology provider the value set filters of the patients' retrieves are answered with. As each
+     * patient's retrieves expand the value sets they filter by, it should cache expansions, e.g. a
+     * {@link org.opencds.cqf.cql.engine.terminology.CachingTerminologyProvider}.
+     */
+    public void setTerminologyProvider(TerminologyProvider terminologyProvider) {
+        this.terminologyProvider = terminologyProvider;
+        this.shared.setTerminologyProvider(terminologyProvider);
+    }
+
+    public TerminologyProvider getTerminologyProvider() {
+        return terminologyProvider;
+    }
+
+    /**
+     * Reads the .ndjson files of the export directory (searched recursively) into sorted runs of patient records.
+     */
+    public void partition(Path exportDirectory) {
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(exportDirectory)) {
+            files = paths.filter(Files::isRegularFile)
+                    .filter(path -> path.toString().endsWith(".ndjson"))
+                    .sorted()
+                    .collect(Collectors.toList());
+            Files.createDirectories(workDirectory);
+        }
+        catch (IOException e) {
+            throw new DataProviderException(
+                    String.format("Error listing the export files in %s", exportDirectory.toString()), e);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(files.size(), 1)));
+        try {
+            List<Future<List<IBaseResource>>> readers = new ArrayList<>();
+            for (Path file : files) {
+                readers.add(executor.submit(() -> partitionFile(file, Math.max(maxBufferedBytes / threads, 1))));
+            }
+            for (Future<List<IBaseResource>> reader : readers) {
+                for (IBaseResource resource : reader.get()) {
+                    shared.addResource(resource);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataProviderException("Interrupted while partitioning the export files", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new DataProviderException(
+                    String.format("Error partitioning the export files in %s", exportDirectory.toString()), e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+    Routes the lines of a file to their patients, spilling a sorted run whenever the lines buffered reach the budget,
+        and returns the resources that belong to no patient.
+     */
+    private List<IBaseResource> partitionFile(Path file, long budget) throws IOException {
+        IParser parser = fhirContext.newJsonParser();
+        Map<String, String> patientPaths = new HashMap<>();
+        List<String[]> buffered = new ArrayList<>();
+        // not bounded by the budget, see the class comment
+        List<IBaseResource> unassigned = new ArrayList<>();
+        long bufferedBytes = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                IBaseResource resource = parser.parseResource(line);
+                String type = fhirContext.getResourceType(resource);
+                String path = patientPaths.computeIfAbsent(type,
+                        t -> (String) modelResolver.getContextPath("Patient", t));
+                List<String> patients = new ArrayList<>();
+                if (path != null) {
+                    IndexedFhirRetrieveProvider.addIds(modelResolver.resolvePath(resource, path), patients);
+                }
+                if (patients.isEmpty()) {
+                    unassigned.add(resource);
+                    continue;
+                }
+
+                for (String patient : patients.stream().distinct().collect(Collectors.toList())) {
+                    buffered.add(new String[] { patient, line });
+                    bufferedBytes += 2L * (patient.length() + line.length());
+                }
+                if (bufferedBytes >= budget) {
+                    spill(buffered);
+                    buffered.clear();
+                    bufferedBytes = 0;
+                }
+            }
+        }
+        if (!buffered.isEmpty()) {
+            spill(buffered);
+        }
+        return unassigned;
+    }
+
+    private void spill(List<String[]> records) throws IOException {
+        // a stable sort keeps the lines of a patient in the order they were read
+        records.sort(Comparator.comparing(record -> record[0]));
+        Path run = Files.createTempFile(workDirectory, "run", ".bin");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+            for (String[] record : records) {
+                write(out, record[0], record[1].getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        synchronized (runs) {
+            runs.add(run);
+        }
+    }
+
+    private static void write(DataOutputStream out, String patient, byte[] line) throws IOException {
+        out.writeUTF(patient);
+        out.writeInt(line.length);
+        out.write(line);
+    }
+
+    /*
+    Merges the runs in groups of at most maxMergeFanIn, until there are at most maxMergeFanIn of them, and returns the
+        remaining runs. The merged runs are deleted.
+     */
+    private List<Path> reduceRuns(List<Path> sortedRuns) throws IOException {
+        List<Path> remaining = sortedRuns;
+        while (remaining.size() > maxMergeFanIn) {
+            List<Path> merged = new ArrayList<>();
+            for (int i = 0; i < remaining.size(); i += maxMergeFanIn) {
+                List<Path> group = remaining.subList(i, Math.min(i + maxMergeFanIn, remaining.size()));
+                merged.add(group.size() == 1 ? group.get(0) : merge(group));
+            }
+            remaining = merged;
+        }
+        return remaining;
+    }
+
+    private Path merge(List<Path> group) throws IOException {
+        Path run = Files.createTempFile(workDirectory, "run", ".bin");
+        synchronized (runs) {
+            runs.add(run);
+        }
+        List<RunReader> readers = new ArrayList<>();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+            PriorityQueue<RunReader> queue = open(group, readers);
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                write(out, reader.patient, reader.line);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+        }
+        finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+
+        for (Path merged : group) {
+            Files.delete(merged);
+            synchronized (runs) {
+                runs.remove(merged);
+            }
+        }
+        return run;
+    }
+
+    // opens a reader on each run, in order, and returns the queue of the ones that aren't empty
+    private static PriorityQueue<RunReader> open(List<Path> sortedRuns, List<RunReader> readers) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(
+                Comparator.comparing((RunReader reader) -> reader.patient).thenComparingInt(reader -> reader.number));
+        for (Path run : sortedRuns) {
+            RunReader reader = new RunReader(run, readers.size());
+            readers.add(reader);
+            if (reader.next()) {
+                queue.add(reader);
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Hands each patient's record to the consumer, in the order of the patient ids, as a RetrieveProvider over the
+     * patient's resources and the resources that belong to no patient.
+     */
+    public void forEachPatient(BiConsumer<String, RetrieveProvider> consumer) {
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            List<Path> sortedRuns;
+            synchronized (runs) {
+                sortedRuns = new ArrayList<>(runs);
+            }
+            PriorityQueue<RunReader> queue = open(reduceRuns(sortedRuns), readers);
+
+            IParser parser = fhirContext.newJsonParser();
+            while (!queue.isEmpty()) {
+                String patient = queue.peek().patient;
+                IndexedFhirRetrieveProvider record = new IndexedFhirRetrieveProvider(modelResolver);
+                record.setTerminologyProvider(terminologyProvider);
+                while (!queue.isEmpty() && queue.peek().patient.equals(patient)) {
+                    RunReader reader = queue.poll();
+                    record.addResource(parser.parseResource(new String(reader.line, StandardCharsets.UTF_8)));
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+                consumer.accept(patient, combine(record, shared));
+            }
+        }
+        catch (IOException e) {
+            throw new DataProviderException(
+                    String.format("Error reading the runs in %s", workDirectory.toString()), e);
+        }
+        finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static RetrieveProvider combine(RetrieveProvider patient, RetrieveProvider shared) {
+        return (context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath,
+                dateLowPath, dateHighPath, dateRange) -> {
+            List<Object> resources = new ArrayList<>();
+            patient.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+                    datePath, dateLowPath, dateHighPath, dateRange).forEach(resources::add);
+            shared.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+                    datePath, dateLowPath, dateHighPath, dateRange).forEach(resources::add);
+            return resources;
+        };
+    }
+
+    /**
+     * Deletes the runs, and drops the resources that belong to no patient.
+     */
+    @Override
+    public void close() {
+        synchronized (runs) {
+            for (Path run : runs) {
+                try {
+                    Files.deleteIfExists(run);
+                }
+                catch (IOException e) {
+                    throw new DataProviderException(String.format("Error deleting %s", run.toString()), e);
+                }
+            }
+            runs.clear();
+        }
+        shared = new IndexedFhirRetrieveProvider(modelResolver);
+        shared.setTerminologyProvider(terminologyProvider);
+    }
+
+    // reads the records of a run one at a time
+    private static class RunReader {
+        private final DataInputStream in;
+        private final int number;
+        private String patient;
+        private byte[] line;
+
+        RunReader(Path run, int number) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+            this.number = number;
+        }
+
+        boolean next() throws IOException {
+            try {
+                patient = in.readUTF();
+            }
+            catch (EOFException e) {
+                return false;
+            }
+            line = new byte[in.readInt()];
+            in.readFully(line);
+            return true;
+        }
+
+        void close() {
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+                // the run was only read
+            }
+        }
+    }
+}
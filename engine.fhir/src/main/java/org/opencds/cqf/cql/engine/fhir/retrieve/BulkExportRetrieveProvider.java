@@ -0,0 +1,226 @@
+package org.opencds.cqf.cql.engine.fhir.retrieve;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.exception.DataProviderException;
+import org.opencds.cqf.cql.engine.fhir.SourceFiles;
+import org.opencds.cqf.cql.engine.fhir.model.FhirModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.TerminologyAwareRetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * A RetrieveProvider that answers from the NDJSON files of a FHIR Bulk Data export, without loading them into memory
+ * or into a server.
+ *
+ * The lines of the .ndjson files in the export directory (searched recursively) are indexed once by the type of their
+ * resource and the patient it belongs to (the patient referenced at the path returned by
+ * {@link FhirModelResolver#getContextPath(String, String)}). The index is stored in a file, and rebuilt when the
+ * export files change. The export files are memory-mapped, and a retrieve parses only the lines of the requested type
+ * that belong to the patient of the context; retrieves outside a patient context parse all the lines of the type.
+ *
+ * Code, value set and date filters are applied to the parsed resources as by the {@link IndexedFhirRetrieveProvider}.
+ * Value sets are expanded once with the terminology provider.
+ */
+public class BulkExportRetrieveProvider extends TerminologyAwareRetrieveProvider {
+
+    private static final String INDEX_PREFIX = "cql-bulk-export";
+    // NDJSON files are mapped in segments, as a mapping is at most 2 GB
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final FhirModelResolver<?, ?, ?, ?, ?, ?, ?, ?> modelResolver;
+    private final FhirContext fhirContext;
+    private final Path exportDirectory;
+    private final Path indexFile;
+    private final NdjsonOffsetIndex index;
+    private final List<ByteBuffer[]> mappedFiles = new ArrayList<>();
+    private final Map<String, List<Code>> expansions = new ConcurrentHashMap<>();
+
+    /**
+     * @param modelResolver   - the model resolver of the FHIR version of the export.
+     * @param exportDirectory - the directory of the export files. The index is stored in the temporary directory (see
+     *                        {@link SourceFiles#defaultIndexFile(String, Path)}).
+     */
+    public BulkExportRetrieveProvider(FhirModelResolver<?, ?, ?, ?, ?, ?, ?, ?> modelResolver, Path exportDirectory) {
+        this(modelResolver, exportDirectory, SourceFiles.defaultIndexFile(INDEX_PREFIX, exportDirectory));
+    }
+
+    /**
+     * @param modelResolver   - the model resolver of the FHIR version of the export.
+     * @param exportDirectory - the directory of the export files.
+     * @param indexFile       - the file the index of the export files is stored in.
+     */
+    public BulkExportRetrieveProvider(FhirModelResolver<?, ?, ?, ?, ?, ?, ?, ?> modelResolver, Path exportDirectory,
+            Path indexFile) {
+        this.modelResolver = modelResolver;
+        this.fhirContext = modelResolver.getFhirContext();
+        this.exportDirectory = exportDirectory;
+        this.indexFile = indexFile;
+        try {
+            List<Path> files = SourceFiles.list(exportDirectory, ".ndjson");
+            long fingerprint = SourceFiles.fingerprint(files);
+            Long indexed = Files.exists(indexFile) ? NdjsonOffsetIndex.readFingerprint(indexFile) : null;
+            if (indexed == null || indexed != fingerprint) {
+                buildIndex(files, fingerprint);
+            }
+            this.index = NdjsonOffsetIndex.open(indexFile);
+
+            for (String file : index.getFiles()) {
+                mappedFiles.add(map(exportDirectory.resolve(file)));
+            }
+        }
+        catch (IOException e) {
+            throw new DataProviderException(
+                    String.format("Error indexing the export files in %s", exportDirectory.toString()), e);
+        }
+    }
+
+    public Path getExportDirectory() {
+        return exportDirectory;
+    }
+
+    public Path getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * Returns the ids of the Patient resources of the export, e.g. to evaluate a library for each of them.
+     */
+    public List<String> getPatientIds() {
+        return index.getPatients("Patient");
+    }
+
+    @Override
+    public void setTerminologyProvider(TerminologyProvider terminologyProvider) {
+        super.setTerminologyProvider(terminologyProvider);
+        expansions.clear();
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                                     String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                                     String dateLowPath, String dateHighPath, Interval dateRange) {
+        String patient = contextPath != null && contextValue != null
+                ? IndexedFhirRetrieveProvider.idPart(contextValue.toString())
+                : null;
+        List<long[]> ranges = index.getRanges(dataType, patient);
+        if (ranges.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        IndexedFhirRetrieveProvider resources = new IndexedFhirRetrieveProvider(modelResolver);
+        IParser parser = fhirContext.newJsonParser();
+        for (long[] range : ranges) {
+            resources.addResource(parser.parseResource(readLine((int) range[0], (int) range[1], range[2])));
+        }
+
+        Iterable<Code> filterCodes = codePath != null && valueSet != null
+                ? expansions.computeIfAbsent(valueSet, this::expand)
+                : codes;
+        return resources.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, filterCodes, null,
+                datePath, dateLowPath, dateHighPath, dateRange);
+    }
+
+    private List<Code> expand(String valueSet) {
+        if (terminologyProvider == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Retrieving resources in value set %s requires a terminology provider and none is set.", valueSet));
+        }
+        List<Code> codes = new ArrayList<>();
+        terminologyProvider.expand(new ValueSetInfo().withId(valueSet)).forEach(codes::add);
+        return codes;
+    }
+
+    private String readLine(int file, int length, long offset) {
+        ByteBuffer[] segments = mappedFiles.get(file);
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            long position = offset + read;
+            // the buffers are shared, so they are read through views
+            ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)].duplicate();
+            ((Buffer) segment).position((int) (position % SEGMENT_SIZE));
+            int count = Math.min(length - read, segment.remaining());
+            segment.get(bytes, read, count);
+            read += count;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer[] map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer[] segments = new ByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; ++i) {
+                long start = i * SEGMENT_SIZE;
+                // the mappings remain valid after the channel is closed
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+            return segments;
+        }
+    }
+
+    private void buildIndex(List<Path> files, long fingerprint) throws IOException {
+        IParser parser = fhirContext.newJsonParser();
+        NdjsonOffsetIndex.Builder builder = new NdjsonOffsetIndex.Builder();
+        Map<String, String> patientPaths = new HashMap<>();
+
+        for (Path file : files) {
+            int fileNumber = builder.addFile(exportDirectory.relativize(file).toString());
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long offset = 0;
+                long lineStart = 0;
+                int b;
+                do {
+                    b = in.read();
+                    if (b != -1 && b != '\n') {
+                        line.write(b);
+                    }
+                    else {
+                        String json = line.toString(StandardCharsets.UTF_8.name());
+                        if (!json.trim().isEmpty()) {
+                            IBaseResource resource = parser.parseResource(json);
+                            String type = fhirContext.getResourceType(resource);
+                            String path = patientPaths.computeIfAbsent(type,
+                                    t -> (String) modelResolver.getContextPath("Patient", t));
+                            List<String> patients = new ArrayList<>();
+                            if (path != null) {
+                                IndexedFhirRetrieveProvider.addIds(modelResolver.resolvePath(resource, path), patients);
+                            }
+                            builder.addLine(type, patients, fileNumber, line.size(), lineStart);
+                        }
+                        line.reset();
+                        lineStart = offset + 1;
+                    }
+                    ++offset;
+                }
+                while (b != -1);
+            }
+        }
+
+        builder.write(indexFile, fingerprint);
+    }
+}
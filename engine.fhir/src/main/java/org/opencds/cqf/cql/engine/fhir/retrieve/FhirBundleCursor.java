@@ -3,6 +3,9 @@ package org.opencds.cqf.cql.engine.fhir.retrieve;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -12,6 +15,13 @@ import org.opencds.cqf.cql.engine.fhir.exception.UnknownElement;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.util.BundleUtil;
 
+/**
+ * Iterates the resources of a search result, loading the following pages of the result as the iteration reaches them,
+ * so that a consumer which stops early (e.g. an exists) doesn't page through the whole result.
+ *
+ * The pages loaded are kept by the cursor and shared by its iterators, so iterating a cursor again doesn't load them
+ * again. If the cursor is given an executor, the page after the one being iterated is loaded on it in the background.
+ */
 public class FhirBundleCursor implements Iterable<Object> {
 
     public FhirBundleCursor(IGenericClient fhirClient, IBaseBundle results)
@@ -25,17 +35,40 @@ public class FhirBundleCursor implements Iterable<Object> {
     // If templateId is provided, this is a trusted cursor, meaning that it will only return results
     // for resources that declare they conform to the given profile
     public FhirBundleCursor(IGenericClient fhirClient, IBaseBundle results, String dataType, String templateId) {
+        this(fhirClient, results, dataType, templateId, null);
+    }
+
+    // The next page of the results is loaded on the prefetchExecutor while a page is iterated, if it is not null
+    public FhirBundleCursor(IGenericClient fhirClient, IBaseBundle results, String dataType, String templateId,
+            Executor prefetchExecutor) {
         this.fhirClient = fhirClient;
         this.results = results;
         this.dataType = dataType;
         this.templateId = templateId;
+        this.prefetchExecutor = prefetchExecutor;
+
+        // Do not test templateId for base resource "profiles"
+        if (this.templateId != null && this.templateId.startsWith(String.format("http://hl7.org/fhir/StructureDefinition/%s", dataType))) {
+            this.templateId = null;
+        }
+
+        if (dataType != null) {
+            this.dataTypeClass = this.fhirClient.getFhirContext().getResourceDefinition(this.dataType).getImplementingClass();
+        }
     }
 
     private IGenericClient fhirClient;
     private IBaseBundle results;
     private String dataType;
     private String templateId;
+    private Executor prefetchExecutor;
+    private Class<? extends IBaseResource> dataTypeClass;
 
+    // the entries of the pages loaded so far, and the last page loaded
+    private final List<List<? extends IBaseResource>> pages = new ArrayList<>();
+    private IBaseBundle lastPage;
+    // the page after the last page, when it is being loaded in the background
+    private CompletableFuture<IBaseBundle> nextPage;
 
     /**
      * Returns an iterator over elements of type {@code T}.
@@ -43,81 +76,108 @@ public class FhirBundleCursor implements Iterable<Object> {
      * @return an Iterator.
      */
     public Iterator<Object> iterator() {
-        return new FhirBundleIterator(fhirClient, results, dataType, templateId);
+        return new FhirBundleIterator();
     }
 
-    private class FhirBundleIterator implements Iterator<Object> {
-        public FhirBundleIterator(IGenericClient fhirClient, IBaseBundle results, String dataType, String templateId) {
-            this.fhirClient = fhirClient;
-            this.results =  results;
-            this.current = -1;
-            this.dataType = dataType;
-            this.templateId = templateId;
-
-            // Do not test templateId for base resource "profiles"
-            if (this.templateId != null && this.templateId.startsWith(String.format("http://hl7.org/fhir/StructureDefinition/%s", dataType))) {
-                this.templateId = null;
+    /*
+    Returns the entries of the page at the given index, loading the pages up to it, or null if the results have fewer
+        pages. When the page is the last one loaded, starts loading the one after it in the background.
+     */
+    private synchronized List<? extends IBaseResource> getPage(int index) {
+        while (pages.size() <= index) {
+            IBaseBundle page = loadNextPage();
+            if (page == null) {
+                return null;
             }
+            lastPage = page;
+            pages.add(getEntry(page));
+        }
+
+        if (index == pages.size() - 1 && nextPage == null && prefetchExecutor != null && getLink(lastPage) != null) {
+            IBaseBundle current = lastPage;
+            nextPage = CompletableFuture.supplyAsync(() -> fhirClient.loadPage().next(current).execute(),
+                    prefetchExecutor);
+        }
+        return pages.get(index);
+    }
 
-            if (dataType != null) {
-                this.dataTypeClass = this.fhirClient.getFhirContext().getResourceDefinition(this.dataType).getImplementingClass();
+    private IBaseBundle loadNextPage() {
+        if (lastPage == null) {
+            return results;
+        }
+        if (nextPage != null) {
+            CompletableFuture<IBaseBundle> page = nextPage;
+            nextPage = null;
+            try {
+                return page.join();
             }
+            catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        if (getLink(lastPage) == null) {
+            return null;
+        }
+        return fhirClient.loadPage().next(lastPage).execute();
+    }
+
+    private List<? extends IBaseResource> getEntry(IBaseBundle page) {
+        if (this.dataTypeClass != null)
+        {
+            List<? extends IBaseResource> entries = BundleUtil.toListOfResourcesOfType(this.fhirClient.getFhirContext(), page, this.dataTypeClass);
+            if (templateId != null) {
+                return getTrustedEntries(entries, templateId);
+            }
+            else {
+                return entries;
+            }
+        }
+        else {
+            return BundleUtil.toListOfResources(this.fhirClient.getFhirContext(), page);
+        }
+    }
 
-            this.currentEntry = this.getEntry();
+    private List<? extends IBaseResource> getTrustedEntries(List<? extends IBaseResource> entries, String templateId) {
+        List<IBaseResource> trustedEntries = new ArrayList<IBaseResource>();
+        for (IBaseResource entry : entries) {
+            if (entry.getMeta() != null && entry.getMeta().getProfile() != null) {
+                for (IPrimitiveType<?> profile : entry.getMeta().getProfile()) {
+                    if (profile.hasValue() && profile.getValueAsString().equals(templateId)) {
+                        trustedEntries.add(entry);
+                    }
+                }
+            }
         }
+        return trustedEntries;
+    }
 
-        private IGenericClient fhirClient;
-        private IBaseBundle results;
+    private String getLink(IBaseBundle page) {
+        return BundleUtil.getLinkUrlOfType(this.fhirClient.getFhirContext(), page, IBaseBundle.LINK_NEXT);
+    }
+
+    private class FhirBundleIterator implements Iterator<Object> {
+        private int page = -1;
         private int current;
-        private String dataType;
-        private String templateId;
-        private Class<? extends IBaseResource> dataTypeClass;
-        private List<? extends IBaseResource> currentEntry;
+        private List<? extends IBaseResource> currentEntry = new ArrayList<>();
 
         /**
          * Returns {@code true} if the iteration has more elements.
          * (In other words, returns {@code true} if {@link #next} would
          * return an element rather than throwing an exception.)
          *
+         * Pages without (matching) entries are skipped, so this may load several pages.
+         *
          * @return {@code true} if the iteration has more elements
          */
         public boolean hasNext() {
-            return current < this.currentEntry.size() - 1
-                    || this.getLink() != null;
-        }
-
-        private List<? extends IBaseResource> getEntry() {
-            if (this.dataTypeClass != null)
-            {
-                List<? extends IBaseResource> entries = BundleUtil.toListOfResourcesOfType(this.fhirClient.getFhirContext(), this.results, this.dataTypeClass);
-                if (templateId != null) {
-                    return getTrustedEntries(entries, templateId);
-                }
-                else {
-                    return entries;
-                }
-            }
-            else {
-                return BundleUtil.toListOfResources(this.fhirClient.getFhirContext(), this.results);
-            }
-        }
-
-        private List<? extends IBaseResource> getTrustedEntries(List<? extends IBaseResource> entries, String templateId) {
-            List<IBaseResource> trustedEntries = new ArrayList<IBaseResource>();
-            for (IBaseResource entry : entries) {
-                if (entry.getMeta() != null && entry.getMeta().getProfile() != null) {
-                    for (IPrimitiveType<?> profile : entry.getMeta().getProfile()) {
-                        if (profile.hasValue() && profile.getValueAsString().equals(templateId)) {
-                            trustedEntries.add(entry);
-                        }
-                    }
-                }
+            while (this.currentEntry != null && current >= this.currentEntry.size()) {
+                this.currentEntry = getPage(++page);
+                current = 0;
             }
-            return trustedEntries;
-        }
-
-        private String getLink() {
-            return BundleUtil.getLinkUrlOfType(this.fhirClient.getFhirContext(), this.results, IBaseBundle.LINK_NEXT);
+            return this.currentEntry != null;
         }
 
         /**
@@ -127,21 +187,10 @@ public class FhirBundleCursor implements Iterable<Object> {
          * @throws UnknownElement if the iteration has no more elements
          */
         public Object next() {
-            current++;
-            if (current < this.currentEntry.size()) {
-                return this.currentEntry.get(current);
-            } else {
-                this.results = fhirClient.loadPage().next(results).execute();
-                this.currentEntry = getEntry();
-                current = 0;
-                if (current < this.currentEntry.size()) {
-                    return this.currentEntry.get(current);
-                }
+            if (!hasNext()) {
+                throw new UnknownElement("The iteration has no more elements.");
             }
-
-            // TODO: It would be possible to get here if the next link was present, but the returned page had 0 entries...
-            // NOTE: This is especially true if the page has only data that is not conformant to the given profile
-            throw new UnknownElement("The iteration has no more elements.");
+            return this.currentEntry.get(current++);
         }
     }
 }
@@ -0,0 +1,478 @@
+package org.opencds.cqf.cql.engine.fhir.retrieve;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseCoding;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.cql.engine.exception.DataProviderException;
+import org.opencds.cqf.cql.engine.fhir.converter.FhirTypeConverter;
+import org.opencds.cqf.cql.engine.fhir.converter.FhirTypeConverterFactory;
+import org.opencds.cqf.cql.engine.fhir.model.FhirModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.TerminologyAwareRetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.BaseTemporal;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Date;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.runtime.Precision;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.BundleUtil;
+
+/**
+ * A RetrieveProvider that answers from FHIR resources held in memory, e.g. patient data read from files for batch
+ * and test runs.
+ *
+ * Resources are added one by one, from Bundles, from NDJSON (one resource per line), or from files. A resource with
+ * the type and id of one already added replaces it.
+ *
+ * Retrieves are answered from indexes of the resources of each type rather than by scanning them: by the id
+ * referenced at the context path (the compartment of the resource), by the system and code of the codes at the code
+ * path, and by the start of the date at the date path. The indexes are built the first time a retrieve needs them,
+ * and dropped when resources of the type are added, so resources should be added before retrieving. Value set
+ * filters are answered by expanding the value set with the terminology provider, and the matches are kept for later
+ * retrieves.
+ *
+ * Date filters are answered as overlaps of the date of a resource (a date, date time, instant or period) and the date
+ * range, each taken as the widest range of instants it could stand for; resources with any other type of date, or
+ * none, don't match a date filter. The template id of a retrieve is ignored, as for the RestFhirRetrieveProvider.
+ */
+public class IndexedFhirRetrieveProvider extends TerminologyAwareRetrieveProvider {
+
+    private final FhirModelResolver<?, ?, ?, ?, ?, ?, ?, ?> modelResolver;
+    private final FhirContext fhirContext;
+    private final FhirTypeConverter typeConverter;
+    private final Map<String, TypeIndex> types = new ConcurrentHashMap<>();
+
+    public IndexedFhirRetrieveProvider(FhirModelResolver<?, ?, ?, ?, ?, ?, ?, ?> modelResolver) {
+        this.modelResolver = modelResolver;
+        this.fhirContext = modelResolver.getFhirContext();
+        this.typeConverter = new FhirTypeConverterFactory().create(fhirContext.getVersion().getVersion());
+    }
+
+    /**
+     * Adds a resource, or the resources in it if it is a Bundle.
+     */
+    public void addResource(IBaseResource resource) {
+        if (resource instanceof IBaseBundle) {
+            addBundle((IBaseBundle) resource);
+            return;
+        }
+        types.computeIfAbsent(fhirContext.getResourceType(resource), t -> new TypeIndex()).add(resource);
+    }
+
+    public void addBundle(IBaseBundle bundle) {
+        for (IBaseResource resource : BundleUtil.toListOfResources(fhirContext, bundle)) {
+            addResource(resource);
+        }
+    }
+
+    /**
+     * Adds the resources of NDJSON content, one JSON resource (or Bundle) per line.
+     */
+    public void addNdjson(Reader ndjson) throws IOException {
+        IParser parser = fhirContext.newJsonParser();
+        BufferedReader reader = ndjson instanceof BufferedReader ? (BufferedReader) ndjson : new BufferedReader(ndjson);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.trim().isEmpty()) {
+                addResource(parser.parseResource(line));
+            }
+        }
+    }
+
+    /**
+     * Adds the resources in a file, or in the files of a directory (searched recursively). Files ending in .ndjson
+     * hold one resource per line, files ending in .json or .xml a resource or a Bundle; other files are skipped.
+     */
+    public void addFiles(Path path) {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(path)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        catch (IOException e) {
+            throw new DataProviderException(String.format("Error listing the files in %s", path.toString()), e);
+        }
+
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            try {
+                if (name.endsWith(".ndjson")) {
+                    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                        addNdjson(reader);
+                    }
+                }
+                else if (name.endsWith(".json") || name.endsWith(".xml")) {
+                    IParser parser = name.endsWith(".json") ? fhirContext.newJsonParser() : fhirContext.newXmlParser();
+                    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                        addResource(parser.parseResource(reader));
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new DataProviderException(String.format("Error reading %s", file.toString()), e);
+            }
+        }
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                                     String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                                     String dateLowPath, String dateHighPath, Interval dateRange) {
+        TypeIndex index = types.get(dataType);
+        if (index == null) {
+            return Collections.emptyList();
+        }
+
+        synchronized (index) {
+            BitSet matches = null;
+            if (contextPath != null && contextValue != null) {
+                matches = intersect(matches, index.compartment(contextPath, idPart(contextValue.toString())));
+            }
+            if (codePath != null && valueSet != null) {
+                matches = intersect(matches, index.valueSetMatches(codePath, valueSet));
+            }
+            else if (codePath != null && codes != null) {
+                matches = intersect(matches, index.codeMatches(codePath, codes));
+            }
+            if (dateRange != null && (datePath != null || dateLowPath != null || dateHighPath != null)) {
+                matches = index.dateMatches(Arrays.asList(datePath, dateLowPath, dateHighPath), matches, dateRange);
+            }
+
+            List<Object> resources = new ArrayList<>();
+            if (matches == null) {
+                resources.addAll(index.resources);
+            }
+            else {
+                for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+                    resources.add(index.resources.get(i));
+                }
+            }
+            return resources;
+        }
+    }
+
+    private static BitSet intersect(BitSet matches, BitSet other) {
+        if (other == null) {
+            return matches;
+        }
+        BitSet result = (BitSet) other.clone();
+        if (matches != null) {
+            result.and(matches);
+        }
+        return result;
+    }
+
+    // the id in a reference or id such as Patient/123 or http://server/Patient/123/_history/1
+    static String idPart(String reference) {
+        String id = reference;
+        int history = id.indexOf("/_history/");
+        if (history >= 0) {
+            id = id.substring(0, history);
+        }
+        return id.substring(id.lastIndexOf('/') + 1);
+    }
+
+    // the ids referenced by the value at a context path (a reference, an id, or a list of them)
+    static void addIds(Object value, List<String> ids) {
+        if (value instanceof Iterable) {
+            for (Object element : (Iterable<?>) value) {
+                addIds(element, ids);
+            }
+        }
+        else if (value instanceof IBaseReference) {
+            IIdType reference = ((IBaseReference) value).getReferenceElement();
+            if (reference != null && reference.hasIdPart()) {
+                ids.add(reference.getIdPart());
+            }
+        }
+        else if (value instanceof IIdType) {
+            if (((IIdType) value).hasIdPart()) {
+                ids.add(((IIdType) value).getIdPart());
+            }
+        }
+        else if (value instanceof IPrimitiveType) {
+            String id = ((IPrimitiveType<?>) value).getValueAsString();
+            if (id != null) {
+                ids.add(idPart(id));
+            }
+        }
+        else if (value != null) {
+            ids.add(idPart(value.toString()));
+        }
+    }
+
+    // the codes of the value at a code path (codings, codeable concepts, codes, or lists of them) as system|code
+    private void addCodes(Object value, List<String> codes) {
+        if (value instanceof Iterable) {
+            for (Object element : (Iterable<?>) value) {
+                addCodes(element, codes);
+            }
+        }
+        else if (value instanceof IBaseCoding) {
+            IBaseCoding coding = (IBaseCoding) value;
+            if (coding.getCode() != null) {
+                codes.add(codeKey(coding.getSystem(), coding.getCode()));
+            }
+        }
+        else if (value instanceof IPrimitiveType) {
+            String code = ((IPrimitiveType<?>) value).getValueAsString();
+            if (code != null) {
+                codes.add(codeKey(null, code));
+            }
+        }
+        else if (value != null) {
+            addCodes(modelResolver.resolvePath(value, "coding"), codes);
+        }
+    }
+
+    private static String codeKey(String system, String code) {
+        return (system == null ? "" : system) + "|" + code;
+    }
+
+    /*
+    The earliest and latest instants the value of a date path (a date, date time, instant or period) may stand for, in
+        milliseconds since the epoch, or null if the value isn't one of those types.
+     */
+    private long[] toRange(Object value) {
+        if (value instanceof IPrimitiveType) {
+            Object date = ((IPrimitiveType<?>) value).getValue();
+            if (!(date instanceof java.util.Date)) {
+                return null;
+            }
+            @SuppressWarnings("unchecked")
+            BaseTemporal temporal = typeConverter.toCqlTemporal((IPrimitiveType<java.util.Date>) value);
+            return new long[] { lowerBound(temporal), upperBound(temporal) };
+        }
+        if (value != null && value.getClass().getSimpleName().equals("Period")) {
+            long[] start = toRange(modelResolver.resolvePath(value, "start"));
+            long[] end = toRange(modelResolver.resolvePath(value, "end"));
+            return new long[] { start == null ? Long.MIN_VALUE : start[0], end == null ? Long.MAX_VALUE : end[1] };
+        }
+        return null;
+    }
+
+    // the partial fields of a date or date time hold their minimum
+    private static long lowerBound(Object temporal) {
+        if (temporal instanceof DateTime) {
+            return ((DateTime) temporal).getDateTime().toInstant().toEpochMilli();
+        }
+        if (temporal instanceof Date) {
+            return ((Date) temporal).getDate().atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        return Long.MIN_VALUE;
+    }
+
+    private static long upperBound(Object temporal) {
+        if (temporal instanceof DateTime) {
+            DateTime dateTime = (DateTime) temporal;
+            return dateTime.getPrecision() == null
+                    ? lowerBound(dateTime)
+                    : dateTime.expandPartialMax(Precision.MILLISECOND).getDateTime().toInstant().toEpochMilli();
+        }
+        if (temporal instanceof Date) {
+            Date date = (Date) temporal;
+            return (date.getPrecision() == null ? date : date.expandPartialMax(Precision.DAY)).getDate().plusDays(1)
+                    .atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli() - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /*
+    The resources of a type, in the order they were added, and the indexes of them built so far. The indexes refer to
+        resources by their position.
+     */
+    private class TypeIndex {
+        private final List<IBaseResource> resources = new ArrayList<>();
+        private final Map<String, Integer> positions = new HashMap<>();
+
+        // context path -> referenced id -> resources
+        private final Map<String, Map<String, BitSet>> compartments = new HashMap<>();
+        // code path -> system|code and |code -> resources
+        private final Map<String, Map<String, BitSet>> codes = new HashMap<>();
+        // code path -> value set -> resources
+        private final Map<String, Map<String, BitSet>> valueSets = new HashMap<>();
+        // date path, low and high path -> date index
+        private final Map<List<String>, DateIndex> dates = new HashMap<>();
+
+        synchronized void add(IBaseResource resource) {
+            IIdType id = resource.getIdElement();
+            Integer position = id != null && id.hasIdPart() ? positions.get(id.getIdPart()) : null;
+            if (position != null) {
+                resources.set(position, resource);
+            }
+            else {
+                if (id != null && id.hasIdPart()) {
+                    positions.put(id.getIdPart(), resources.size());
+                }
+                resources.add(resource);
+            }
+
+            compartments.clear();
+            codes.clear();
+            valueSets.clear();
+            dates.clear();
+        }
+
+        BitSet compartment(String contextPath, String id) {
+            Map<String, BitSet> byId = compartments.computeIfAbsent(contextPath, path -> {
+                Map<String, BitSet> index = new HashMap<>();
+                for (int i = 0; i < resources.size(); i++) {
+                    List<String> ids = new ArrayList<>();
+                    addIds(modelResolver.resolvePath(resources.get(i), path), ids);
+                    for (String referenced : ids) {
+                        index.computeIfAbsent(referenced, k -> new BitSet()).set(i);
+                    }
+                }
+                return index;
+            });
+            BitSet matches = byId.get(id);
+            return matches == null ? new BitSet() : matches;
+        }
+
+        BitSet codeMatches(String codePath, Iterable<Code> filter) {
+            Map<String, BitSet> byCode = codes.computeIfAbsent(codePath, path -> {
+                Map<String, BitSet> index = new HashMap<>();
+                for (int i = 0; i < resources.size(); i++) {
+                    List<String> keys = new ArrayList<>();
+                    addCodes(modelResolver.resolvePath(resources.get(i), path), keys);
+                    for (String key : keys) {
+                        index.computeIfAbsent(key, k -> new BitSet()).set(i);
+                        // indexed by code alone as well, for filter codes without a system
+                        String code = key.substring(key.indexOf('|') + 1);
+                        index.computeIfAbsent("|" + code, k -> new BitSet()).set(i);
+                    }
+                }
+                return index;
+            });
+
+            BitSet matches = new BitSet();
+            for (Code code : filter) {
+                if (code != null && code.getCode() != null) {
+                    BitSet resourcesWithCode = byCode.get(codeKey(code.getSystem(), code.getCode()));
+                    if (resourcesWithCode != null) {
+                        matches.or(resourcesWithCode);
+                    }
+                }
+            }
+            return matches;
+        }
+
+        BitSet valueSetMatches(String codePath, String valueSet) {
+            Map<String, BitSet> byValueSet = valueSets.computeIfAbsent(codePath, path -> new HashMap<>());
+            BitSet matches = byValueSet.get(valueSet);
+            if (matches == null) {
+                if (terminologyProvider == null) {
+                    throw new IllegalArgumentException(String.format(
+                            "Retrieving %s in value set %s requires a terminology provider and none is set.",
+                            codePath, valueSet));
+                }
+                matches = codeMatches(codePath, terminologyProvider.expand(new ValueSetInfo().withId(valueSet)));
+                byValueSet.put(valueSet, matches);
+            }
+            return matches;
+        }
+
+        BitSet dateMatches(List<String> paths, BitSet candidates, Interval dateRange) {
+            DateIndex index = dates.computeIfAbsent(paths, DateIndex::new);
+            long low = dateRange.getStart() == null ? Long.MIN_VALUE : lowerBound(dateRange.getStart());
+            long high = dateRange.getEnd() == null ? Long.MAX_VALUE : upperBound(dateRange.getEnd());
+            return index.overlapping(candidates, low, high);
+        }
+
+        /*
+        The date ranges of the resources, and the positions of the resources with one sorted by the start of their
+            range. Resources whose range starts after the end of a date filter are skipped with a binary search.
+         */
+        private class DateIndex {
+            private final long[] lows;
+            private final long[] highs;
+            private final boolean[] dated;
+            private final int[] byLow;
+
+            DateIndex(List<String> paths) {
+                int size = resources.size();
+                lows = new long[size];
+                highs = new long[size];
+                dated = new boolean[size];
+                List<Integer> datedPositions = new ArrayList<>();
+                for (int i = 0; i < size; i++) {
+                    long[] range = range(resources.get(i), paths.get(0), paths.get(1), paths.get(2));
+                    if (range != null) {
+                        lows[i] = range[0];
+                        highs[i] = range[1];
+                        dated[i] = true;
+                        datedPositions.add(i);
+                    }
+                }
+                datedPositions.sort((a, b) -> Long.compare(lows[a], lows[b]));
+                byLow = datedPositions.stream().mapToInt(Integer::intValue).toArray();
+            }
+
+            private long[] range(IBaseResource resource, String datePath, String dateLowPath, String dateHighPath) {
+                if (datePath != null) {
+                    return toRange(modelResolver.resolvePath(resource, datePath));
+                }
+                long[] low = dateLowPath == null ? null : toRange(modelResolver.resolvePath(resource, dateLowPath));
+                long[] high = dateHighPath == null ? null : toRange(modelResolver.resolvePath(resource, dateHighPath));
+                if (low == null && high == null) {
+                    return null;
+                }
+                return new long[] { low == null ? Long.MIN_VALUE : low[0], high == null ? Long.MAX_VALUE : high[1] };
+            }
+
+            BitSet overlapping(BitSet candidates, long low, long high) {
+                BitSet matches = new BitSet();
+                if (candidates != null) {
+                    // the candidates of a compartment or code are usually few, so they are checked directly
+                    for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                        if (dated[i] && lows[i] <= high && highs[i] >= low) {
+                            matches.set(i);
+                        }
+                    }
+                    return matches;
+                }
+
+                int from = 0;
+                int to = byLow.length;
+                while (from < to) {
+                    int middle = (from + to) >>> 1;
+                    if (lows[byLow[middle]] <= high) {
+                        from = middle + 1;
+                    }
+                    else {
+                        to = middle;
+                    }
+                }
+                for (int i = 0; i < from; i++) {
+                    if (highs[byLow[i]] >= low) {
+                        matches.set(byLow[i]);
+                    }
+                }
+                return matches;
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package org.opencds.cqf.cql.engine.fhir.retrieve;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/*
+A read-only index of the lines of NDJSON files by the type of the resource on the line and the patient it belongs to,
+    stored in a file that is memory-mapped when it is opened.
+
+The keys are "type NUL patient id" (with an empty id for the resources that don't belong to a patient), sorted by
+    their UTF-8 bytes, so the keys of a type are contiguous and a key is found with a binary search. Each key has the
+    byte ranges of its lines, as (file number, length, offset). All integers are big-endian.
+
+    header          magic, format version, fingerprint of the source files (long)
+    files           count, (length, UTF-8 bytes) of the path of each file relative to the export directory
+    keys            count n, n + 1 offsets into the UTF-8 bytes, the bytes
+    ranges          n + 1 offsets of the first range of each key, (file, length, offset) per range
+*/
+
+final class NdjsonOffsetIndex {
+
+    private static final int MAGIC = 0x43514c42;
+    private static final int FORMAT_VERSION = 1;
+    private static final char SEPARATOR = '\0';
+
+    private final ByteBuffer buffer;
+    private final List<String> files;
+    private final int keyCount;
+    private final int keyOffsets;
+    private final int keyBytes;
+    private final int rangeOffsets;
+    private final int ranges;
+
+    private NdjsonOffsetIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Not an NDJSON index of this format version");
+        }
+
+        int position = 16;
+        int fileCount = buffer.getInt(position);
+        position += 4;
+        files = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; ++i) {
+            int length = buffer.getInt(position);
+            files.add(readString(position + 4, length));
+            position += 4 + length;
+        }
+
+        keyCount = buffer.getInt(position);
+        keyOffsets = position + 4;
+        keyBytes = keyOffsets + 4 * (keyCount + 1);
+        rangeOffsets = keyBytes + buffer.getInt(keyOffsets + 4 * keyCount);
+        ranges = rangeOffsets + 4 * (keyCount + 1);
+    }
+
+    static NdjsonOffsetIndex open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // the mapping remains valid after the channel is closed
+            return new NdjsonOffsetIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /*
+    Returns the fingerprint recorded in the given index file, or null if it isn't an index of this format version.
+     */
+    static Long readFingerprint(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read the whole header
+            }
+            return header.getInt(0) == MAGIC && header.getInt(4) == FORMAT_VERSION ? header.getLong(8) : null;
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    // the paths of the indexed files, relative to the export directory, by file number
+    List<String> getFiles() {
+        return files;
+    }
+
+    /*
+    Returns the byte ranges of the lines of the given type that belong to the given patient, or to any patient (and
+        none) if the patient is null, as (file, length, offset) triples.
+     */
+    List<long[]> getRanges(String type, String patient) {
+        int first;
+        int last;
+        if (patient != null) {
+            byte[] key = key(type, patient).getBytes(StandardCharsets.UTF_8);
+            first = findKey(key, false);
+            last = first < keyCount && compareKey(first, key, false) == 0 ? first + 1 : first;
+        }
+        else {
+            byte[] prefix = key(type, "").getBytes(StandardCharsets.UTF_8);
+            first = findKey(prefix, true);
+            last = first;
+            while (last < keyCount && compareKey(last, prefix, true) == 0) {
+                ++last;
+            }
+        }
+
+        List<long[]> result = new ArrayList<>();
+        for (int range = rangeStart(first); range < rangeStart(last); ++range) {
+            int position = ranges + 16 * range;
+            result.add(new long[] { buffer.getInt(position), buffer.getInt(position + 4), buffer.getLong(position + 8) });
+        }
+        return result;
+    }
+
+    // the ids of the patients with resources of the given type
+    List<String> getPatients(String type) {
+        byte[] prefix = key(type, "").getBytes(StandardCharsets.UTF_8);
+        List<String> patients = new ArrayList<>();
+        for (int key = findKey(prefix, true); key < keyCount && compareKey(key, prefix, true) == 0; ++key) {
+            int start = keyBytes + buffer.getInt(keyOffsets + 4 * key);
+            int end = keyBytes + buffer.getInt(keyOffsets + 4 * (key + 1));
+            if (end > start + prefix.length) {
+                patients.add(readString(start + prefix.length, end - start - prefix.length));
+            }
+        }
+        return patients;
+    }
+
+    private int rangeStart(int key) {
+        return buffer.getInt(rangeOffsets + 4 * key);
+    }
+
+    // the first key not less than the given bytes (compared as a prefix of the keys, if prefix)
+    private int findKey(byte[] bytes, boolean prefix) {
+        int low = 0;
+        int high = keyCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareKey(middle, bytes, prefix) < 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int compareKey(int key, byte[] bytes, boolean prefix) {
+        int start = keyBytes + buffer.getInt(keyOffsets + 4 * key);
+        int length = keyBytes + buffer.getInt(keyOffsets + 4 * (key + 1)) - start;
+        for (int i = 0; i < length && i < bytes.length; ++i) {
+            int comparison = Integer.compare(buffer.get(start + i) & 0xff, bytes[i] & 0xff);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return prefix && length >= bytes.length ? 0 : Integer.compare(length, bytes.length);
+    }
+
+    private String readString(int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        ((Buffer) view).position(position);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String key(String type, String patient) {
+        return type + SEPARATOR + patient;
+    }
+
+    private static final Comparator<String> UTF8_ORDER = (left, right) -> {
+        byte[] l = left.getBytes(StandardCharsets.UTF_8);
+        byte[] r = right.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < l.length && i < r.length; ++i) {
+            int comparison = Integer.compare(l[i] & 0xff, r[i] & 0xff);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(l.length, r.length);
+    };
+
+    /*
+    Collects the lines of the files while they are scanned, and writes the index.
+     */
+    static class Builder {
+        private final List<String> files = new ArrayList<>();
+        private final Map<String, Lines> lines = new HashMap<>();
+
+        // the byte ranges of the lines of a key, as (file and length, offset) pairs
+        private static class Lines {
+            private long[] pairs = new long[4];
+            private int count;
+
+            void add(int file, int length, long offset) {
+                if (pairs.length < 2 * (count + 1)) {
+                    pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                }
+                pairs[2 * count] = ((long) file << 32) | (length & 0xffffffffL);
+                pairs[2 * count + 1] = offset;
+                ++count;
+            }
+        }
+
+        // returns the number of the file
+        int addFile(String relativePath) {
+            files.add(relativePath);
+            return files.size() - 1;
+        }
+
+        // adds a line of the given type, which belongs to the given patients (none if empty)
+        void addLine(String type, List<String> patients, int file, int length, long offset) {
+            if (patients.isEmpty()) {
+                lines.computeIfAbsent(key(type, ""), k -> new Lines()).add(file, length, offset);
+            }
+            for (String patient : new LinkedHashSet<>(patients)) {
+                lines.computeIfAbsent(key(type, patient), k -> new Lines()).add(file, length, offset);
+            }
+        }
+
+        void write(Path file, long fingerprint) throws IOException {
+            Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try (OutputStream stream = Files.newOutputStream(temporary);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(fingerprint);
+
+                out.writeInt(files.size());
+                for (String path : files) {
+                    byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+
+                List<String> keys = new ArrayList<>(lines.keySet());
+                keys.sort(UTF8_ORDER);
+                out.writeInt(keys.size());
+                List<byte[]> encoded = new ArrayList<>(keys.size());
+                int offset = 0;
+                for (String key : keys) {
+                    byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                    encoded.add(bytes);
+                    out.writeInt(offset);
+                    offset += bytes.length;
+                }
+                out.writeInt(offset);
+                for (byte[] bytes : encoded) {
+                    out.write(bytes);
+                }
+
+                int range = 0;
+                for (String key : keys) {
+                    out.writeInt(range);
+                    range += lines.get(key).count;
+                }
+                out.writeInt(range);
+                for (String key : keys) {
+                    Lines keyLines = lines.get(key);
+                    for (int i = 0; i < keyLines.count; ++i) {
+                        out.writeInt((int) (keyLines.pairs[2 * i] >>> 32));
+                        out.writeInt((int) keyLines.pairs[2 * i]);
+                        out.writeLong(keyLines.pairs[2 * i + 1]);
+                    }
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -3,31 +3,48 @@ package org.opencds.cqf.cql.engine.fhir.retrieve;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.function.BiFunction;
 
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseCoding;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.BatchReadRetrieveProvider;
 
 import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.rest.api.SearchStyleEnum;
+import ca.uhn.fhir.rest.api.SummaryEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.gclient.ICriterion;
 import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.gclient.TokenClientParam;
 import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.BundleUtil;
 
-public class RestFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
+public class RestFhirRetrieveProvider extends SearchParamFhirRetrieveProvider implements BatchReadRetrieveProvider {
 
 	private static final SearchStyleEnum DEFAULT_SEARCH_STYLE = SearchStyleEnum.GET;
+	private static final int DEFAULT_MAX_IDS_PER_QUERY = 100;
 
 	protected IGenericClient fhirClient;
 	private SearchStyleEnum searchStyle;
+	private Executor pagePrefetchExecutor;
+	private Executor queryExecutor;
+	private Integer maxConcurrentQueries;
+	private Integer maxIdsPerQuery;
 
     public RestFhirRetrieveProvider(SearchParameterResolver searchParameterResolver, IGenericClient fhirClient) {
         super(searchParameterResolver);
@@ -51,6 +68,84 @@ public class RestFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
 		return this.searchStyle;
 	}
 
+	/**
+	 * Sets the executor on which the next page of a search result is loaded while a page is iterated.
+	 * If it is null (the default), pages are loaded when the iteration reaches them.
+	 */
+	public void setPagePrefetchExecutor(Executor value) {
+		this.pagePrefetchExecutor = value;
+	}
+
+	public Executor getPagePrefetchExecutor() {
+		return this.pagePrefetchExecutor;
+	}
+
+	/**
+	 * Sets the executor on which the queries of a retrieve are made concurrently, when the retrieve is split into
+	 * several queries (e.g. because it has more codes than the maximum per query).
+	 * If it is null (the default), the queries are made one after another.
+	 */
+	public void setQueryExecutor(Executor value) {
+		this.queryExecutor = value;
+	}
+
+	public Executor getQueryExecutor() {
+		return this.queryExecutor;
+	}
+
+	/**
+	 * Sets the maximum number of queries of a retrieve that are made at the same time on the query executor.
+	 * If it isn't set, all the queries of a retrieve are made at the same time.
+	 */
+	public void setMaxConcurrentQueries(Integer value) {
+		if (value == null || value < 1) {
+			throw new IllegalArgumentException("value must be a non-null integer > 0");
+		}
+
+		this.maxConcurrentQueries = value;
+	}
+
+	public Integer getMaxConcurrentQueries() {
+		return this.maxConcurrentQueries;
+	}
+
+	/**
+	 * Sets the maximum number of ids in a search by id, when several resources are read together.
+	 * If it isn't set, at most 100 ids are searched at a time.
+	 */
+	public void setMaxIdsPerQuery(Integer value) {
+		if (value == null || value < 1) {
+			throw new IllegalArgumentException("value must be a non-null integer > 0");
+		}
+
+		this.maxIdsPerQuery = value;
+	}
+
+	public Integer getMaxIdsPerQuery() {
+		return this.maxIdsPerQuery;
+	}
+
+	/**
+	 * Reads the resources with the given ids with searches by id, at most maxIdsPerQuery ids at a time, rather than
+	 * with a read per id. The engine reads the resources a query retrieves by id for each of its rows this way, and
+	 * keeps them for the evaluation.
+	 */
+	@Override
+	public Map<String, Object> read(String dataType, List<String> ids) {
+		int max = this.maxIdsPerQuery == null ? DEFAULT_MAX_IDS_PER_QUERY : this.maxIdsPerQuery;
+		Map<String, Object> resources = new HashMap<>();
+		for (int start = 0; start < ids.size(); start += max) {
+			IBaseBundle bundle = this.searchByIds(dataType, ids.subList(start, Math.min(start + max, ids.size())));
+			for (Object result : new FhirBundleCursor(fhirClient, bundle)) {
+				IBaseResource resource = (IBaseResource) result;
+				if (resource.getIdElement() != null && resource.getIdElement().hasIdPart()) {
+					resources.put(resource.getIdElement().getIdPart(), resource);
+				}
+			}
+		}
+		return resources;
+	}
+
 	@Override
 	protected Iterable<Object> executeQueries(String dataType, List<SearchParameterMap> queries) {
 		if (queries == null || queries.isEmpty()) {
@@ -59,8 +154,7 @@ public class RestFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
 
 		List<Object> objects = new ArrayList<>();
 		List<IBaseBundle> bundles = new ArrayList<>();
-		for (SearchParameterMap map : queries) {
-			IBaseResource result = this.executeQuery(dataType, map);
+		for (IBaseResource result : this.executeQueriesConcurrently(dataType, queries)) {
 			if (result instanceof IBaseBundle) {
 				bundles.add((IBaseBundle) result);
 			} else {
@@ -68,73 +162,218 @@ public class RestFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
 			}
 		}
 
-		// TODO: evaluate this lazily in case the engine only needs the first element
+		// the pages of the bundles are loaded as the results are iterated
+		List<Iterable<Object>> results = new ArrayList<>();
+		if (!objects.isEmpty()) {
+			results.add(objects);
+		}
 		for (IBaseBundle b : bundles) {
-			FhirBundleCursor cursor = new FhirBundleCursor(fhirClient, b, dataType);
-			cursor.forEach(objects::add);
+			results.add(new FhirBundleCursor(fhirClient, b, null, null, pagePrefetchExecutor));
+		}
+
+		if (results.isEmpty()) {
+			return objects;
+		}
+		if (results.size() == 1) {
+			return results.get(0);
+		}
+		// the results of the queries of a split retrieve may overlap
+		return () -> distinct(concat(results.iterator()));
+	}
+
+	/*
+	Makes the queries on the query executor, at most maxConcurrentQueries at a time, and returns their results in the
+	    order of the queries. Each of the concurrent tasks makes every n-th query, so no task waits for another.
+	 */
+	private IBaseResource[] executeQueriesConcurrently(String dataType, List<SearchParameterMap> queries) {
+		IBaseResource[] results = new IBaseResource[queries.size()];
+		if (queryExecutor == null || queries.size() == 1) {
+			for (int i = 0; i < queries.size(); i++) {
+				results[i] = this.executeQuery(dataType, queries.get(i));
+			}
+			return results;
+		}
+
+		int tasks = maxConcurrentQueries == null ? queries.size() : Math.min(maxConcurrentQueries, queries.size());
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (int task = 0; task < tasks; task++) {
+			int first = task;
+			futures.add(CompletableFuture.runAsync(() -> {
+				for (int i = first; i < queries.size(); i += tasks) {
+					results[i] = this.executeQuery(dataType, queries.get(i));
+				}
+			}, queryExecutor));
+		}
+
+		try {
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
 		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+		return results;
+	}
+
+	// skips the resources with the id of a resource already returned
+	private static Iterator<Object> distinct(Iterator<Object> resources) {
+		Set<String> ids = new HashSet<>();
+		return new Iterator<Object>() {
+			private Object next;
+			private boolean hasNext;
+
+			@Override
+			public boolean hasNext() {
+				while (!hasNext && resources.hasNext()) {
+					Object resource = resources.next();
+					IIdType id = resource instanceof IBaseResource ? ((IBaseResource) resource).getIdElement() : null;
+					if (id == null || !id.hasIdPart() || ids.add(id.toUnqualifiedVersionless().getValue())) {
+						next = resource;
+						hasNext = true;
+					}
+				}
+				return hasNext;
+			}
 
-		return objects;
+			@Override
+			public Object next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				hasNext = false;
+				return next;
+			}
+		};
+	}
+
+	private static Iterator<Object> concat(Iterator<Iterable<Object>> results) {
+		return new Iterator<Object>() {
+			private Iterator<Object> current = Collections.emptyIterator();
+
+			@Override
+			public boolean hasNext() {
+				while (!current.hasNext() && results.hasNext()) {
+					current = results.next().iterator();
+				}
+				return current.hasNext();
+			}
+
+			@Override
+			public Object next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return current.next();
+			}
+		};
+	}
+
+	@Override
+	protected Object executeFirst(String dataType, List<SearchParameterMap> queries) {
+		if (queries == null) {
+			return null;
+		}
+
+		// the queries are made one at a time, each for a single result, until one has a result
+		for (SearchParameterMap map : queries) {
+			IBaseResource result = map.containsKey("_id")
+					? this.queryById(dataType, map)
+					: this.search(dataType, map).count(1).execute();
+			if (!(result instanceof IBaseBundle)) {
+				return result;
+			}
+
+			Iterator<Object> resources = new FhirBundleCursor(fhirClient, (IBaseBundle) result).iterator();
+			if (resources.hasNext()) {
+				return resources.next();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	protected Integer executeCount(String dataType, List<SearchParameterMap> queries) {
+		// the results of the queries of a split retrieve may overlap, so they are counted by reading them
+		if (queries == null || queries.size() != 1 || queries.get(0).containsKey("_id")) {
+			return super.executeCount(dataType, queries);
+		}
+
+		IBaseBundle bundle = this.search(dataType, queries.get(0)).summaryMode(SummaryEnum.COUNT).execute();
+		Integer total = BundleUtil.getTotal(fhirClient.getFhirContext(), bundle);
+		return total != null ? total : super.executeCount(dataType, queries);
 	}
 
 	protected IBaseResource executeQuery(String dataType, SearchParameterMap map) {
 		if (map.containsKey("_id")) {
 			return this.queryById(dataType, map);
 		} else {
-			IQuery<IBaseBundle> search = this.fhirClient.search().forResource(dataType);
+			return this.search(dataType, map).execute();
+		}
+	}
 
-			Map<String, List<IQueryParameterType>> flattenedMap = new HashMap<>();
-			for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
-				String name = entry.getKey();
-				if (name == null) {
-					continue;
-				}
+	private IQuery<IBaseBundle> search(String dataType, SearchParameterMap map) {
+		IQuery<IBaseBundle> search = this.fhirClient.search().forResource(dataType);
 
-				List<List<IQueryParameterType>> value = entry.getValue();
-				if (value == null || value.isEmpty()) {
-					continue;
-				}
+		Map<String, List<IQueryParameterType>> flattenedMap = new HashMap<>();
+		for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+			String name = entry.getKey();
+			if (name == null) {
+				continue;
+			}
 
-				List<IQueryParameterType> flattened = new ArrayList<>();
+			List<List<IQueryParameterType>> value = entry.getValue();
+			if (value == null || value.isEmpty()) {
+				continue;
+			}
 
-				for (List<IQueryParameterType> subList : value) {
+			List<IQueryParameterType> flattened = new ArrayList<>();
 
-					if (subList == null || subList.isEmpty()) {
-						continue;
-					}
+			for (List<IQueryParameterType> subList : value) {
 
-					if (subList.size() == 1) {
-						flattened.add(subList.get(0));
-						continue;
-					}
+				if (subList == null || subList.isEmpty()) {
+					continue;
+				}
 
-					// Sublists are logical "Ors"
-					// The only "Or" supported from the engine are tokens at the moment.
-					// So this is a hack to add them to a "criterion", which is the
-					// only way the HAPI POST api supports passing them.
-					IQueryParameterType first = subList.get(0);
-					if (first instanceof TokenParam) {
-						TokenClientParam tcp = new TokenClientParam(name);
+				if (subList.size() == 1) {
+					flattened.add(subList.get(0));
+					continue;
+				}
 
-						IBaseCoding[] codings = this.toCodings(subList);
+				// Sublists are logical "Ors"
+				// The only "Or" supported from the engine are tokens at the moment.
+				// So this is a hack to add them to a "criterion", which is the
+				// only way the HAPI POST api supports passing them.
+				IQueryParameterType first = subList.get(0);
+				if (first instanceof TokenParam) {
+					TokenClientParam tcp = new TokenClientParam(name);
 
-						ICriterion<?> criterion = tcp.exactly().codings(codings);
+					IBaseCoding[] codings = this.toCodings(subList);
 
-						search = search.where(criterion);
-					} else {
-						flattened.addAll(subList);
-					}
-				}
+					ICriterion<?> criterion = tcp.exactly().codings(codings);
 
-				flattenedMap.put(name, flattened);
+					search = search.where(criterion);
+				} else {
+					flattened.addAll(subList);
+				}
 			}
 
-			if (getPageSize() != null) {
-			    search.count(getPageSize());
-			}
+			flattenedMap.put(name, flattened);
+		}
+
+		if (getPageSize() != null) {
+		    search.count(getPageSize());
+		}
 
-			return search.where(flattenedMap).usingStyle(this.searchStyle).execute();
+		for (Include include : map.getIncludes()) {
+			search = search.include(include);
+		}
+		for (Include include : map.getRevIncludes()) {
+			search = search.revInclude(include);
 		}
+
+		return search.where(flattenedMap).usingStyle(this.searchStyle);
 	}
 
 	protected IBaseResource queryById(String dataType, SearchParameterMap map) {
@@ -149,31 +388,42 @@ public class RestFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
 					String.format("Error querying %s. Attempted query by id but no id was specified.", dataType));
 		}
 
-		if (tokenList.size() > 1) {
-			throw new IllegalArgumentException(String
-					.format("Error querying %s. Attempted query by id but multiple ids were specified.", dataType));
-		}
+		List<String> ids = new ArrayList<>();
+		for (IQueryParameterType param : tokenList) {
+			if (!(param instanceof TokenParam)) {
+				throw new IllegalArgumentException(String
+						.format("Error querying %s. Attempted query by id but a non-token parameter was given.", dataType));
+			}
 
-		IQueryParameterType param = tokenList.get(0);
-		if (!(param instanceof TokenParam)) {
-			throw new IllegalArgumentException(String
-					.format("Error querying %s. Attempted query by id but a non-token parameter was given.", dataType));
-		}
+			String id = ((TokenParam) param).getValue();
 
-		String id = ((TokenParam) param).getValue();
+			if (id == null) {
+				throw new IllegalArgumentException(
+						String.format("Error querying %s. Attempted query by id but id was null.", dataType));
+			}
+			ids.add(id);
+		}
 
-		if (id == null) {
-			throw new IllegalArgumentException(
-					String.format("Error querying %s. Attempted query by id but id was null.", dataType));
+		// several ids are searched at once, rather than read one at a time
+		if (ids.size() > 1) {
+			return this.searchByIds(dataType, ids);
 		}
 
-		return queryById(dataType, id);
+		return queryById(dataType, ids.get(0));
 	}
 
 	protected IBaseResource queryById(String dataType, String id) {
 		return this.fhirClient.read().resource(dataType).withId(id).execute();
 	}
 
+	protected IBaseBundle searchByIds(String dataType, List<String> ids) {
+		IQuery<IBaseBundle> search = this.fhirClient.search().forResource(dataType)
+				.where(new TokenClientParam("_id").exactly().codes(ids));
+		// the results of a search by id fit on a page
+		search.count(ids.size());
+		return search.usingStyle(this.searchStyle).execute();
+	}
+
 	protected IBaseCoding[] toCodings(List<IQueryParameterType> codingList) {
 		List<IBaseCoding> codings = new ArrayList<>();
 
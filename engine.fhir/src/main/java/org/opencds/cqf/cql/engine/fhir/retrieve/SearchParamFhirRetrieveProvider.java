@@ -1,19 +1,25 @@
 package org.opencds.cqf.cql.engine.fhir.retrieve;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.BiConsumer;
 
 import ca.uhn.fhir.context.FhirVersionEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.cql.engine.fhir.exception.FhirVersionMisMatchException;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.IncludeRetrieveProvider;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveInclude;
 import org.opencds.cqf.cql.engine.retrieve.TerminologyAwareRetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 
 import ca.uhn.fhir.context.FhirContext;
 
-public abstract class SearchParamFhirRetrieveProvider extends TerminologyAwareRetrieveProvider {
+public abstract class SearchParamFhirRetrieveProvider extends TerminologyAwareRetrieveProvider implements IncludeRetrieveProvider {
     protected FhirContext fhirContext;
     protected SearchParameterResolver searchParameterResolver;
     protected Integer pageSize;
@@ -91,6 +97,81 @@ public abstract class SearchParamFhirRetrieveProvider extends TerminologyAwareRe
                                      String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
                                      String dateLowPath, String dateHighPath, Interval dateRange) {
 
+        List<SearchParameterMap> queries = this.setupQueries(context, contextPath, contextValue, dataType, templateId,
+            codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+
+        return this.executeQueries(dataType, queries);
+    }
+
+    @Override
+    public Object retrieveFirst(String context, String contextPath, Object contextValue, String dataType,
+                                String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                                String dateLowPath, String dateHighPath, Interval dateRange) {
+
+        List<SearchParameterMap> queries = this.setupQueries(context, contextPath, contextValue, dataType, templateId,
+            codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+
+        return this.executeFirst(dataType, queries);
+    }
+
+    @Override
+    public Integer retrieveCount(String context, String contextPath, Object contextValue, String dataType,
+                                 String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                                 String dateLowPath, String dateHighPath, Interval dateRange) {
+
+        List<SearchParameterMap> queries = this.setupQueries(context, contextPath, contextValue, dataType, templateId,
+            codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+
+        return this.executeCount(dataType, queries);
+    }
+
+    // Returns the first result of the queries. Providers that can limit a query to one result should override it.
+    protected Object executeFirst(String dataType, List<SearchParameterMap> queries) {
+        Iterator<Object> results = this.executeQueries(dataType, queries).iterator();
+        return results.hasNext() ? results.next() : null;
+    }
+
+    // Returns the number of results of the queries. Providers that can query the number of results should override it.
+    protected Integer executeCount(String dataType, List<SearchParameterMap> queries) {
+        int count = 0;
+        for (Object result : this.executeQueries(dataType, queries)) {
+            if (result != null) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    // The included resources are told apart from the retrieved ones by their type, so the results are read before
+    // they are returned.
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                                     String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                                     String dateLowPath, String dateHighPath, Interval dateRange, List<RetrieveInclude> includes,
+                                     BiConsumer<String, Object> included) {
+
+        List<SearchParameterMap> queries = this.setupQueries(context, contextPath, contextValue, dataType, templateId,
+            codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        if (includes == null || includes.isEmpty() || fhirQueryGenerator == null) {
+            return this.executeQueries(dataType, queries);
+        }
+
+        fhirQueryGenerator.addIncludes(dataType, queries, includes);
+        List<Object> resources = new ArrayList<>();
+        for (Object resource : this.executeQueries(dataType, queries)) {
+            String type = resource instanceof IBaseResource ? this.fhirContext.getResourceType((IBaseResource) resource) : dataType;
+            if (dataType.equals(type)) {
+                resources.add(resource);
+            } else {
+                included.accept(type, resource);
+            }
+        }
+        return resources;
+    }
+
+    private List<SearchParameterMap> setupQueries(String context, String contextPath, Object contextValue, String dataType,
+                                                  String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                                                  String dateLowPath, String dateHighPath, Interval dateRange) {
         List<SearchParameterMap> queries = null;
 
         if (this.fhirContext != null && modelResolver != null) {
@@ -120,6 +201,6 @@ public abstract class SearchParamFhirRetrieveProvider extends TerminologyAwareRe
                 templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
         }
 
-        return this.executeQueries(dataType, queries);
+        return queries;
     }
-}
\ No newline at end of file
+}
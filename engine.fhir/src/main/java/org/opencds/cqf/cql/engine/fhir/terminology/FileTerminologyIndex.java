@@ -0,0 +1,545 @@
+package org.opencds.cqf.cql.engine.fhir.terminology;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/*
+A read-only index of value sets and code systems, stored in a file that is memory-mapped when it is opened, so lookups
+    read the file rather than objects on the heap.
+
+All the strings (urls, versions, systems, codes and displays) are stored once, in a table sorted by their UTF-8
+    bytes, so the order of the string ids is the order of the strings. The members of each value set, the concepts of
+    each code system and the reverse index from codes to the value sets that contain them are arrays of string ids
+    sorted by (system, code), which are binary searched. All integers are big-endian.
+
+    header          magic, format version, fingerprint of the source files (long)
+    strings         count n, n + 1 offsets into the UTF-8 bytes, the bytes
+    value sets      count, (url, version, first member, member count) per value set
+    aliases         count, (alias, value set) pairs sorted by alias - the urls, identifiers and ids of the value sets
+    members         count, (system, code, version, display) per member
+    code systems    count, (url, version, first concept, concept count) per code system
+    concepts        count, (code, display) per concept
+    reverse index   count, (system, code, first value set, value set count) per code; count, value set numbers
+*/
+
+final class FileTerminologyIndex {
+
+    private static final int MAGIC = 0x43514c54;
+    private static final int FORMAT_VERSION = 1;
+    private static final int NONE = -1;
+
+    private final ByteBuffer buffer;
+    private final long fingerprint;
+    private final int stringCount;
+    private final int stringOffsets;
+    private final int stringBytes;
+    private final int valueSetCount;
+    private final int valueSets;
+    private final int aliasCount;
+    private final int aliases;
+    private final int members;
+    private final int codeSystemCount;
+    private final int codeSystems;
+    private final int concepts;
+    private final int reverseCount;
+    private final int reverse;
+    private final int reverseValueSets;
+
+    private FileTerminologyIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Not a terminology index of this format version");
+        }
+        fingerprint = buffer.getLong(8);
+
+        int position = 16;
+        stringCount = buffer.getInt(position);
+        stringOffsets = position + 4;
+        stringBytes = stringOffsets + 4 * (stringCount + 1);
+        position = stringBytes + buffer.getInt(stringOffsets + 4 * stringCount);
+
+        valueSetCount = buffer.getInt(position);
+        valueSets = position + 4;
+        position = valueSets + 16 * valueSetCount;
+
+        aliasCount = buffer.getInt(position);
+        aliases = position + 4;
+        position = aliases + 8 * aliasCount;
+
+        int memberCount = buffer.getInt(position);
+        members = position + 4;
+        position = members + 16 * memberCount;
+
+        codeSystemCount = buffer.getInt(position);
+        codeSystems = position + 4;
+        position = codeSystems + 16 * codeSystemCount;
+
+        int conceptCount = buffer.getInt(position);
+        concepts = position + 4;
+        position = concepts + 8 * conceptCount;
+
+        reverseCount = buffer.getInt(position);
+        reverse = position + 4;
+        position = reverse + 16 * reverseCount;
+        reverseValueSets = position + 4;
+    }
+
+    static FileTerminologyIndex open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // the mapping remains valid after the channel is closed
+            return new FileTerminologyIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /*
+    Returns the fingerprint recorded in the given index file, or null if it isn't an index of this format version.
+     */
+    static Long readFingerprint(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read the whole header
+            }
+            return header.getInt(0) == MAGIC && header.getInt(4) == FORMAT_VERSION ? header.getLong(8) : null;
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    /*
+    Returns the number of the value set with the given url, identifier or id (and version, if not null), or -1.
+     */
+    int findValueSet(String id, String version) {
+        int alias = findString(id);
+        if (alias == NONE) {
+            return NONE;
+        }
+        int versionId = version == null ? NONE : findString(version);
+        if (version != null && versionId == NONE) {
+            return NONE;
+        }
+
+        for (int i = lowerBound(aliases, 8, aliasCount, alias); i < aliasCount && buffer.getInt(aliases + 8 * i) == alias; ++i) {
+            int valueSet = buffer.getInt(aliases + 8 * i + 4);
+            if (version == null || buffer.getInt(valueSets + 16 * valueSet + 4) == versionId) {
+                return valueSet;
+            }
+        }
+        return NONE;
+    }
+
+    String getValueSetUrl(int valueSet) {
+        return string(buffer.getInt(valueSets + 16 * valueSet));
+    }
+
+    /*
+    Returns whether the value set contains the given code. A code without a system matches a member with the same code
+        in any system.
+     */
+    boolean contains(int valueSet, String system, String code) {
+        int codeId = findString(code);
+        if (codeId == NONE) {
+            return false;
+        }
+        int first = buffer.getInt(valueSets + 16 * valueSet + 8);
+        int count = buffer.getInt(valueSets + 16 * valueSet + 12);
+
+        if (system == null) {
+            for (int i = first; i < first + count; ++i) {
+                if (buffer.getInt(members + 16 * i + 4) == codeId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int systemId = findString(system);
+        return systemId != NONE && findPair(members, 16, first, count, systemId, codeId) != NONE;
+    }
+
+    List<Code> getCodes(int valueSet) {
+        int first = buffer.getInt(valueSets + 16 * valueSet + 8);
+        int count = buffer.getInt(valueSets + 16 * valueSet + 12);
+        List<Code> codes = new ArrayList<>(count);
+        for (int i = first; i < first + count; ++i) {
+            int member = members + 16 * i;
+            codes.add(new Code()
+                    .withSystem(string(buffer.getInt(member)))
+                    .withCode(string(buffer.getInt(member + 4)))
+                    .withVersion(string(buffer.getInt(member + 8)))
+                    .withDisplay(string(buffer.getInt(member + 12))));
+        }
+        return codes;
+    }
+
+    /*
+    Returns the number of the code system with the given url (and version, if not null), or -1.
+     */
+    int findCodeSystem(String url, String version) {
+        int urlId = findString(url);
+        int versionId = version == null ? NONE : findString(version);
+        if (urlId == NONE || (version != null && versionId == NONE)) {
+            return NONE;
+        }
+        for (int i = 0; i < codeSystemCount; ++i) {
+            int codeSystem = codeSystems + 16 * i;
+            if (buffer.getInt(codeSystem) == urlId && (version == null || buffer.getInt(codeSystem + 4) == versionId)) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    /*
+    Returns the display of the given code in the code system, the empty string if the concept has no display, or null
+        if the code system doesn't contain the code.
+     */
+    String lookupDisplay(int codeSystem, String code) {
+        int codeId = findString(code);
+        if (codeId == NONE) {
+            return null;
+        }
+        int first = buffer.getInt(codeSystems + 16 * codeSystem + 8);
+        int count = buffer.getInt(codeSystems + 16 * codeSystem + 12);
+        int low = first;
+        int high = first + count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleCode = buffer.getInt(concepts + 8 * middle);
+            if (middleCode < codeId) {
+                low = middle + 1;
+            }
+            else if (middleCode > codeId) {
+                high = middle - 1;
+            }
+            else {
+                String display = string(buffer.getInt(concepts + 8 * middle + 4));
+                return display == null ? "" : display;
+            }
+        }
+        return null;
+    }
+
+    /*
+    Returns the urls of the value sets that contain the given code.
+     */
+    List<String> getValueSetsContaining(String system, String code) {
+        int systemId = findString(system);
+        int codeId = findString(code);
+        List<String> urls = new ArrayList<>();
+        if (systemId == NONE || codeId == NONE) {
+            return urls;
+        }
+        int entry = findPair(reverse, 16, 0, reverseCount, systemId, codeId);
+        if (entry != NONE) {
+            int first = buffer.getInt(reverse + 16 * entry + 8);
+            int count = buffer.getInt(reverse + 16 * entry + 12);
+            for (int i = first; i < first + count; ++i) {
+                urls.add(getValueSetUrl(buffer.getInt(reverseValueSets + 4 * i)));
+            }
+        }
+        return urls;
+    }
+
+    private String string(int id) {
+        if (id == NONE) {
+            return null;
+        }
+        int start = buffer.getInt(stringOffsets + 4 * id);
+        int end = buffer.getInt(stringOffsets + 4 * (id + 1));
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = buffer.get(stringBytes + start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int findString(String value) {
+        if (value == null) {
+            return NONE;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = stringCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareString(middle, bytes);
+            if (comparison < 0) {
+                low = middle + 1;
+            }
+            else if (comparison > 0) {
+                high = middle - 1;
+            }
+            else {
+                return middle;
+            }
+        }
+        return NONE;
+    }
+
+    private int compareString(int id, byte[] bytes) {
+        int start = stringBytes + buffer.getInt(stringOffsets + 4 * id);
+        int length = stringBytes + buffer.getInt(stringOffsets + 4 * (id + 1)) - start;
+        for (int i = 0; i < length && i < bytes.length; ++i) {
+            int comparison = Integer.compare(buffer.get(start + i) & 0xff, bytes[i] & 0xff);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(length, bytes.length);
+    }
+
+    // the first of the count records of the given size starting at base whose first int is not less than key
+    private int lowerBound(int base, int size, int count, int key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getInt(base + size * middle) < key) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // the number of the record among records [first, first + count) whose first two ints are (a, b), or -1
+    private int findPair(int base, int size, int first, int count, int a, int b) {
+        int low = first;
+        int high = first + count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int record = base + size * middle;
+            int comparison = buffer.getInt(record) != a
+                    ? Integer.compare(buffer.getInt(record), a)
+                    : Integer.compare(buffer.getInt(record + 4), b);
+            if (comparison < 0) {
+                low = middle + 1;
+            }
+            else if (comparison > 0) {
+                high = middle - 1;
+            }
+            else {
+                return middle;
+            }
+        }
+        return NONE;
+    }
+
+    static final class ValueSetEntry {
+        final String url;
+        final String version;
+        final List<String> aliases = new ArrayList<>();
+        final List<Code> codes = new ArrayList<>();
+
+        ValueSetEntry(String url, String version) {
+            this.url = url;
+            this.version = version;
+        }
+    }
+
+    static final class CodeSystemEntry {
+        final String url;
+        final String version;
+        // code -> display
+        final Map<String, String> concepts = new LinkedHashMap<>();
+
+        CodeSystemEntry(String url, String version) {
+            this.url = url;
+            this.version = version;
+        }
+    }
+
+    private static final Comparator<String> UTF8_ORDER = (left, right) -> {
+        byte[] l = left.getBytes(StandardCharsets.UTF_8);
+        byte[] r = right.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < l.length && i < r.length; ++i) {
+            int comparison = Integer.compare(l[i] & 0xff, r[i] & 0xff);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(l.length, r.length);
+    };
+
+    /*
+    Writes an index of the given value sets and code systems to the file, replacing it atomically.
+     */
+    static void write(Path file, long fingerprint, List<ValueSetEntry> valueSetEntries,
+            List<CodeSystemEntry> codeSystemEntries) throws IOException {
+
+        TreeMap<String, Integer> strings = new TreeMap<>(UTF8_ORDER);
+        for (ValueSetEntry valueSet : valueSetEntries) {
+            addStrings(strings, valueSet.url, valueSet.version);
+            valueSet.aliases.forEach(alias -> addStrings(strings, alias));
+            for (Code code : valueSet.codes) {
+                addStrings(strings, code.getSystem(), code.getCode(), code.getVersion(), code.getDisplay());
+            }
+        }
+        for (CodeSystemEntry codeSystem : codeSystemEntries) {
+            addStrings(strings, codeSystem.url, codeSystem.version);
+            codeSystem.concepts.forEach((code, display) -> addStrings(strings, code, display));
+        }
+        int id = 0;
+        for (Map.Entry<String, Integer> string : strings.entrySet()) {
+            string.setValue(id++);
+        }
+
+        Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try (OutputStream stream = Files.newOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(fingerprint);
+
+            out.writeInt(strings.size());
+            List<byte[]> encoded = new ArrayList<>(strings.size());
+            int offset = 0;
+            for (String string : strings.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                out.writeInt(offset);
+                offset += bytes.length;
+            }
+            out.writeInt(offset);
+            for (byte[] bytes : encoded) {
+                out.write(bytes);
+            }
+
+            // members of each value set, deduplicated and sorted by (system, code)
+            List<int[][]> memberArrays = new ArrayList<>();
+            Map<Long, List<Integer>> reverseIndex = new TreeMap<>();
+            out.writeInt(valueSetEntries.size());
+            int first = 0;
+            for (int i = 0; i < valueSetEntries.size(); ++i) {
+                ValueSetEntry valueSet = valueSetEntries.get(i);
+                Map<Long, int[]> unique = new TreeMap<>();
+                for (Code code : valueSet.codes) {
+                    int[] member = { idOf(strings, code.getSystem()), idOf(strings, code.getCode()),
+                        idOf(strings, code.getVersion()), idOf(strings, code.getDisplay()) };
+                    unique.putIfAbsent(pair(member[0], member[1]), member);
+                }
+                int[][] members = unique.values().toArray(new int[0][]);
+                memberArrays.add(members);
+                for (Long key : unique.keySet()) {
+                    reverseIndex.computeIfAbsent(key, x -> new ArrayList<>()).add(i);
+                }
+
+                out.writeInt(idOf(strings, valueSet.url));
+                out.writeInt(idOf(strings, valueSet.version));
+                out.writeInt(first);
+                out.writeInt(members.length);
+                first += members.length;
+            }
+
+            List<int[]> aliasPairs = new ArrayList<>();
+            for (int i = 0; i < valueSetEntries.size(); ++i) {
+                for (String alias : valueSetEntries.get(i).aliases) {
+                    aliasPairs.add(new int[] { idOf(strings, alias), i });
+                }
+            }
+            aliasPairs.sort(Comparator.<int[]>comparingInt(x -> x[0]).thenComparingInt(x -> x[1]));
+            out.writeInt(aliasPairs.size());
+            for (int[] alias : aliasPairs) {
+                out.writeInt(alias[0]);
+                out.writeInt(alias[1]);
+            }
+
+            out.writeInt(first);
+            for (int[][] members : memberArrays) {
+                for (int[] member : members) {
+                    for (int value : member) {
+                        out.writeInt(value);
+                    }
+                }
+            }
+
+            out.writeInt(codeSystemEntries.size());
+            List<int[]> conceptPairs = new ArrayList<>();
+            for (CodeSystemEntry codeSystem : codeSystemEntries) {
+                int start = conceptPairs.size();
+                Map<Integer, Integer> sorted = new TreeMap<>();
+                codeSystem.concepts.forEach((code, display) -> sorted.putIfAbsent(idOf(strings, code), idOf(strings, display)));
+                sorted.forEach((code, display) -> conceptPairs.add(new int[] { code, display }));
+
+                out.writeInt(idOf(strings, codeSystem.url));
+                out.writeInt(idOf(strings, codeSystem.version));
+                out.writeInt(start);
+                out.writeInt(conceptPairs.size() - start);
+            }
+            out.writeInt(conceptPairs.size());
+            for (int[] concept : conceptPairs) {
+                out.writeInt(concept[0]);
+                out.writeInt(concept[1]);
+            }
+
+            out.writeInt(reverseIndex.size());
+            int valueSetStart = 0;
+            for (Map.Entry<Long, List<Integer>> entry : reverseIndex.entrySet()) {
+                out.writeInt((int) (entry.getKey() >> 32));
+                out.writeInt((int) (long) entry.getKey());
+                out.writeInt(valueSetStart);
+                out.writeInt(entry.getValue().size());
+                valueSetStart += entry.getValue().size();
+            }
+            out.writeInt(valueSetStart);
+            for (List<Integer> valueSetNumbers : reverseIndex.values()) {
+                for (int valueSet : valueSetNumbers) {
+                    out.writeInt(valueSet);
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void addStrings(Map<String, Integer> strings, String... values) {
+        for (String value : values) {
+            if (value != null) {
+                strings.put(value, NONE);
+            }
+        }
+    }
+
+    private static int idOf(Map<String, Integer> strings, String value) {
+        return value == null ? NONE : strings.get(value);
+    }
+
+    // orders (system, code) ids as the index does, with a missing system (-1) first
+    private static long pair(int system, int code) {
+        return ((long) system << 32) + (code & 0xffffffffL);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FileTerminologyIndex[%d value sets, %d code systems, %d strings]",
+                valueSetCount, codeSystemCount, stringCount);
+    }
+}
@@ -1,8 +1,15 @@
 package org.opencds.cqf.cql.engine.fhir.terminology;
 
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ValueSetDef;
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CodeSystem;
@@ -26,8 +33,11 @@ public class R4FhirTerminologyProvider implements TerminologyProvider {
     private static final String URN_UUID = "urn:uuid:";
     private static final String URN_OID = "urn:oid:";
     private static final String VALUE_SET = "ValueSet";
+    // the number of urls searched for in a single request
+    private static final int URL_BATCH_SIZE = 50;
 
     private IGenericClient fhirClient;
+    private ValueSetIdCache valueSetIds;
 
     public R4FhirTerminologyProvider() {
     }
@@ -38,7 +48,19 @@ public class R4FhirTerminologyProvider implements TerminologyProvider {
      *                   already defined and set.
      */
     public R4FhirTerminologyProvider(IGenericClient fhirClient) {
+        this(fhirClient, new ValueSetIdCache());
+    }
+
+    /**
+     *
+     * @param fhirClient - an IGenericClient that has endpoint and authentication
+     *                   already defined and set.
+     * @param valueSetIds - the cache of resolved ValueSet ids, which may be shared with
+     *                    providers whose clients see the same ValueSets.
+     */
+    public R4FhirTerminologyProvider(IGenericClient fhirClient, ValueSetIdCache valueSetIds) {
         this.fhirClient = fhirClient;
+        this.valueSetIds = valueSetIds;
     }
 
     public IGenericClient getFhirClient() {
@@ -81,6 +103,51 @@ public class R4FhirTerminologyProvider implements TerminologyProvider {
 
     }
 
+    /**
+     * Checks the codes with a single batch of $validate-code requests.
+     */
+    @Override
+    public List<Boolean> inBatch(List<Code> codes, ValueSetInfo valueSet) {
+        if (codes.size() <= 1) {
+            return TerminologyProvider.super.inBatch(codes, valueSet);
+        }
+
+        try {
+            String id = resolveValueSetId(valueSet);
+            Bundle batch = new Bundle().setType(Bundle.BundleType.BATCH);
+            for (Code code : codes) {
+                String url = VALUE_SET + "/" + id + "/$validate-code?code=" + URLEncoder.encode(code.getCode(), "UTF-8");
+                if (code.getSystem() != null) {
+                    url += "&system=" + URLEncoder.encode(code.getSystem(), "UTF-8");
+                }
+                batch.addEntry().getRequest().setMethod(Bundle.HTTPVerb.GET).setUrl(url);
+            }
+
+            Bundle response = fhirClient.transaction().withBundle(batch).execute();
+            if (response.getEntry().size() != codes.size()) {
+                throw new IllegalStateException(String.format("Expected %d responses in the batch but found %d",
+                        codes.size(), response.getEntry().size()));
+            }
+
+            List<Boolean> result = new ArrayList<>(codes.size());
+            for (Bundle.BundleEntryComponent entry : response.getEntry()) {
+                if (!(entry.getResource() instanceof Parameters)) {
+                    throw new IllegalStateException(String.format("$validate-code failed with status %s",
+                            entry.getResponse().getStatus()));
+                }
+                Parameters respParam = (Parameters) entry.getResource();
+                result.add(((BooleanType) respParam.getParameter().get(0).getValue()).booleanValue());
+            }
+            return result;
+
+        } catch (Exception e) {
+            throw new TerminologyProviderException(
+                    String.format("Error performing membership check of %d Codes in ValueSet: %s", codes.size(),
+                            valueSet.getId()),
+                    e);
+        }
+    }
+
     @Override
     public Iterable<Code> expand(ValueSetInfo valueSet) {
         try {
@@ -123,11 +190,10 @@ public class R4FhirTerminologyProvider implements TerminologyProvider {
                     .execute();
 
             StringType display = (StringType) respParam.getParameter("display");
-            if (display != null) {
-                code.withDisplay(display.getValue());
-            }
 
-            return code.withSystem(codeSystem.getId());
+            // the given code may be shared, e.g. a code of the library
+            return new Code().withCode(code.getCode()).withSystem(codeSystem.getId()).withVersion(code.getVersion())
+                    .withDisplay(display != null ? display.getValue() : code.getDisplay());
 
         } catch (Exception e) {
             throw new TerminologyProviderException(String.format(
@@ -167,6 +233,16 @@ public class R4FhirTerminologyProvider implements TerminologyProvider {
         return searchResults;
     }
 
+    /**
+     * Returns the cache of resolved ValueSet ids of this provider.
+     */
+    public ValueSetIdCache getValueSetIdCache() {
+        if (valueSetIds == null) {
+            valueSetIds = new ValueSetIdCache();
+        }
+        return valueSetIds;
+    }
+
     public String resolveValueSetId(ValueSetInfo valueSet) {
         if (valueSet.getVersion() != null
                 || (valueSet.getCodeSystems() != null && !valueSet.getCodeSystems().isEmpty())) {
@@ -175,21 +251,80 @@ public class R4FhirTerminologyProvider implements TerminologyProvider {
                     valueSet.getId()));
         }
 
+        String id = getValueSetIdCache().resolve(valueSet.getId(), valueSet.getVersion(), this::searchValueSetId);
+        if (id == null) {
+            throw new IllegalArgumentException(String.format("Could not resolve value set %s.", valueSet.getId()));
+        }
+        return id;
+    }
+
+    /**
+     * Resolves the ids of all the ValueSets declared in the given library, searching for them by url in as few
+     * requests as possible. ValueSets that aren't found by url are resolved as usual when they are first used.
+     * @param library the library whose ValueSetDefs are resolved
+     */
+    public void resolveValueSetIds(Library library) {
+        if (library.getValueSets() == null) {
+            return;
+        }
+
+        List<String> urls = new ArrayList<>();
+        for (ValueSetDef valueSetDef : library.getValueSets().getDef()) {
+            if (valueSetDef.getVersion() == null && valueSetDef.getCodeSystem().isEmpty()) {
+                urls.add(valueSetDef.getId());
+            }
+        }
+        resolveValueSetIds(urls);
+    }
+
+    /**
+     * Resolves the ids of the ValueSets with the given urls, searching for up to 50 of them per request.
+     * @param urls the urls of the ValueSets
+     */
+    public void resolveValueSetIds(Collection<String> urls) {
+        ValueSetIdCache cache = getValueSetIdCache();
+        List<String> unresolved = new ArrayList<>();
+        for (String url : new LinkedHashSet<>(urls)) {
+            if (!cache.contains(url, null)) {
+                unresolved.add(url);
+            }
+        }
+
+        for (int i = 0; i < unresolved.size(); i += URL_BATCH_SIZE) {
+            List<String> batch = unresolved.subList(i, Math.min(i + URL_BATCH_SIZE, unresolved.size()));
+            Bundle searchResults = fhirClient.search().forResource(ValueSet.class)
+                .where(ValueSet.URL.matches().values(batch)).count(2 * batch.size()).returnBundle(Bundle.class).execute();
+
+            Map<String, List<String>> ids = new HashMap<>();
+            for (Bundle.BundleEntryComponent entry : searchResults.getEntry()) {
+                ValueSet vs = (ValueSet) entry.getResource();
+                ids.computeIfAbsent(vs.getUrl(), x -> new ArrayList<>()).add(vs.getIdElement().getIdPart());
+            }
+            for (String url : batch) {
+                // urls that match more than one ValueSet fail when they are used
+                if (ids.containsKey(url) && ids.get(url).size() == 1) {
+                    cache.put(url, null, ids.get(url).get(0));
+                }
+            }
+        }
+    }
+
+    private String searchValueSetId(String url) {
         // https://github.com/DBCG/cql_engine/pull/462 - Use a search path of URL,
         // identifier, and then resource id
-        Bundle searchResults = searchByUrl(valueSet.getId());
+        Bundle searchResults = searchByUrl(url);
         if (!searchResults.hasEntry()) {
-            searchResults = searchByIdentifier(valueSet.getId());
+            searchResults = searchByIdentifier(url);
         }
 
         if (!searchResults.hasEntry()) {
-            searchResults = searchById(valueSet.getId());
+            searchResults = searchById(url);
         }
 
         if (!searchResults.hasEntry() || searchResults.getEntry().isEmpty()) {
-            throw new IllegalArgumentException(String.format("Could not resolve value set %s.", valueSet.getId()));
+            return null;
         } else if (searchResults.getEntry().size() > 1) {
-            throw new IllegalArgumentException("Found more than 1 ValueSet with url: " + valueSet.getId());
+            throw new IllegalArgumentException("Found more than 1 ValueSet with url: " + url);
         } else {
             return searchResults.getEntryFirstRep().getResource().getIdElement().getIdPart();
         }
@@ -0,0 +1,261 @@
+package org.opencds.cqf.cql.engine.fhir.terminology;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.opencds.cqf.cql.engine.exception.TerminologyProviderException;
+import org.opencds.cqf.cql.engine.fhir.SourceFiles;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * A TerminologyProvider that answers from R4 ValueSet and CodeSystem resources in local files, without a terminology
+ * server.
+ *
+ * The source is a directory (searched recursively) or a single file. Files ending in .json hold a resource or a
+ * Bundle of resources, files ending in .ndjson hold one resource per line. The members of a ValueSet are taken from
+ * its expansion, or if it has none, from the concepts listed in its compose includes (filters and included value sets
+ * are not evaluated).
+ *
+ * The resources are read once into an index file, which is memory-mapped, so membership checks are binary searches
+ * of the file rather than of expansions held on the heap. The index is rebuilt when the source files change, and
+ * otherwise reused on later starts.
+ */
+public class R4FileTerminologyProvider implements TerminologyProvider {
+
+    private static final String URN_UUID = "urn:uuid:";
+    private static final String URN_OID = "urn:oid:";
+    private static final String INDEX_PREFIX = "cql-terminology";
+
+    private final Path source;
+    private final Path indexFile;
+    private final FileTerminologyIndex index;
+
+    /**
+     * @param source - a directory or file of ValueSet and CodeSystem resources. The index is stored in the temporary
+     *               directory (see {@link SourceFiles#defaultIndexFile(String, Path)}).
+     */
+    public R4FileTerminologyProvider(Path source) {
+        this(source, SourceFiles.defaultIndexFile(INDEX_PREFIX, source));
+    }
+
+    /**
+     * @param source    - a directory or file of ValueSet and CodeSystem resources.
+     * @param indexFile - the file the index of the resources is stored in.
+     */
+    public R4FileTerminologyProvider(Path source, Path indexFile) {
+        this.source = source;
+        this.indexFile = indexFile;
+        try {
+            List<Path> files = listSourceFiles();
+            long fingerprint = SourceFiles.fingerprint(files);
+            Long indexed = Files.exists(indexFile) ? FileTerminologyIndex.readFingerprint(indexFile) : null;
+            if (indexed == null || indexed != fingerprint) {
+                buildIndex(files, fingerprint);
+            }
+            this.index = FileTerminologyIndex.open(indexFile);
+        }
+        catch (IOException e) {
+            throw new TerminologyProviderException(
+                    String.format("Error indexing the terminology in %s", source.toString()), e);
+        }
+    }
+
+    public Path getSource() {
+        return source;
+    }
+
+    public Path getIndexFile() {
+        return indexFile;
+    }
+
+    @Override
+    public boolean in(Code code, ValueSetInfo valueSet) {
+        return index.contains(resolveValueSet(valueSet), code.getSystem(), code.getCode());
+    }
+
+    @Override
+    public Iterable<Code> expand(ValueSetInfo valueSet) {
+        return index.getCodes(resolveValueSet(valueSet));
+    }
+
+    /**
+     * Membership is checked against the index file, which is cheaper than holding the expansion in memory.
+     */
+    @Override
+    public boolean isExpandable(ValueSetInfo valueSet) {
+        return false;
+    }
+
+    @Override
+    public Code lookup(Code code, CodeSystemInfo codeSystem) {
+        int found = index.findCodeSystem(codeSystem.getId(), codeSystem.getVersion());
+        if (found < 0) {
+            throw new TerminologyProviderException(String.format(
+                    "Error performing lookup of Code: %s in CodeSystem: %s, the code system is not known",
+                    code.toString(), codeSystem.getId()));
+        }
+
+        String display = index.lookupDisplay(found, code.getCode());
+        if (display == null) {
+            return null;
+        }
+        // the given code may be shared, e.g. a code of the library
+        return new Code().withCode(code.getCode()).withSystem(codeSystem.getId()).withVersion(code.getVersion())
+                .withDisplay(display.isEmpty() ? code.getDisplay() : display);
+    }
+
+    /**
+     * Returns the urls of the value sets that contain the given code.
+     */
+    public List<String> valueSetsContaining(Code code) {
+        return index.getValueSetsContaining(code.getSystem(), code.getCode());
+    }
+
+    private int resolveValueSet(ValueSetInfo valueSet) {
+        String id = valueSet.getId();
+        int found = index.findValueSet(id, valueSet.getVersion());
+        if (found < 0 && id.startsWith(URN_OID)) {
+            found = index.findValueSet(id.substring(URN_OID.length()), valueSet.getVersion());
+        }
+        else if (found < 0 && id.startsWith(URN_UUID)) {
+            found = index.findValueSet(id.substring(URN_UUID.length()), valueSet.getVersion());
+        }
+        if (found < 0) {
+            throw new TerminologyProviderException(String.format("Unable to resolve ValueSet %s in %s",
+                    id, source.toString()));
+        }
+        return found;
+    }
+
+    private List<Path> listSourceFiles() throws IOException {
+        if (!Files.isDirectory(source)) {
+            List<Path> files = new ArrayList<>();
+            files.add(source);
+            return files;
+        }
+        return SourceFiles.list(source, ".json", ".ndjson");
+    }
+
+    private void buildIndex(List<Path> files, long fingerprint) throws IOException {
+        IParser parser = FhirContext.forCached(FhirVersionEnum.R4).newJsonParser();
+        List<FileTerminologyIndex.ValueSetEntry> valueSets = new ArrayList<>();
+        List<FileTerminologyIndex.CodeSystemEntry> codeSystems = new ArrayList<>();
+
+        for (Path file : files) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                if (file.toString().endsWith(".ndjson")) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!line.trim().isEmpty()) {
+                            addResource(parser.parseResource(line), valueSets, codeSystems);
+                        }
+                    }
+                }
+                else {
+                    addResource(parser.parseResource(reader), valueSets, codeSystems);
+                }
+            }
+        }
+
+        FileTerminologyIndex.write(indexFile, fingerprint, valueSets, codeSystems);
+    }
+
+    private static void addResource(IBaseResource resource, List<FileTerminologyIndex.ValueSetEntry> valueSets,
+            List<FileTerminologyIndex.CodeSystemEntry> codeSystems) {
+        if (resource instanceof Bundle) {
+            for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+                if (entry.hasResource()) {
+                    addResource(entry.getResource(), valueSets, codeSystems);
+                }
+            }
+        }
+        else if (resource instanceof ValueSet) {
+            valueSets.add(toEntry((ValueSet) resource));
+        }
+        else if (resource instanceof CodeSystem) {
+            codeSystems.add(toEntry((CodeSystem) resource));
+        }
+    }
+
+    private static FileTerminologyIndex.ValueSetEntry toEntry(ValueSet valueSet) {
+        FileTerminologyIndex.ValueSetEntry entry = new FileTerminologyIndex.ValueSetEntry(
+                valueSet.hasUrl() ? valueSet.getUrl() : valueSet.getIdElement().getIdPart(),
+                valueSet.hasVersion() ? valueSet.getVersion() : null);
+
+        if (valueSet.hasUrl()) {
+            entry.aliases.add(valueSet.getUrl());
+        }
+        for (Identifier identifier : valueSet.getIdentifier()) {
+            if (identifier.hasValue()) {
+                entry.aliases.add(identifier.getValue());
+            }
+        }
+        if (valueSet.getIdElement().hasIdPart()) {
+            entry.aliases.add(valueSet.getIdElement().getIdPart());
+        }
+
+        if (valueSet.hasExpansion()) {
+            addContains(valueSet.getExpansion().getContains(), entry.codes);
+        }
+        else {
+            for (ValueSet.ConceptSetComponent include : valueSet.getCompose().getInclude()) {
+                for (ValueSet.ConceptReferenceComponent concept : include.getConcept()) {
+                    entry.codes.add(new Code()
+                            .withSystem(include.getSystem())
+                            .withCode(concept.getCode())
+                            .withVersion(include.hasVersion() ? include.getVersion() : null)
+                            .withDisplay(concept.hasDisplay() ? concept.getDisplay() : null));
+                }
+            }
+        }
+        return entry;
+    }
+
+    private static void addContains(List<ValueSet.ValueSetExpansionContainsComponent> contains, List<Code> codes) {
+        for (ValueSet.ValueSetExpansionContainsComponent component : contains) {
+            if (component.hasCode()) {
+                codes.add(new Code()
+                        .withSystem(component.hasSystem() ? component.getSystem() : null)
+                        .withCode(component.getCode())
+                        .withVersion(component.hasVersion() ? component.getVersion() : null)
+                        .withDisplay(component.hasDisplay() ? component.getDisplay() : null));
+            }
+            addContains(component.getContains(), codes);
+        }
+    }
+
+    private static FileTerminologyIndex.CodeSystemEntry toEntry(CodeSystem codeSystem) {
+        FileTerminologyIndex.CodeSystemEntry entry = new FileTerminologyIndex.CodeSystemEntry(
+                codeSystem.hasUrl() ? codeSystem.getUrl() : codeSystem.getIdElement().getIdPart(),
+                codeSystem.hasVersion() ? codeSystem.getVersion() : null);
+        addConcepts(codeSystem.getConcept(), entry);
+        return entry;
+    }
+
+    private static void addConcepts(List<CodeSystem.ConceptDefinitionComponent> concepts,
+            FileTerminologyIndex.CodeSystemEntry entry) {
+        for (CodeSystem.ConceptDefinitionComponent concept : concepts) {
+            if (concept.hasCode()) {
+                entry.concepts.putIfAbsent(concept.getCode(), concept.hasDisplay() ? concept.getDisplay() : null);
+            }
+            addConcepts(concept.getConcept(), entry);
+        }
+    }
+}
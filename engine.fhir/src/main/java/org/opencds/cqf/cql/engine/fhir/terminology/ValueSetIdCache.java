@@ -0,0 +1,130 @@
+package org.opencds.cqf.cql.engine.fhir.terminology;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Caches the resource ids that the ValueSet urls (and versions) used by CQL resolve to on a terminology server, so a
+ * ValueSet is only searched for once rather than before every membership check or expansion.
+ *
+ * A url that resolves to no ValueSet is cached as well, for a shorter time, so that repeated checks against a missing
+ * ValueSet don't search the server again. Failed searches are not cached.
+ *
+ * Each terminology provider has its own cache, as the ids a url resolves to may depend on the credentials or tenant of
+ * its client. Providers whose clients see the same ValueSets may be given the same cache. The cache holds at most a
+ * maximum number of urls, and discards the least recently used ones beyond it.
+ */
+public class ValueSetIdCache {
+
+    public static final Duration DEFAULT_TTL = Duration.ofHours(1);
+    public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofMinutes(5);
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private static final class Entry {
+        // null if the url doesn't resolve to a ValueSet
+        private final String id;
+        private final long expiresAt;
+
+        private Entry(String id, long expiresAt) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // least recently used first, guarded by itself
+    private final Map<String, Entry> entries;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+
+    public ValueSetIdCache() {
+        this(DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_MAX_ENTRIES);
+    }
+
+    public ValueSetIdCache(Duration ttl, Duration negativeTtl) {
+        this(ttl, negativeTtl, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param ttl how long a resolved id is cached
+     * @param negativeTtl how long a url that resolves to no ValueSet is cached
+     * @param maxEntries the maximum number of urls cached
+     */
+    public ValueSetIdCache(Duration ttl, Duration negativeTtl, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be > 0");
+        }
+        this.ttlNanos = ttl.toNanos();
+        this.negativeTtlNanos = negativeTtl.toNanos();
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ValueSetIdCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the id the given url and version resolve to, calling the resolver if it is not cached.
+     * @param url the url (or identifier) of the ValueSet
+     * @param version the version of the ValueSet, may be null
+     * @param resolver resolves the url to a ValueSet id, or returns null if there is no such ValueSet
+     * @return the id of the ValueSet, or null if there is no such ValueSet
+     */
+    public String resolve(String url, String version, Function<String, String> resolver) {
+        Entry entry = get(key(url, version));
+        if (entry != null && System.nanoTime() - entry.expiresAt < 0) {
+            return entry.id;
+        }
+
+        String id = resolver.apply(url);
+        put(url, version, id);
+        return id;
+    }
+
+    /**
+     * Returns whether the id of the given url and version is cached (including as not resolving to any ValueSet).
+     */
+    public boolean contains(String url, String version) {
+        Entry entry = get(key(url, version));
+        return entry != null && System.nanoTime() - entry.expiresAt < 0;
+    }
+
+    /**
+     * Caches the id the given url and version resolve to, or null if there is no such ValueSet.
+     */
+    public void put(String url, String version, String id) {
+        Entry entry = new Entry(id, System.nanoTime() + (id == null ? negativeTtlNanos : ttlNanos));
+        synchronized (entries) {
+            entries.put(key(url, version), entry);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns the number of urls cached, including expired ones that haven't been discarded yet.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private Entry get(String key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    private static String key(String url, String version) {
+        return version == null ? url : url + '|' + version;
+    }
+}
@@ -141,7 +141,6 @@ public class CQLOperationsDstu3Test extends TestFhirPath implements ITest {
         "stu3/tests-fhir-r3/testRepeat(Questionnaire.children().concept.count() = 2)",
         "stu3/tests-fhir-r3/testRepeat(Questionnaire.descendants().concept.count() = 10)",
         "stu3/tests-fhir-r3/testRepeat(Questionnaire.repeat(item).concept.count() = 10)",
-        "stu3/tests-fhir-r3/testRepeat(ValueSet.expansion.repeat(contains).count() = 10)",
         "stu3/tests-fhir-r3/testSelect(Patient.name.select(given) = 'Peter' | 'James' | 'Jim')",
         "stu3/tests-fhir-r3/testSelect(Patient.name.select(given | family) = 'Peter' | 'James' | 'Chalmers' | 'Jim')",
         "stu3/tests-fhir-r3/testSkip((0 | 1 | 2).skip(1) = 1 | 2)",
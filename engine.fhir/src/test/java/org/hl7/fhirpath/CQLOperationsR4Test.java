@@ -270,7 +270,6 @@ public class CQLOperationsR4Test extends TestFhirPath implements ITest {
         "r4/tests-fhir-r4/testQuantity/testQuantity9",
         "r4/tests-fhir-r4/testQuantity/testQuantity10",
         "r4/tests-fhir-r4/testQuantity/testQuantity11",
-        "r4/tests-fhir-r4/testRepeat/testRepeat1",
         "r4/tests-fhir-r4/testRepeat/testRepeat2",
         "r4/tests-fhir-r4/testRepeat/testRepeat3",
         "r4/tests-fhir-r4/testRepeat/testRepeat4",
@@ -1,7 +1,10 @@
 package org.opencds.cqf.cql.engine.fhir.model;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasItems;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
@@ -15,6 +18,8 @@ import java.util.List;
 
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.cql2elm.model.Model;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.hl7.cql.model.ModelIdentifier;
 import org.hl7.elm_modelinfo.r1.ClassInfo;
 import org.hl7.elm_modelinfo.r1.TypeInfo;
@@ -44,11 +49,16 @@ import org.hl7.fhir.r4.model.Enumerations.RequestResourceType;
 import org.hl7.fhir.r4.model.Enumerations.ResourceType;
 import org.hl7.fhir.r4.model.Enumerations.SearchParamType;
 import org.hl7.fhir.r4.model.Enumerations.SpecialValues;
+import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Quantity;
 import org.hl7.fhir.r4.model.SimpleQuantity;
 import org.hl7.fhir.r4.model.VisionPrescription;
+import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
+import org.opencds.cqf.cql.engine.elm.execution.ChildrenEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.DescendentsEvaluator;
+import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.fhir.exception.UnknownType;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
 import org.testng.annotations.Test;
@@ -417,4 +427,40 @@ public class TestR4ModelResolver {
         Object result = resolver.resolvePath(dt, "value");
         assertNull(result);
     }
+
+    @Test
+    public void resolveElementsReturnsTheChildrenOfAResource() {
+        ModelResolver resolver = new R4FhirModelResolver(FhirContext.forCached(FhirVersionEnum.R4));
+
+        Patient p = new Patient();
+        p.setId("5");
+        HumanName first = p.addName().setFamily("Chalmers");
+        HumanName second = p.addName().setFamily("Windsor");
+
+        List<Object> elements = new ArrayList<>();
+        resolver.resolveElements(p).forEach(elements::add);
+        assertThat(elements, hasItems(p.getIdElement(), first, second));
+
+        assertNull(resolver.resolveElements(first.getFamilyElement()));
+        assertNull(resolver.resolveElements("Chalmers"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void childrenAndDescendentsOfAResource() {
+        Context context = new Context(new Library().withIdentifier(new VersionedIdentifier().withId("Test")));
+        context.registerDataProvider("http://hl7.org/fhir",
+                new CompositeDataProvider(new R4FhirModelResolver(FhirContext.forCached(FhirVersionEnum.R4)), null));
+
+        Patient p = new Patient();
+        HumanName name = p.addName().setFamily("Chalmers");
+
+        List<Object> children = (List<Object>) ChildrenEvaluator.children(p, context);
+        assertThat(children, hasItem(name));
+        assertThat(children, not(hasItem(name.getFamilyElement())));
+
+        List<Object> descendents = (List<Object>) DescendentsEvaluator.descendents(p, context);
+        assertThat(descendents, hasItems(name, name.getFamilyElement()));
+        assertThat(descendents, not(hasItem(p)));
+    }
 }
@@ -0,0 +1,73 @@
+package org.opencds.cqf.cql.engine.fhir.retrieve;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Reference;
+import org.opencds.cqf.cql.engine.fhir.SourceFiles;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+
+// the export directory and NDJSON fixtures of the bulk export tests
+public abstract class BulkExportTest {
+
+    protected static final String SNOMED = "http://snomed.info/sct";
+    private static final IParser PARSER = FhirContext.forCached(FhirVersionEnum.R4).newJsonParser();
+
+    protected Path directory;
+
+    protected static Condition condition(String id, String patient, String code) {
+        Condition condition = new Condition();
+        condition.setId(id);
+        condition.setSubject(new Reference("Patient/" + patient));
+        condition.setCode(new CodeableConcept().addCoding(new Coding(SNOMED, code, null)));
+        return condition;
+    }
+
+    protected void write(String file, IBaseResource... resources) throws IOException {
+        StringBuilder ndjson = new StringBuilder();
+        for (IBaseResource resource : resources) {
+            ndjson.append(PARSER.encodeResourceToString(resource)).append('\n');
+        }
+        Files.write(directory.resolve(file), ndjson.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected static List<String> ids(Iterable<Object> resources) {
+        List<String> ids = new ArrayList<>();
+        resources.forEach(resource -> ids.add(((IBaseResource) resource).getIdElement().getIdPart()));
+        return ids;
+    }
+
+    protected static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @BeforeMethod
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("bulk-export");
+    }
+
+    @AfterMethod
+    public void deleteDirectory() throws IOException {
+        Files.deleteIfExists(SourceFiles.defaultIndexFile("cql-bulk-export", directory));
+        delete(directory);
+    }
+}
@@ -0,0 +1,85 @@
+package org.opencds.cqf.cql.engine.fhir.retrieve;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Patient;
+import org.opencds.cqf.cql.engine.fhir.model.CachedR4FhirModelResolver;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class TestBulkExportPartitioner extends BulkExportTest {
+
+    private Path workDirectory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        workDirectory = Files.createTempDirectory("bulk-export-runs");
+        write("Patient.ndjson", new Patient().setId("456"), new Patient().setId("123"), new Patient().setId("789"));
+        write("Condition.ndjson", condition("1", "123", "44054006"), condition("2", "456", "44054006"),
+                condition("3", "123", "44054006"), condition("4", "789", "44054006"), condition("5", "123", "44054006"));
+        write("Medication.ndjson", new Medication().setId("m1"));
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        delete(workDirectory);
+    }
+
+    @DataProvider
+    public static Object[][] fanIns() {
+        // 8 runs are merged at once, or in two passes of pairs
+        return new Object[][] { { BulkExportPartitioner.DEFAULT_MAX_MERGE_FAN_IN, 8 }, { 2, 2 } };
+    }
+
+    @Test(dataProvider = "fanIns")
+    public void streamsTheCompleteRecordOfEachPatient(int maxMergeFanIn, int mergedRuns) throws IOException {
+        Map<String, List<String>> conditions = new LinkedHashMap<>();
+        Map<String, List<String>> patients = new LinkedHashMap<>();
+        Map<String, List<String>> medications = new LinkedHashMap<>();
+
+        try (BulkExportPartitioner partitioner = new BulkExportPartitioner(new CachedR4FhirModelResolver(), workDirectory)) {
+            // spills a run for each resource
+            partitioner.setMaxBufferedBytes(1);
+            partitioner.setThreads(2);
+            partitioner.setMaxMergeFanIn(maxMergeFanIn);
+            partitioner.partition(directory);
+
+            partitioner.forEachPatient((patient, provider) -> {
+                conditions.put(patient, ids(provider.retrieve("Patient", "subject", patient, "Condition", null, null,
+                        null, null, null, null, null, null)));
+                patients.put(patient, ids(provider.retrieve("Patient", "id", patient, "Patient", null, null,
+                        null, null, null, null, null, null)));
+                medications.put(patient, ids(provider.retrieve("Patient", null, patient, "Medication", null, null,
+                        null, null, null, null, null, null)));
+            });
+
+            try (Stream<Path> runs = Files.list(workDirectory)) {
+                assertEquals(runs.count(), mergedRuns);
+            }
+        }
+
+        assertEquals(new ArrayList<>(conditions.keySet()), Arrays.asList("123", "456", "789"));
+        assertEquals(conditions.get("123"), Arrays.asList("1", "3", "5"));
+        assertEquals(conditions.get("456"), Collections.singletonList("2"));
+        assertEquals(conditions.get("789"), Collections.singletonList("4"));
+        assertEquals(patients.get("456"), Collections.singletonList("456"));
+        assertEquals(medications.get("789"), Collections.singletonList("m1"));
+        try (Stream<Path> runs = Files.list(workDirectory)) {
+            assertEquals(runs.count(), 0);
+        }
+    }
+}
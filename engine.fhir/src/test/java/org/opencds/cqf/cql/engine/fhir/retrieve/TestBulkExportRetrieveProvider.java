@@ -0,0 +1,110 @@
+package org.opencds.cqf.cql.engine.fhir.retrieve;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.r4.model.Annotation;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Patient;
+import org.opencds.cqf.cql.engine.fhir.model.CachedR4FhirModelResolver;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestBulkExportRetrieveProvider extends BulkExportTest {
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        write("Patient.ndjson", new Patient().setId("123"), new Patient().setId("456"));
+        // a resource with non-ASCII text, so the byte offsets differ from the character offsets
+        write("Condition.ndjson", condition("1", "123", "44054006"), condition("2", "456", "44054006"),
+                condition("3", "123", "38341003").setNote(Collections.singletonList(
+                        new Annotation().setText("Überweisung – Nachsorge"))),
+                condition("4", "123", "44054006"));
+        write("Medication.ndjson", new Medication().setId("m1"));
+    }
+
+    @Test
+    public void retrievesTheLinesOfThePatient() {
+        BulkExportRetrieveProvider provider = new BulkExportRetrieveProvider(new CachedR4FhirModelResolver(), directory);
+
+        assertEquals(provider.getPatientIds(), Arrays.asList("123", "456"));
+        assertEquals(ids(provider.retrieve("Patient", "subject", "123", "Condition", null, null, null, null, null, null, null, null)),
+                Arrays.asList("1", "3", "4"));
+        assertEquals(ids(provider.retrieve("Patient", "subject", "Patient/456", "Condition", null, null, null, null, null, null, null, null)),
+                Collections.singletonList("2"));
+        assertEquals(ids(provider.retrieve("Patient", "id", "123", "Patient", null, null, null, null, null, null, null, null)),
+                Collections.singletonList("123"));
+        assertEquals(ids(provider.retrieve("Patient", null, "123", "Medication", null, null, null, null, null, null, null, null)),
+                Collections.singletonList("m1"));
+        assertEquals(ids(provider.retrieve("Unfiltered", null, null, "Condition", null, "code",
+                Collections.singletonList(new Code().withSystem(SNOMED).withCode("38341003")), null, null, null, null, null)),
+                Collections.singletonList("3"));
+        assertEquals(ids(provider.retrieve("Patient", "subject", "789", "Condition", null, null, null, null, null, null, null, null)),
+                Collections.emptyList());
+    }
+
+    @Test
+    public void filtersByExpandedValueSets() {
+        BulkExportRetrieveProvider provider = new BulkExportRetrieveProvider(new CachedR4FhirModelResolver(), directory);
+        int[] expansions = { 0 };
+        provider.setTerminologyProvider(new TerminologyProvider() {
+            @Override
+            public boolean in(Code code, ValueSetInfo valueSet) {
+                return false;
+            }
+
+            @Override
+            public Iterable<Code> expand(ValueSetInfo valueSet) {
+                expansions[0]++;
+                return Collections.singletonList(new Code().withSystem(SNOMED).withCode("44054006"));
+            }
+
+            @Override
+            public Code lookup(Code code, CodeSystemInfo codeSystem) {
+                return null;
+            }
+        });
+
+        assertEquals(ids(provider.retrieve("Patient", "subject", "123", "Condition", null, "code", null, "diabetes", null, null, null, null)),
+                Arrays.asList("1", "4"));
+        assertEquals(ids(provider.retrieve("Patient", "subject", "456", "Condition", null, "code", null, "diabetes", null, null, null, null)),
+                Collections.singletonList("2"));
+        assertEquals(expansions[0], 1);
+    }
+
+    @Test
+    public void theIndexIsReusedUntilTheExportChanges() throws IOException {
+        Path indexFile = new BulkExportRetrieveProvider(new CachedR4FhirModelResolver(), directory).getIndexFile();
+        FileTime indexed = Files.getLastModifiedTime(indexFile);
+
+        Files.setLastModifiedTime(indexFile, FileTime.fromMillis(indexed.toMillis() - 60000));
+        new BulkExportRetrieveProvider(new CachedR4FhirModelResolver(), directory);
+        assertEquals(Files.getLastModifiedTime(indexFile).toMillis(), indexed.toMillis() - 60000);
+
+        write("Condition.ndjson", condition("5", "456", "44054006"));
+        BulkExportRetrieveProvider provider = new BulkExportRetrieveProvider(new CachedR4FhirModelResolver(), directory);
+        assertEquals(ids(provider.retrieve("Patient", "subject", "456", "Condition", null, null, null, null, null, null, null, null)),
+                Collections.singletonList("5"));
+    }
+
+    @Test
+    public void theIndexIsNotWrittenToTheExportDirectory() throws IOException {
+        Path indexFile = new BulkExportRetrieveProvider(new CachedR4FhirModelResolver(), directory).getIndexFile();
+
+        assertEquals(indexFile.startsWith(directory), false);
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(files.count(), 3L);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.opencds.cqf.cql.engine.fhir.retrieve;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
+import org.opencds.cqf.cql.engine.fhir.model.CachedR4FhirModelResolver;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+public class TestIndexedFhirRetrieveProvider {
+
+    private static final String SNOMED = "http://snomed.info/sct";
+
+    private IndexedFhirRetrieveProvider provider;
+    private int expansions;
+
+    private static Condition condition(String id, String patient, String code, String onset) {
+        Condition condition = new Condition();
+        condition.setId(id);
+        condition.setSubject(new Reference("Patient/" + patient));
+        condition.setCode(new CodeableConcept().addCoding(new Coding(SNOMED, code, null)));
+        condition.setOnset(new DateTimeType(onset));
+        return condition;
+    }
+
+    private static Encounter encounter(String id, String patient, String start, String end) {
+        Encounter encounter = new Encounter();
+        encounter.setId(id);
+        encounter.setSubject(new Reference("Patient/" + patient));
+        encounter.setPeriod(new Period().setStartElement(new DateTimeType(start))
+                .setEndElement(end == null ? null : new DateTimeType(end)));
+        return encounter;
+    }
+
+    private static List<String> ids(Iterable<Object> resources) {
+        List<String> ids = new ArrayList<>();
+        resources.forEach(resource -> ids.add(((IBaseResource) resource).getIdElement().getIdPart()));
+        return ids;
+    }
+
+    private static Interval year(int year) {
+        return new Interval(new DateTime(null, year, 1, 1), true, new DateTime(null, year, 12, 31), true);
+    }
+
+    @BeforeMethod
+    public void setUp() {
+        provider = new IndexedFhirRetrieveProvider(new CachedR4FhirModelResolver());
+        expansions = 0;
+
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(new Patient().setId("123"));
+        bundle.addEntry().setResource(condition("1", "123", "44054006", "2019-05-01"));
+        bundle.addEntry().setResource(condition("2", "123", "38341003", "2020-02-03T10:00:00Z"));
+        bundle.addEntry().setResource(condition("3", "456", "44054006", "2020"));
+        provider.addBundle(bundle);
+    }
+
+    @Test
+    public void retrievesByCompartmentAndCode() {
+        assertEquals(ids(provider.retrieve("Patient", "subject", "123", "Condition", null, null, null, null, null, null, null, null)),
+                Arrays.asList("1", "2"));
+        assertEquals(ids(provider.retrieve("Patient", "subject", "Patient/456", "Condition", null, null, null, null, null, null, null, null)),
+                Collections.singletonList("3"));
+        assertEquals(ids(provider.retrieve("Patient", "id", "123", "Patient", null, null, null, null, null, null, null, null)),
+                Collections.singletonList("123"));
+        assertEquals(ids(provider.retrieve("Unfiltered", null, null, "Condition", null, "code",
+                Collections.singletonList(new Code().withSystem(SNOMED).withCode("44054006")), null, null, null, null, null)),
+                Arrays.asList("1", "3"));
+        assertEquals(ids(provider.retrieve("Patient", "subject", "123", "Condition", null, "code",
+                Collections.singletonList(new Code().withCode("44054006")), null, null, null, null, null)),
+                Collections.singletonList("1"));
+        assertEquals(ids(provider.retrieve("Patient", "subject", "123", "Encounter", null, null, null, null, null, null, null, null)),
+                Collections.emptyList());
+    }
+
+    @Test
+    public void retrievesByValueSet() {
+        provider.setTerminologyProvider(new TerminologyProvider() {
+            @Override
+            public boolean in(Code code, ValueSetInfo valueSet) {
+                return false;
+            }
+
+            @Override
+            public Iterable<Code> expand(ValueSetInfo valueSet) {
+                expansions++;
+                return Collections.singletonList(new Code().withSystem(SNOMED).withCode("44054006"));
+            }
+
+            @Override
+            public Code lookup(Code code, CodeSystemInfo codeSystem) {
+                return null;
+            }
+        });
+
+        assertEquals(ids(provider.retrieve("Patient", "subject", "123", "Condition", null, "code", null, "diabetes", null, null, null, null)),
+                Collections.singletonList("1"));
+        assertEquals(ids(provider.retrieve("Patient", "subject", "456", "Condition", null, "code", null, "diabetes", null, null, null, null)),
+                Collections.singletonList("3"));
+        assertEquals(expansions, 1);
+    }
+
+    @Test
+    public void retrievesByDateRange() {
+        // a partial date matches the ranges it may fall in
+        assertEquals(ids(provider.retrieve("Unfiltered", null, null, "Condition", null, null, null, null, "onset", null, null, year(2020))),
+                Arrays.asList("2", "3"));
+        assertEquals(ids(provider.retrieve("Patient", "subject", "123", "Condition", null, null, null, null, "onset", null, null, year(2019))),
+                Collections.singletonList("1"));
+
+        provider.addResource(encounter("e1", "123", "2019-12-30", "2020-01-02"));
+        provider.addResource(encounter("e2", "123", "2018-01-01", "2018-01-05"));
+        // an encounter without an end is ongoing
+        provider.addResource(encounter("e3", "123", "2017-06-01", null));
+        assertEquals(ids(provider.retrieve("Patient", "subject", "123", "Encounter", null, null, null, null, "period", null, null, year(2020))),
+                Arrays.asList("e1", "e3"));
+    }
+
+    @Test
+    public void addsNdjsonAndReplacesResourcesWithTheSameId() throws IOException {
+        FhirContext fhirContext = FhirContext.forCached(FhirVersionEnum.R4);
+        String ndjson = fhirContext.newJsonParser().encodeResourceToString(condition("2", "456", "38341003", "2021-01-01"))
+                + "\n\n"
+                + fhirContext.newJsonParser().encodeResourceToString(condition("4", "456", "38341003", "2021-01-01"))
+                + "\n";
+        provider.addNdjson(new StringReader(ndjson));
+
+        assertEquals(ids(provider.retrieve("Patient", "subject", "123", "Condition", null, null, null, null, null, null, null, null)),
+                Collections.singletonList("1"));
+        assertEquals(ids(provider.retrieve("Patient", "subject", "456", "Condition", null, null, null, null, null, null, null, null)),
+                Arrays.asList("2", "3", "4"));
+    }
+}
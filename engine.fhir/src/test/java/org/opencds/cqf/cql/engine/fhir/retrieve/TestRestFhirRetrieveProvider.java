@@ -3,21 +3,45 @@ package org.opencds.cqf.cql.engine.fhir.retrieve;
 import static ca.uhn.fhir.util.UrlUtil.escapeUrlParam;
 import static org.testng.Assert.assertEquals;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static org.testng.Assert.assertNull;
 
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.namespace.QName;
 
 import ca.uhn.fhir.context.FhirVersionEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.MedicationAdministration;
+import org.hl7.fhir.r4.model.MedicationRequest;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
+import org.opencds.cqf.cql.engine.elm.execution.RetrieveEvaluator;
+import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.fhir.R4FhirTest;
 import org.opencds.cqf.cql.engine.fhir.exception.FhirVersionMisMatchException;
 import org.opencds.cqf.cql.engine.fhir.model.*;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveInclude;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.DateTime;
 import org.opencds.cqf.cql.engine.runtime.Interval;
@@ -141,4 +165,182 @@ public class TestRestFhirRetrieveProvider extends R4FhirTest {
 
         provider.retrieve("Patient", "subject", "123", "Condition", null, "code", codes, null, null, null, null, null);
     }
+
+    private String mockPagedSearch() {
+        String search = "/Condition?subject=" + escapeUrlParam("Patient/123");
+        String page = String.format("http://localhost:%d/?_getpages=abc&_getpagesoffset=", getHttpPort());
+
+        Bundle first = makeBundle(new Condition().setId("1"));
+        first.addLink().setRelation(IBaseBundle.LINK_NEXT).setUrl(page + "1");
+        // a page may have no entries, e.g. when the server removed the ones the client isn't allowed to see
+        Bundle empty = makeBundle();
+        empty.addLink().setRelation(IBaseBundle.LINK_NEXT).setUrl(page + "2");
+        Bundle last = makeBundle(new Condition().setId("2"));
+
+        mockFhirInteraction(search, first);
+        mockFhirInteraction("/?_getpages=abc&_getpagesoffset=1", empty);
+        mockFhirInteraction("/?_getpages=abc&_getpagesoffset=2", last);
+        return search;
+    }
+
+    private static List<String> ids(Iterable<Object> resources) {
+        List<String> ids = new ArrayList<>();
+        resources.forEach(resource -> ids.add(((Condition) resource).getIdElement().getIdPart()));
+        return ids;
+    }
+
+    @Test
+    public void searchResultPagesAreLoadedAsTheyAreIterated() {
+        String search = mockPagedSearch();
+
+        Iterable<Object> results = provider.retrieve("Patient", "subject", "123", "Condition", null, null, null, null, null, null, null, null);
+        Iterator<Object> iterator = results.iterator();
+        iterator.next();
+        verify(1, getRequestedFor(urlEqualTo(search)));
+        verify(0, getRequestedFor(urlMatching("/\\?_getpages=.*")));
+
+        assertEquals(ids(results), Arrays.asList("1", "2"));
+        assertEquals(ids(results), Arrays.asList("1", "2"));
+        verify(2, getRequestedFor(urlMatching("/\\?_getpages=.*")));
+    }
+
+    @Test
+    public void searchResultsAreEvaluatedResourcesAsTheyAreIterated() {
+        mockPagedSearch();
+        Context context = new Context(new Library().withIdentifier(new VersionedIdentifier().withId("Test")));
+        context.registerDataProvider("http://hl7.org/fhir", new CompositeDataProvider(modelResolver, provider));
+        context.enterContext("Patient");
+        context.setContextValue("Patient", "123");
+        RetrieveEvaluator retrieve = new RetrieveEvaluator();
+        retrieve.setDataType(new QName("http://hl7.org/fhir", "Condition"));
+
+        @SuppressWarnings("unchecked")
+        Iterable<Object> results = (Iterable<Object>) retrieve.evaluate(context);
+        assertEquals(context.getEvaluatedResources().size(), 0);
+
+        Iterator<Object> iterator = results.iterator();
+        iterator.next();
+        assertEquals(ids(context.getEvaluatedResources()), Arrays.asList("1"));
+
+        assertEquals(ids(results), Arrays.asList("1", "2"));
+        assertEquals(ids(results), Arrays.asList("1", "2"));
+        assertEquals(ids(context.getEvaluatedResources()), Arrays.asList("1", "2"));
+    }
+
+    @Test
+    public void nextSearchResultPageIsPrefetched() {
+        mockPagedSearch();
+        provider.setPagePrefetchExecutor(Runnable::run);
+
+        Iterator<Object> iterator = provider.retrieve("Patient", "subject", "123", "Condition", null, null, null, null, null, null, null, null).iterator();
+        assertEquals(((Condition) iterator.next()).getIdElement().getIdPart(), "1");
+        verify(1, getRequestedFor(urlEqualTo("/?_getpages=abc&_getpagesoffset=1")));
+        verify(0, getRequestedFor(urlEqualTo("/?_getpages=abc&_getpagesoffset=2")));
+
+        assertEquals(((Condition) iterator.next()).getIdElement().getIdPart(), "2");
+        assertEquals(iterator.hasNext(), false);
+    }
+
+    @Test
+    public void splitQueriesAreMadeConcurrentlyAndTheirResultsMerged() {
+        Code first = new Code().withSystem("http://mysystem.com").withCode("first");
+        Code second = new Code().withSystem("http://mysystem.com").withCode("second");
+        Code third = new Code().withSystem("http://mysystem.com").withCode("third");
+
+        // condition 2 has both the first and the second code
+        mockFhirSearch("/Condition?code=" + escapeUrlParam(first.getSystem() + "|" + first.getCode()) + "&subject=" + escapeUrlParam("Patient/123"),
+            new Condition().setId("1"), new Condition().setId("2"));
+        mockFhirSearch("/Condition?code=" + escapeUrlParam(second.getSystem() + "|" + second.getCode()) + "&subject=" + escapeUrlParam("Patient/123"),
+            new Condition().setId("2"));
+        mockFhirSearch("/Condition?code=" + escapeUrlParam(third.getSystem() + "|" + third.getCode()) + "&subject=" + escapeUrlParam("Patient/123"),
+            new Condition().setId("3"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            provider.setMaxCodesPerQuery(1);
+            provider.setQueryExecutor(executor);
+            provider.setMaxConcurrentQueries(2);
+
+            Iterable<Object> results = provider.retrieve("Patient", "subject", "123", "Condition", null, "code",
+                Arrays.asList(first, second, third), null, null, null, null, null);
+            assertEquals(ids(results), Arrays.asList("1", "2", "3"));
+            verify(3, getRequestedFor(urlMatching("/Condition\\?code=.*")));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    private Iterable<Object> retrieveMedications(String... ids) {
+        List<Code> codes = new ArrayList<>();
+        for (String id : ids) {
+            codes.add(new Code().withCode(id));
+        }
+        return provider.retrieve("Unfiltered", null, null, "Medication", null, "id", codes, null, null, null, null, null);
+    }
+
+    @Test
+    public void readsSeveralIdsWithSearchesById() {
+        mockFhirInteraction(get(urlMatching("/Medication\\?_id=.*")), makeBundle(
+            new Medication().setId("m1"), new Medication().setId("m2"), new Medication().setId("m3")));
+
+        provider.setMaxIdsPerQuery(2);
+        Map<String, Object> resources = provider.read("Medication", Arrays.asList("m1", "m2", "m3"));
+        assertEquals(((Medication) resources.get("m2")).getIdElement().getIdPart(), "m2");
+
+        verify(2, getRequestedFor(urlMatching("/Medication\\?_id=.*")));
+        verify(0, getRequestedFor(urlMatching("/Medication/.*")));
+    }
+
+    @Test
+    public void severalIdsAreSearchedAtOnce() {
+        mockFhirInteraction(get(urlMatching("/Medication\\?_id=.*")), makeBundle(
+            new Medication().setId("m1"), new Medication().setId("m2")));
+
+        Iterable<Object> results = retrieveMedications("m1", "m2");
+        List<String> ids = new ArrayList<>();
+        results.forEach(resource -> ids.add(((Medication) resource).getIdElement().getIdPart()));
+        assertEquals(ids, Arrays.asList("m1", "m2"));
+
+        verify(1, getRequestedFor(urlMatching("/Medication\\?_id=.*")));
+        verify(0, getRequestedFor(urlMatching("/Medication/.*")));
+    }
+
+    @Test
+    public void includesAreFetchedWithTheSearch() {
+        String include = "_include=MedicationRequest(:|%3A)medication(:|%3A)Medication";
+        String revInclude = "_revinclude=MedicationAdministration(:|%3A)request";
+        mockFhirInteraction(get(urlMatching("/MedicationRequest\\?.*")), makeBundle(
+            new MedicationRequest().setId("r1"), new Medication().setId("m1"), new MedicationAdministration().setId("a1")));
+
+        List<String> included = new ArrayList<>();
+        Iterable<Object> results = provider.retrieve("Patient", "subject", "123", "MedicationRequest", null, null,
+            null, null, null, null, null, null,
+            Arrays.asList(new RetrieveInclude("Medication", "medication", false),
+                new RetrieveInclude("MedicationAdministration", "request", true)),
+            (type, resource) -> included.add(type + "/" + ((Resource) resource).getIdElement().getIdPart()));
+
+        List<String> ids = new ArrayList<>();
+        results.forEach(resource -> ids.add(((MedicationRequest) resource).getIdElement().getIdPart()));
+        assertEquals(ids, Collections.singletonList("r1"));
+        assertEquals(included, Arrays.asList("Medication/m1", "MedicationAdministration/a1"));
+        verify(1, getRequestedFor(urlMatching("/MedicationRequest\\?.*" + include + ".*")));
+        verify(1, getRequestedFor(urlMatching("/MedicationRequest\\?.*" + revInclude + ".*")));
+    }
+
+    @Test
+    public void firstAndCountRetrievesAskForASingleResultOrTheTotal() {
+        mockFhirInteraction(get(urlMatching("/Condition\\?subject=.*&_count=1")), makeBundle(new Condition().setId("1")));
+        Bundle total = makeBundle();
+        total.setTotal(5);
+        mockFhirInteraction(get(urlMatching("/Condition\\?subject=.*&_summary=count")), total);
+
+        Object first = provider.retrieveFirst("Patient", "subject", "123", "Condition", null, null, null, null, null, null, null, null);
+        assertEquals(((Condition) first).getIdElement().getIdPart(), "1");
+        assertEquals(provider.retrieveCount("Patient", "subject", "123", "Condition", null, null, null, null, null, null, null, null),
+            Integer.valueOf(5));
+
+        verify(1, getRequestedFor(urlMatching("/Condition\\?subject=.*&_count=1")));
+        verify(1, getRequestedFor(urlMatching("/Condition\\?subject=.*&_summary=count")));
+    }
 }
@@ -1,17 +1,29 @@
 package org.opencds.cqf.cql.engine.fhir.terminology;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ValueSetDef;
 import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.ValueSet;
@@ -19,10 +31,13 @@ import org.opencds.cqf.cql.engine.exception.TerminologyProviderException;
 import org.opencds.cqf.cql.engine.fhir.R4FhirTest;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.MembershipIndex;
 import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.github.tomakehurst.wiremock.client.WireMock;
+
 public class TestR4FhirTerminologyProvider extends R4FhirTest {
 
     private static final String TEST_DISPLAY = "Display";
@@ -187,6 +202,30 @@ public class TestR4FhirTerminologyProvider extends R4FhirTest {
         assertEquals(list.get(0).getCode(), TEST_CODE);
     }
 
+    @Test
+    public void membershipIsIndexedFromASingleExpansion() throws Exception {
+        ValueSetInfo info = new ValueSetInfo();
+        info.setId("urn:oid:Test");
+
+        ValueSet valueSet = new ValueSet();
+        valueSet.setId("Test");
+        valueSet.getExpansion().getContainsFirstRep().setSystem(TEST_SYSTEM).setCode(TEST_CODE);
+
+        mockResolveSearchPath(info, valueSet);
+
+        Parameters parameters = new Parameters();
+        parameters.getParameterFirstRep().setName("return").setResource(valueSet);
+
+        mockFhirRead("/ValueSet/Test/$expand", parameters);
+
+        MembershipIndex index = new MembershipIndex(provider);
+        assertTrue(index.in(new Code().withSystem(TEST_SYSTEM).withCode(TEST_CODE), info));
+        assertFalse(index.in(new Code().withSystem(TEST_SYSTEM).withCode("other"), info));
+
+        verify(1, getRequestedFor(urlMatching("/ValueSet/Test/\\$expand.*")));
+        verify(0, getRequestedFor(urlMatching(".*validate-code.*")));
+    }
+
     @Test
     public void inOperationReturnsTrueWhenFhirReturnsTrue() throws Exception {
         ValueSetInfo info = new ValueSetInfo();
@@ -261,6 +300,31 @@ public class TestR4FhirTerminologyProvider extends R4FhirTest {
         assertTrue(result);
     }
 
+    @Test
+    public void inBatchChecksAllCodesInOneRequest() throws Exception {
+        ValueSetInfo info = new ValueSetInfo();
+        info.setId("urn:oid:Test");
+
+        ValueSet valueSet = new ValueSet();
+        valueSet.setId("Test");
+
+        mockResolveSearchPath(info, valueSet);
+
+        Bundle response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+        for (boolean member : new boolean[] { true, false }) {
+            Parameters parameters = new Parameters();
+            parameters.getParameterFirstRep().setName("result").setValue(new BooleanType(member));
+            response.addEntry().setResource(parameters).getResponse().setStatus("200 OK");
+        }
+        mockFhirPost("/", response);
+
+        List<Code> codes = Arrays.asList(new Code().withSystem(TEST_SYSTEM).withCode(TEST_CODE), new Code().withCode("1234"));
+        assertEquals(provider.inBatch(codes, info), Arrays.asList(true, false));
+
+        verify(1, postRequestedFor(urlEqualTo("/")).withRequestBody(containing(
+                "ValueSet/Test/$validate-code?code=" + TEST_CODE + "&system=" + urlencode(TEST_SYSTEM))));
+    }
+
     @Test
     public void lookupOperationSuccess() throws Exception {
         CodeSystemInfo info = new CodeSystemInfo();
@@ -286,6 +350,88 @@ public class TestR4FhirTerminologyProvider extends R4FhirTest {
         assertEquals(result.getDisplay(), code.getDisplay());
     }
 
+    @Test
+    public void resolvedIdsAreSharedByProvidersGivenTheSameCache() throws Exception {
+        ValueSetInfo info = new ValueSetInfo().withId("https://cts.nlm.nih.gov/fhir/ValueSet/1.2.3.4");
+
+        ValueSet response = new ValueSet();
+        response.setId("1.2.3.4");
+        response.setUrl(info.getId());
+
+        mockResolveSearchPath(info, response);
+        assertEquals(provider.resolveValueSetId(info), "1.2.3.4");
+
+        // the server no longer answers searches
+        WireMock.reset();
+        mockFhirRead("/metadata", getCapabilityStatement());
+        mockResolveSearchPath(info, null);
+        assertEquals(new R4FhirTerminologyProvider(newClient(), provider.getValueSetIdCache()).resolveValueSetId(info),
+                "1.2.3.4");
+
+        // a provider for the same endpoint, but maybe other credentials, doesn't share the cache
+        try {
+            new R4FhirTerminologyProvider(newClient()).resolveValueSetId(info);
+            fail("the ValueSet id was shared");
+        } catch (IllegalArgumentException e) {
+            // not found on the server
+        }
+    }
+
+    @Test
+    public void resolvedIdsAreBounded() {
+        ValueSetIdCache cache = new ValueSetIdCache(Duration.ofHours(1), Duration.ofHours(1), 2);
+        cache.put("a", null, "1");
+        cache.put("b", null, "2");
+        cache.resolve("a", null, url -> null);
+        cache.put("c", null, "3");
+
+        assertEquals(cache.size(), 2);
+        assertTrue(cache.contains("a", null));
+        assertFalse(cache.contains("b", null));
+        assertTrue(cache.contains("c", null));
+    }
+
+    @Test
+    public void unresolvedIdsAreCached() throws Exception {
+        ValueSetInfo info = new ValueSetInfo().withId("urn:oid:1.2.3.4");
+
+        mockResolveSearchPath(info, null);
+        for (int i = 0; i < 2; ++i) {
+            try {
+                provider.resolveValueSetId(info);
+                fail("expected an IllegalArgumentException");
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        verify(1, getRequestedFor(urlEqualTo("/ValueSet?url=" + urlencode(info.getId()))));
+    }
+
+    @Test
+    public void libraryValueSetsAreResolvedInOneSearch() throws Exception {
+        ValueSet first = new ValueSet();
+        first.setId("first");
+        first.setUrl("http://localhost/fhir/ValueSet/first");
+
+        ValueSet second = new ValueSet();
+        second.setId("second");
+        second.setUrl("http://localhost/fhir/ValueSet/second");
+
+        Library library = new Library().withValueSets(new Library.ValueSets().withDef(
+                new ValueSetDef().withName("First").withId(first.getUrl()),
+                new ValueSetDef().withName("Second").withId(second.getUrl()),
+                new ValueSetDef().withName("Missing").withId("http://localhost/fhir/ValueSet/missing")));
+
+        mockFhirSearch("/ValueSet?url=" + urlencode(first.getUrl() + "," + second.getUrl() + ",http://localhost/fhir/ValueSet/missing")
+                + "&_count=6", first, second);
+
+        provider.resolveValueSetIds(library);
+        assertEquals(provider.resolveValueSetId(new ValueSetInfo().withId(first.getUrl())), "first");
+        assertEquals(provider.resolveValueSetId(new ValueSetInfo().withId(second.getUrl())), "second");
+        assertFalse(provider.getValueSetIdCache().contains("http://localhost/fhir/ValueSet/missing", null));
+    }
+
     protected String urlencode(String value) throws UnsupportedEncodingException {
         return URLEncoder.encode(value, "utf-8");
     }
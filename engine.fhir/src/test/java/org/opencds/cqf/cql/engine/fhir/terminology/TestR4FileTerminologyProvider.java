@@ -0,0 +1,153 @@
+package org.opencds.cqf.cql.engine.fhir.terminology;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.opencds.cqf.cql.engine.exception.TerminologyProviderException;
+import org.opencds.cqf.cql.engine.fhir.SourceFiles;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestR4FileTerminologyProvider {
+
+    private static final String SNOMED = "http://snomed.info/sct";
+    private static final String LOCAL = "http://example.org/CodeSystem/local";
+    private static final String EXPANDED = "http://example.org/ValueSet/expanded";
+    private static final String COMPOSED = "http://example.org/ValueSet/composed";
+
+    private Path directory;
+
+    @BeforeMethod
+    public void writeTerminology() throws IOException {
+        directory = Files.createTempDirectory("terminology");
+        Files.write(directory.resolve("expanded.json"), ("{\"resourceType\":\"ValueSet\",\"id\":\"expanded\","
+                + "\"url\":\"" + EXPANDED + "\",\"identifier\":[{\"value\":\"urn:oid:1.2.3.4\"}],"
+                + "\"expansion\":{\"contains\":["
+                + "{\"system\":\"" + SNOMED + "\",\"code\":\"425178004\",\"display\":\"Diabetic retinopathy\"},"
+                + "{\"abstract\":true,\"contains\":[{\"system\":\"" + SNOMED + "\",\"code\":\"73211009\"}]},"
+                + "{\"system\":\"" + LOCAL + "\",\"code\":\"a\"}]}}").getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("local.ndjson"), Arrays.asList(
+                "{\"resourceType\":\"CodeSystem\",\"url\":\"" + LOCAL + "\",\"concept\":["
+                        + "{\"code\":\"a\",\"display\":\"A\",\"concept\":[{\"code\":\"a.1\",\"display\":\"A one\"}]},"
+                        + "{\"code\":\"b\"}]}",
+                "",
+                "{\"resourceType\":\"ValueSet\",\"id\":\"composed\",\"url\":\"" + COMPOSED + "\",\"version\":\"1\","
+                        + "\"compose\":{\"include\":[{\"system\":\"" + LOCAL + "\",\"concept\":["
+                        + "{\"code\":\"a.1\"},{\"code\":\"a\"}]}]}}"), StandardCharsets.UTF_8);
+    }
+
+    @AfterMethod
+    public void deleteTerminology() throws IOException {
+        Files.deleteIfExists(SourceFiles.defaultIndexFile("cql-terminology", directory));
+        try (Stream<Path> paths = Files.walk(directory)) {
+            List<Path> files = new ArrayList<>();
+            paths.sorted(Comparator.reverseOrder()).forEach(files::add);
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void testMembershipIsAnsweredFromTheFiles() {
+        R4FileTerminologyProvider provider = new R4FileTerminologyProvider(directory);
+        ValueSetInfo expanded = new ValueSetInfo().withId(EXPANDED);
+
+        assertThat(provider.in(new Code().withSystem(SNOMED).withCode("425178004"), expanded), is(true));
+        assertThat(provider.in(new Code().withSystem(SNOMED).withCode("73211009"), expanded), is(true));
+        assertThat(provider.in(new Code().withSystem(LOCAL).withCode("425178004"), expanded), is(false));
+        assertThat(provider.in(new Code().withCode("a"), expanded), is(true));
+        assertThat(provider.in(new Code().withSystem(SNOMED).withCode("unknown"), expanded), is(false));
+
+        // value sets are also found by identifier and id
+        assertThat(provider.in(new Code().withSystem(SNOMED).withCode("73211009"),
+                new ValueSetInfo().withId("urn:oid:1.2.3.4")), is(true));
+        assertThat(provider.in(new Code().withSystem(LOCAL).withCode("a.1"),
+                new ValueSetInfo().withId("composed").withVersion("1")), is(true));
+    }
+
+    @Test(expectedExceptions = TerminologyProviderException.class)
+    public void testUnknownValueSetsAreErrors() {
+        new R4FileTerminologyProvider(directory).in(new Code().withSystem(SNOMED).withCode("425178004"),
+                new ValueSetInfo().withId(COMPOSED).withVersion("2"));
+    }
+
+    @Test
+    public void testExpandAndLookup() {
+        R4FileTerminologyProvider provider = new R4FileTerminologyProvider(directory);
+
+        List<String> codes = new ArrayList<>();
+        provider.expand(new ValueSetInfo().withId(COMPOSED)).forEach(code -> codes.add(code.getSystem() + "|" + code.getCode()));
+        assertThat(codes, containsInAnyOrder(LOCAL + "|a", LOCAL + "|a.1"));
+
+        CodeSystemInfo local = new CodeSystemInfo().withId(LOCAL);
+        assertThat(provider.lookup(new Code().withCode("a.1"), local).getDisplay(), is("A one"));
+        assertThat(provider.lookup(new Code().withCode("b"), local).getSystem(), is(LOCAL));
+        assertThat(provider.lookup(new Code().withCode("c"), local), is(nullValue()));
+
+        // the codes of a library are shared, so the lookup leaves them as they are
+        Code shared = new Code().withCode("a.1");
+        shared.freeze();
+        assertThat(provider.lookup(shared, local).getDisplay(), is("A one"));
+        assertThat(shared.getDisplay(), is(nullValue()));
+    }
+
+    @Test
+    public void testValueSetsContainingACode() {
+        R4FileTerminologyProvider provider = new R4FileTerminologyProvider(directory);
+
+        assertThat(provider.valueSetsContaining(new Code().withSystem(LOCAL).withCode("a")),
+                containsInAnyOrder(EXPANDED, COMPOSED));
+        assertThat(provider.valueSetsContaining(new Code().withSystem(SNOMED).withCode("73211009")), contains(EXPANDED));
+        assertThat(provider.valueSetsContaining(new Code().withSystem(SNOMED).withCode("a")), is(empty()));
+    }
+
+    @Test
+    public void testTheIndexIsReusedUntilTheFilesChange() throws IOException {
+        R4FileTerminologyProvider provider = new R4FileTerminologyProvider(directory);
+        Path index = provider.getIndexFile();
+        FileTime built = FileTime.fromMillis(0);
+        Files.setLastModifiedTime(index, built);
+
+        new R4FileTerminologyProvider(directory);
+        assertThat(Files.getLastModifiedTime(index), is(built));
+
+        Files.write(directory.resolve("more.json"), ("{\"resourceType\":\"ValueSet\",\"url\":\"http://example.org/more\","
+                + "\"expansion\":{\"contains\":[{\"system\":\"" + LOCAL + "\",\"code\":\"b\"}]}}").getBytes(StandardCharsets.UTF_8));
+        R4FileTerminologyProvider rebuilt = new R4FileTerminologyProvider(directory);
+        assertThat(Files.getLastModifiedTime(index).equals(built), is(false));
+        assertThat(rebuilt.in(new Code().withSystem(LOCAL).withCode("b"), new ValueSetInfo().withId("http://example.org/more")),
+                is(true));
+    }
+
+    @Test
+    public void testTheIndexIsKeptOutOfTheSource() throws IOException {
+        Path index = new R4FileTerminologyProvider(directory).getIndexFile();
+
+        assertThat(index.startsWith(directory), is(false));
+        try (Stream<Path> paths = Files.list(directory)) {
+            assertThat(paths.count(), is(2L));
+        }
+        // later providers of the same source reuse the index
+        assertThat(new R4FileTerminologyProvider(directory).getIndexFile(), is(index));
+    }
+}
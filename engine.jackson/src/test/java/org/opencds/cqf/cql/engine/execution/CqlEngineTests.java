@@ -20,6 +20,10 @@ import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.model.CompiledLibrary;
 import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
 import org.testng.annotations.Test;
 
 public class CqlEngineTests extends TranslatingTestBase {
@@ -157,4 +161,35 @@ public class CqlEngineTests extends TranslatingTestBase {
         CqlEngine engine = new CqlEngine(libraryLoader);
         engine.evaluate("Test");
     }
+
+    @Test
+    public void valueSetIndexing_expandsEachValueSetOncePerEngine() throws IOException {
+        Library library = this.toLibrary("library Test version '1.0.0'\ncodesystem \"CS\": 'http://example.com/cs'\n"
+                + "valueset \"VS\": 'http://example.com/vs'\ndefine X: Code 'a' from \"CS\" in \"VS\"");
+
+        List<String> expanded = new ArrayList<>();
+        TerminologyProvider terminologyProvider = new TerminologyProvider() {
+            @Override
+            public boolean in(Code code, ValueSetInfo valueSet) {
+                throw new AssertionError("the value set is expanded");
+            }
+
+            @Override
+            public Iterable<Code> expand(ValueSetInfo valueSet) {
+                expanded.add(valueSet.getId());
+                return Collections.singletonList(new Code().withSystem("http://example.com/cs").withCode("a"));
+            }
+
+            @Override
+            public Code lookup(Code code, CodeSystemInfo codeSystem) {
+                return null;
+            }
+        };
+
+        CqlEngine engine = new CqlEngine(new InMemoryLibraryLoader(Collections.singleton(library)), null,
+                terminologyProvider, EnumSet.of(CqlEngine.Options.EnableValueSetIndexing));
+        assertThat(engine.evaluate("Test").forExpression("X").value(), is(true));
+        assertThat(engine.evaluate("Test").forExpression("X").value(), is(true));
+        assertThat(expanded, is(Collections.singletonList("http://example.com/vs")));
+    }
 }
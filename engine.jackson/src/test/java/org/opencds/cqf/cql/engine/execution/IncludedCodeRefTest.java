@@ -3,9 +3,17 @@ package org.opencds.cqf.cql.engine.execution;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.testng.Assert.assertNotNull;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
 import org.testng.annotations.Test;
 
 public class IncludedCodeRefTest extends CqlExecutionTestBase {
@@ -18,4 +26,56 @@ public class IncludedCodeRefTest extends CqlExecutionTestBase {
         assertNotNull(result);
         assertThat(result, is(instanceOf(Code.class)));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCodeRefIsEvaluatedOnce() {
+        Context context = new Context(library);
+        context.registerLibraryLoader(new TestLibraryLoader(getLibraryManager()));
+
+        Code first = (Code) context.resolveExpressionRef("IncludedCode").getExpression().evaluate(context);
+        Code second = (Code) context.resolveExpressionRef("IncludedCode").getExpression().evaluate(context);
+        assertThat(second, is(sameInstance(first)));
+        assertThat(first.getCode(), is("community"));
+        assertThat(first.getSystem(), is("http://terminology.hl7.org/CodeSystem/medicationrequest-category"));
+        assertThat(first, is(new Code().withCode("community").withSystem("http://terminology.hl7.org/CodeSystem/medicationrequest-category").withDisplay("Community")));
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testSharedCodeCannotBeModified() {
+        Context context = new Context(library);
+        context.registerLibraryLoader(new TestLibraryLoader(getLibraryManager()));
+
+        Code code = (Code) context.resolveExpressionRef("IncludedCode").getExpression().evaluate(context);
+        assertThat(code.isFrozen(), is(true));
+        code.setDisplay("Changed");
+    }
+
+    @Test
+    public void testSharedCodeIsLookedUpInACodeSystem() {
+        Context context = new Context(library);
+        context.registerLibraryLoader(new TestLibraryLoader(getLibraryManager()));
+        List<Code> lookedUp = new ArrayList<>();
+        context.registerTerminologyProvider(new TerminologyProvider() {
+            @Override
+            public boolean in(Code code, ValueSetInfo valueSet) {
+                return false;
+            }
+
+            @Override
+            public Iterable<Code> expand(ValueSetInfo valueSet) {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public Code lookup(Code code, CodeSystemInfo codeSystem) {
+                lookedUp.add(code);
+                return new Code().withCode(code.getCode()).withSystem(codeSystem.getId()).withDisplay("Looked up");
+            }
+        });
+
+        assertThat(context.resolveExpressionRef("IncludedCodeInCodeSystem").getExpression().evaluate(context), is(true));
+        Code code = (Code) context.resolveExpressionRef("IncludedCode").getExpression().evaluate(context);
+        assertThat(lookedUp.get(0), is(sameInstance(code)));
+        assertThat(code.getDisplay(), is("Community"));
+    }
+}
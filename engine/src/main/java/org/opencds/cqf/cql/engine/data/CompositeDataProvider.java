@@ -1,13 +1,18 @@
 package org.opencds.cqf.cql.engine.data;
 
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
 
 import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.BatchReadRetrieveProvider;
+import org.opencds.cqf.cql.engine.retrieve.IncludeRetrieveProvider;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveInclude;
 import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 
-public class CompositeDataProvider implements DataProvider {
+public class CompositeDataProvider implements DataProvider, IncludeRetrieveProvider, BatchReadRetrieveProvider {
 
     protected ModelResolver modelResolver;
     protected RetrieveProvider retrieveProvider;
@@ -44,6 +49,11 @@ public class CompositeDataProvider implements DataProvider {
         return this.modelResolver.resolvePath(target, path);
     }
 
+    @Override
+    public Iterable<Object> resolveElements(Object target) {
+        return this.modelResolver.resolveElements(target);
+    }
+
     @Override
     public Object getContextPath(String contextType, String targetType) {
         return this.modelResolver.getContextPath(contextType, targetType);
@@ -95,4 +105,41 @@ public class CompositeDataProvider implements DataProvider {
             String dateLowPath, String dateHighPath, Interval dateRange) {
         return this.retrieveProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
     }
+
+    @Override
+    public Object retrieveFirst(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        return this.retrieveProvider.retrieveFirst(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+    }
+
+    @Override
+    public Integer retrieveCount(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        return this.retrieveProvider.retrieveCount(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+    }
+
+    // the includes are ignored if the retrieve provider doesn't support them
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange, List<RetrieveInclude> includes,
+            BiConsumer<String, Object> included) {
+        if (this.retrieveProvider instanceof IncludeRetrieveProvider) {
+            return ((IncludeRetrieveProvider) this.retrieveProvider).retrieve(context, contextPath, contextValue,
+                    dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange,
+                    includes, included);
+        }
+        return this.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+    }
+
+    // null if the retrieve provider doesn't read resources together
+    @Override
+    public Map<String, Object> read(String dataType, List<String> ids) {
+        if (this.retrieveProvider instanceof BatchReadRetrieveProvider) {
+            return ((BatchReadRetrieveProvider) this.retrieveProvider).read(dataType, ids);
+        }
+        return null;
+    }
 }
@@ -1,6 +1,18 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Concept;
+import org.opencds.cqf.cql.engine.runtime.ValueSet;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+/*
+The codes are checked against the value set together, so a value set that can't be checked from its expansion is
+    checked in a single batch rather than one call per code.
+*/
 
 public class AnyInValueSetEvaluator extends org.cqframework.cql.elm.execution.AnyInValueSet
 {
@@ -18,6 +30,39 @@ public class AnyInValueSetEvaluator extends org.cqframework.cql.elm.execution.An
 
         if (codes == null || vs == null) return null;
 
+        if (codes instanceof Iterable && vs instanceof ValueSet)
+        {
+            List<Code> candidates = new ArrayList<>();
+            for (Object code : (Iterable<?>) codes)
+            {
+                if (code instanceof String)
+                {
+                    candidates.add(new Code().withCode((String) code));
+                }
+                else if (code instanceof Code)
+                {
+                    candidates.add((Code) code);
+                }
+                else if (code instanceof Concept)
+                {
+                    // as for In, the codes of a concept after a null code aren't checked
+                    for (Code conceptCode : ((Concept) code).getCodes())
+                    {
+                        if (conceptCode == null) break;
+                        candidates.add(conceptCode);
+                    }
+                }
+                else if (code != null)
+                {
+                    // throws the invalid argument error of In
+                    InValueSetEvaluator.inValueSet(context, code, vs);
+                }
+            }
+
+            if (candidates.isEmpty()) return false;
+            return context.resolveMembershipIndex().anyIn(candidates, ValueSetInfo.fromValueSet((ValueSet) vs));
+        }
+
         if (codes instanceof Iterable)
         {
             Object result;
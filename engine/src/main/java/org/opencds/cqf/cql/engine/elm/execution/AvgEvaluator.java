@@ -5,6 +5,7 @@ import java.math.BigDecimal;
 import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.Quantity;
+import org.opencds.cqf.cql.engine.runtime.Value;
 
 /*
 Avg(argument List<Decimal>) Decimal
@@ -25,32 +26,40 @@ public class AvgEvaluator extends org.cqframework.cql.elm.execution.Avg {
         }
 
         if (source instanceof Iterable) {
-            Iterable<?> elements = (Iterable<?>) source;
-            Object avg = null;
-            int size = 1;
+            // the sum is accumulated in place rather than through AddEvaluator, with the same precision rules
+            BigDecimal sum = null;
+            Quantity first = null;
+            int size = 0;
 
-            for (Object element : elements) {
+            for (Object element : (Iterable<?>) source) {
                 if (element == null) {
                     continue;
                 }
 
-                if (element instanceof BigDecimal || element instanceof Quantity) {
-                    if (avg == null) {
-                        avg = element;
-                    } else {
-                        ++size;
-                        avg = AddEvaluator.add(avg, element);
+                if (element instanceof BigDecimal && first == null) {
+                    sum = sum == null ? (BigDecimal) element : Value.verifyPrecision(sum.add((BigDecimal) element), null);
+                }
+                else if (element instanceof Quantity && (sum == null || first != null)) {
+                    if (first == null) {
+                        first = (Quantity) element;
                     }
+                    sum = sum == null ? first.getValue() : sum.add(((Quantity) element).getValue());
                 }
                 else {
                     throw new InvalidOperatorArgument(
                             "Avg(List<Decimal>), Avg(List<Quantity>)",
-                            String.format("Avg(List<%s>)", source.getClass().getName())
+                            String.format("Avg(List<%s>)", element.getClass().getName())
                     );
                 }
+                ++size;
+            }
+
+            if (sum == null) {
+                return null;
             }
 
-            return DivideEvaluator.divide(avg, new BigDecimal(size), context);
+            Object total = first == null ? sum : new Quantity().withValue(sum).withUnit(first.getUnit());
+            return DivideEvaluator.divide(total, new BigDecimal(size), context);
         }
 
         throw new InvalidOperatorArgument(
@@ -1,27 +1,38 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
 import java.math.BigDecimal;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Concept;
 import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.cql.engine.runtime.Precision;
 import org.opencds.cqf.cql.engine.runtime.Quantity;
 import org.opencds.cqf.cql.engine.runtime.TemporalHelper;
 import org.opencds.cqf.cql.engine.runtime.Time;
+import org.opencds.cqf.cql.engine.runtime.Tuple;
 
 /*
 
 Children(argument Any) List<Any>
 
 For structured types, the Children operator returns a list of all the values of the elements of the type.
+    The elements of model objects (e.g. FHIR resources) are enumerated by the model resolver of their data provider.
     List-valued elements are expanded and added to the result individually, rather than as a single list.
 For list types, the result is the same as invoking Children on each element in the list and flattening the resulting lists into a single result.
 If the source is null, the result is null.
 
+The result is produced as it is consumed, so only the part of the source that is actually used is traversed.
+
 */
 
 public class ChildrenEvaluator extends org.cqframework.cql.elm.execution.Children {
@@ -35,7 +46,7 @@ public class ChildrenEvaluator extends org.cqframework.cql.elm.execution.Childre
         list.add(code.getSystem());
         list.add(code.getVersion());
         list.add(code.getCode());
-        list.add(code.getSystem());
+        list.add(code.getDisplay());
     }
 
     private static void addConcept(List<Object> list, Concept concept) {
@@ -60,59 +71,150 @@ public class ChildrenEvaluator extends org.cqframework.cql.elm.execution.Childre
         }
     }
 
-    private static void addList(List<Object> list, List<Object> listToProcess) {
-        for (Object o : listToProcess) {
-            list.add(children(o));
-        }
+    static boolean isPrimitive(Object value) {
+        return value instanceof Integer || value instanceof BigDecimal
+                || value instanceof String || value instanceof Boolean;
     }
 
-    @SuppressWarnings("unchecked")
-    public static Object children(Object source) {
-        if (source == null) {
-            return null;
+    /*
+    Returns true if the value has elements, i.e. the Children of the value are not the value itself.
+     */
+    static boolean isStructured(Object value) {
+        return value instanceof Quantity || value instanceof Code || value instanceof Concept
+                || value instanceof DateTime || value instanceof Time
+                || value instanceof Tuple || value instanceof Interval;
+    }
+
+    // The values of the elements of a structured value, in which list-valued elements are not yet expanded
+    private static List<Object> elements(Object value) {
+        List<Object> elements = new ArrayList<>();
+
+        if (value instanceof Quantity) {
+            addQuantity(elements, (Quantity) value);
         }
 
-        List<Object> ret = new ArrayList<>();
+        else if (value instanceof Code) {
+            addCode(elements, (Code) value);
+        }
 
-        if (source instanceof Integer || source instanceof BigDecimal
-                || source instanceof String || source instanceof Boolean)
-        {
-            ret.add(source);
+        else if (value instanceof Concept) {
+            addConcept(elements, (Concept) value);
         }
 
-        else if (source instanceof Quantity) {
-            addQuantity(ret, (Quantity) source);
+        else if (value instanceof DateTime) {
+            addDateTime(elements, (DateTime) value);
         }
 
-        else if (source instanceof Code) {
-            addCode(ret, (Code) source);
+        else if (value instanceof Time) {
+            addTime(elements, (Time) value);
         }
 
-        else if (source instanceof Concept) {
-            addConcept(ret, (Concept) source);
+        else if (value instanceof Tuple) {
+            elements.addAll(((Tuple) value).getElements().values());
         }
 
-        else if (source instanceof DateTime) {
-            addDateTime(ret, (DateTime) source);
+        else if (value instanceof Interval) {
+            elements.add(((Interval) value).getStart());
+            elements.add(((Interval) value).getEnd());
         }
 
-        else if (source instanceof Time) {
-            addTime(ret, (Time) source);
+        return elements;
+    }
+
+    /*
+    Produces the children of the (non-null) elements of the source, walking nested lists with an explicit stack.
+
+    Each frame is an iterator over either a list in the source or the elements of a structured value, whose values are
+        children themselves. Lists are expanded wherever they occur, except in a list that (directly or indirectly)
+        contains itself, where the inner occurrence is skipped.
+     */
+    private static class ChildrenList extends StreamingList {
+
+        private static final class Frame {
+            // the list being expanded, if any
+            private final Object list;
+            private final Iterator<?> values;
+            private final boolean elements;
+
+            private Frame(Object list, Iterator<?> values, boolean elements) {
+                this.list = list;
+                this.values = values;
+                this.elements = elements;
+            }
+        }
+
+        private final Context context;
+        private final Deque<Frame> frames = new ArrayDeque<>();
+        // the lists that are being expanded, i.e. the lists on the stack
+        private final Set<Object> expanding = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        private ChildrenList(Object source, Context context) {
+            this.context = context;
+            if (source instanceof Iterable) {
+                expanding.add(source);
+                frames.push(new Frame(source, ((Iterable<?>) source).iterator(), false));
+            }
+            else {
+                frames.push(new Frame(null, Collections.singletonList(source).iterator(), false));
+            }
         }
 
-        else if (source instanceof Iterable) {
-            addList(ret, (List<Object>) source);
+        @Override
+        protected boolean advance(List<Object> children) {
+            while (!frames.isEmpty()) {
+                Frame frame = frames.peek();
+                if (!frame.values.hasNext()) {
+                    frames.pop();
+                    if (frame.list != null) {
+                        expanding.remove(frame.list);
+                    }
+                    continue;
+                }
+
+                Object value = frame.values.next();
+                if (value instanceof Iterable) {
+                    if (expanding.add(value)) {
+                        frames.push(new Frame(value, ((Iterable<?>) value).iterator(), frame.elements));
+                    }
+                }
+                else if (frame.elements || isPrimitive(value)) {
+                    children.add(value);
+                    return true;
+                }
+                else if (isStructured(value)) {
+                    frames.push(new Frame(null, elements(value).iterator(), true));
+                }
+                else if (context != null) {
+                    Iterable<Object> modelElements = context.resolveElements(value);
+                    if (modelElements != null) {
+                        frames.push(new Frame(null, modelElements.iterator(), true));
+                    }
+                }
+            }
+
+            return false;
         }
+    }
+
+    public static Object children(Object source) {
+        return children(source, null);
+    }
 
-        // TODO: Intervals and Tuples?
+    /*
+    The context resolves the elements of model objects - without one, model objects have no children.
+     */
+    public static Object children(Object source, Context context) {
+        if (source == null) {
+            return null;
+        }
 
-        return ret;
+        return new ChildrenList(source, context);
     }
 
     @Override
     protected Object internalEvaluate(Context context) {
         Object source = getSource().evaluate(context);
 
-        return children(source);
+        return children(source, context);
     }
 }
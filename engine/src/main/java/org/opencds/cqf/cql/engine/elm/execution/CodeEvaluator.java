@@ -17,6 +17,10 @@ The Code type represents single terminology codes within CQL.
 public class CodeEvaluator extends org.cqframework.cql.elm.execution.Code {
     @Override
     protected Object internalEvaluate(Context context) {
+        return context.resolveTerminologyConstant(this, () -> toCode(context));
+    }
+
+    private org.opencds.cqf.cql.engine.runtime.Code toCode(Context context) {
         org.opencds.cqf.cql.engine.runtime.Code code = new org.opencds.cqf.cql.engine.runtime.Code().withCode(this.getCode()).withDisplay(this.getDisplay());
         org.cqframework.cql.elm.execution.CodeSystemRef codeSystemRef = this.getSystem();
         if (codeSystemRef != null) {
@@ -9,15 +9,19 @@ import org.opencds.cqf.cql.engine.runtime.CodeSystem;
 public class CodeRefEvaluator extends org.cqframework.cql.elm.execution.CodeRef {
 
     public static Code toCode(Context context, CodeRef cr) {
-        boolean enteredLibrary = context.enterLibrary(cr.getLibraryName());
-        try {
-            CodeDef cd = context.resolveCodeRef(cr.getName());
-            CodeSystem cs = (CodeSystem)cd.getCodeSystem().evaluate(context);
-            return new Code().withCode(cd.getId()).withSystem(cs.getId()).withDisplay(cd.getDisplay()).withVersion(cs.getVersion());
-        }
-        finally {
-            context.exitLibrary(enteredLibrary);
-        }
+        return context.resolveTerminologyConstant(cr, () -> {
+            boolean enteredLibrary = context.enterLibrary(cr.getLibraryName());
+            try {
+                CodeDef cd = context.resolveCodeRef(cr.getName());
+                return context.resolveTerminologyConstant(cd, () -> {
+                    CodeSystem cs = (CodeSystem)cd.getCodeSystem().evaluate(context);
+                    return new Code().withCode(cd.getId()).withSystem(cs.getId()).withDisplay(cd.getDisplay()).withVersion(cs.getVersion());
+                });
+            }
+            finally {
+                context.exitLibrary(enteredLibrary);
+            }
+        });
     }
 
     @Override
@@ -10,13 +10,16 @@ import org.opencds.cqf.cql.engine.runtime.CodeSystem;
 public class CodeSystemRefEvaluator extends org.cqframework.cql.elm.execution.CodeSystemRef {
 
     public static CodeSystem toCodeSystem(Context context, CodeSystemRef csr) {
-        boolean enteredLibrary = context.enterLibrary(csr.getLibraryName());
-        try {
-            CodeSystemDef csd = context.resolveCodeSystemRef(csr.getName());
-            return new CodeSystem().withId(csd.getId()).withVersion(csd.getVersion()).withName(csd.getName());
-        } finally {
-            context.exitLibrary(enteredLibrary);
-        }
+        return context.resolveTerminologyConstant(csr, () -> {
+            boolean enteredLibrary = context.enterLibrary(csr.getLibraryName());
+            try {
+                CodeSystemDef csd = context.resolveCodeSystemRef(csr.getName());
+                return context.resolveTerminologyConstant(csd,
+                        () -> new CodeSystem().withId(csd.getId()).withVersion(csd.getVersion()).withName(csd.getName()));
+            } finally {
+                context.exitLibrary(enteredLibrary);
+            }
+        });
     }
 
     @Override
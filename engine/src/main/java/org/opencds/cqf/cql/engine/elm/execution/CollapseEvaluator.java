@@ -1,7 +1,7 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
 import java.math.BigDecimal;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.opencds.cqf.cql.engine.execution.Context;
@@ -9,6 +9,7 @@ import org.opencds.cqf.cql.engine.runtime.BaseTemporal;
 import org.opencds.cqf.cql.engine.runtime.CqlList;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.cql.engine.runtime.Quantity;
+import org.opencds.cqf.cql.engine.runtime.SpecializedInterval;
 
 /*
 collapse(argument List<Interval<T>>) List<Interval<T>>
@@ -32,6 +33,10 @@ If the list argument is null, the result is null.
 
 If the per argument is null, the default unit interval for the point type of the intervals involved will be used
     (i.e. the interval that has a width equal to the result of the successor function for the point type).
+
+Implementation note: after sorting, the intervals are merged in a single sweep - the interval being built up is only
+    ever compared with the next interval in the sorted list and is emitted once the next interval neither overlaps nor
+    meets it.
 */
 
 public class CollapseEvaluator extends org.cqframework.cql.elm.execution.Collapse
@@ -45,7 +50,7 @@ public class CollapseEvaluator extends org.cqframework.cql.elm.execution.Collaps
 
         if (interval.getPointType().getTypeName().contains("Integer"))
         {
-            return new Interval(
+            return SpecializedInterval.create(
                     interval.getStart(),
                     true,
                     AddEvaluator.add(interval.getEnd(), per.getValue().intValue()),
@@ -54,7 +59,7 @@ public class CollapseEvaluator extends org.cqframework.cql.elm.execution.Collaps
         }
         else if (interval.getPointType().getTypeName().contains("BigDecimal"))
         {
-            return new Interval(
+            return SpecializedInterval.create(
                     interval.getStart(),
                     true,
                     AddEvaluator.add(interval.getEnd(), per.getValue()),
@@ -64,7 +69,7 @@ public class CollapseEvaluator extends org.cqframework.cql.elm.execution.Collaps
         // Quantity, Date, DateTime, and Time
         else
         {
-            return new Interval(
+            return SpecializedInterval.create(
                     interval.getStart(),
                     true,
                     AddEvaluator.add(interval.getEnd(), per),
@@ -100,53 +105,50 @@ public class CollapseEvaluator extends org.cqframework.cql.elm.execution.Collaps
 
         String precision = per.getUnit().equals("1") ? null : per.getUnit();
 
-        for (int i = 0; i < intervals.size() - 1; ++i)
+        List<Interval> collapsed = new ArrayList<>();
+        Interval current = intervals.get(0);
+        for (int i = 1; i < intervals.size(); ++i)
         {
-            Interval applyPer = getIntervalWithPerApplied(intervals.get(i), per, context);
+            Interval next = intervals.get(i);
+            Interval applyPer = getIntervalWithPerApplied(current, per, context);
 
             if (isTemporal) {
                 if (per.getValue().compareTo(BigDecimal.ONE) == 0 || per.getValue().compareTo(BigDecimal.ZERO) == 0) {
                     // Temporal DataTypes already receive the precision adjustments at the OverlapsEvaluator and MeetsEvaluator.
                     // But they can only do full units (ms, seconds, days): They cannot do "4 days" of precision.
                     // The getIntervalWithPerApplied takes that into account.
-                    applyPer = intervals.get(i);
+                    applyPer = current;
                 } else {
                     precision = "millisecond";
                 }
             }
 
-            Boolean doMerge = AnyTrueEvaluator.anyTrue(
-                    Arrays.asList(
-                            OverlapsEvaluator.overlaps(applyPer, intervals.get(i+1), precision, context),
-                            MeetsEvaluator.meets(applyPer, intervals.get(i+1), precision, context)
-                    )
+            boolean doMerge = IntervalKernels.anyTrue(
+                    OverlapsEvaluator.overlaps(applyPer, next, precision, context),
+                    MeetsEvaluator.meets(applyPer, next, precision, context)
             );
 
-            if (doMerge == null)
-            {
-                continue;
-            }
-
             if (doMerge)
             {
                 Boolean isNextEndGreater =
                         isTemporal
-                                ? AfterEvaluator.after((intervals.get(i+1)).getEnd(), applyPer.getEnd(), precision, context)
-                                : GreaterEvaluator.greater((intervals.get(i+1)).getEnd(), applyPer.getEnd(), context);
-
-                intervals.set(
-                        i,
-                        new Interval(
-                                applyPer.getStart(), true,
-                                isNextEndGreater != null && isNextEndGreater ? (intervals.get(i+1)).getEnd() : applyPer.getEnd(), true
-                        )
+                                ? AfterEvaluator.after(next.getEnd(), applyPer.getEnd(), precision, context)
+                                : GreaterEvaluator.greater(next.getEnd(), applyPer.getEnd(), context);
+
+                current = SpecializedInterval.create(
+                        applyPer.getStart(), true,
+                        isNextEndGreater != null && isNextEndGreater ? next.getEnd() : applyPer.getEnd(), true
                 );
-                intervals.remove(i+1);
-                i -= 1;
+            }
+            else
+            {
+                collapsed.add(current);
+                current = next;
             }
         }
+        collapsed.add(current);
 
-        return intervals;
+        return collapsed;
     }
 
     @Override
@@ -19,11 +19,14 @@ public class ConceptEvaluator extends org.cqframework.cql.elm.execution.Concept
 
   @Override
   protected Object internalEvaluate(Context context) {
-    ArrayList<Code> codes = new ArrayList<>();
-    for (int i = 0; i < this.getCode().size(); ++i) {
-      codes.add((Code)this.getCode().get(i).evaluate(context));
-    }
-    String display = this.getDisplay();
-    return new org.opencds.cqf.cql.engine.runtime.Concept().withCodes(codes).withDisplay(display);
+    // a concept literal only contains code literals, so it is a constant of the library
+    return context.resolveTerminologyConstant(this, () -> {
+      ArrayList<Code> codes = new ArrayList<>();
+      for (int i = 0; i < this.getCode().size(); ++i) {
+        codes.add((Code)this.getCode().get(i).evaluate(context));
+      }
+      String display = this.getDisplay();
+      return new org.opencds.cqf.cql.engine.runtime.Concept().withCodes(codes).withDisplay(display);
+    });
   }
 }
@@ -13,21 +13,24 @@ import java.util.List;
 public class ConceptRefEvaluator extends org.cqframework.cql.elm.execution.ConceptRef {
 
     public static Concept toConcept(Context context, ConceptRef cr) {
-        boolean enteredLibrary = context.enterLibrary(cr.getLibraryName());
-        try {
-            ConceptDef cd = context.resolveConceptRef(cr.getName());
-
-            List<Code> codeList = new ArrayList<Code>();
-            for (CodeRef r : cd.getCode()) {
-                Code c = CodeRefEvaluator.toCode(context, r);
-                codeList.add(c);
+        return context.resolveTerminologyConstant(cr, () -> {
+            boolean enteredLibrary = context.enterLibrary(cr.getLibraryName());
+            try {
+                ConceptDef cd = context.resolveConceptRef(cr.getName());
+                return context.resolveTerminologyConstant(cd, () -> {
+                    List<Code> codeList = new ArrayList<Code>();
+                    for (CodeRef r : cd.getCode()) {
+                        Code c = CodeRefEvaluator.toCode(context, r);
+                        codeList.add(c);
+                    }
+
+                    return new Concept().withDisplay(cd.getDisplay()).withCodes(codeList);
+                });
             }
-
-            return new Concept().withDisplay(cd.getDisplay()).withCodes(codeList);
-        }
-        finally {
-            context.exitLibrary(enteredLibrary);
-        }
+            finally {
+                context.exitLibrary(enteredLibrary);
+            }
+        });
     }
 
     @Override
@@ -1,11 +1,15 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
+import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
-import org.fhir.ucum.Decimal;
 import org.fhir.ucum.UcumService;
 import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
 import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.execution.UnitConverter;
 import org.opencds.cqf.cql.engine.runtime.Quantity;
 
 /*
@@ -29,21 +33,26 @@ import org.opencds.cqf.cql.engine.runtime.Quantity;
 
 public class ConvertQuantityEvaluator extends org.cqframework.cql.elm.execution.ConvertQuantity {
 
+    // the converter of each UCUM service given to convertQuantity, so the unit pairs it resolves are cached across calls
+    private static final Map<UcumService, UnitConverter> UNIT_CONVERTERS =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
     public static Object convertQuantity(Object argument, Object unit, UcumService ucumService) {
+        return convertQuantity(argument, unit, UNIT_CONVERTERS.computeIfAbsent(ucumService, service -> {
+            // the converter mustn't keep the service from being collected
+            WeakReference<UcumService> reference = new WeakReference<>(service);
+            return new UnitConverter(reference::get);
+        }));
+    }
+
+    public static Object convertQuantity(Object argument, Object unit, UnitConverter unitConverter) {
         if (argument == null || unit == null) {
             return null;
         }
 
         if (argument instanceof Quantity) {
-            if (ucumService == null) {
-                return null;
-            }
-            try {
-                Decimal result = ucumService.convert(new Decimal(String.valueOf(((Quantity) argument).getValue())), ((Quantity) argument).getUnit(), (String) unit);
-                return new Quantity().withValue(new BigDecimal(result.asDecimal())).withUnit((String) unit);
-            } catch (Exception e) {
-                return null;
-            }
+            BigDecimal result = unitConverter.convert(((Quantity) argument).getValue(), ((Quantity) argument).getUnit(), (String) unit);
+            return result == null ? null : new Quantity().withValue(result).withUnit((String) unit);
         }
 
         throw new InvalidOperatorArgument(
@@ -56,7 +65,7 @@ public class ConvertQuantityEvaluator extends org.cqframework.cql.elm.execution.
     protected Object internalEvaluate(Context context) {
         Object argument = getOperand().get(0).evaluate(context);
         Object unit = getOperand().get(1).evaluate(context);
-        return convertQuantity(argument, unit, context.getUcumService());
+        return convertQuantity(argument, unit, context.getUnitConverter());
     }
 
 }
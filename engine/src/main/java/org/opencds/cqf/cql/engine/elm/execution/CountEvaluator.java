@@ -49,6 +49,10 @@ public class CountEvaluator extends org.cqframework.cql.elm.execution.Count {
 
     @Override
     protected Object internalEvaluate(Context context) {
+        if (getSource() instanceof RetrieveEvaluator && context.isCardinalityPushdownEnabled()) {
+            return ((RetrieveEvaluator) getSource()).evaluateCount(context);
+        }
+
         Object source = getSource().evaluate(context);
         return count(source);
     }
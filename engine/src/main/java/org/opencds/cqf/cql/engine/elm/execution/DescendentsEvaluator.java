@@ -1,53 +1,106 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.opencds.cqf.cql.engine.execution.Context;
-import org.opencds.cqf.cql.engine.runtime.Interval;
-import org.opencds.cqf.cql.engine.runtime.Tuple;
+
+/*
+
+Descendents(argument Any) List<Any>
+
+For structured types, the Descendents operator returns a list of all the values of the elements of the type,
+    recursively. List-valued elements are expanded and added to the result individually, rather than as a single list.
+    The elements of model objects (e.g. FHIR resources) are enumerated by the model resolver of their data provider.
+For list types, the result is the same as invoking Descendents on each element in the list and flattening the resulting
+    lists into a single result.
+If the source is null, the result is null.
+
+The descendents are the Children of the source, each followed by its own descendents (if it is a structured value or
+    a model object).
+    The result is produced as it is consumed, walking the source depth-first with an explicit stack, so deep values
+    don't exhaust the call stack. A value that is (directly or indirectly) an element of itself is not descended into
+    again.
+
+*/
 
 public class DescendentsEvaluator extends org.cqframework.cql.elm.execution.Descendents {
 
-    private static List<Object> descendents = new ArrayList<>();
+    private static class DescendentsList extends StreamingList {
 
-    public static Object descendents(Object source) {
-        if (source == null) {
-            return null;
+        private static final class Frame {
+            private final Object value;
+            private final Iterator<?> children;
+
+            private Frame(Object value, Context context) {
+                this.value = value;
+                this.children = ((Iterable<?>) ChildrenEvaluator.children(value, context)).iterator();
+            }
         }
 
-        return getDescendents(source);
-    }
+        private final Context context;
+        private final Deque<Frame> frames = new ArrayDeque<>();
+        // the values whose descendents are being produced, i.e. the values on the stack
+        private final Set<Object> ancestors = Collections.newSetFromMap(new IdentityHashMap<>());
 
-    public static Object getDescendents(Object source) {
-        if (source instanceof Iterable) {
-            for (Object element : (Iterable<?>) source) {
-                descendents.add(getDescendents(element));
-            }
+        private DescendentsList(Object source, Context context) {
+            this.context = context;
+            ancestors.add(source);
+            frames.push(new Frame(source, context));
         }
 
-        else if (source instanceof Tuple) {
-            for (Object element : ((Tuple) source).getElements().values()) {
-                descendents.add(getDescendents(element));
-            }
+        // Structured values have children, and so may model objects (resolving their elements is left to the frame)
+        private boolean mayHaveChildren(Object value) {
+            return ChildrenEvaluator.isStructured(value)
+                    || (context != null && value != null && !ChildrenEvaluator.isPrimitive(value));
         }
 
-        else if (source instanceof Interval) {
-            descendents.add(getDescendents(((Interval) source).getStart()));
-            descendents.add(getDescendents(((Interval) source).getEnd()));
+        @Override
+        protected boolean advance(List<Object> descendents) {
+            if (frames.isEmpty()) {
+                return false;
+            }
+
+            Frame frame = frames.peek();
+            if (!frame.children.hasNext()) {
+                frames.pop();
+                ancestors.remove(frame.value);
+                return true;
+            }
+
+            Object child = frame.children.next();
+            descendents.add(child);
+            if (mayHaveChildren(child) && ancestors.add(child)) {
+                frames.push(new Frame(child, context));
+            }
+            return true;
         }
+    }
+
+    public static Object descendents(Object source) {
+        return descendents(source, null);
+    }
 
-        else {
-            descendents.add(source);
+    /*
+    The context resolves the elements of model objects - without one, model objects have no descendents.
+     */
+    public static Object descendents(Object source, Context context) {
+        if (source == null) {
+            return null;
         }
 
-        return descendents;
+        return new DescendentsList(source, context);
     }
 
     @Override
     protected Object internalEvaluate(Context context) {
         Object source = getSource().evaluate(context);
 
-        return descendents(source);
+        return descendents(source, context);
     }
 }
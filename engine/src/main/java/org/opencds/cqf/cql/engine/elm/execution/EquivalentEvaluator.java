@@ -63,7 +63,10 @@ public class EquivalentEvaluator extends org.cqframework.cql.elm.execution.Equiv
             return ((Interval) right).equivalent(left);
         }
 
-        if (!left.getClass().equals(right.getClass())) {
+        // Interval subclasses (e.g. IntegerInterval) are type-specialized variants of the same CQL type,
+        // as is the lazily built result of Expand of any other List
+        if (!left.getClass().equals(right.getClass()) && !(left instanceof Interval && right instanceof Interval)
+                && !ExpandEvaluator.isExpansionOfSameType(left, right)) {
             return false;
         }
 
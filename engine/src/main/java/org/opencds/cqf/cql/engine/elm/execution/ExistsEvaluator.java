@@ -25,6 +25,10 @@ public class ExistsEvaluator extends org.cqframework.cql.elm.execution.Exists {
 
     @Override
     protected Object internalEvaluate(Context context) {
+        if (getOperand() instanceof RetrieveEvaluator && context.isCardinalityPushdownEnabled()) {
+            return ((RetrieveEvaluator) getOperand()).evaluateFirst(context) != null;
+        }
+
         Object operand = getOperand().evaluate(context);
 
         return exists(operand);
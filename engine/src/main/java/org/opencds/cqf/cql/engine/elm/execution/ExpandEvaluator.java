@@ -2,10 +2,14 @@ package org.opencds.cqf.cql.engine.elm.execution;
 
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.RandomAccess;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.function.IntFunction;
 
 import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
 import org.opencds.cqf.cql.engine.execution.Context;
@@ -14,6 +18,10 @@ import org.opencds.cqf.cql.engine.runtime.CqlList;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.cql.engine.runtime.Precision;
 import org.opencds.cqf.cql.engine.runtime.Quantity;
+import org.opencds.cqf.cql.engine.runtime.SpecializedInterval;
+import org.opencds.cqf.cql.engine.runtime.TemporalHelper;
+import org.opencds.cqf.cql.engine.runtime.Time;
+import org.opencds.cqf.cql.engine.runtime.Value;
 
 /*
 
@@ -36,6 +44,11 @@ If the list argument is null, the result is null.
 If the per argument is null, the default unit interval for the point type of the intervals involved will be used
     (i.e. the interval that has a width equal to the result of the successor function for the point type).
 
+Implementation note: where the boundaries of the unit intervals can be computed directly as start + k * per (Integer
+    and Decimal points, and date/time points with a fixed-length per such as days or hours) the number of unit
+    intervals is computed arithmetically and the result is a list that builds each unit interval on access.
+    Otherwise the unit intervals are built by repeatedly adding per to the previous boundary.
+
 */
 
 public class ExpandEvaluator extends org.cqframework.cql.elm.execution.Expand
@@ -84,6 +97,12 @@ public class ExpandEvaluator extends org.cqframework.cql.elm.execution.Expand
             return expansion;
         }
 
+        UnitIntervalList units = getUnitIntervals(start, interval.getEnd(), per);
+        if (units != null)
+        {
+            return units;
+        }
+
         while (LessOrEqualEvaluator.lessOrEqual(PredecessorEvaluator.predecessor(end), interval.getEnd(), context))
         {
             expansion.add(new Interval(start, true, end, false));
@@ -112,6 +131,14 @@ public class ExpandEvaluator extends org.cqframework.cql.elm.execution.Expand
         }
         if (i instanceof Integer)
         {
+            IntFunction<Object> boundaries = getBoundaries((BaseTemporal) interval.getStart(), per, (Integer) i + 1);
+            if (boundaries != null && (Integer) i > 0)
+            {
+                UnitIntervalList units = new UnitIntervalList(boundaries, (Integer) i);
+                i = DurationBetweenEvaluator.duration(units.get((Integer) i - 1).getEnd(), interval.getEnd(), Precision.fromString(precision));
+                return i instanceof Integer && (Integer) i == 1 ? new UnitIntervalList(boundaries, units.size() + 1) : units;
+            }
+
             List<Interval> expansion = new ArrayList<>();
             Interval unit = null;
             Object start = interval.getStart();
@@ -170,8 +197,7 @@ public class ExpandEvaluator extends org.cqframework.cql.elm.execution.Expand
                 intervals.get(0).getStart() instanceof BaseTemporal
                         || intervals.get(0).getEnd() instanceof BaseTemporal;
 
-        intervals.sort(new CqlList().valueSort);
-
+        // the collapsed intervals are already sorted
         if (per == null)
         {
             if (isTemporal)
@@ -193,8 +219,10 @@ public class ExpandEvaluator extends org.cqframework.cql.elm.execution.Expand
 
         String precision = per.getUnit().equals("1") ? null : per.getUnit();
 
-        // prevent duplicates
-        Set<Interval> set = new TreeSet<>();
+        List<List<Interval>> expansions = new ArrayList<>();
+        // unit interval lists are strictly increasing, so if each one starts after the previous one ends their
+        // concatenation is already the sorted set of unit intervals
+        boolean ordered = true;
         for (Interval interval : intervals) {
             if (interval == null)
             {
@@ -209,13 +237,187 @@ public class ExpandEvaluator extends org.cqframework.cql.elm.execution.Expand
 
             if (!temp.isEmpty())
             {
-                set.addAll(temp);
+                ordered = ordered && temp instanceof UnitIntervalList
+                        && (expansions.isEmpty() || getLast(expansions.get(expansions.size() - 1)).compareTo(temp.get(0)) < 0);
+                expansions.add(temp);
+            }
+        }
+
+        if (ordered)
+        {
+            UnitIntervalList result = new UnitIntervalList();
+            for (List<Interval> expansion : expansions)
+            {
+                result.addAll((UnitIntervalList) expansion);
             }
+            return result;
+        }
+
+        // prevent duplicates
+        Set<Interval> set = new TreeSet<>();
+        for (List<Interval> expansion : expansions)
+        {
+            set.addAll(expansion);
         }
 
         return set.isEmpty() ? new ArrayList<>() : new ArrayList<>(set);
     }
 
+    private static Interval getLast(List<Interval> expansion)
+    {
+        return expansion.get(expansion.size() - 1);
+    }
+
+    // The unit intervals of a numeric interval - null if the boundaries can't be computed as start + k * per
+    private static UnitIntervalList getUnitIntervals(Object start, Object end, Quantity per)
+    {
+        if (start instanceof Integer)
+        {
+            int step = per.getValue().intValue();
+            if (step <= 0)
+            {
+                return null;
+            }
+
+            // the unit [start + k * per, start + (k + 1) * per) is included while its predecessor end is <= end
+            long first = (Integer) start;
+            long count = Math.max(0, Math.floorDiv((Integer) end - first + 1, (long) step));
+            if (first + (count + 1) * step > Integer.MAX_VALUE)
+            {
+                return null;
+            }
+
+            return new UnitIntervalList(k -> (int) (first + (long) k * step), (int) count);
+        }
+        else if (start instanceof BigDecimal)
+        {
+            BigDecimal first = (BigDecimal) start;
+            BigDecimal step = per.getValue();
+            if (step.signum() <= 0 || step.scale() > 8 || first.scale() > 8)
+            {
+                return null;
+            }
+
+            BigDecimal count = ((BigDecimal) end).subtract(first).add(new BigDecimal("0.00000001"))
+                    .divide(step, 0, RoundingMode.FLOOR).max(BigDecimal.ZERO);
+            if (count.compareTo(BigDecimal.valueOf(Integer.MAX_VALUE - 1)) > 0)
+            {
+                return null;
+            }
+
+            return new UnitIntervalList(k -> k == 0 ? first : Value.verifyPrecision(first.add(step.multiply(BigDecimal.valueOf(k))), null), count.intValue());
+        }
+
+        return null;
+    }
+
+    // The boundaries start + k * per of a date/time interval - null unless per is a whole number of a fixed-length
+    // unit that is not truncated by the precision of the start (adding months or years, or truncating, is not additive)
+    private static IntFunction<Object> getBoundaries(BaseTemporal start, Quantity per, int count)
+    {
+        Precision perPrecision = Precision.fromString(per.getUnit());
+        Precision startPrecision = Precision.fromString(BaseTemporal.getLowestPrecision(start));
+        int step = per.getValue().intValue();
+        if (perPrecision == Precision.WEEK)
+        {
+            perPrecision = Precision.DAY;
+            step = TemporalHelper.weeksToDays(step);
+        }
+
+        if (step <= 0 || (long) count * step > Integer.MAX_VALUE || perPrecision == Precision.YEAR || perPrecision == Precision.MONTH
+                || startPrecision == Precision.WEEK || startPrecision.toDateTimeIndex() < perPrecision.toDateTimeIndex()
+                || (start instanceof Time && perPrecision == Precision.DAY))
+        {
+            return null;
+        }
+
+        Precision unit = perPrecision;
+        int unitStep = step;
+        return k -> k == 0 ? start : AddEvaluator.add(start, new Quantity().withValue(BigDecimal.valueOf((long) k * unitStep)).withUnit(unit.toString()));
+    }
+
+    /*
+    Returns true if one of the arguments is the lazily built result of Expand and the other is a List, so that both are
+        compared as the same CQL List type.
+     */
+    static boolean isExpansionOfSameType(Object left, Object right)
+    {
+        return (left instanceof UnitIntervalList || right instanceof UnitIntervalList)
+                && left instanceof List && right instanceof List;
+    }
+
+    /*
+    The unit intervals [start + k * per, start + (k + 1) * per) of one or more expanded intervals, built on access.
+     */
+    private static class UnitIntervalList extends AbstractList<Interval> implements RandomAccess
+    {
+        private final List<IntFunction<Object>> boundaries = new ArrayList<>();
+        // cumulative number of unit intervals up to and including each expanded interval
+        private final List<Integer> ends = new ArrayList<>();
+
+        UnitIntervalList()
+        {
+        }
+
+        UnitIntervalList(IntFunction<Object> boundaries, int count)
+        {
+            add(boundaries, count);
+        }
+
+        private void add(IntFunction<Object> boundaries, int count)
+        {
+            if (count > 0)
+            {
+                this.boundaries.add(boundaries);
+                this.ends.add(size() + count);
+            }
+        }
+
+        void addAll(UnitIntervalList other)
+        {
+            int offset = 0;
+            for (int i = 0; i < other.boundaries.size(); ++i)
+            {
+                add(other.boundaries.get(i), other.ends.get(i) - offset);
+                offset = other.ends.get(i);
+            }
+        }
+
+        @Override
+        public Interval get(int index)
+        {
+            if (index < 0 || index >= size())
+            {
+                throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, size()));
+            }
+
+            int low = 0;
+            int high = ends.size() - 1;
+            while (low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if (ends.get(mid) <= index)
+                {
+                    low = mid + 1;
+                }
+                else
+                {
+                    high = mid;
+                }
+            }
+
+            int k = low == 0 ? index : index - ends.get(low - 1);
+            IntFunction<Object> boundary = boundaries.get(low);
+            return SpecializedInterval.create(boundary.apply(k), true, boundary.apply(k + 1), false);
+        }
+
+        @Override
+        public int size()
+        {
+            return ends.isEmpty() ? 0 : ends.get(ends.size() - 1);
+        }
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     protected Object internalEvaluate(Context context)
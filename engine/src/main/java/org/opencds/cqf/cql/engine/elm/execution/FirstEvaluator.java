@@ -31,6 +31,10 @@ public class FirstEvaluator extends org.cqframework.cql.elm.execution.First {
 
     @Override
     protected Object internalEvaluate(Context context) {
+        if (getSource() instanceof RetrieveEvaluator && context.isCardinalityPushdownEnabled()) {
+            return ((RetrieveEvaluator) getSource()).evaluateFirst(context);
+        }
+
         Object source = getSource().evaluate(context);
 
         return first(source);
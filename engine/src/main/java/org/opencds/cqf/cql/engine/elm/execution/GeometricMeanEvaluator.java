@@ -1,11 +1,10 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
 import java.math.BigDecimal;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
 import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Value;
 
 /*
 
@@ -29,12 +28,16 @@ public class GeometricMeanEvaluator extends org.cqframework.cql.elm.execution.Ge
             return null;
         }
 
-        // remove nulls - operation is on non-null list elements ... TODO: generify and move this to a utility class
-        List<BigDecimal> cleanSource = new ArrayList<>();
+        // the product of the non-null elements is accumulated in place, with the precision rules of Product
+        BigDecimal product = null;
+        int count = 0;
         for (Object element : source) {
             if (element != null) {
                 if (element instanceof BigDecimal) {
-                    cleanSource.add((BigDecimal) element);
+                    product = product == null
+                            ? (BigDecimal) element
+                            : Value.verifyPrecision(product.multiply((BigDecimal) element), null);
+                    ++count;
                 }
                 else {
                     throw new InvalidOperatorArgument(
@@ -43,9 +46,11 @@ public class GeometricMeanEvaluator extends org.cqframework.cql.elm.execution.Ge
                 }
             }
         }
+        if (product == null) {
+            return null;
+        }
         return (BigDecimal) PowerEvaluator.power(
-                ProductEvaluator.product(cleanSource),
-                DivideEvaluator.divide(new BigDecimal(1), ToDecimalEvaluator.toDecimal(CountEvaluator.count(cleanSource)), context)
+                product, DivideEvaluator.divide(new BigDecimal(1), new BigDecimal(count), context)
         );
     }
 
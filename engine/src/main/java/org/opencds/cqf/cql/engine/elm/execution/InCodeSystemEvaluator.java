@@ -6,7 +6,7 @@ import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.CodeSystem;
 import org.opencds.cqf.cql.engine.runtime.Concept;
 import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
-import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.MembershipIndex;
 
 /*
 in(code String, codesystem CodeSystemRef) Boolean
@@ -30,19 +30,19 @@ public class InCodeSystemEvaluator extends org.cqframework.cql.elm.execution.InC
         if (codeSystem instanceof CodeSystem) {
             CodeSystemInfo csi = CodeSystemInfo.fromCodeSystem((CodeSystem)codeSystem);
 
-            TerminologyProvider provider = context.resolveTerminologyProvider();
+            MembershipIndex index = context.resolveMembershipIndex();
 
             if (code instanceof String) {
-                return provider.lookup(new Code().withCode((String) code), csi) != null;
+                return index.inCodeSystem(new Code().withCode((String) code), csi);
             }
 
             else if (code instanceof Code) {
-                return provider.lookup((Code) code, csi) != null;
+                return index.inCodeSystem((Code) code, csi);
             }
 
             else if (code instanceof Concept) {
                 for (Code codes : ((Concept)code).getCodes()) {
-                    if (provider.lookup(codes, csi) != null) {
+                    if (codes != null && index.inCodeSystem(codes, csi)) {
                         return true;
                     }
                 }
@@ -1,7 +1,5 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
-import java.util.Arrays;
-
 import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.BaseTemporal;
@@ -63,16 +61,21 @@ public class InEvaluator extends org.cqframework.cql.elm.execution.In
 
     private static Boolean intervalIn(Object left, Interval right, String precision, Context context)
     {
+        if (IntervalKernels.isSupported(right, left))
+        {
+            return IntervalKernels.in(left, right, precision, context);
+        }
+
         Object rightStart = right.getStart();
         Object rightEnd = right.getEnd();
 
         if (left instanceof BaseTemporal)
         {
-            if (AnyTrueEvaluator.anyTrue(Arrays.asList(SameAsEvaluator.sameAs(left, right.getStart(), precision, context), SameAsEvaluator.sameAs(left, right.getEnd(), precision, context))))
+            if (IntervalKernels.anyTrue(SameAsEvaluator.sameAs(left, rightStart, precision, context), SameAsEvaluator.sameAs(left, rightEnd, precision, context)))
             {
                 return true;
             }
-            else if (AnyTrueEvaluator.anyTrue(Arrays.asList(BeforeEvaluator.before(left, right.getStart(), precision, context), AfterEvaluator.after(left, right.getEnd(), precision, context))))
+            else if (IntervalKernels.anyTrue(BeforeEvaluator.before(left, rightStart, precision, context), AfterEvaluator.after(left, rightEnd, precision, context)))
             {
                 return false;
             }
@@ -100,11 +103,11 @@ public class InEvaluator extends org.cqframework.cql.elm.execution.In
             return AndEvaluator.and(pointSameOrAfterStart, pointSameOrBeforeEnd);
         }
 
-        else if (AnyTrueEvaluator.anyTrue(Arrays.asList(EqualEvaluator.equal(left, right.getStart(), context), EqualEvaluator.equal(left, right.getEnd(), context))))
+        else if (IntervalKernels.anyTrue(EqualEvaluator.equal(left, rightStart, context), EqualEvaluator.equal(left, rightEnd, context)))
         {
             return true;
         }
-        else if (AnyTrueEvaluator.anyTrue(Arrays.asList(LessEvaluator.less(left, right.getStart(), context), GreaterEvaluator.greater(left, right.getEnd(), context))))
+        else if (IntervalKernels.anyTrue(LessEvaluator.less(left, rightStart, context), GreaterEvaluator.greater(left, rightEnd, context)))
         {
             return false;
         }
@@ -5,7 +5,7 @@ import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Concept;
 import org.opencds.cqf.cql.engine.runtime.ValueSet;
-import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.MembershipIndex;
 import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
 
 /*
@@ -30,25 +30,21 @@ public class InValueSetEvaluator extends org.cqframework.cql.elm.execution.InVal
 
         if (valueset instanceof ValueSet) {
             ValueSetInfo vsi = ValueSetInfo.fromValueSet((ValueSet)valueset);
-            TerminologyProvider provider = context.resolveTerminologyProvider();
+            MembershipIndex index = context.resolveMembershipIndex();
 
             // perform operation
             if (code instanceof String) {
-                if (provider.in(new Code().withCode((String)code), vsi)) {
-                    return true;
-                }
-                return false;
+                return index.in(new Code().withCode((String)code), vsi);
             }
             else if (code instanceof Code) {
-                if (provider.in((Code)code, vsi)) {
-                    return true;
-                }
-                return false;
+                return index.in((Code)code, vsi);
             }
             else if (code instanceof Concept) {
+                // the value set is looked up once for all the codes of the concept
+                int number = index.register(vsi);
                 for (Code codes : ((Concept)code).getCodes()) {
                     if (codes == null) return null;
-                    if (provider.in(codes, vsi)) return true;
+                    if (index.in(codes, vsi, number)) return true;
                 }
                 return false;
             }
@@ -1,7 +1,5 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
-import java.util.Arrays;
-
 import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.BaseTemporal;
@@ -51,6 +49,10 @@ public class IncludedInEvaluator extends org.cqframework.cql.elm.execution.Inclu
             return null;
         }
 
+        if (IntervalKernels.isSupported(left, right)) {
+            return IntervalKernels.includedIn(left, right, precision, context);
+        }
+
         Object leftStart = left.getStart();
         Object leftEnd = left.getEnd();
         Object rightStart = right.getStart();
@@ -69,7 +71,7 @@ public class IncludedInEvaluator extends org.cqframework.cql.elm.execution.Inclu
         if (leftStart instanceof BaseTemporal || leftEnd instanceof BaseTemporal
                 || rightStart instanceof BaseTemporal || rightEnd instanceof BaseTemporal)
         {
-            if (AnyTrueEvaluator.anyTrue(Arrays.asList(BeforeEvaluator.before(leftStart, rightStart, precision, context), AfterEvaluator.after(leftEnd, rightEnd, precision, context))))
+            if (IntervalKernels.anyTrue(BeforeEvaluator.before(leftStart, rightStart, precision, context), AfterEvaluator.after(leftEnd, rightEnd, precision, context)))
             {
                 return false;
             }
@@ -79,7 +81,7 @@ public class IncludedInEvaluator extends org.cqframework.cql.elm.execution.Inclu
             );
         }
 
-        if (AnyTrueEvaluator.anyTrue(Arrays.asList(LessEvaluator.less(leftStart, rightStart, context), GreaterEvaluator.greater(leftEnd, rightEnd, context))))
+        if (IntervalKernels.anyTrue(LessEvaluator.less(leftStart, rightStart, context), GreaterEvaluator.greater(leftEnd, rightEnd, context)))
         {
             return false;
         }
@@ -1,6 +1,7 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
 import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.SpecializedInterval;
 
 public class IntervalEvaluator extends org.cqframework.cql.elm.execution.Interval {
 
@@ -17,6 +18,6 @@ public class IntervalEvaluator extends org.cqframework.cql.elm.execution.Interva
             return null;
         }
 
-        return new org.opencds.cqf.cql.engine.runtime.Interval(low, lowClosed == null ? true : lowClosed, high, highClosed == null ? true : highClosed);
+        return SpecializedInterval.create(low, lowClosed == null ? true : lowClosed, high, highClosed == null ? true : highClosed);
     }
 }
@@ -0,0 +1,379 @@
+package org.opencds.cqf.cql.engine.elm.execution;
+
+import java.math.BigDecimal;
+
+import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.BaseTemporal;
+import org.opencds.cqf.cql.engine.runtime.Date;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.runtime.Precision;
+import org.opencds.cqf.cql.engine.runtime.Quantity;
+import org.opencds.cqf.cql.engine.runtime.SpecializedInterval;
+import org.opencds.cqf.cql.engine.runtime.Time;
+
+/*
+Three-valued kernels for the interval relationship operators (In, Overlaps, IncludedIn, Meets, MeetsBefore, MeetsAfter).
+    They are the fast path of those operators, which fall back to their generic definitions for unsupported point types.
+
+Compatible specialized intervals (see SpecializedInterval) are answered from their normalized boundaries. Otherwise,
+    each boundary comparison is performed once as a three-valued compare (negative, zero, positive or null when the
+    result is uncertain) and every decision of the operator is derived from those results, rather than evaluating the
+    Equal/Less/SameAs/Before/SameOrAfter family separately for the same pair of points and combining the results
+    through lists. Results (including nulls) are identical to the definitions in the individual evaluators.
+*/
+
+public class IntervalKernels {
+
+    private IntervalKernels() { }
+
+    /*
+    Returns true if the point type of the interval(s) is one the kernels compare directly: Integer, Long, Decimal,
+        String, Quantity, Date, DateTime or Time. Other point types (and mixtures of point types) are left to the
+        individual comparison operators.
+     */
+    public static boolean isSupported(Interval interval, Object point) {
+        return isSupported(interval.getPointType()) && (point == null || point.getClass() == interval.getPointType());
+    }
+
+    public static boolean isSupported(Interval left, Interval right) {
+        return isSupported(left.getPointType()) && left.getPointType() == right.getPointType();
+    }
+
+    private static boolean isSupported(Class<?> pointType) {
+        return pointType == Integer.class || pointType == Long.class || pointType == BigDecimal.class
+                || pointType == String.class || pointType == Quantity.class || pointType == Date.class
+                || pointType == DateTime.class || pointType == Time.class;
+    }
+
+    /*
+    Compares two points of a supported point type. For date/time values the comparison is performed at the given
+        precision (or the highest precision of the two values if no precision is given, as the date/time comparison
+        operators do); for all other point types the precision is ignored. Returns null if either argument is null or
+        the comparison is uncertain.
+     */
+    public static Integer compare(Object left, Object right, String precision, Context context) {
+        if (left == null || right == null) {
+            return null;
+        }
+
+        if (left instanceof BaseTemporal && right instanceof BaseTemporal) {
+            Precision thePrecision = precision == null
+                    ? getHighestPrecision((BaseTemporal) left, (BaseTemporal) right)
+                    : Precision.fromString(precision);
+            return ((BaseTemporal) left).compareToPrecision((BaseTemporal) right, thePrecision);
+        }
+
+        return compareValues(left, right);
+    }
+
+    /*
+    Compares two points of a supported point type the way the comparison operators (Less, Greater, ...) do, that is,
+        for date/time values at the highest precision specified by either value.
+     */
+    public static Integer compareWithoutPrecision(Object left, Object right, Context context) {
+        if (left == null || right == null) {
+            return null;
+        }
+
+        if (left instanceof BaseTemporal && right instanceof BaseTemporal) {
+            return ((BaseTemporal) left).compare((BaseTemporal) right, false);
+        }
+
+        return compareValues(left, right);
+    }
+
+    private static Integer compareValues(Object left, Object right) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return Integer.compare((Integer) left, (Integer) right);
+        }
+
+        if (left instanceof Long && right instanceof Long) {
+            return Long.compare((Long) left, (Long) right);
+        }
+
+        if (left instanceof BigDecimal && right instanceof BigDecimal) {
+            return ((BigDecimal) left).compareTo((BigDecimal) right);
+        }
+
+        if (left instanceof String && right instanceof String) {
+            return Integer.signum(((String) left).compareTo((String) right));
+        }
+
+        if (left instanceof Quantity && right instanceof Quantity) {
+            if (((Quantity) left).getValue() == null || ((Quantity) right).getValue() == null) {
+                return null;
+            }
+            return ((Quantity) left).nullableCompareTo((Quantity) right);
+        }
+
+        throw new InvalidOperatorArgument(
+                "Compare(Integer, Integer), Compare(Long, Long), Compare(Decimal, Decimal), Compare(String, String), Compare(Quantity, Quantity), Compare(Date, Date), Compare(DateTime, DateTime) or Compare(Time, Time)",
+                String.format("Compare(%s, %s)", left.getClass().getName(), right.getClass().getName())
+        );
+    }
+
+    // Mirrors BaseTemporal.getHighestPrecision() without the round trip through the precision name
+    private static Precision getHighestPrecision(BaseTemporal left, BaseTemporal right) {
+        if ((left instanceof DateTime && right instanceof DateTime) || (left instanceof Time && right instanceof Time)) {
+            return left.getPrecision().compareTo(right.getPrecision()) >= 0 ? left.getPrecision() : right.getPrecision();
+        }
+
+        return Precision.fromString(BaseTemporal.getHighestPrecision(left, right));
+    }
+
+    private static boolean isZero(Integer comparison) {
+        return comparison != null && comparison == 0;
+    }
+
+    private static boolean isLess(Integer comparison) {
+        return comparison != null && comparison < 0;
+    }
+
+    private static boolean isGreater(Integer comparison) {
+        return comparison != null && comparison > 0;
+    }
+
+    /*
+    Returns the comparison of right with left given the comparison of left with right. Without a precision, Date
+        values are compared at the precision of the second argument, so those are compared again.
+     */
+    private static Integer reverse(Integer comparison, Object left, Object right, String precision, Context context) {
+        if (precision == null && left instanceof Date) {
+            return compare(right, left, null, context);
+        }
+
+        return comparison == null ? null : -comparison;
+    }
+
+    private static Boolean and(Boolean left, Boolean right) {
+        if (left == null) {
+            return right == null || right ? null : false;
+        }
+        if (right == null) {
+            return left ? null : false;
+        }
+        return left && right;
+    }
+
+    public static boolean anyTrue(Boolean left, Boolean right) {
+        return (left != null && left) || (right != null && right);
+    }
+
+    /*
+    The In decision for a point given its comparisons with the start and end of the interval.
+     */
+    private static Boolean in(Object point, Interval interval, Object start, Object end, Integer compareStart, Integer compareEnd) {
+        if (point == null) {
+            return null;
+        }
+
+        if (isZero(compareStart) || isZero(compareEnd)) {
+            return true;
+        }
+
+        if (isLess(compareStart) || isGreater(compareEnd)) {
+            return false;
+        }
+
+        Boolean afterStart = start == null && interval.getLowClosed()
+                ? Boolean.TRUE
+                : compareStart == null ? null : compareStart >= 0;
+        Boolean beforeEnd = end == null && interval.getHighClosed()
+                ? Boolean.TRUE
+                : compareEnd == null ? null : compareEnd <= 0;
+
+        return and(afterStart, beforeEnd);
+    }
+
+    private static boolean isTrue(Boolean value) {
+        return value != null && value;
+    }
+
+    public static Boolean in(Object point, Interval interval, String precision, Context context) {
+        if (interval instanceof SpecializedInterval && ((SpecializedInterval) interval).acceptsPoint(point, precision)) {
+            return ((SpecializedInterval) interval).in(point);
+        }
+
+        Object start = interval.getStart();
+        Object end = interval.getEnd();
+
+        return in(point, interval, start, end,
+                compare(point, start, precision, context),
+                compare(point, end, precision, context));
+    }
+
+    public static Boolean overlaps(Interval left, Interval right, String precision, Context context) {
+        if (SpecializedInterval.isFastPath(left, right, precision)) {
+            return ((SpecializedInterval) left).overlaps((SpecializedInterval) right);
+        }
+
+        Object leftStart = left.getStart();
+        Object leftEnd = left.getEnd();
+        Object rightStart = right.getStart();
+        Object rightEnd = right.getEnd();
+
+        // the date/time comparison (and so the precision) only applies when both starting points are date/time values
+        boolean isTemporal = leftStart instanceof BaseTemporal && rightStart instanceof BaseTemporal;
+        Integer leftStartToRightEnd = isTemporal
+                ? compare(leftStart, rightEnd, precision, context)
+                : compareWithoutPrecision(leftStart, rightEnd, context);
+        Integer rightStartToLeftEnd = isTemporal
+                ? compare(rightStart, leftEnd, precision, context)
+                : compareWithoutPrecision(rightStart, leftEnd, context);
+
+        return and(
+                leftStartToRightEnd == null ? null : leftStartToRightEnd <= 0,
+                rightStartToLeftEnd == null ? null : rightStartToLeftEnd <= 0
+        );
+    }
+
+    public static Boolean includedIn(Interval left, Interval right, String precision, Context context) {
+        if (SpecializedInterval.isFastPath(left, right, precision)) {
+            return ((SpecializedInterval) left).includedIn((SpecializedInterval) right);
+        }
+
+        Object leftStart = left.getStart();
+        Object leftEnd = left.getEnd();
+        Object rightStart = right.getStart();
+        Object rightEnd = right.getEnd();
+
+        Integer leftStartToRightStart = compare(leftStart, rightStart, precision, context);
+        Integer leftStartToRightEnd = compare(leftStart, rightEnd, precision, context);
+        Integer leftEndToRightStart = compare(leftEnd, rightStart, precision, context);
+        Integer leftEndToRightEnd = compare(leftEnd, rightEnd, precision, context);
+
+        if (isTrue(and(
+                in(leftStart, right, rightStart, rightEnd, leftStartToRightStart, leftStartToRightEnd),
+                in(leftEnd, right, rightStart, rightEnd, leftEndToRightStart, leftEndToRightEnd))))
+        {
+            return true;
+        }
+
+        if (isLess(leftStartToRightStart) || isGreater(leftEndToRightEnd)) {
+            return false;
+        }
+
+        return and(
+                leftStartToRightStart == null ? null : leftStartToRightStart >= 0,
+                leftEndToRightEnd == null ? null : leftEndToRightEnd <= 0
+        );
+    }
+
+    /*
+    Greater (as used by MeetsBefore and MeetsAfter) is evaluated without the precision. When no precision is given the
+        comparison computed for the other operators is reused, except for Date values, where the highest precision
+        used by the comparison operators and by the date/time operators differs.
+     */
+    private static boolean isGreaterWithoutPrecision(Object left, Object right, Integer comparison, String precision, Context context) {
+        if (precision == null && !(left instanceof Date)) {
+            return isGreater(comparison);
+        }
+
+        return isGreater(compareWithoutPrecision(left, right, context));
+    }
+
+    private static Boolean meetsBefore(Interval right, Object leftStart, Object leftEnd, Object rightStart, Object rightEnd,
+                                       Integer leftStartToRightStart, Integer leftStartToRightEnd,
+                                       Integer leftEndToRightStart, Integer leftEndToRightEnd,
+                                       String precision, Context context)
+    {
+        if (isGreaterWithoutPrecision(leftStart, rightEnd, leftStartToRightEnd, precision, context)) {
+            return false;
+        }
+
+        if (isTrue(in(leftEnd, right, rightStart, rightEnd, leftEndToRightStart, leftEndToRightEnd))
+                || isTrue(in(leftStart, right, rightStart, rightEnd, leftStartToRightStart, leftStartToRightEnd)))
+        {
+            return false;
+        }
+
+        return MeetsEvaluator.meetsOperation(leftEnd, rightStart, precision, context);
+    }
+
+    private static Boolean meetsAfter(Interval left, Interval right, Object leftStart, Object leftEnd, Object rightStart, Object rightEnd,
+                                      Integer leftStartToRightStart, Integer leftStartToRightEnd,
+                                      Integer leftEndToRightStart, Integer leftEndToRightEnd,
+                                      String precision, Context context)
+    {
+        if (isGreaterWithoutPrecision(rightStart, leftEnd, reverse(leftEndToRightStart, leftEnd, rightStart, precision, context), precision, context)) {
+            return false;
+        }
+
+        if (isTrue(in(leftEnd, right, rightStart, rightEnd, leftEndToRightStart, leftEndToRightEnd))
+                || isTrue(in(leftStart, right, rightStart, rightEnd, leftStartToRightStart, leftStartToRightEnd))
+                || isTrue(in(rightEnd, left, leftStart, leftEnd,
+                        reverse(leftStartToRightEnd, leftStart, rightEnd, precision, context),
+                        reverse(leftEndToRightEnd, leftEnd, rightEnd, precision, context))))
+        {
+            return false;
+        }
+
+        return MeetsEvaluator.meetsOperation(rightEnd, leftStart, precision, context);
+    }
+
+    public static Boolean meets(Interval left, Interval right, String precision, Context context) {
+        if (SpecializedInterval.isFastPath(left, right, precision)) {
+            return ((SpecializedInterval) left).meets((SpecializedInterval) right);
+        }
+
+        Object leftStart = left.getStart();
+        Object leftEnd = left.getEnd();
+        Object rightStart = right.getStart();
+        Object rightEnd = right.getEnd();
+
+        Integer leftStartToRightStart = compare(leftStart, rightStart, precision, context);
+        Integer leftStartToRightEnd = compare(leftStart, rightEnd, precision, context);
+        Integer leftEndToRightStart = compare(leftEnd, rightStart, precision, context);
+        Integer leftEndToRightEnd = compare(leftEnd, rightEnd, precision, context);
+
+        if (isTrue(in(leftStart, right, rightStart, rightEnd, leftStartToRightStart, leftStartToRightEnd))
+                || isTrue(in(leftEnd, right, rightStart, rightEnd, leftEndToRightStart, leftEndToRightEnd)))
+        {
+            return false;
+        }
+
+        Boolean before = meetsBefore(right, leftStart, leftEnd, rightStart, rightEnd,
+                leftStartToRightStart, leftStartToRightEnd, leftEndToRightStart, leftEndToRightEnd, precision, context);
+        if (isTrue(before)) {
+            return true;
+        }
+
+        Boolean after = meetsAfter(left, right, leftStart, leftEnd, rightStart, rightEnd,
+                leftStartToRightStart, leftStartToRightEnd, leftEndToRightStart, leftEndToRightEnd, precision, context);
+        return OrEvaluator.or(before, after);
+    }
+
+    public static Boolean meetsBefore(Interval left, Interval right, String precision, Context context) {
+        if (SpecializedInterval.isFastPath(left, right, precision)) {
+            return ((SpecializedInterval) left).meetsBefore((SpecializedInterval) right);
+        }
+
+        Object leftStart = left.getStart();
+        Object leftEnd = left.getEnd();
+        Object rightStart = right.getStart();
+        Object rightEnd = right.getEnd();
+
+        return meetsBefore(right, leftStart, leftEnd, rightStart, rightEnd,
+                compare(leftStart, rightStart, precision, context), compare(leftStart, rightEnd, precision, context),
+                compare(leftEnd, rightStart, precision, context), compare(leftEnd, rightEnd, precision, context),
+                precision, context);
+    }
+
+    public static Boolean meetsAfter(Interval left, Interval right, String precision, Context context) {
+        if (SpecializedInterval.isFastPath(left, right, precision)) {
+            return ((SpecializedInterval) left).meetsAfter((SpecializedInterval) right);
+        }
+
+        Object leftStart = left.getStart();
+        Object leftEnd = left.getEnd();
+        Object rightStart = right.getStart();
+        Object rightEnd = right.getEnd();
+
+        return meetsAfter(left, right, leftStart, leftEnd, rightStart, rightEnd,
+                compare(leftStart, rightStart, precision, context), compare(leftStart, rightEnd, precision, context),
+                compare(leftEnd, rightStart, precision, context), compare(leftEnd, rightEnd, precision, context),
+                precision, context);
+    }
+}
@@ -10,8 +10,20 @@ import org.opencds.cqf.cql.engine.execution.Context;
 
 public class LiteralEvaluator extends org.cqframework.cql.elm.execution.Literal {
 
+    // The values of all literal types are immutable, so the value is only parsed once
+    private volatile Object parsedValue;
+
     @Override
     protected Object internalEvaluate(Context context) {
+        Object value = parsedValue;
+        if (value == null) {
+            value = parse(context);
+            parsedValue = value;
+        }
+        return value;
+    }
+
+    private Object parse(Context context) {
         QName valueType = context.fixupQName(this.getValueType());
         switch (valueType.getLocalPart()) {
             case "Boolean": return Boolean.parseBoolean(this.getValue());
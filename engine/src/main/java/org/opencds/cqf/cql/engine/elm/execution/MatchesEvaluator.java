@@ -1,15 +1,27 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
+import java.util.regex.Pattern;
+
 import org.opencds.cqf.cql.engine.execution.Context;
 
 public class MatchesEvaluator extends org.cqframework.cql.elm.execution.Matches {
 
+    private final Patterns.Bound boundPattern = new Patterns.Bound();
+
     public static Object matches(String argument, String pattern) {
         if (argument == null || pattern == null) {
             return null;
         }
 
-        return argument.matches(pattern);
+        return matches(argument, Patterns.compile(pattern));
+    }
+
+    public static Object matches(String argument, Pattern pattern) {
+        if (argument == null || pattern == null) {
+            return null;
+        }
+
+        return pattern.matcher(argument).matches();
     }
 
     @Override
@@ -17,6 +29,10 @@ public class MatchesEvaluator extends org.cqframework.cql.elm.execution.Matches
         String argument = (String) getOperand().get(0).evaluate(context);
         String pattern = (String) getOperand().get(1).evaluate(context);
 
-        return matches(argument, pattern);
+        if (argument == null || pattern == null) {
+            return null;
+        }
+
+        return matches(argument, boundPattern.get(getOperand().get(1), pattern));
     }
 }
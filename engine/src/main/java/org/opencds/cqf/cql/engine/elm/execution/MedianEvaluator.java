@@ -20,6 +20,96 @@ If the source is null, the result is null.
 
 public class MedianEvaluator extends org.cqframework.cql.elm.execution.Median {
 
+    /*
+    Returns true if the values can be ordered by their numeric values alone, which is the case for Integer, Long and
+        Decimal values and for Quantities whose units are all equal.
+     */
+    private static boolean isNumeric(ArrayList<Object> values) {
+        Object first = values.get(0);
+        for (Object value : values) {
+            if (value.getClass() != first.getClass()) {
+                return false;
+            }
+            if (value instanceof Quantity) {
+                Quantity quantity = (Quantity) value;
+                Quantity firstQuantity = (Quantity) first;
+                if (!quantity.unitsEqual(firstQuantity.getUnit(), quantity.getUnit())
+                        || !quantity.unitsEqual(quantity.getUnit(), firstQuantity.getUnit()))
+                {
+                    return false;
+                }
+            }
+            else if (!(value instanceof Integer || value instanceof Long || value instanceof BigDecimal)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    Orders the positions of the values by value and then by position, i.e. in the order a stable sort would leave them,
+        so that the selected elements are the ones the sorted list would hold at the same positions.
+     */
+    private static int compare(ArrayList<Object> values, int left, int right) {
+        Object leftValue = values.get(left);
+        Object rightValue = values.get(right);
+        int result;
+        if (leftValue instanceof Integer) {
+            result = Integer.compare((Integer) leftValue, (Integer) rightValue);
+        }
+        else if (leftValue instanceof Long) {
+            result = Long.compare((Long) leftValue, (Long) rightValue);
+        }
+        else if (leftValue instanceof BigDecimal) {
+            result = ((BigDecimal) leftValue).compareTo((BigDecimal) rightValue);
+        }
+        else {
+            result = ((Quantity) leftValue).getValue().compareTo(((Quantity) rightValue).getValue());
+        }
+        return result != 0 ? result : Integer.compare(left, right);
+    }
+
+    private static void swap(int[] positions, int i, int j) {
+        int position = positions[i];
+        positions[i] = positions[j];
+        positions[j] = position;
+    }
+
+    /*
+    Rearranges the positions so that the k-th position in sorted order is at index k, with the lesser positions before
+        it and the greater ones after it (quickselect with a median-of-three pivot).
+     */
+    private static void select(ArrayList<Object> values, int[] positions, int k) {
+        int low = 0;
+        int high = positions.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(values, positions[mid], positions[low]) < 0) swap(positions, mid, low);
+            if (compare(values, positions[high], positions[low]) < 0) swap(positions, high, low);
+            if (compare(values, positions[high], positions[mid]) < 0) swap(positions, high, mid);
+            swap(positions, mid, high);
+
+            int pivot = positions[high];
+            int store = low;
+            for (int i = low; i < high; ++i) {
+                if (compare(values, positions[i], pivot) < 0) {
+                    swap(positions, i, store++);
+                }
+            }
+            swap(positions, store, high);
+
+            if (store == k) {
+                return;
+            }
+            if (store < k) {
+                low = store + 1;
+            }
+            else {
+                high = store - 1;
+            }
+        }
+    }
+
     public static Object median(Object source, Context context) {
         if (source == null) {
             return null;
@@ -45,19 +135,39 @@ public class MedianEvaluator extends org.cqframework.cql.elm.execution.Median {
                 return null;
             }
 
-            values.sort(new CqlList().valueSort);
+            int k = values.size() / 2;
+            Object upper;
+            Object lower;
+            if (isNumeric(values)) {
+                int[] positions = new int[values.size()];
+                for (int i = 0; i < positions.length; ++i) {
+                    positions[i] = i;
+                }
+                select(values, positions, k);
+                upper = values.get(positions[k]);
+
+                // the greatest of the positions before k
+                int previous = -1;
+                for (int i = 0; i < k; ++i) {
+                    if (previous == -1 || compare(values, positions[i], previous) > 0) {
+                        previous = positions[i];
+                    }
+                }
+                lower = previous == -1 ? null : values.get(previous);
+            }
+            else {
+                values.sort(new CqlList().valueSort);
+                upper = values.get(k);
+                lower = k == 0 ? null : values.get(k - 1);
+            }
 
             if (values.size() % 2 != 0) {
-                return values.get(values.size() / 2);
+                return upper;
             } else {
-                if (values.get(0) instanceof Integer) { // size of list is even
-                    return TruncatedDivideEvaluator.div(
-                            AddEvaluator.add(values.get(values.size() / 2), values.get((values.size() / 2) - 1)), 2, context
-                    );
-                } else if (values.get(0) instanceof BigDecimal || values.get(0) instanceof Quantity) {
-                    return DivideEvaluator.divide(
-                            AddEvaluator.add(values.get(values.size() / 2), values.get((values.size() / 2) - 1)), new BigDecimal("2.0"), context
-                    );
+                if (upper instanceof Integer) { // size of list is even
+                    return TruncatedDivideEvaluator.div(AddEvaluator.add(upper, lower), 2, context);
+                } else if (upper instanceof BigDecimal || upper instanceof Quantity) {
+                    return DivideEvaluator.divide(AddEvaluator.add(upper, lower), new BigDecimal("2.0"), context);
                 }
             }
         }
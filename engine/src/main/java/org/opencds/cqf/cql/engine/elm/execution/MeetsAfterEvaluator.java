@@ -20,6 +20,10 @@ public class MeetsAfterEvaluator extends org.cqframework.cql.elm.execution.Meets
             return null;
         }
 
+        if (left instanceof Interval && right instanceof Interval && IntervalKernels.isSupported((Interval) left, (Interval) right)) {
+            return IntervalKernels.meetsAfter((Interval) left, (Interval) right, precision, context);
+        }
+
         if (left instanceof Interval && right instanceof Interval) {
             Boolean isRightStartGreater = GreaterEvaluator.greater(((Interval) right).getStart(), ((Interval) left).getEnd(), context);
             if (isRightStartGreater != null && isRightStartGreater) {
@@ -20,6 +20,10 @@ public class MeetsBeforeEvaluator extends org.cqframework.cql.elm.execution.Meet
             return null;
         }
 
+        if (left instanceof Interval && right instanceof Interval && IntervalKernels.isSupported((Interval) left, (Interval) right)) {
+            return IntervalKernels.meetsBefore((Interval) left, (Interval) right, precision, context);
+        }
+
         if (left instanceof Interval && right instanceof Interval) {
             Boolean isLeftStartGreater = GreaterEvaluator.greater(((Interval) left).getStart(), ((Interval) right).getEnd(), context);
             if (isLeftStartGreater != null && isLeftStartGreater) {
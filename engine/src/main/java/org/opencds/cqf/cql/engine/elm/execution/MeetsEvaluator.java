@@ -70,6 +70,10 @@ public class MeetsEvaluator extends org.cqframework.cql.elm.execution.Meets {
             return null;
         }
 
+        if (left instanceof Interval && right instanceof Interval && IntervalKernels.isSupported((Interval) left, (Interval) right)) {
+            return IntervalKernels.meets((Interval) left, (Interval) right, precision, context);
+        }
+
         if (left instanceof Interval && right instanceof Interval) {
             Object leftStart = ((Interval) left).getStart();
             Object leftEnd = ((Interval) left).getEnd();
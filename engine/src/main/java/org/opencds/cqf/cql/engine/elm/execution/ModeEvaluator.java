@@ -1,8 +1,12 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
+import org.opencds.cqf.cql.engine.exception.InvalidComparison;
 import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.CqlList;
@@ -13,24 +17,108 @@ Mode(argument List<T>) T
 The Mode operator returns the statistical mode of the elements in source.
 If the source contains no non-null elements, null is returned.
 If the source is null, the result is null.
+
+Integer, Long, Decimal and String elements are counted in a hash table keyed by value; the elements of other types are
+    sorted and compared pairwise. In both cases ties are resolved in favor of the least value, and the first element of
+    the source that is equal to the mode is returned.
 */
 
 public class ModeEvaluator extends org.cqframework.cql.elm.execution.Mode {
 
+    private static final class Tally {
+        private final Object first;
+        private int count;
+
+        private Tally(Object first) {
+            this.first = first;
+        }
+    }
+
+    private static boolean isHashable(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof BigDecimal || value instanceof String;
+    }
+
+    // Decimals that are equal (e.g. 1.0 and 1.00) share the same key
+    private static Object key(Object value) {
+        if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            return decimal.signum() == 0 ? BigDecimal.ZERO : decimal.stripTrailingZeros();
+        }
+        return value;
+    }
+
+    private static Object hashMode(Object first, Iterator<?> itr) {
+        CqlList cqlList = new CqlList();
+        Map<Object, Tally> tallies = new HashMap<>();
+        Tally mode = new Tally(first);
+        mode.count = 1;
+        tallies.put(key(first), mode);
+
+        while (itr.hasNext()) {
+            Object value = itr.next();
+            if (value == null) {
+                continue;
+            }
+            if (value.getClass() != first.getClass()) {
+                throw new InvalidComparison("Type " + first.getClass().getName() + " is not comparable");
+            }
+
+            Tally tally = tallies.computeIfAbsent(key(value), k -> new Tally(value));
+            ++tally.count;
+            if (tally != mode && (tally.count > mode.count
+                    || (tally.count == mode.count && cqlList.compareTo(tally.first, mode.first) < 0)))
+            {
+                mode = tally;
+            }
+        }
+
+        return mode.first;
+    }
+
+    private static Object sortedMode(ArrayList<Object> values, Context context) {
+        values.sort(new CqlList().valueSort);
+
+        int max = 0;
+        Object mode = new Object();
+        for (int i = 0; i < values.size(); ++i) {
+            int count = 0;
+            for (int j = i; j < values.size(); ++j) {
+                Boolean equal = EqualEvaluator.equal(values.get(i), values.get(j), context);
+                if (equal != null && equal) {
+                    ++count;
+                }
+            }
+            if (count > max) {
+                mode = values.get(i);
+                max = count;
+            }
+        }
+        return mode;
+    }
+
     public static Object mode(Object source, Context context) {
         if (source == null) {
             return null;
         }
 
         if (source instanceof Iterable) {
-            Iterable<?> element = (Iterable<?>)source;
-            Iterator<?> itr = element.iterator();
+            Iterator<?> itr = ((Iterable<?>) source).iterator();
+
+            Object first = null;
+            while (first == null && itr.hasNext()) {
+                first = itr.next();
+            }
 
-            if (!itr.hasNext()) { // empty list
+            if (first == null) { // empty or all null
                 return null;
             }
 
+            if (isHashable(first)) {
+                return hashMode(first, itr);
+            }
+
             ArrayList<Object> values = new ArrayList<>();
+            values.add(first);
             while (itr.hasNext()) {
                 Object value = itr.next();
                 if (value != null) {
@@ -38,28 +126,7 @@ public class ModeEvaluator extends org.cqframework.cql.elm.execution.Mode {
                 }
             }
 
-            if (values.isEmpty()) { // all null
-                return null;
-            }
-
-            values.sort(new CqlList().valueSort);
-
-            int max = 0;
-            Object mode = new Object();
-            for (int i = 0; i < values.size(); ++i) {
-                int count = 0;
-                for (int j = i; j < values.size(); ++j) {
-                    Boolean equal = EqualEvaluator.equal(values.get(i), values.get(j), context);
-                    if (equal != null && equal) {
-                        ++count;
-                    }
-                }
-                if (count > max) {
-                    mode = values.get(i);
-                    max = count;
-                }
-            }
-            return mode;
+            return sortedMode(values, context);
         }
         throw new InvalidOperatorArgument(
                 "Mode(List<T>)",
@@ -72,4 +139,4 @@ public class ModeEvaluator extends org.cqframework.cql.elm.execution.Mode {
         Object source = getSource().evaluate(context);
         return mode(source, context);
     }
-}
\ No newline at end of file
+}
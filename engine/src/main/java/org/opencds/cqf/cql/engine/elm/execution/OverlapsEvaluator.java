@@ -24,6 +24,10 @@ public class OverlapsEvaluator extends org.cqframework.cql.elm.execution.Overlap
             return null;
         }
 
+        if (left instanceof Interval && right instanceof Interval && IntervalKernels.isSupported((Interval) left, (Interval) right)) {
+            return IntervalKernels.overlaps((Interval) left, (Interval) right, precision, context);
+        }
+
         if (left instanceof Interval && right instanceof Interval) {
             Object leftStart = ((Interval) left).getStart();
             Object leftEnd = ((Interval) left).getEnd();
@@ -0,0 +1,59 @@
+package org.opencds.cqf.cql.engine.elm.execution;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.cqframework.cql.elm.execution.Expression;
+import org.cqframework.cql.elm.execution.Literal;
+
+/*
+Compiled regular expressions for the operators that take a pattern (Matches, ReplaceMatches and SplitOnMatches).
+
+A pattern operand that is a literal is compiled the first time the operator is evaluated, and the compiled pattern is
+    kept with the operator (see Bound). Other patterns are looked up in a cache that is shared by all evaluations. The
+    cache is cleared whenever it reaches MAX_CACHED_PATTERNS, so patterns computed from data can't grow it without bound.
+*/
+
+final class Patterns {
+
+    static final int MAX_CACHED_PATTERNS = 1024;
+
+    private static final Map<String, Pattern> cache = new ConcurrentHashMap<>();
+
+    private Patterns() {
+    }
+
+    static Pattern compile(String regex) {
+        Pattern pattern = cache.get(regex);
+        if (pattern == null) {
+            if (cache.size() >= MAX_CACHED_PATTERNS) {
+                cache.clear();
+            }
+            pattern = Pattern.compile(regex);
+            cache.put(regex, pattern);
+        }
+        return pattern;
+    }
+
+    /*
+    The compiled pattern of a pattern operand of an operator. The compiled pattern is immutable, so operators that are
+        shared by concurrent evaluations may share it too (at worst, each one compiles it once).
+     */
+    static final class Bound {
+        private volatile Pattern pattern;
+
+        Pattern get(Expression operand, String regex) {
+            if (!(operand instanceof Literal)) {
+                return compile(regex);
+            }
+
+            Pattern bound = pattern;
+            if (bound == null) {
+                bound = Pattern.compile(regex);
+                pattern = bound;
+            }
+            return bound;
+        }
+    }
+}
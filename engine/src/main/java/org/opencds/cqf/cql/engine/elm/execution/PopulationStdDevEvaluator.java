@@ -1,7 +1,6 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
 import java.math.BigDecimal;
-import java.util.List;
 
 import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
 import org.opencds.cqf.cql.engine.execution.Context;
@@ -27,12 +26,11 @@ public class PopulationStdDevEvaluator extends org.cqframework.cql.elm.execution
 
         if (source instanceof Iterable) {
 
-            if (((List<?>) source).isEmpty()) {
+            Object variance = PopulationVarianceEvaluator.popVariance(source, context);
+            if (variance == null) {
                 return null;
             }
 
-            Object variance = PopulationVarianceEvaluator.popVariance(source, context);
-
             return variance instanceof BigDecimal ?
                     PowerEvaluator.power(variance, new BigDecimal("0.5")) :
                     new Quantity().withValue((BigDecimal) PowerEvaluator.power(((Quantity) variance).getValue(),
@@ -1,7 +1,6 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.math.BigDecimal;
 
 import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
 import org.opencds.cqf.cql.engine.execution.Context;
@@ -25,23 +24,13 @@ public class PopulationVarianceEvaluator extends org.cqframework.cql.elm.executi
         }
 
         if (source instanceof Iterable) {
-
-            if (((List<?>) source).isEmpty()) {
+            VarianceEvaluator.Deviations deviations =
+                    VarianceEvaluator.Deviations.of((Iterable<?>) source, "PopulationVariance", context);
+            if (deviations.count == 0) {
                 return null;
             }
 
-            Object mean = AvgEvaluator.avg(source, context);
-
-            List<Object> newVals = new ArrayList<>();
-
-            ((List<?>) source).forEach(ae -> newVals.add(
-                    MultiplyEvaluator.multiply(
-                            SubtractEvaluator.subtract(ae, mean),
-                            SubtractEvaluator.subtract(ae, mean))
-                    )
-            );
-
-            return AvgEvaluator.avg(newVals, context);
+            return DivideEvaluator.divide(deviations.sumOfSquares, new BigDecimal(deviations.count), context);
         }
 
         throw new InvalidOperatorArgument(
@@ -3,13 +3,19 @@ package org.opencds.cqf.cql.engine.elm.execution;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.cqframework.cql.elm.execution.AliasedQuerySource;
 import org.cqframework.cql.elm.execution.ByColumn;
 import org.cqframework.cql.elm.execution.ByExpression;
+import org.cqframework.cql.elm.execution.Expression;
 import org.cqframework.cql.elm.execution.LetClause;
+import org.cqframework.cql.elm.execution.RelationshipClause;
 import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.execution.DataRequirements;
 import org.opencds.cqf.cql.engine.execution.Variable;
 import org.opencds.cqf.cql.engine.runtime.CqlList;
 import org.opencds.cqf.cql.engine.runtime.Tuple;
@@ -39,7 +45,7 @@ public class QueryEvaluator extends org.cqframework.cql.elm.execution.Query {
     private boolean evaluateRelationships(Context context) {
         // TODO: This is the most naive possible implementation here, but it should perform okay with 1) caching and 2) small data sets
         boolean shouldInclude = true;
-        for (org.cqframework.cql.elm.execution.RelationshipClause relationship : getRelationship()) {
+        for (RelationshipClause relationship : getRelationship()) {
             boolean hasSatisfyingData = false;
             Iterable<Object> relatedSourceData = ensureIterable(relationship.getExpression().evaluate(context));
             for (Object relatedElement : relatedSourceData) {
@@ -70,6 +76,49 @@ public class QueryEvaluator extends org.cqframework.cql.elm.execution.Query {
         return shouldInclude;
     }
 
+    /*
+    Reads the resources that the let and relationship clauses retrieve by id for each row together, before the rows
+        are evaluated, so the retrieve of each row is answered from the retrieve cache of the context rather than with
+        a read per row (see BatchReadRetrieveProvider). The ids are collected by evaluating the codes of the retrieves
+        for each row, so the rows are read into a list first. As only the source alias is in scope then, the retrieves
+        whose codes reference anything else (e.g. another let) are left to their rows.
+     */
+    private Iterable<Object> readTogether(Context context, Variable variable, Iterable<Object> rows) {
+        List<RetrieveEvaluator> retrieves = new ArrayList<>();
+        for (LetClause let : getLet()) {
+            addReadById(let.getExpression(), variable.getName(), retrieves);
+        }
+        for (RelationshipClause relationship : getRelationship()) {
+            addReadById(relationship.getExpression(), variable.getName(), retrieves);
+        }
+        if (retrieves.isEmpty()) {
+            return rows;
+        }
+
+        List<Object> elements = new ArrayList<>();
+        rows.forEach(elements::add);
+        Map<RetrieveEvaluator, Set<String>> ids = new LinkedHashMap<>();
+        for (Object element : elements) {
+            variable.setValue(element);
+            for (RetrieveEvaluator retrieve : retrieves) {
+                retrieve.addIds(context, ids.computeIfAbsent(retrieve, r -> new LinkedHashSet<>()));
+            }
+        }
+        variable.setValue(null);
+
+        for (Map.Entry<RetrieveEvaluator, Set<String>> entry : ids.entrySet()) {
+            entry.getKey().readTogether(context, entry.getValue());
+        }
+        return elements;
+    }
+
+    private static void addReadById(Expression expression, String alias, List<RetrieveEvaluator> retrieves) {
+        if (expression instanceof RetrieveEvaluator && ((RetrieveEvaluator) expression).isReadById()
+                && DataRequirements.referencesOnly(((RetrieveEvaluator) expression).getCodes(), alias)) {
+            retrieves.add((RetrieveEvaluator) expression);
+        }
+    }
+
     private boolean evaluateWhere(Context context) {
         if (getWhere() != null) {
             Object satisfiesCondition = this.getWhere().evaluate(context);
@@ -154,7 +203,7 @@ public class QueryEvaluator extends org.cqframework.cql.elm.execution.Query {
     @Override
     protected Object internalEvaluate(Context context) {
 
-        ArrayList<Iterator<Object>> sources = new ArrayList<Iterator<Object>>();
+        ArrayList<Iterable<Object>> sourceData = new ArrayList<>();
         ArrayList<Variable> variables = new ArrayList<Variable>();
         ArrayList<Variable> letVariables = new ArrayList<Variable>();
         List<Object> result = new ArrayList<>();
@@ -163,7 +212,7 @@ public class QueryEvaluator extends org.cqframework.cql.elm.execution.Query {
         try {
             for (AliasedQuerySource source : this.getSource()) {
                 QuerySource querySource = new QuerySource(source.getAlias(), source.getExpression().evaluate(context));
-                sources.add(querySource.getData().iterator());
+                sourceData.add(querySource.getData());
                 if (querySource.getIsList()) {
                     sourceIsList = true;
                 }
@@ -180,6 +229,13 @@ public class QueryEvaluator extends org.cqframework.cql.elm.execution.Query {
                 pushCount++;
             }
 
+            if (sourceData.size() == 1 && context.getRetrieveCache() != null) {
+                sourceData.set(0, readTogether(context, variables.get(0), sourceData.get(0)));
+            }
+            ArrayList<Iterator<Object>> sources = new ArrayList<Iterator<Object>>();
+            for (Iterable<Object> data : sourceData) {
+                sources.add(data.iterator());
+            }
             QueryIterator iterator = new QueryIterator(context, sources);
 
             while (iterator.hasNext()) {
@@ -1,21 +1,117 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
-import org.apache.commons.lang3.NotImplementedException;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.cqframework.cql.elm.execution.Expression;
 import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.execution.Variable;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Concept;
+
+/*
+
+Repeat(source List<T>, element U, scope String) List<U>
+
+The Repeat expression performs successive ForEach until no new elements are returned: the element expression is
+    evaluated for each element of the source, with the element in the given scope, then for each new element of the
+    result, and so on. List-valued results of the element expression are added to the result individually.
+If the source is null, the result is null.
+
+Elements are new if they are not already in the result. Values of the primitive and terminology types are compared
+    by value, other values (e.g. model objects and tuples) by identity, which detects cycles in object graphs without
+    comparing entire structures.
+
+The elements are processed from an explicit work queue, so the depth of the repetition is not limited by the call
+    stack. The result is built eagerly, as the element expression may depend on the context of the Repeat.
+
+*/
 
 public class RepeatEvaluator extends org.cqframework.cql.elm.execution.Repeat {
 
-    public static Object repeat(Object source, Object element, String scope) {
-        // TODO
-        throw new NotImplementedException("Repeat operation not yet implemented");
+    private static class Seen {
+        private final Set<Object> values = new HashSet<>();
+        private final Set<Object> objects = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        // Returns true if the value was not seen before
+        private boolean add(Object value) {
+            if (value instanceof BigDecimal) {
+                // Decimals that are equal (e.g. 1.0 and 1.00) are the same element
+                BigDecimal decimal = (BigDecimal) value;
+                return values.add(decimal.signum() == 0 ? BigDecimal.ZERO : decimal.stripTrailingZeros());
+            }
+
+            if (value instanceof Integer || value instanceof Long || value instanceof String
+                    || value instanceof Boolean || value instanceof Code || value instanceof Concept)
+            {
+                return values.add(value);
+            }
+
+            return objects.add(value);
+        }
+    }
+
+    public static Object repeat(Object source, Expression element, String scope, Context context) {
+        if (source == null) {
+            return null;
+        }
+
+        List<Object> result = new ArrayList<>();
+        Seen seen = new Seen();
+        Deque<Object> pending = new ArrayDeque<>();
+
+        if (source instanceof Iterable) {
+            for (Object value : (Iterable<?>) source) {
+                if (value != null) {
+                    pending.add(value);
+                }
+            }
+        }
+        else {
+            pending.add(source);
+        }
+
+        while (!pending.isEmpty()) {
+            Object value = pending.poll();
+
+            Object projection;
+            if (scope != null) {
+                context.push(new Variable().withName(scope).withValue(value));
+            }
+            try {
+                projection = element.evaluate(context);
+            }
+            finally {
+                if (scope != null) {
+                    context.pop();
+                }
+            }
+
+            Iterable<?> projected = projection instanceof Iterable
+                    ? (Iterable<?>) projection
+                    : Collections.singletonList(projection);
+            for (Object next : projected) {
+                if (next != null && seen.add(next)) {
+                    result.add(next);
+                    pending.add(next);
+                }
+            }
+        }
+
+        return result;
     }
 
     @Override
     protected Object internalEvaluate(Context context) {
         Object source = getSource().evaluate(context);
-        Object element = getElement().evaluate(context);
-        String scope = getScope();
 
-        return repeat(source, element, scope);
+        return repeat(source, getElement(), getScope(), context);
     }
 }
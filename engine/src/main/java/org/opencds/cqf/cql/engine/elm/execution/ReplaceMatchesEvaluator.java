@@ -1,15 +1,27 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
+import java.util.regex.Pattern;
+
 import org.opencds.cqf.cql.engine.execution.Context;
 
 public class ReplaceMatchesEvaluator extends org.cqframework.cql.elm.execution.ReplaceMatches {
 
+    private final Patterns.Bound boundPattern = new Patterns.Bound();
+
     public static Object replaceMatches(String argument, String pattern, String substitution) {
         if (argument == null || pattern == null || substitution == null) {
             return null;
         }
 
-        return argument.replaceAll(pattern, substitution);
+        return replaceMatches(argument, Patterns.compile(pattern), substitution);
+    }
+
+    public static Object replaceMatches(String argument, Pattern pattern, String substitution) {
+        if (argument == null || pattern == null || substitution == null) {
+            return null;
+        }
+
+        return pattern.matcher(argument).replaceAll(substitution);
     }
 
     @Override
@@ -18,6 +30,10 @@ public class ReplaceMatchesEvaluator extends org.cqframework.cql.elm.execution.R
         String pattern = (String) getOperand().get(1).evaluate(context);
         String substitution = (String) getOperand().get(2).evaluate(context);
 
-        return replaceMatches(argument, pattern, substitution);
+        if (argument == null || pattern == null || substitution == null) {
+            return null;
+        }
+
+        return replaceMatches(argument, boundPattern.get(getOperand().get(1), pattern), substitution);
     }
 }
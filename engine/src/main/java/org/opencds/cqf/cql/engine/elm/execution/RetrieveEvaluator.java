@@ -1,13 +1,20 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import javax.xml.namespace.QName;
 
+import org.cqframework.cql.elm.execution.IncludeElement;
 import org.cqframework.cql.elm.execution.ValueSetRef;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveCache;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveInclude;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Concept;
 import org.opencds.cqf.cql.engine.runtime.Interval;
@@ -15,58 +22,240 @@ import org.opencds.cqf.cql.engine.runtime.ValueSet;
 
 public class RetrieveEvaluator extends org.cqframework.cql.elm.execution.Retrieve {
 
+    // the arguments of the retrieve in the current context
+    private static class Arguments {
+        private QName dataType;
+        private DataProvider dataProvider;
+        private Iterable<Code> codes;
+        private String valueSet;
+        private Interval dateRange;
+        private String contextPath;
+    }
+
     @SuppressWarnings("unchecked")
-    protected Object internalEvaluate(Context context) {
-        QName dataType = context.fixupQName(this.dataType);
-        DataProvider dataProvider = context.resolveDataProvider(dataType);
-        Iterable<Code> codes = null;
-        String valueSet = null;
+    private Arguments resolveArguments(Context context) {
+        Arguments arguments = new Arguments();
+        arguments.dataType = context.fixupQName(this.dataType);
+        arguments.dataProvider = context.resolveDataProvider(arguments.dataType);
         if (this.getCodes() != null) {
             if (this.getCodes() instanceof ValueSetRef) {
                 ValueSet vs = ValueSetRefEvaluator.toValueSet(context, (ValueSetRef)this.getCodes());
-                valueSet = vs.getId();
+                arguments.valueSet = vs.getId();
             }
             else {
                 Object codesResult = this.getCodes().evaluate(context);
                 if (codesResult instanceof ValueSet) {
-                    valueSet = ((ValueSet)codesResult).getId();
+                    arguments.valueSet = ((ValueSet)codesResult).getId();
                 } else if (codesResult instanceof String) {
                     List<Code> codesList = new ArrayList<>();
                     codesList.add(new Code().withCode((String) codesResult));
-                    codes = codesList;
+                    arguments.codes = codesList;
                 } else if (codesResult instanceof Code) {
                     List<Code> codesList = new ArrayList<>();
                     codesList.add((Code) codesResult);
-                    codes = codesList;
+                    arguments.codes = codesList;
                 } else if (codesResult instanceof Concept) {
                     List<Code> codesList = new ArrayList<>();
                     for (Code conceptCode : ((Concept) codesResult).getCodes()) {
                         codesList.add(conceptCode);
                     }
-                    codes = codesList;
+                    arguments.codes = codesList;
                 } else {
-                    codes = (Iterable<Code>) codesResult;
+                    arguments.codes = (Iterable<Code>) codesResult;
                 }
             }
         }
-        Interval dateRange = null;
         if (this.getDateRange() != null) {
-            dateRange = (Interval) this.getDateRange().evaluate(context);
+            arguments.dateRange = (Interval) this.getDateRange().evaluate(context);
         }
 
-        Object result = dataProvider.retrieve(context.getCurrentContext(),
-                (String) dataProvider.getContextPath(context.getCurrentContext(), dataType.getLocalPart()),
-                context.getCurrentContextValue(), dataType.getLocalPart(), getTemplateId(),
-                getCodeProperty(), codes, valueSet, getDateProperty(), getDateLowProperty(), getDateHighProperty(),
-                dateRange);
+        arguments.contextPath = (String) arguments.dataProvider.getContextPath(context.getCurrentContext(),
+                arguments.dataType.getLocalPart());
+        return arguments;
+    }
+
+    protected Object internalEvaluate(Context context) {
+        Arguments arguments = resolveArguments(context);
+        DataProvider dataProvider = arguments.dataProvider;
+        String dataType = arguments.dataType.getLocalPart();
+
+        RetrieveCache retrieveCache = context.getRetrieveCache();
+        Object result = null;
+        // a retrieve included in another one is answered from the resources the other one included, if it can be
+        if (retrieveCache != null && getIncludedIn() != null) {
+            result = retrieveCache.retrieveIncluded(dataProvider, context.getCurrentContext(),
+                    context.getCurrentContextValue(), getIncludedIn(), dataType, getCodeProperty(), arguments.codes,
+                    arguments.valueSet, getDateProperty(), getDateLowProperty(), getDateHighProperty(),
+                    arguments.dateRange);
+        }
+        if (result == null) {
+            result = retrieveCache == null
+                    ? dataProvider.retrieve(context.getCurrentContext(), arguments.contextPath,
+                            context.getCurrentContextValue(), dataType, getTemplateId(), getCodeProperty(),
+                            arguments.codes, arguments.valueSet, getDateProperty(), getDateLowProperty(),
+                            getDateHighProperty(), arguments.dateRange)
+                    : retrieveCache.retrieve(dataProvider, context.getCurrentContext(), arguments.contextPath,
+                            context.getCurrentContextValue(), dataType, getTemplateId(),
+                            getCodeProperty(), arguments.codes, arguments.valueSet, getDateProperty(),
+                            getDateLowProperty(), getDateHighProperty(), arguments.dateRange, getLocalId(),
+                            toIncludes(context, getInclude()));
+        }
 
-        // append list results to evaluatedResources list
+        // append list results to evaluatedResources list, and lazy results (e.g. a cursor over the pages of a search)
+        // as they are iterated
         if (result instanceof List) {
             context.getEvaluatedResources().addAll((List<?>)result);
+        } else if (result instanceof Iterable) {
+            result = new EvaluatedIterable(context, (Iterable<?>) result);
         } else {
             context.getEvaluatedResources().add(result);
         }
 
         return result;
     }
+
+    /*
+    Returns the first resource of the retrieve, asking the data provider for a single match unless the result of the
+        retrieve is cached. Used by First and Exists of a retrieve when cardinality pushdown is enabled.
+     */
+    public Object evaluateFirst(Context context) {
+        RetrieveCache retrieveCache = context.getRetrieveCache();
+        if (retrieveCache != null && getIncludedIn() != null) {
+            return FirstEvaluator.first(evaluate(context));
+        }
+
+        Arguments arguments = resolveArguments(context);
+        List<Object> cached = retrieveCache == null ? null : getCached(context, retrieveCache, arguments);
+        Object result = cached != null
+                ? FirstEvaluator.first(cached)
+                : arguments.dataProvider.retrieveFirst(context.getCurrentContext(), arguments.contextPath,
+                        context.getCurrentContextValue(), arguments.dataType.getLocalPart(), getTemplateId(),
+                        getCodeProperty(), arguments.codes, arguments.valueSet, getDateProperty(),
+                        getDateLowProperty(), getDateHighProperty(), arguments.dateRange);
+        if (result != null) {
+            context.getEvaluatedResources().add(result);
+        }
+        return result;
+    }
+
+    /*
+    Returns the number of resources of the retrieve, asking the data provider for the number of matches unless the
+        result of the retrieve is cached. Used by Count of a retrieve when cardinality pushdown is enabled.
+     */
+    public Object evaluateCount(Context context) {
+        RetrieveCache retrieveCache = context.getRetrieveCache();
+        if (retrieveCache != null && getIncludedIn() != null) {
+            return CountEvaluator.count(evaluate(context));
+        }
+
+        Arguments arguments = resolveArguments(context);
+        List<Object> cached = retrieveCache == null ? null : getCached(context, retrieveCache, arguments);
+        if (cached != null) {
+            return CountEvaluator.count(cached);
+        }
+        return arguments.dataProvider.retrieveCount(context.getCurrentContext(), arguments.contextPath,
+                context.getCurrentContextValue(), arguments.dataType.getLocalPart(), getTemplateId(),
+                getCodeProperty(), arguments.codes, arguments.valueSet, getDateProperty(), getDateLowProperty(),
+                getDateHighProperty(), arguments.dateRange);
+    }
+
+    /*
+    Returns whether this retrieve reads resources by id, with the id code property and no other filter.
+     */
+    public boolean isReadById() {
+        return "id".equals(getCodeProperty()) && getCodes() != null && !(getCodes() instanceof ValueSetRef)
+                && getDateRange() == null;
+    }
+
+    /*
+    Adds the ids this retrieve reads in the current state of the context to the given set. Used by Query to collect
+        the ids its let and relationship clauses read for each of its rows.
+     */
+    public void addIds(Context context, Set<String> ids) {
+        Object codesResult = this.getCodes().evaluate(context);
+        if (codesResult instanceof Concept) {
+            codesResult = ((Concept) codesResult).getCodes();
+        }
+        if (!(codesResult instanceof Iterable)) {
+            codesResult = Collections.singletonList(codesResult);
+        }
+        for (Object code : (Iterable<?>) codesResult) {
+            if (code instanceof String) {
+                ids.add((String) code);
+            } else if (code instanceof Code && ((Code) code).getCode() != null) {
+                ids.add(((Code) code).getCode());
+            }
+        }
+    }
+
+    /*
+    Reads the resources with the given ids together, through the retrieve cache of the context, so the retrieves by
+        id of this retrieve are answered from the cache. Nothing is read if the resources are related to the current
+        context, as the retrieve then filters them by the context value.
+     */
+    public void readTogether(Context context, Collection<String> ids) {
+        RetrieveCache retrieveCache = context.getRetrieveCache();
+        QName dataType = context.fixupQName(this.dataType);
+        DataProvider dataProvider = context.resolveDataProvider(dataType);
+        if (retrieveCache != null
+                && dataProvider.getContextPath(context.getCurrentContext(), dataType.getLocalPart()) == null) {
+            retrieveCache.readTogether(dataProvider, dataType.getLocalPart(), ids);
+        }
+    }
+
+    private List<Object> getCached(Context context, RetrieveCache retrieveCache, Arguments arguments) {
+        return retrieveCache.getCached(arguments.dataProvider, context.getCurrentContext(), arguments.contextPath,
+                context.getCurrentContextValue(), arguments.dataType.getLocalPart(), getTemplateId(),
+                getCodeProperty(), arguments.codes, arguments.valueSet, getDateProperty(), getDateLowProperty(),
+                getDateHighProperty(), arguments.dateRange);
+    }
+
+    /*
+    A lazy retrieve result that adds its resources to the evaluated resources of the context as they are iterated. A
+        resource is added once, however many times the result is iterated.
+     */
+    private static class EvaluatedIterable implements Iterable<Object> {
+        private final Context context;
+        private final Iterable<?> resources;
+        private int evaluated;
+
+        EvaluatedIterable(Context context, Iterable<?> resources) {
+            this.context = context;
+            this.resources = resources;
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            Iterator<?> iterator = resources.iterator();
+            return new Iterator<Object>() {
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Object next() {
+                    Object resource = iterator.next();
+                    if (index++ == evaluated) {
+                        context.getEvaluatedResources().add(resource);
+                        evaluated++;
+                    }
+                    return resource;
+                }
+            };
+        }
+    }
+
+    private static List<RetrieveInclude> toIncludes(Context context, List<IncludeElement> elements) {
+        List<RetrieveInclude> includes = new ArrayList<>();
+        for (IncludeElement element : elements) {
+            if (element.getRelatedDataType() != null) {
+                includes.add(new RetrieveInclude(context.fixupQName(element.getRelatedDataType()).getLocalPart(),
+                        element.getRelatedProperty(), Boolean.TRUE.equals(element.isIsReverse())));
+            }
+        }
+        return includes;
+    }
 }
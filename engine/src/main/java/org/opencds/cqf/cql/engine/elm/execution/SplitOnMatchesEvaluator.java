@@ -3,6 +3,8 @@ package org.opencds.cqf.cql.engine.elm.execution;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 
 import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
 import org.opencds.cqf.cql.engine.execution.Context;
@@ -25,7 +27,13 @@ import org.opencds.cqf.cql.engine.execution.Context;
 
 public class SplitOnMatchesEvaluator extends org.cqframework.cql.elm.execution.SplitOnMatches {
 
+    private final Patterns.Bound boundPattern = new Patterns.Bound();
+
     public static Object splitOnMatches(Object stringToSplit, Object separator) {
+        return splitOnMatches(stringToSplit, separator, Patterns::compile);
+    }
+
+    private static Object splitOnMatches(Object stringToSplit, Object separator, Function<String, Pattern> compile) {
         if (stringToSplit == null) {
             return null;
         }
@@ -36,7 +44,7 @@ public class SplitOnMatchesEvaluator extends org.cqframework.cql.elm.execution.S
                 result.add(stringToSplit);
             }
             else {
-                Collections.addAll(result, (((String) stringToSplit).split((String) separator)));
+                Collections.addAll(result, compile.apply((String) separator).split((String) stringToSplit));
             }
             return result;
         }
@@ -51,6 +59,7 @@ public class SplitOnMatchesEvaluator extends org.cqframework.cql.elm.execution.S
     protected Object internalEvaluate(Context context) {
         Object stringToSplit = getStringToSplit().evaluate(context);
         Object separator = getSeparatorPattern().evaluate(context);
-        return splitOnMatches(stringToSplit, separator);
+        return splitOnMatches(stringToSplit, separator,
+                regex -> boundPattern.get(getSeparatorPattern(), regex));
     }
 }
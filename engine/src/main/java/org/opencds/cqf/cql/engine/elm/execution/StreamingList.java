@@ -0,0 +1,76 @@
+package org.opencds.cqf.cql.engine.elm.execution;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/*
+A read-only list whose elements are produced on demand by advance(), for list operators whose results are a pure
+    function of their operands and can be consumed before they are complete (e.g. Children and Descendents).
+
+Iterating the list, or accessing an element by index, only produces the elements up to that point. size() produces all
+    of them. The produced elements are kept, so the list can be iterated any number of times. Not thread-safe.
+*/
+
+abstract class StreamingList extends AbstractList<Object> implements RandomAccess {
+
+    private final List<Object> produced = new ArrayList<>();
+    private boolean exhausted;
+
+    /*
+    Appends the next elements (possibly none) to the given list, or returns false if there are no more elements.
+     */
+    protected abstract boolean advance(List<Object> elements);
+
+    // Produces elements until there are at least the given number of them, or there are no more
+    private boolean produce(int count) {
+        while (produced.size() < count && !exhausted) {
+            if (!advance(produced)) {
+                exhausted = true;
+            }
+        }
+        return produced.size() >= count;
+    }
+
+    @Override
+    public Object get(int index) {
+        if (index < 0 || !produce(index + 1)) {
+            throw new IndexOutOfBoundsException(String.format("Index: %d", index));
+        }
+        return produced.get(index);
+    }
+
+    @Override
+    public int size() {
+        produce(Integer.MAX_VALUE);
+        return produced.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !produce(1);
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return produce(next + 1);
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return produced.get(next++);
+            }
+        };
+    }
+}
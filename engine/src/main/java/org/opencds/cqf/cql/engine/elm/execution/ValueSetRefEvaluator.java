@@ -12,19 +12,23 @@ import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
 public class ValueSetRefEvaluator extends org.cqframework.cql.elm.execution.ValueSetRef {
 
     public static ValueSet toValueSet(Context context, ValueSetRef vsr) {
-        boolean enteredLibrary = context.enterLibrary(vsr.getLibraryName());
-        try {
-            ValueSetDef vsd = context.resolveValueSetRef(vsr.getName());
-            ValueSet vs = new ValueSet().withId(vsd.getId()).withVersion(vsd.getVersion());
-            for (CodeSystemRef csr : vsd.getCodeSystem()) {
-                CodeSystem cs = CodeSystemRefEvaluator.toCodeSystem(context, csr);
-                vs.addCodeSystem(cs);
+        return context.resolveTerminologyConstant(vsr, () -> {
+            boolean enteredLibrary = context.enterLibrary(vsr.getLibraryName());
+            try {
+                ValueSetDef vsd = context.resolveValueSetRef(vsr.getName());
+                return context.resolveTerminologyConstant(vsd, () -> {
+                    ValueSet vs = new ValueSet().withId(vsd.getId()).withVersion(vsd.getVersion());
+                    for (CodeSystemRef csr : vsd.getCodeSystem()) {
+                        CodeSystem cs = CodeSystemRefEvaluator.toCodeSystem(context, csr);
+                        vs.addCodeSystem(cs);
+                    }
+                    return vs;
+                });
             }
-            return vs;
-        }
-        finally {
-            context.exitLibrary(enteredLibrary);
-        }
+            finally {
+                context.exitLibrary(enteredLibrary);
+            }
+        });
     }
 
     @Override
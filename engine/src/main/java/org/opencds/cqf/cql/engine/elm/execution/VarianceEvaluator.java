@@ -1,12 +1,11 @@
 package org.opencds.cqf.cql.engine.elm.execution;
 
 import java.math.BigDecimal;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.Quantity;
+import org.opencds.cqf.cql.engine.runtime.Value;
 
 /*
 Variance(argument List<Decimal>) Decimal
@@ -20,40 +19,93 @@ Return types: BigDecimal & Quantity
 
 public class VarianceEvaluator extends org.cqframework.cql.elm.execution.Variance {
 
-    public static Object variance(Object source, Context context) {
+    /*
+    The count of the non-null elements of a source and the sum of their squared deviations from the mean (a Decimal,
+        or a Quantity in the unit of the first element), accumulated in a single pass.
 
-        if (source == null) {
-            return null;
+    The sum, the sum of the squares and the count are exact, so the squared deviations from the mean (computed as Avg
+        does) are sum(x^2) - 2 * mean * sum(x) + count * mean^2 without a second pass over the source.
+     */
+    static final class Deviations {
+        final int count;
+        final Object sumOfSquares;
+
+        private Deviations(int count, Object sumOfSquares) {
+            this.count = count;
+            this.sumOfSquares = sumOfSquares;
         }
 
-        if (source instanceof Iterable) {
+        static Deviations of(Iterable<?> source, String operator, Context context) {
+            BigDecimal sum = null;
+            // the sum as Avg accumulates it, which limits the precision of each partial Decimal sum
+            BigDecimal avgSum = null;
+            BigDecimal sumOfSquares = null;
+            Quantity first = null;
+            int count = 0;
 
-            if (((List<?>) source).isEmpty()) {
-                return null;
+            for (Object element : source) {
+                if (element == null) {
+                    continue;
+                }
+
+                BigDecimal value;
+                if (element instanceof BigDecimal && first == null) {
+                    value = (BigDecimal) element;
+                }
+                else if (element instanceof Quantity && (sum == null || first != null)) {
+                    if (first == null) {
+                        first = (Quantity) element;
+                    }
+                    value = ((Quantity) element).getValue();
+                }
+                else {
+                    throw new InvalidOperatorArgument(
+                            String.format("%s(List<Decimal>) or %s(List<Quantity>)", operator, operator),
+                            String.format("%s(List<%s>)", operator, element.getClass().getName())
+                    );
+                }
+
+                if (sum == null) {
+                    sum = value;
+                    avgSum = value;
+                    sumOfSquares = value.multiply(value);
+                }
+                else {
+                    sum = sum.add(value);
+                    avgSum = first == null ? Value.verifyPrecision(avgSum.add(value), null) : avgSum.add(value);
+                    sumOfSquares = sumOfSquares.add(value.multiply(value));
+                }
+                ++count;
             }
 
-            Object mean = AvgEvaluator.avg(source, context);
+            if (count == 0) {
+                return new Deviations(0, null);
+            }
 
-            List<Object> newVals = new ArrayList<>();
+            BigDecimal n = new BigDecimal(count);
+            BigDecimal mean = (BigDecimal) DivideEvaluator.divide(avgSum, n, context);
+            BigDecimal deviations = Value.verifyPrecision(
+                    sumOfSquares.subtract(mean.multiply(sum).multiply(BigDecimal.valueOf(2))).add(n.multiply(mean).multiply(mean)),
+                    null
+            );
 
-            for (Object element : (Iterable<?>) source) {
-                if (element != null) {
-                    if (element instanceof BigDecimal || element instanceof Quantity) {
-                        newVals.add(MultiplyEvaluator.multiply(
-                                SubtractEvaluator.subtract(element, mean),
-                                SubtractEvaluator.subtract(element, mean))
-                        );
-                    }
-                    else {
-                        throw new InvalidOperatorArgument(
-                                "Variance(List<Decimal>) or Variance(List<Quantity>)",
-                                String.format("Variance(List<%s>)", element.getClass().getName())
-                        );
-                    }
-                }
+            return new Deviations(count, first == null ? deviations : new Quantity().withValue(deviations).withUnit(first.getUnit()));
+        }
+    }
+
+    public static Object variance(Object source, Context context) {
+
+        if (source == null) {
+            return null;
+        }
+
+        if (source instanceof Iterable) {
+            Deviations deviations = Deviations.of((Iterable<?>) source, "Variance", context);
+            if (deviations.count == 0) {
+                return null;
             }
 
-            return DivideEvaluator.divide(SumEvaluator.sum(newVals), new BigDecimal(newVals.size() - 1), context); // slight variation to Avg
+            return DivideEvaluator.divide(deviations.sumOfSquares, new BigDecimal(deviations.count - 1), context); // slight variation to Avg
         }
 
         throw new InvalidOperatorArgument(
@@ -9,4 +9,8 @@ public class DataProviderException extends CqlException {
     public DataProviderException(String message) {
         super(message);
     }
+
+    public DataProviderException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
@@ -7,10 +7,12 @@ import java.time.OffsetDateTime;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.function.Supplier;
 
 import javax.xml.namespace.QName;
 
@@ -43,8 +45,14 @@ import org.opencds.cqf.cql.engine.debug.SourceLocator;
 import org.opencds.cqf.cql.engine.elm.execution.Executable;
 import org.opencds.cqf.cql.engine.exception.CqlException;
 import org.opencds.cqf.cql.engine.exception.Severity;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveCache;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.CodeSystem;
+import org.opencds.cqf.cql.engine.runtime.Concept;
 import org.opencds.cqf.cql.engine.runtime.DateTime;
 import org.opencds.cqf.cql.engine.runtime.Tuple;
+import org.opencds.cqf.cql.engine.runtime.ValueSet;
+import org.opencds.cqf.cql.engine.terminology.MembershipIndex;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,6 +69,9 @@ public class Context {
     private static UcumService sharedUcumService;
 
     private boolean enableExpressionCache = false;
+    // the results of retrieves for the current context values, if retrieve caching is enabled
+    private RetrieveCache retrieveCache;
+    private boolean enableCardinalityPushdown = false;
 
     @SuppressWarnings("serial")
     private LinkedHashMap<VersionedIdentifier, LinkedHashMap<String, ExpressionResult>> expressions = new LinkedHashMap<VersionedIdentifier, LinkedHashMap<String, ExpressionResult>>(10, 0.9f, true) {
@@ -119,6 +130,10 @@ public class Context {
     private Stack<Stack<Variable> > windows = new Stack<>();
     private Map<String, Library> libraries = new HashMap<>();
     private Stack<Library> currentLibrary = new Stack<>();
+    // Codes, concepts, code systems and value sets keyed by the library element (definition or reference) they were
+    // evaluated from - they are constants of the library, so each one is built (and frozen) on its first evaluation in
+    // this context and shared from then on
+    private Map<Object, Object> terminologyConstants = new IdentityHashMap<>();
     private LibraryLoader libraryLoader;
 
     private ZonedDateTime evaluationZonedDateTime;
@@ -126,6 +141,7 @@ public class Context {
     private DateTime evaluationDateTime;
 
     private UcumService ucumService;
+    private UnitConverter unitConverter = new UnitConverter(this::getUcumService);
 
     private DebugMap debugMap;
     public DebugMap getDebugMap() {
@@ -228,12 +244,8 @@ public class Context {
 
         currentLibrary.push(library);
 
-        if (ucumService != null) {
-            this.ucumService = ucumService;
-        }
-        else {
-            this.ucumService = getSharedUcumService();
-        }
+        // the shared service is loaded on first use (see getUcumService)
+        this.ucumService = ucumService;
 
         this.pushEvaluatedResourceStack();
     }
@@ -257,9 +269,16 @@ public class Context {
     }
 
     public UcumService getUcumService() {
+        if (ucumService == null) {
+            ucumService = getSharedUcumService();
+        }
         return ucumService;
     }
 
+    public UnitConverter getUnitConverter() {
+        return unitConverter;
+    }
+
     protected synchronized UcumService getSharedUcumService() {
         if (sharedUcumService == null) {
             try {
@@ -273,6 +292,32 @@ public class Context {
         return sharedUcumService;
     }
 
+    public void setRetrieveCaching(boolean yayOrNay) {
+        this.retrieveCache = yayOrNay ? new RetrieveCache(this) : null;
+    }
+
+    public boolean isRetrieveCachingEnabled() {
+        return this.retrieveCache != null;
+    }
+
+    /**
+     * Returns the cache of retrieve results for the current context values, or null if retrieve caching isn't enabled.
+     */
+    public RetrieveCache getRetrieveCache() {
+        return this.retrieveCache;
+    }
+
+    /**
+     * Sets whether Exists, Count and First of a retrieve are answered with a first-only or count-only retrieve.
+     */
+    public void setCardinalityPushdown(boolean yayOrNay) {
+        this.enableCardinalityPushdown = yayOrNay;
+    }
+
+    public boolean isCardinalityPushdownEnabled() {
+        return this.enableCardinalityPushdown;
+    }
+
     public void setExpressionCaching(boolean yayOrNay) {
         this.enableExpressionCache = yayOrNay;
     }
@@ -347,6 +392,39 @@ public class Context {
         }
     }
 
+    /**
+     * Returns the terminology value (Code, Concept, CodeSystem or ValueSet) for the given library element, evaluating
+     * it on first use. The value is shared by every evaluation of the element in this context, so it is frozen before
+     * it is pooled: its lists are unmodifiable and its setters throw UnsupportedOperationException.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T resolveTerminologyConstant(Object element, Supplier<T> evaluator) {
+        Object value = terminologyConstants.get(element);
+        if (value == null) {
+            value = evaluator.get();
+            if (value != null) {
+                freeze(value);
+                terminologyConstants.put(element, value);
+            }
+        }
+        return (T) value;
+    }
+
+    private static void freeze(Object value) {
+        if (value instanceof Code) {
+            ((Code) value).freeze();
+        }
+        else if (value instanceof Concept) {
+            ((Concept) value).freeze();
+        }
+        else if (value instanceof CodeSystem) {
+            ((CodeSystem) value).freeze();
+        }
+        else if (value instanceof ValueSet) {
+            ((ValueSet) value).freeze();
+        }
+    }
+
     public CodeDef resolveCodeRef(String name) {
         for (CodeDef codeDef : getCurrentLibrary().getCodes().getDef()) {
             if (codeDef.getName().equals(name)) {
@@ -725,14 +803,38 @@ public class Context {
     }
 
     private TerminologyProvider terminologyProvider;
+    private MembershipIndex membershipIndex;
     public void registerTerminologyProvider(TerminologyProvider tp) {
+      registerTerminologyProvider(tp, tp == null ? null : new MembershipIndex(tp));
+    }
+
+    /**
+     * Registers the terminology provider with a membership index that may be shared with other contexts (e.g. the
+     * contexts of the evaluations of an engine), so its value sets are expanded once for all of them.
+     * @param tp the terminology provider
+     * @param index the membership index of the terminology provider
+     */
+    public void registerTerminologyProvider(TerminologyProvider tp, MembershipIndex index) {
+      if (index != null && index.getProvider() != tp) {
+        throw new IllegalArgumentException("The membership index must be the index of the terminology provider.");
+      }
       terminologyProvider = tp;
+      membershipIndex = index;
     }
 
     public TerminologyProvider resolveTerminologyProvider() {
       return terminologyProvider;
     }
 
+    /**
+     * Returns the membership index of the registered terminology provider, which expands each value set once and
+     * answers membership checks against it for the lifetime of the index.
+     * @return the membership index, or null if no terminology provider is registered
+     */
+    public MembershipIndex resolveMembershipIndex() {
+      return membershipIndex;
+    }
+
     private Map<VersionedIdentifier, ExternalFunctionProvider> externalFunctionProviders = new HashMap<>();
 
     public void registerExternalFunctionProvider(VersionedIdentifier identifier, ExternalFunctionProvider provider) {
@@ -769,6 +871,9 @@ public class Context {
     public void setContextValue(String context, Object contextValue) {
         if (hasContextValueChanged(context, contextValue)) {
             clearExpressions();
+            if (retrieveCache != null) {
+                retrieveCache.clear();
+            }
         }
 
         contextValues.put(context, contextValue);
@@ -864,6 +969,24 @@ public class Context {
         return dataProvider.resolvePath(target, path);
     }
 
+    /**
+     * Returns the values of the elements of a model object, as enumerated by the data provider of its package, or null
+     * if the value is not a model object of a registered model.
+     */
+    public Iterable<Object> resolveElements(Object target) {
+        if (target == null) {
+            return null;
+        }
+
+        Package targetPackage = target.getClass().getPackage();
+        if (targetPackage == null || targetPackage.getName().startsWith("java.")) {
+            return null;
+        }
+
+        DataProvider dataProvider = resolveDataProvider(targetPackage.getName(), false);
+        return dataProvider == null ? null : dataProvider.resolveElements(target);
+    }
+
     public void setValue(Object target, String path, Object value) {
         if (target == null) {
             return;
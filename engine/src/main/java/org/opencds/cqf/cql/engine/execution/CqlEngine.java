@@ -9,6 +9,7 @@ import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.cqframework.cql.elm.execution.ExpressionDef;
@@ -20,6 +21,7 @@ import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.debug.DebugMap;
 import org.opencds.cqf.cql.engine.exception.CqlException;
+import org.opencds.cqf.cql.engine.terminology.MembershipIndex;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 
 /**
@@ -47,13 +49,27 @@ public class CqlEngine {
 
     public enum Options {
         EnableExpressionCaching,
-        EnableValidation
+        EnableValidation,
+        // Caches the results of retrieves for each context value, across expressions and libraries
+        EnableRetrieveCaching,
+        // Makes the retrieves of the expressions evaluated up front, concurrently on the prefetch executor, and answers
+        // retrieves from the prefetched data. Retrieves filtered by dates are still made during evaluation.
+        EnableDataPrefetch,
+        // Expands all the value sets of the libraries before evaluation, so codes are classified against all of them.
+        // The expansions are kept by the engine, so they're made once rather than for every evaluation.
+        EnableValueSetIndexing,
+        // Answers Exists, Count and First of a retrieve with a first-only or count-only retrieve, rather than retrieving
+        // every resource. The resources that aren't retrieved aren't among the evaluated resources.
+        EnableCardinalityPushdown
     }
 
     private LibraryLoader libraryLoader;
     private Map<String, DataProvider> dataProviders;
     private TerminologyProvider terminologyProvider;
+    // shared by the contexts of all the evaluations, so each value set is expanded once per engine
+    private MembershipIndex membershipIndex;
     private EnumSet<Options> engineOptions;
+    private Executor prefetchExecutor;
 
     public CqlEngine(LibraryLoader libraryLoader) {
         this(libraryLoader, null, null, null);
@@ -68,6 +84,15 @@ public class CqlEngine {
     }
 
     public CqlEngine(LibraryLoader libraryLoader, Map<String, DataProvider> dataProviders, TerminologyProvider terminologyProvider, EnumSet<Options> engineOptions) {
+        this(libraryLoader, dataProviders, terminologyProvider, engineOptions, null);
+    }
+
+    /**
+     * @param prefetchExecutor - the executor the retrieves of the EnableDataPrefetch option are made on. As they block
+     *                         on the data providers, it should not be a pool shared with computations, such as the
+     *                         common ForkJoinPool. If null, they are made one after the other on the evaluating thread.
+     */
+    public CqlEngine(LibraryLoader libraryLoader, Map<String, DataProvider> dataProviders, TerminologyProvider terminologyProvider, EnumSet<Options> engineOptions, Executor prefetchExecutor) {
 
         if (libraryLoader == null) {
             throw new IllegalArgumentException("libraryLoader can not be null.");
@@ -80,7 +105,9 @@ public class CqlEngine {
         this.libraryLoader = libraryLoader;
         this.dataProviders = dataProviders;
         this.terminologyProvider = terminologyProvider;
+        this.membershipIndex = terminologyProvider == null ? null : new MembershipIndex(terminologyProvider);
         this.engineOptions = engineOptions;
+        this.prefetchExecutor = prefetchExecutor;
     }
 
     // TODO: Add debugging info as a parameter.
@@ -166,6 +193,11 @@ public class CqlEngine {
         Context context = this.initializeContext(libraryCache, library, debugMap, evaluationDateTime);
         this.setParametersForContext(library, context, contextParameter, parameters);
 
+        if (this.engineOptions.contains(Options.EnableDataPrefetch)) {
+            DataRequirements.prefetch(context, DataRequirements.merge(DataRequirements.collect(context, expressions)),
+                    prefetchExecutor == null ? Runnable::run : prefetchExecutor);
+        }
+
         return this.evaluateExpressions(context, expressions);
     }
 
@@ -233,8 +265,19 @@ public class CqlEngine {
             context.setExpressionCaching(true);
         }
 
+        if (this.engineOptions.contains(Options.EnableRetrieveCaching)) {
+            context.setRetrieveCaching(true);
+        }
+
+        if (this.engineOptions.contains(Options.EnableCardinalityPushdown)) {
+            context.setCardinalityPushdown(true);
+        }
+
         if (this.terminologyProvider != null) {
-            context.registerTerminologyProvider(this.terminologyProvider);
+            context.registerTerminologyProvider(this.terminologyProvider, this.membershipIndex);
+            if (this.engineOptions.contains(Options.EnableValueSetIndexing)) {
+                context.resolveMembershipIndex().registerValueSets(context);
+            }
         }
 
         if (this.dataProviders != null) {
@@ -0,0 +1,396 @@
+package org.opencds.cqf.cql.engine.execution;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import javax.xml.namespace.QName;
+
+import org.cqframework.cql.elm.execution.AliasRef;
+import org.cqframework.cql.elm.execution.As;
+import org.cqframework.cql.elm.execution.CodeRef;
+import org.cqframework.cql.elm.execution.ConceptRef;
+import org.cqframework.cql.elm.execution.Element;
+import org.cqframework.cql.elm.execution.Expression;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.ExpressionRef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.cqframework.cql.elm.execution.FunctionRef;
+import org.cqframework.cql.elm.execution.IdentifierRef;
+import org.cqframework.cql.elm.execution.Literal;
+import org.cqframework.cql.elm.execution.OperandRef;
+import org.cqframework.cql.elm.execution.ParameterRef;
+import org.cqframework.cql.elm.execution.Property;
+import org.cqframework.cql.elm.execution.Query;
+import org.cqframework.cql.elm.execution.QueryLetRef;
+import org.cqframework.cql.elm.execution.Retrieve;
+import org.cqframework.cql.elm.execution.ToConcept;
+import org.cqframework.cql.elm.execution.ToList;
+import org.cqframework.cql.elm.execution.ValueSetRef;
+import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.elm.execution.ValueSetRefEvaluator;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveCache;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Concept;
+import org.opencds.cqf.cql.engine.runtime.ValueSet;
+
+/*
+Determines the retrieves a library makes before it is evaluated, so the data can be fetched up front.
+
+collect walks the expressions to evaluate and the expressions they reference, in the library and the libraries it
+    includes, and returns a requirement for every retrieve. Functions aren't walked, as their retrieves depend on their
+    operands, nor are the expressions of the Unfiltered context, which aren't made for a context value. The retrieves
+    they make are made during evaluation.
+merge reduces the requirements to the retrieves to prefetch: for each context, data type and template, the union of
+    the code filters - one retrieve per value set and one retrieve with all the codes of each code path - if every
+    retrieve of the type is filtered by a value set or by codes known before evaluation, and otherwise a single
+    retrieve without filters. Date ranges aren't prefetched, the retrieves are made without them.
+prefetch makes those retrieves concurrently for the current context values, and puts the results in the retrieve cache
+    of the context, which answers the retrieves made during evaluation - the ones filtered by codes by filtering the
+    prefetched data in memory (see RetrieveCache). The retrieves filtered by dates are made during evaluation, as the
+    date search of a server may differ from filtering by dates in memory.
+*/
+
+public class DataRequirements {
+
+    // the fields of each ELM class that may hold other elements
+    private static final Map<Class<?>, List<Field>> ELEMENT_FIELDS = new ConcurrentHashMap<>();
+
+    private DataRequirements() {
+    }
+
+    /*
+    Returns the retrieves made by all the expressions of the current library of the context.
+     */
+    public static List<RetrieveRequirement> collect(Context context) {
+        Set<String> expressions = new LinkedHashSet<>();
+        if (context.getCurrentLibrary().getStatements() != null) {
+            for (ExpressionDef def : context.getCurrentLibrary().getStatements().getDef()) {
+                expressions.add(def.getName());
+            }
+        }
+        return collect(context, expressions);
+    }
+
+    /*
+    Returns the retrieves made by the given expressions of the current library of the context, and by the expressions
+        they reference.
+     */
+    public static List<RetrieveRequirement> collect(Context context, Set<String> expressions) {
+        Set<RetrieveRequirement> requirements = new LinkedHashSet<>();
+        Set<ExpressionDef> collected = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (String expression : expressions) {
+            collect(context, context.resolveExpressionRef(expression), requirements, collected);
+        }
+        return new ArrayList<>(requirements);
+    }
+
+    private static void collect(Context context, ExpressionDef def, Set<RetrieveRequirement> requirements,
+            Set<ExpressionDef> collected) {
+        if (def instanceof FunctionDef || "Unfiltered".equals(def.getContext()) || !collected.add(def)) {
+            return;
+        }
+
+        List<Retrieve> retrieves = new ArrayList<>();
+        List<ExpressionRef> references = new ArrayList<>();
+        find(def.getExpression(), retrieves, references, Collections.newSetFromMap(new IdentityHashMap<>()));
+        for (Retrieve retrieve : retrieves) {
+            requirements.add(toRequirement(context, def.getContext(), retrieve));
+        }
+
+        for (ExpressionRef reference : references) {
+            boolean enteredLibrary = context.enterLibrary(reference.getLibraryName());
+            try {
+                collect(context, context.resolveExpressionRef(reference.getName()), requirements, collected);
+            }
+            finally {
+                context.exitLibrary(enteredLibrary);
+            }
+        }
+    }
+
+    private static RetrieveRequirement toRequirement(Context context, String contextName, Retrieve retrieve) {
+        String valueSet = null;
+        List<Code> codes = null;
+        if (retrieve.getCodes() instanceof ValueSetRef) {
+            valueSet = ValueSetRefEvaluator.toValueSet(context, (ValueSetRef) retrieve.getCodes()).getId();
+        }
+        else if (retrieve.getCodes() != null && isKnownBeforeEvaluation(retrieve.getCodes())) {
+            Object value;
+            try {
+                value = retrieve.getCodes().evaluate(context);
+            }
+            catch (RuntimeException e) {
+                value = null;
+            }
+            if (value instanceof ValueSet) {
+                valueSet = ((ValueSet) value).getId();
+            }
+            else {
+                codes = toCodes(value);
+            }
+        }
+        return new RetrieveRequirement(contextName, context.fixupQName(retrieve.getDataType()),
+                retrieve.getTemplateId(), retrieve.getCodes() == null ? null : retrieve.getCodeProperty(), valueSet,
+                codes, retrieve.getCodes() != null, retrieve.getDateRange() != null);
+    }
+
+    // whether the code filter only depends on the terminology and parameters of the library
+    private static boolean isKnownBeforeEvaluation(Expression codes) {
+        if (codes instanceof org.cqframework.cql.elm.execution.Code || codes instanceof CodeRef
+                || codes instanceof ConceptRef || codes instanceof ValueSetRef || codes instanceof Literal
+                || codes instanceof ParameterRef) {
+            return true;
+        }
+        if (codes instanceof org.cqframework.cql.elm.execution.Concept) {
+            for (Expression code : ((org.cqframework.cql.elm.execution.Concept) codes).getCode()) {
+                if (!isKnownBeforeEvaluation(code)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (codes instanceof org.cqframework.cql.elm.execution.List) {
+            for (Expression element : ((org.cqframework.cql.elm.execution.List) codes).getElement()) {
+                if (!isKnownBeforeEvaluation(element)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (codes instanceof ToList || codes instanceof ToConcept || codes instanceof As) {
+            Expression operand = codes instanceof ToList ? ((ToList) codes).getOperand()
+                    : codes instanceof ToConcept ? ((ToConcept) codes).getOperand() : ((As) codes).getOperand();
+            return operand != null && isKnownBeforeEvaluation(operand);
+        }
+        return false;
+    }
+
+    // the codes of a code filter value, as the retrieve evaluator reads them, or null if they can't be read
+    private static List<Code> toCodes(Object value) {
+        List<Code> codes = new ArrayList<>();
+        for (Object element : value instanceof Iterable ? (Iterable<?>) value : Collections.singletonList(value)) {
+            if (element instanceof Code) {
+                codes.add((Code) element);
+            }
+            else if (element instanceof Concept && !(value instanceof Iterable)) {
+                ((Concept) element).getCodes().forEach(codes::add);
+            }
+            else if (element instanceof String && !(value instanceof Iterable)) {
+                codes.add(new Code().withCode((String) element));
+            }
+            else {
+                return null;
+            }
+        }
+        return codes.isEmpty() ? null : codes;
+    }
+
+    private static void find(Object node, List<Retrieve> retrieves, List<ExpressionRef> references,
+            Set<Object> visited) {
+        if (node instanceof Collection) {
+            for (Object element : (Collection<?>) node) {
+                find(element, retrieves, references, visited);
+            }
+            return;
+        }
+        if (!(node instanceof Element) || !visited.add(node)) {
+            return;
+        }
+
+        if (node instanceof Retrieve) {
+            retrieves.add((Retrieve) node);
+        }
+        // the operands of a function reference are walked, but not the function
+        if (node instanceof ExpressionRef && !(node instanceof FunctionRef)) {
+            references.add((ExpressionRef) node);
+        }
+        for (Field field : elementFields(node.getClass())) {
+            try {
+                find(field.get(node), retrieves, references, visited);
+            }
+            catch (IllegalAccessException e) {
+                throw new IllegalStateException(String.format("Could not read the %s of a %s", field.getName(),
+                        node.getClass().getSimpleName()), e);
+            }
+        }
+    }
+
+    /*
+    Returns whether the expression references nothing but the given alias of a query (and literals, operators and
+        functions of it), so it can be evaluated with only that alias in scope. References to other aliases, lets,
+        operands or expressions, queries and retrieves aren't.
+     */
+    public static boolean referencesOnly(Object node, String alias) {
+        if (node instanceof Collection) {
+            for (Object element : (Collection<?>) node) {
+                if (!referencesOnly(element, alias)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (!(node instanceof Element)) {
+            return true;
+        }
+
+        if (node instanceof AliasRef) {
+            return alias.equals(((AliasRef) node).getName());
+        }
+        if (node instanceof Property && ((Property) node).getScope() != null
+                && !alias.equals(((Property) node).getScope())) {
+            return false;
+        }
+        // the operands of a function reference are walked, but not the function
+        if ((node instanceof ExpressionRef && !(node instanceof FunctionRef)) || node instanceof QueryLetRef
+                || node instanceof IdentifierRef || node instanceof OperandRef || node instanceof Query
+                || node instanceof Retrieve) {
+            return false;
+        }
+        for (Field field : elementFields(node.getClass())) {
+            try {
+                if (!referencesOnly(field.get(node), alias)) {
+                    return false;
+                }
+            }
+            catch (IllegalAccessException e) {
+                throw new IllegalStateException(String.format("Could not read the %s of a %s", field.getName(),
+                        node.getClass().getSimpleName()), e);
+            }
+        }
+        return true;
+    }
+
+    private static List<Field> elementFields(Class<?> type) {
+        return ELEMENT_FIELDS.computeIfAbsent(type, t -> {
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> c = t; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())
+                            && (Element.class.isAssignableFrom(field.getType())
+                                || Collection.class.isAssignableFrom(field.getType()))) {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    }
+                }
+            }
+            return fields;
+        });
+    }
+
+    /*
+    Returns the retrieves that fetch the data for all the given requirements.
+     */
+    public static List<RetrieveRequirement> merge(List<RetrieveRequirement> requirements) {
+        Map<List<Object>, List<RetrieveRequirement>> byType = new LinkedHashMap<>();
+        for (RetrieveRequirement requirement : requirements) {
+            byType.computeIfAbsent(Arrays.asList(requirement.getContext(), requirement.getDataType(),
+                    requirement.getTemplateId()), k -> new ArrayList<>()).add(requirement);
+        }
+
+        List<RetrieveRequirement> merged = new ArrayList<>();
+        for (List<RetrieveRequirement> group : byType.values()) {
+            RetrieveRequirement first = group.get(0);
+            boolean byCodes = true;
+            for (RetrieveRequirement requirement : group) {
+                byCodes &= requirement.getCodePath() != null
+                        && (requirement.getValueSet() != null || requirement.getCodes() != null);
+            }
+
+            if (!byCodes) {
+                merged.add(new RetrieveRequirement(first.getContext(), first.getDataType(), first.getTemplateId(),
+                        null, null, false, false));
+                continue;
+            }
+
+            Set<List<String>> valueSets = new LinkedHashSet<>();
+            Map<String, Set<Code>> codesByPath = new LinkedHashMap<>();
+            for (RetrieveRequirement requirement : group) {
+                if (requirement.getValueSet() != null) {
+                    if (valueSets.add(Arrays.asList(requirement.getCodePath(), requirement.getValueSet()))) {
+                        merged.add(new RetrieveRequirement(first.getContext(), first.getDataType(),
+                                first.getTemplateId(), requirement.getCodePath(), requirement.getValueSet(), true,
+                                false));
+                    }
+                }
+                else {
+                    codesByPath.computeIfAbsent(requirement.getCodePath(), k -> new LinkedHashSet<>())
+                            .addAll(requirement.getCodes());
+                }
+            }
+            for (Map.Entry<String, Set<Code>> codes : codesByPath.entrySet()) {
+                merged.add(new RetrieveRequirement(first.getContext(), first.getDataType(), first.getTemplateId(),
+                        codes.getKey(), null, new ArrayList<>(codes.getValue()), true, false));
+            }
+        }
+        return merged;
+    }
+
+    /*
+    Makes the given retrieves (as returned by merge) concurrently on the executor, for the current context values, and
+        caches their results in the retrieve cache of the context, enabling retrieve caching if it isn't.
+     */
+    public static void prefetch(Context context, List<RetrieveRequirement> retrieves, Executor executor) {
+        if (!context.isRetrieveCachingEnabled()) {
+            context.setRetrieveCaching(true);
+        }
+        RetrieveCache cache = context.getRetrieveCache();
+
+        List<Runnable> puts = new ArrayList<>();
+        List<CompletableFuture<?>> fetches = new ArrayList<>();
+        for (RetrieveRequirement retrieve : retrieves) {
+            QName dataType = retrieve.getDataType();
+            DataProvider dataProvider = context.resolveDataProvider(dataType);
+            String contextPath = (String) dataProvider.getContextPath(retrieve.getContext(), dataType.getLocalPart());
+            context.enterContext(retrieve.getContext());
+            Object contextValue = context.getCurrentContextValue();
+            context.exitContext();
+
+            CompletableFuture<List<Object>> fetch = CompletableFuture.supplyAsync(() -> {
+                Iterable<Object> result = dataProvider.retrieve(retrieve.getContext(), contextPath, contextValue,
+                        dataType.getLocalPart(), retrieve.getTemplateId(), retrieve.getCodePath(),
+                        retrieve.getCodes(), retrieve.getValueSet(), null, null, null, null);
+                if (result == null) {
+                    return null;
+                }
+                List<Object> resources = new ArrayList<>();
+                result.forEach(resources::add);
+                return resources;
+            }, executor);
+            fetches.add(fetch);
+            puts.add(() -> {
+                List<Object> resources = fetch.join();
+                if (resources != null) {
+                    cache.put(dataProvider, retrieve.getContext(), contextPath, contextValue,
+                            dataType.getLocalPart(), retrieve.getTemplateId(), retrieve.getCodePath(),
+                            retrieve.getCodes(), retrieve.getValueSet(), null, null, null, null, resources);
+                }
+            });
+        }
+
+        try {
+            CompletableFuture.allOf(fetches.toArray(new CompletableFuture<?>[0])).join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        // the cache isn't thread-safe, so the results are put in it on this thread
+        puts.forEach(Runnable::run);
+    }
+}
@@ -0,0 +1,104 @@
+package org.opencds.cqf.cql.engine.execution;
+
+import java.util.List;
+import java.util.Objects;
+
+import javax.xml.namespace.QName;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/*
+A retrieve made by a library: the context it is made in, the type and template of the data, and its filters. The value
+    set or codes of a retrieve filtered by terminology references (or literals and parameters) are known before
+    evaluation; other code filters and date filters depend on evaluation, so only their presence is recorded.
+*/
+
+public class RetrieveRequirement {
+
+    private final String context;
+    private final QName dataType;
+    private final String templateId;
+    private final String codePath;
+    private final String valueSet;
+    private final List<Code> codes;
+    private final boolean codeFiltered;
+    private final boolean dateFiltered;
+
+    public RetrieveRequirement(String context, QName dataType, String templateId, String codePath, String valueSet,
+            boolean codeFiltered, boolean dateFiltered) {
+        this(context, dataType, templateId, codePath, valueSet, null, codeFiltered, dateFiltered);
+    }
+
+    public RetrieveRequirement(String context, QName dataType, String templateId, String codePath, String valueSet,
+            List<Code> codes, boolean codeFiltered, boolean dateFiltered) {
+        this.context = context;
+        this.dataType = dataType;
+        this.templateId = templateId;
+        this.codePath = codePath;
+        this.valueSet = valueSet;
+        this.codes = codes;
+        this.codeFiltered = codeFiltered;
+        this.dateFiltered = dateFiltered;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public QName getDataType() {
+        return dataType;
+    }
+
+    public String getTemplateId() {
+        return templateId;
+    }
+
+    public String getCodePath() {
+        return codePath;
+    }
+
+    // the id of the value set the retrieve is filtered by, or null
+    public String getValueSet() {
+        return valueSet;
+    }
+
+    // the codes the retrieve is filtered by, or null
+    public List<Code> getCodes() {
+        return codes;
+    }
+
+    public boolean isCodeFiltered() {
+        return codeFiltered;
+    }
+
+    public boolean isDateFiltered() {
+        return dateFiltered;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof RetrieveRequirement)) {
+            return false;
+        }
+        RetrieveRequirement that = (RetrieveRequirement) other;
+        return codeFiltered == that.codeFiltered && dateFiltered == that.dateFiltered
+                && Objects.equals(context, that.context) && Objects.equals(dataType, that.dataType)
+                && Objects.equals(templateId, that.templateId) && Objects.equals(codePath, that.codePath)
+                && Objects.equals(valueSet, that.valueSet) && Objects.equals(codes, that.codes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(context, dataType, templateId, codePath, valueSet, codes, codeFiltered, dateFiltered);
+    }
+
+    @Override
+    public String toString() {
+        String filter = valueSet != null ? ": " + valueSet : codeFiltered ? ": codes" : "";
+        return String.format("[%s%s]%s in %s", dataType.getLocalPart(), filter, dateFiltered ? " with dates" : "",
+                context);
+    }
+}
@@ -0,0 +1,56 @@
+package org.opencds.cqf.cql.engine.execution;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/*
+Coalesces concurrent identical calls: while a call for a key is in flight, other threads calling with an equal key wait
+    for it and share its result (or its failure) rather than making the same call again. Once the call completes, the
+    next call for the key is made afresh - results are not cached.
+
+A call must not make a nested call with its own key on the same instance, as it would wait for itself.
+*/
+
+public class SingleFlight<K, V> {
+
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    public V execute(K key, Supplier<V> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            return await(leader);
+        }
+
+        try {
+            V value = call.get();
+            flight.complete(value);
+            return value;
+        }
+        catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    private static <V> V await(CompletableFuture<V> flight) {
+        try {
+            return flight.join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.opencds.cqf.cql.engine.execution;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.fhir.ucum.Decimal;
+import org.fhir.ucum.UcumService;
+
+/*
+Converts quantity values between UCUM units.
+
+Conversions between the common clinical units in the table below (mass, volume, length, substance and mass
+    concentration, dimensionless and time units) are answered from precomputed factors without consulting the UCUM
+    service, whenever the factor between the two units is an exact decimal. These results are the exact products of the
+    value and the factor, where the UCUM service may round them to the significant digits of the value (e.g.
+    123456.789 'h' is 444444440.4 's', where UCUM reports 444444440).
+
+All other conversions are delegated to the UCUM service. The outcome of resolving a pair of units (a table factor, a
+    delegated conversion or an inconvertible pair) is cached, so the UCUM service is only loaded when a conversion
+    actually needs it and an inconvertible pair only fails once.
+*/
+
+public class UnitConverter {
+
+    private static final class Unit {
+        private final String dimension;
+        private final BigDecimal factor;
+
+        private Unit(String dimension, String factor) {
+            this.dimension = dimension;
+            this.factor = new BigDecimal(factor);
+        }
+    }
+
+    private static final class Conversion {
+        // the factor from the source to the target unit, or null if the conversion is delegated to UCUM
+        private final BigDecimal factor;
+        private final boolean convertible;
+
+        private Conversion(BigDecimal factor, boolean convertible) {
+            this.factor = factor;
+            this.convertible = convertible;
+        }
+    }
+
+    private static final Conversion DELEGATED = new Conversion(null, true);
+    private static final Conversion INCONVERTIBLE = new Conversion(null, false);
+
+    // factors relative to the base unit of each dimension, as defined by UCUM
+    private static final Map<String, Unit> UNITS = new HashMap<>();
+    static {
+        UNITS.put("ug", new Unit("mass", "0.000001"));
+        UNITS.put("mg", new Unit("mass", "0.001"));
+        UNITS.put("g", new Unit("mass", "1"));
+        UNITS.put("kg", new Unit("mass", "1000"));
+
+        UNITS.put("uL", new Unit("volume", "0.000001"));
+        UNITS.put("mL", new Unit("volume", "0.001"));
+        UNITS.put("dL", new Unit("volume", "0.1"));
+        UNITS.put("L", new Unit("volume", "1"));
+        UNITS.put("l", new Unit("volume", "1"));
+
+        UNITS.put("mm", new Unit("length", "0.001"));
+        UNITS.put("cm", new Unit("length", "0.01"));
+        UNITS.put("m", new Unit("length", "1"));
+        UNITS.put("km", new Unit("length", "1000"));
+
+        UNITS.put("umol/L", new Unit("substance concentration", "0.000001"));
+        UNITS.put("mmol/L", new Unit("substance concentration", "0.001"));
+        UNITS.put("mol/L", new Unit("substance concentration", "1"));
+
+        UNITS.put("mg/dL", new Unit("mass concentration", "0.01"));
+        UNITS.put("mg/L", new Unit("mass concentration", "0.001"));
+        UNITS.put("g/dL", new Unit("mass concentration", "10"));
+        UNITS.put("g/L", new Unit("mass concentration", "1"));
+
+        UNITS.put("%", new Unit("dimensionless", "0.01"));
+        UNITS.put("1", new Unit("dimensionless", "1"));
+
+        UNITS.put("ms", new Unit("time", "0.001"));
+        UNITS.put("s", new Unit("time", "1"));
+        UNITS.put("min", new Unit("time", "60"));
+        UNITS.put("h", new Unit("time", "3600"));
+        UNITS.put("d", new Unit("time", "86400"));
+        UNITS.put("wk", new Unit("time", "604800"));
+        // mean Julian month and year
+        UNITS.put("mo", new Unit("time", "2629800"));
+        UNITS.put("a", new Unit("time", "31557600"));
+    }
+
+    // table conversions do not depend on the UCUM service, so they are shared
+    private static final Map<String, Conversion> tableConversions = new ConcurrentHashMap<>();
+
+    private final Map<String, Conversion> conversions = new ConcurrentHashMap<>();
+    private final Supplier<UcumService> ucumService;
+
+    public UnitConverter(Supplier<UcumService> ucumService) {
+        this.ucumService = ucumService;
+    }
+
+    /*
+    Returns the given value converted from the source unit to the target unit, or null if the units can't be converted
+        (including when there is no UCUM service for a conversion that needs one).
+     */
+    public BigDecimal convert(BigDecimal value, String fromUnit, String toUnit) {
+        String key = fromUnit + '\u0000' + toUnit;
+        Conversion conversion = tableConversions.get(key);
+        if (conversion == null) {
+            conversion = conversions.computeIfAbsent(key, k -> resolve(fromUnit, toUnit));
+        }
+
+        if (!conversion.convertible) {
+            return null;
+        }
+        if (conversion.factor != null) {
+            return value.multiply(conversion.factor);
+        }
+
+        UcumService service = ucumService.get();
+        if (service == null) {
+            return null;
+        }
+        try {
+            return new BigDecimal(service.convert(new Decimal(String.valueOf(value)), fromUnit, toUnit).asDecimal());
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    private Conversion resolve(String fromUnit, String toUnit) {
+        Unit from = UNITS.get(fromUnit);
+        Unit to = UNITS.get(toUnit);
+        if (from != null && to != null && from.dimension.equals(to.dimension)) {
+            try {
+                BigDecimal factor = from.factor.divide(to.factor).stripTrailingZeros();
+                Conversion conversion = new Conversion(factor.scale() < 0 ? factor.setScale(0) : factor, true);
+                tableConversions.put(fromUnit + '\u0000' + toUnit, conversion);
+                return conversion;
+            }
+            catch (ArithmeticException e) {
+                // non-terminating factor (e.g. hours to days) - UCUM decides the precision of the result
+                return DELEGATED;
+            }
+        }
+
+        UcumService service = ucumService.get();
+        if (service == null) {
+            // the conversion returns null while there is no service
+            return DELEGATED;
+        }
+        try {
+            if (service.validate(fromUnit) != null || service.validate(toUnit) != null
+                    || !service.isComparable(fromUnit, toUnit))
+            {
+                return INCONVERTIBLE;
+            }
+        }
+        catch (Exception e) {
+            return INCONVERTIBLE;
+        }
+
+        return DELEGATED;
+    }
+}
@@ -60,6 +60,20 @@ public interface ModelResolver {
      */
     Object resolvePath(Object target, String path);
 
+    /**
+     * Return the values of all the elements of the provided model object, e.g.
+     * for the Children and Descendents operators. The values of list-valued
+     * elements may be returned individually or as lists.
+     *
+     * @param target model object instance
+     * @return the values of the elements of the target, or null if the target
+     * is not a structured model object or the model does not support
+     * enumerating its elements.
+     */
+    default Iterable<Object> resolveElements(Object target) {
+        return null;
+    }
+
     /**
      * Get the path expression that expresses the relationship between
      * the <code>targetType</code> and the given <code>contextType</code>.
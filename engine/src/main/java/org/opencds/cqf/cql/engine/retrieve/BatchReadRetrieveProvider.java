@@ -0,0 +1,19 @@
+package org.opencds.cqf.cql.engine.retrieve;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A RetrieveProvider that can read several resources of a type by id with a single request (e.g. with a FHIR search
+ * on _id), so the resources a query retrieves by id for each of its rows (e.g. the Medications of MedicationRequests)
+ * can be read together rather than one row at a time. The engine reads them ahead of the rows of the query and keeps
+ * them in the retrieve cache of the evaluation context.
+ */
+public interface BatchReadRetrieveProvider extends RetrieveProvider {
+
+    /**
+     * Reads the resources of the given type with the given ids, and returns them by id. Ids that aren't found are left
+     * out. Returns null if the provider can't read resources of the type together.
+     */
+    Map<String, Object> read(String dataType, List<String> ids);
+}
@@ -0,0 +1,24 @@
+package org.opencds.cqf.cql.engine.retrieve;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+/**
+ * A RetrieveProvider that can fetch the resources related to the retrieved ones along with them (e.g. with the
+ * _include and _revinclude parameters of a FHIR search), so the retrieves that follow the references of a retrieve
+ * can be answered without querying the provider again.
+ */
+public interface IncludeRetrieveProvider extends RetrieveProvider {
+
+    /**
+     * Retrieves the resources as {@link RetrieveProvider#retrieve}, and passes each resource of an included type to
+     * the given consumer, with the name of its type. Includes the provider doesn't support are ignored.
+     */
+    Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange, List<RetrieveInclude> includes,
+            BiConsumer<String, Object> included);
+}
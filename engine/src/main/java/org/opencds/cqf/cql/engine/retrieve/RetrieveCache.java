@@ -0,0 +1,639 @@
+package org.opencds.cqf.cql.engine.retrieve;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.elm.execution.InEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.OverlapsEvaluator;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.runtime.BaseTemporal;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Concept;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.terminology.MembershipIndex;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+/*
+Caches the results of retrieves for an evaluation context, keyed by all the arguments of the retrieve, so the same
+    retrieve in different expressions (or libraries) is only made once. The results are read into unmodifiable lists.
+    Results can also be put in the cache ahead of evaluation, see DataRequirements.
+
+A retrieve filtered by codes, a value set or a date range is answered from a cached retrieve with the same arguments
+    but fewer filters - or filtered by the same value set or by more codes on the same code path, and no date range - by
+    filtering its resources in memory:
+    - The codes of a resource are resolved from the code path through the data provider: the value may be a Code,
+      Concept, String or list of them, a model primitive with a string value, a model coding with system and code
+      properties, or a model concept with a coding property. Value sets are checked through the membership index of
+      the context. The codes of each resource are resolved and classified against the indexed value sets once, so the
+      same retrieve filtered by several value sets is answered with a bit test per resource.
+    - The date of a resource is resolved from the date path (or the low and high date paths): the value may be a Date,
+      DateTime or Interval of them, a model primitive with such a value, or a model period with start and end
+      properties. A date must be in the range, and an interval must overlap it.
+    If a filter can't be applied to every resource (or a value set filter can't be checked for lack of a terminology
+    provider), the retrieve is made through the provider instead.
+Resources put in the cache ahead of evaluation aren't filtered by dates: they were retrieved without a date range, and
+    the date search of a server (e.g. a FHIR search on a date parameter, which may match other elements or use other
+    boundaries) may differ from the In and Overlaps semantics of the filter. A retrieve filtered by dates is then made
+    through the provider.
+
+A retrieve with include elements is made through an IncludeRetrieveProvider, and the related resources fetched along
+    with it are kept by the retrieve (its library and local id), context and type they were included in. A retrieve
+    included in another one (per the includedIn attribute of the ELM) is answered by filtering the resources of its
+    type included by that retrieve the same way, if that retrieve was made with its includes in the context. Otherwise,
+    or if none of them match, the retrieve is made through the provider, as the include may not have covered it.
+
+The resources a query retrieves by id for each of its rows can be read together ahead of the rows through a
+    BatchReadRetrieveProvider (see Query). A retrieve by id - with the id code path, no other filter, and a data type
+    that isn't related to the context - of resources read that way is answered from them.
+
+Like the context it belongs to, the cache is not thread-safe.
+*/
+
+public class RetrieveCache {
+
+    private static final Object UNRESOLVED = new Object();
+
+    private final Context evaluationContext;
+    private final Map<List<Object>, List<Object>> results = new HashMap<>();
+    private final Map<List<Object>, List<Object>> included = new HashMap<>();
+    private final Map<List<Object>, Set<String>> includedIds = new HashMap<>();
+    // the retrieve without filters -> the retrieves filtered by codes (and no date range) of the same data
+    private final Map<List<Object>, List<CodeFiltered>> codeFiltered = new HashMap<>();
+    // the results put in the cache ahead of evaluation, by identity
+    private final Set<List<Object>> prefetched = Collections.newSetFromMap(new IdentityHashMap<>());
+    // code path -> the codes of the resources at that path, by resource identity
+    private final Map<String, Map<Object, ResourceCodes>> resourceCodes = new HashMap<>();
+    // (data provider, data type) -> the resources read together, by id
+    private final Map<List<Object>, Map<String, Object>> reads = new HashMap<>();
+    private long hits;
+    private long filteredHits;
+    private long misses;
+
+    public RetrieveCache(Context evaluationContext) {
+        this.evaluationContext = evaluationContext;
+    }
+
+    public Iterable<Object> retrieve(DataProvider dataProvider, String context, String contextPath,
+            Object contextValue, String dataType, String templateId, String codePath, Iterable<Code> codes,
+            String valueSet, String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+
+        boolean codeFiltered = codes != null || valueSet != null;
+        List<Object> key = key(dataProvider, context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        if (results.containsKey(key)) {
+            ++hits;
+            return results.get(key);
+        }
+
+        List<Object> read = contextPath == null && "id".equals(codePath) && valueSet == null && dateRange == null
+                ? getRead(dataProvider, dataType, codes)
+                : null;
+        if (read != null) {
+            ++hits;
+            results.put(key, read);
+            return read;
+        }
+
+        // answer a retrieve filtered by codes from the cached retrieve without the code filter, or a retrieve filtered
+        // by dates from the cached retrieve without any filter
+        List<Object> filtered = null;
+        if (codeFiltered && codePath != null) {
+            filtered = filter(dataProvider, results.get(key(dataProvider, context, contextPath, contextValue, dataType,
+                    templateId, null, null, null, datePath, dateLowPath, dateHighPath, dateRange)),
+                    codePath, codes, valueSet, null, null, null, null);
+        }
+        // or from a cached retrieve filtered by the same value set or more codes, without the date range
+        List<Object> unfilteredKey = key(dataProvider, context, contextPath, contextValue, dataType, templateId, null,
+                null, null, null, null, null, null);
+        if (filtered == null && codeFiltered && codePath != null) {
+            filtered = filterCodeFiltered(dataProvider, unfilteredKey, codePath, codes, valueSet, dateRange, datePath,
+                    dateLowPath, dateHighPath);
+        }
+        if (filtered == null && dateRange != null && (datePath != null || dateLowPath != null || dateHighPath != null)
+                && (!codeFiltered || codePath != null)) {
+            List<Object> unfiltered = results.get(unfilteredKey);
+            filtered = prefetched.contains(unfiltered) ? null : filter(dataProvider, unfiltered,
+                    codeFiltered ? codePath : null, codes, valueSet, dateRange, datePath, dateLowPath, dateHighPath);
+        }
+        if (filtered != null) {
+            ++filteredHits;
+            results.put(key, filtered);
+            return filtered;
+        }
+
+        ++misses;
+        Iterable<Object> result = dataProvider.retrieve(context, contextPath, contextValue, dataType, templateId,
+                codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        if (result == null) {
+            return null;
+        }
+        List<Object> resources = new ArrayList<>();
+        result.forEach(resources::add);
+        resources = Collections.unmodifiableList(resources);
+        results.put(key, resources);
+        if (dateRange == null) {
+            keepCodeFiltered(unfilteredKey, codeFiltered ? codePath : null, codes, valueSet, resources);
+        }
+        return resources;
+    }
+
+    /*
+    Returns the cached result of the retrieve with the given arguments, or null if it isn't cached.
+     */
+    public List<Object> getCached(DataProvider dataProvider, String context, String contextPath, Object contextValue,
+            String dataType, String templateId, String codePath, Iterable<Code> codes, String valueSet,
+            String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+        List<Object> resources = results.get(key(dataProvider, context, contextPath, contextValue, dataType,
+                templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange));
+        if (resources != null) {
+            ++hits;
+        }
+        return resources;
+    }
+
+    /*
+    Makes a retrieve with includes through the data provider, if it isn't cached, and keeps the included resources by
+        the local id of the retrieve.
+     */
+    public Iterable<Object> retrieve(DataProvider dataProvider, String context, String contextPath,
+            Object contextValue, String dataType, String templateId, String codePath, Iterable<Code> codes,
+            String valueSet, String datePath, String dateLowPath, String dateHighPath, Interval dateRange,
+            String localId, List<RetrieveInclude> includes) {
+        List<Object> key = key(dataProvider, context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        if (includes == null || includes.isEmpty() || !(dataProvider instanceof IncludeRetrieveProvider)
+                || results.containsKey(key)) {
+            return retrieve(dataProvider, context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                    valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        }
+
+        ++misses;
+        List<Object> includedIn = includedIn(dataProvider, context, contextValue, localId);
+        Iterable<Object> result = ((IncludeRetrieveProvider) dataProvider).retrieve(context, contextPath,
+                contextValue, dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath,
+                dateRange, includes, (type, resource) -> include(dataProvider, includedIn, type, resource));
+        if (result == null) {
+            return null;
+        }
+        List<Object> resources = new ArrayList<>();
+        result.forEach(resources::add);
+        resources = Collections.unmodifiableList(resources);
+        results.put(key, resources);
+        if (dateRange == null) {
+            keepCodeFiltered(key(dataProvider, context, contextPath, contextValue, dataType, templateId, null, null,
+                    null, null, null, null, null), codePath, codes, valueSet, resources);
+        }
+        return resources;
+    }
+
+    /*
+    Returns the resources of the type included by the retrieve with the given local id in the context that match the
+        filters, or null if there are none or that retrieve wasn't made with its includes in the context.
+     */
+    public List<Object> retrieveIncluded(DataProvider dataProvider, String context, Object contextValue,
+            String includedIn, String dataType, String codePath, Iterable<Code> codes, String valueSet,
+            String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+        boolean codeFiltered = codes != null || valueSet != null;
+        boolean dateFiltered = dateRange != null && (datePath != null || dateLowPath != null || dateHighPath != null);
+        List<Object> key = new ArrayList<>(includedIn(dataProvider, context, contextValue, includedIn));
+        key.add(dataType);
+        List<Object> resources = included.get(key);
+        if (resources == null || (codeFiltered && codePath == null)) {
+            return null;
+        }
+
+        List<Object> filtered = filter(dataProvider, resources, codeFiltered ? codePath : null, codes, valueSet,
+                dateFiltered ? dateRange : null, datePath, dateLowPath, dateHighPath);
+        if (filtered == null || filtered.isEmpty()) {
+            return null;
+        }
+        ++filteredHits;
+        return filtered;
+    }
+
+    // the retrieve with the local id in the current library, context and context value
+    private List<Object> includedIn(DataProvider dataProvider, String context, Object contextValue, String localId) {
+        VersionedIdentifier library = evaluationContext.getCurrentLibrary().getIdentifier();
+        return Arrays.asList(dataProvider, context, contextValue, library.getId(), library.getVersion(), localId);
+    }
+
+    // resources included several times by a retrieve are kept once
+    private void include(ModelResolver modelResolver, List<Object> includedIn, String dataType, Object resource) {
+        List<Object> key = new ArrayList<>(includedIn);
+        key.add(dataType);
+        String id;
+        try {
+            id = toString(modelResolver, modelResolver.resolvePath(resource, "id"));
+        }
+        catch (RuntimeException e) {
+            id = null;
+        }
+        if (id == null || includedIds.computeIfAbsent(key, k -> new HashSet<>()).add(id)) {
+            included.computeIfAbsent(key, k -> new ArrayList<>()).add(resource);
+        }
+    }
+
+    /*
+    Reads the resources of the type with the given ids together through the data provider, if it's a
+        BatchReadRetrieveProvider, so the retrieves by id of the resources are answered from the cache. Ids that were
+        read already are skipped, and a single id is left to its retrieve.
+     */
+    public void readTogether(DataProvider dataProvider, String dataType, Collection<String> ids) {
+        if (!(dataProvider instanceof BatchReadRetrieveProvider)) {
+            return;
+        }
+        Map<String, Object> read = reads.computeIfAbsent(Arrays.asList(dataProvider, dataType), k -> new HashMap<>());
+        List<String> unread = new ArrayList<>(new LinkedHashSet<>(ids));
+        unread.removeIf(id -> id == null || read.containsKey(id));
+        if (unread.size() < 2) {
+            return;
+        }
+        Map<String, Object> resources = ((BatchReadRetrieveProvider) dataProvider).read(dataType, unread);
+        if (resources != null) {
+            read.putAll(resources);
+        }
+    }
+
+    // the resources read together with the given ids, or null if any of them wasn't read
+    private List<Object> getRead(DataProvider dataProvider, String dataType, Iterable<Code> codes) {
+        Map<String, Object> read = reads.get(Arrays.asList(dataProvider, dataType));
+        if (read == null || codes == null) {
+            return null;
+        }
+        List<Object> resources = new ArrayList<>();
+        for (Code code : codes) {
+            Object resource = code == null ? null : read.get(code.getCode());
+            if (resource == null) {
+                return null;
+            }
+            resources.add(resource);
+        }
+        return Collections.unmodifiableList(resources);
+    }
+
+    /*
+    Caches the resources as the result of the retrieve with the given arguments, made ahead of evaluation.
+     */
+    public void put(DataProvider dataProvider, String context, String contextPath, Object contextValue,
+            String dataType, String templateId, String codePath, Iterable<Code> codes, String valueSet,
+            String datePath, String dateLowPath, String dateHighPath, Interval dateRange, List<Object> resources) {
+        List<Object> cached = Collections.unmodifiableList(resources);
+        prefetched.add(cached);
+        results.put(key(dataProvider, context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                valueSet, datePath, dateLowPath, dateHighPath, dateRange), cached);
+        if (dateRange == null) {
+            keepCodeFiltered(key(dataProvider, context, contextPath, contextValue, dataType, templateId, null, null,
+                    null, null, null, null, null), codePath, codes, valueSet, cached);
+        }
+    }
+
+    private void keepCodeFiltered(List<Object> unfilteredKey, String codePath, Iterable<Code> codes, String valueSet,
+            List<Object> resources) {
+        if (codePath != null && (codes != null || valueSet != null)) {
+            codeFiltered.computeIfAbsent(unfilteredKey, k -> new ArrayList<>())
+                    .add(new CodeFiltered(codePath, codes, valueSet, resources));
+        }
+    }
+
+    private List<Object> filterCodeFiltered(ModelResolver modelResolver, List<Object> unfilteredKey, String codePath,
+            Iterable<Code> codes, String valueSet, Interval dateRange, String datePath, String dateLowPath,
+            String dateHighPath) {
+        for (CodeFiltered candidate : codeFiltered.getOrDefault(unfilteredKey, Collections.emptyList())) {
+            if (!candidate.codePath.equals(codePath)
+                    || !(valueSet != null ? valueSet.equals(candidate.valueSet) : candidate.covers(codes))
+                    || (dateRange != null && prefetched.contains(candidate.resources))) {
+                continue;
+            }
+            // the resources of the same value set only need filtering by dates
+            List<Object> filtered = filter(modelResolver, candidate.resources, valueSet != null ? null : codePath,
+                    codes, null, dateRange, datePath, dateLowPath, dateHighPath);
+            if (filtered != null) {
+                return filtered;
+            }
+        }
+        return null;
+    }
+
+    public void clear() {
+        results.clear();
+        included.clear();
+        includedIds.clear();
+        codeFiltered.clear();
+        prefetched.clear();
+        resourceCodes.clear();
+        reads.clear();
+    }
+
+    // the retrieves answered from the cache
+    public long getHits() {
+        return hits;
+    }
+
+    // the retrieves answered by filtering a cached retrieve with fewer filters
+    public long getFilteredHits() {
+        return filteredHits;
+    }
+
+    // the retrieves made through the data provider
+    public long getMisses() {
+        return misses;
+    }
+
+    // the code path is ignored by retrieves without codes, and the date paths by retrieves without a date range
+    private static List<Object> key(DataProvider dataProvider, String context, String contextPath,
+            Object contextValue, String dataType, String templateId, String codePath, Iterable<Code> codes,
+            String valueSet, String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+        boolean codeFiltered = codes != null || valueSet != null;
+        return Arrays.asList(dataProvider, SingleFlightRetrieveProvider.key(context, contextPath, contextValue,
+                dataType, templateId, codeFiltered ? codePath : null, codes, valueSet,
+                dateRange == null ? null : datePath, dateRange == null ? null : dateLowPath,
+                dateRange == null ? null : dateHighPath, dateRange));
+    }
+
+    /*
+    Returns the resources matching the code filter (if the code path isn't null) and the date range (if it isn't
+        null), or null if the retrieve isn't cached or the filters can't be applied in memory.
+     */
+    private List<Object> filter(ModelResolver modelResolver, List<Object> resources, String codePath,
+            Iterable<Code> codes, String valueSet, Interval dateRange, String datePath, String dateLowPath,
+            String dateHighPath) {
+        MembershipIndex membershipIndex = evaluationContext.resolveMembershipIndex();
+        if (resources == null || (codePath != null && valueSet != null && membershipIndex == null)) {
+            return null;
+        }
+        ValueSetInfo valueSetInfo = null;
+        int valueSetNumber = -1;
+        Map<Object, ResourceCodes> codesByResource = null;
+        if (codePath != null) {
+            if (valueSet != null) {
+                valueSetInfo = new ValueSetInfo().withId(valueSet);
+                try {
+                    valueSetNumber = membershipIndex.register(valueSetInfo);
+                }
+                catch (RuntimeException e) {
+                    return null;
+                }
+            }
+            codesByResource = resourceCodes.computeIfAbsent(codePath, k -> new IdentityHashMap<>());
+        }
+
+        List<Object> filtered = new ArrayList<>();
+        for (Object resource : resources) {
+            try {
+                if (codePath != null) {
+                    ResourceCodes codesOfResource = codesByResource.get(resource);
+                    if (codesOfResource == null) {
+                        codesOfResource = new ResourceCodes(
+                                codesOf(modelResolver, modelResolver.resolvePath(resource, codePath)));
+                        codesByResource.put(resource, codesOfResource);
+                    }
+                    if (codesOfResource.codes == null) {
+                        return null;
+                    }
+                    if (!(valueSetInfo != null
+                            ? codesOfResource.in(membershipIndex, valueSetInfo, valueSetNumber)
+                            : codesOfResource.matchesAny(codes))) {
+                        continue;
+                    }
+                }
+                if (dateRange != null) {
+                    Boolean inRange = inDateRange(modelResolver, resource, datePath, dateLowPath, dateHighPath,
+                            dateRange);
+                    if (inRange == null) {
+                        return null;
+                    }
+                    if (!inRange) {
+                        continue;
+                    }
+                }
+            }
+            catch (RuntimeException e) {
+                return null;
+            }
+            filtered.add(resource);
+        }
+        return Collections.unmodifiableList(filtered);
+    }
+
+    // a cached retrieve filtered by codes or a value set
+    private static class CodeFiltered {
+        private final String codePath;
+        private final List<Code> codes = new ArrayList<>();
+        private final String valueSet;
+        private final List<Object> resources;
+
+        CodeFiltered(String codePath, Iterable<Code> codes, String valueSet, List<Object> resources) {
+            this.codePath = codePath;
+            if (codes != null) {
+                codes.forEach(this.codes::add);
+            }
+            this.valueSet = valueSet;
+            this.resources = resources;
+        }
+
+        // whether the retrieve was filtered by every one of the codes
+        boolean covers(Iterable<Code> filter) {
+            if (valueSet != null) {
+                return false;
+            }
+            for (Code code : filter) {
+                if (code != null && codes.stream().noneMatch(c -> c != null
+                        && Objects.equals(c.getCode(), code.getCode())
+                        && Objects.equals(c.getSystem(), code.getSystem()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // the codes of a resource at a code path, or null if they can't be resolved, and their classification
+    private static class ResourceCodes {
+        private final List<Code> codes;
+        private MembershipIndex index;
+        private long generation;
+        private BitSet valueSets;
+
+        ResourceCodes(List<Code> codes) {
+            this.codes = codes;
+        }
+
+        boolean in(MembershipIndex membershipIndex, ValueSetInfo valueSet, int number) {
+            if (number < 0) {
+                for (Code code : codes) {
+                    if (membershipIndex.in(code, valueSet, number)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            // the generation is read first, so a value set indexed meanwhile makes the classification stale
+            long current = membershipIndex.getGeneration();
+            if (valueSets == null || index != membershipIndex || generation != current) {
+                valueSets = membershipIndex.classify(codes);
+                index = membershipIndex;
+                generation = current;
+            }
+            return valueSets.get(number);
+        }
+
+        boolean matchesAny(Iterable<Code> filter) {
+            for (Code resourceCode : codes) {
+                for (Code code : filter) {
+                    if (code != null && code.getCode() != null && code.getCode().equals(resourceCode.getCode())
+                            && (code.getSystem() == null || code.getSystem().equals(resourceCode.getSystem()))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    // the codes of the value, or null if they can't be resolved
+    private static List<Code> codesOf(ModelResolver modelResolver, Object value) {
+        List<Code> codes = new ArrayList<>();
+        return addCodes(modelResolver, value, codes) ? codes : null;
+    }
+
+    private static boolean addCodes(ModelResolver modelResolver, Object value, List<Code> codes) {
+        if (value == null) {
+            return true;
+        }
+        if (value instanceof Code) {
+            codes.add((Code) value);
+            return true;
+        }
+        if (value instanceof Concept) {
+            for (Code code : ((Concept) value).getCodes()) {
+                if (code != null) {
+                    codes.add(code);
+                }
+            }
+            return true;
+        }
+        if (value instanceof String) {
+            codes.add(new Code().withCode((String) value));
+            return true;
+        }
+        if (value instanceof Iterable) {
+            for (Object element : (Iterable<?>) value) {
+                if (!addCodes(modelResolver, element, codes)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        try {
+            Object primitive = modelResolver.resolvePath(value, "value");
+            if (primitive instanceof String) {
+                codes.add(new Code().withCode((String) primitive));
+                return true;
+            }
+
+            Object coding = modelResolver.resolvePath(value, "coding");
+            if (coding != null) {
+                for (Object element : coding instanceof Iterable ? (Iterable<?>) coding : Collections.singletonList(coding)) {
+                    // a coding without a code matches nothing
+                    Code code = toCode(modelResolver, element);
+                    if (code != null) {
+                        codes.add(code);
+                    }
+                }
+                return true;
+            }
+
+            Code code = toCode(modelResolver, value);
+            if (code != null) {
+                codes.add(code);
+            }
+            return code != null;
+        }
+        catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    // a coding with system and code properties as a Code, or null if it has no code
+    private static Code toCode(ModelResolver modelResolver, Object coding) {
+        String code = toString(modelResolver, modelResolver.resolvePath(coding, "code"));
+        return code == null
+                ? null
+                : new Code().withSystem(toString(modelResolver, modelResolver.resolvePath(coding, "system"))).withCode(code);
+    }
+
+    private static String toString(ModelResolver modelResolver, Object value) {
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        Object primitive = modelResolver.resolvePath(value, "value");
+        return primitive == null ? null : primitive.toString();
+    }
+
+    // whether the date of the resource is in the range, or null if it can't be determined
+    private Boolean inDateRange(ModelResolver modelResolver, Object resource, String datePath, String dateLowPath,
+            String dateHighPath, Interval dateRange) {
+        Object value;
+        if (datePath != null) {
+            value = toTemporal(modelResolver, modelResolver.resolvePath(resource, datePath));
+        }
+        else {
+            Object low = dateLowPath == null ? null : toTemporal(modelResolver, modelResolver.resolvePath(resource, dateLowPath));
+            Object high = dateHighPath == null ? null : toTemporal(modelResolver, modelResolver.resolvePath(resource, dateHighPath));
+            if (low == UNRESOLVED || high == UNRESOLVED || low instanceof Interval || high instanceof Interval) {
+                return null;
+            }
+            value = low == null && high == null ? null : new Interval(low, true, high, true);
+        }
+
+        if (value == UNRESOLVED) {
+            return null;
+        }
+        if (value == null) {
+            return false;
+        }
+        return value instanceof Interval
+                ? OverlapsEvaluator.overlaps(value, dateRange, null, evaluationContext)
+                : InEvaluator.in(value, dateRange, null, evaluationContext);
+    }
+
+    // the value as a date, date time or interval of them, or UNRESOLVED
+    private static Object toTemporal(ModelResolver modelResolver, Object value) {
+        if (value == null || value instanceof BaseTemporal || value instanceof Interval) {
+            return value;
+        }
+
+        Object primitive = modelResolver.resolvePath(value, "value");
+        if (primitive instanceof BaseTemporal) {
+            return primitive;
+        }
+
+        Object start = modelResolver.resolvePath(value, "start");
+        Object end = modelResolver.resolvePath(value, "end");
+        if (start == null && end == null) {
+            return UNRESOLVED;
+        }
+        start = toTemporal(modelResolver, start);
+        end = toTemporal(modelResolver, end);
+        if (start == UNRESOLVED || end == UNRESOLVED || start instanceof Interval || end instanceof Interval) {
+            return UNRESOLVED;
+        }
+        return new Interval(start, true, end, true);
+    }
+}
@@ -0,0 +1,51 @@
+package org.opencds.cqf.cql.engine.retrieve;
+
+import java.util.Objects;
+
+/**
+ * A related type to include in the result of a retrieve, as described by an include element of the ELM retrieve:
+ * the resources of the related type referenced by the given property of the retrieved resources, or, if the include
+ * is reverse, the resources of the related type whose given property references the retrieved resources.
+ */
+public class RetrieveInclude {
+
+    private final String relatedDataType;
+    private final String relatedProperty;
+    private final boolean reverse;
+
+    public RetrieveInclude(String relatedDataType, String relatedProperty, boolean reverse) {
+        this.relatedDataType = relatedDataType;
+        this.relatedProperty = relatedProperty;
+        this.reverse = reverse;
+    }
+
+    public String getRelatedDataType() {
+        return relatedDataType;
+    }
+
+    public String getRelatedProperty() {
+        return relatedProperty;
+    }
+
+    public boolean isReverse() {
+        return reverse;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof RetrieveInclude)) {
+            return false;
+        }
+        RetrieveInclude that = (RetrieveInclude) other;
+        return reverse == that.reverse && Objects.equals(relatedDataType, that.relatedDataType)
+                && Objects.equals(relatedProperty, that.relatedProperty);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(relatedDataType, relatedProperty, reverse);
+    }
+}
@@ -1,5 +1,7 @@
 package org.opencds.cqf.cql.engine.retrieve;
 
+import java.util.Iterator;
+
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 
@@ -7,4 +9,33 @@ public interface RetrieveProvider {
     Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType, String templateId, String codePath,
               Iterable<Code> codes, String valueSet, String datePath, String dateLowPath, String dateHighPath,
 			  Interval dateRange);
+
+    // Returns the first resource the retrieve returns, or null if there is none. Providers that can ask their source
+    // for a single match should override it, rather than retrieve every match.
+    default Object retrieveFirst(String context, String contextPath, Object contextValue, String dataType, String templateId,
+              String codePath, Iterable<Code> codes, String valueSet, String datePath, String dateLowPath, String dateHighPath,
+              Interval dateRange) {
+        Iterable<Object> resources = retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        Iterator<Object> iterator = resources == null ? null : resources.iterator();
+        return iterator != null && iterator.hasNext() ? iterator.next() : null;
+    }
+
+    // Returns the number of resources the retrieve returns. Providers that can ask their source for the number of
+    // matches should override it, rather than retrieve every match.
+    default Integer retrieveCount(String context, String contextPath, Object contextValue, String dataType, String templateId,
+              String codePath, Iterable<Code> codes, String valueSet, String datePath, String dateLowPath, String dateHighPath,
+              Interval dateRange) {
+        Iterable<Object> resources = retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        int count = 0;
+        if (resources != null) {
+            for (Object resource : resources) {
+                if (resource != null) {
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
 }
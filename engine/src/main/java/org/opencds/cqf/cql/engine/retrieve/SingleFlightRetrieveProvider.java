@@ -0,0 +1,65 @@
+package org.opencds.cqf.cql.engine.retrieve;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.opencds.cqf.cql.engine.execution.SingleFlight;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+/**
+ * A RetrieveProvider that coalesces concurrent identical retrieves: while a retrieve is in flight, threads making a
+ * retrieve with the same arguments wait for it and share its result rather than querying the underlying provider again.
+ *
+ * Since the result may be shared by several threads, it is read into an unmodifiable list before it is returned.
+ */
+public class SingleFlightRetrieveProvider implements RetrieveProvider {
+
+    private final RetrieveProvider retrieveProvider;
+    private final SingleFlight<List<Object>, Iterable<Object>> retrieves = new SingleFlight<>();
+
+    public SingleFlightRetrieveProvider(RetrieveProvider retrieveProvider) {
+        this.retrieveProvider = retrieveProvider;
+    }
+
+    public RetrieveProvider getRetrieveProvider() {
+        return retrieveProvider;
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+
+        List<Object> key = key(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+                datePath, dateLowPath, dateHighPath, dateRange);
+
+        return retrieves.execute(key, () -> {
+            Iterable<Object> result = retrieveProvider.retrieve(context, contextPath, contextValue, dataType,
+                    templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+            if (result == null) {
+                return null;
+            }
+            List<Object> resources = new ArrayList<>();
+            result.forEach(resources::add);
+            return Collections.unmodifiableList(resources);
+        });
+    }
+
+    // a value identifying the retrieve, equal for retrieves with equal arguments
+    static List<Object> key(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        List<String> codeKeys = null;
+        if (codes != null) {
+            codeKeys = new ArrayList<>();
+            for (Code code : codes) {
+                codeKeys.add(code == null ? null : code.getSystem() + '|' + code.getCode() + '|' + code.getVersion());
+            }
+        }
+        return Arrays.asList(context, contextPath, contextValue, dataType, templateId, codePath, codeKeys,
+                valueSet, datePath, dateLowPath, dateHighPath, dateRange == null ? null : dateRange.toString());
+    }
+}
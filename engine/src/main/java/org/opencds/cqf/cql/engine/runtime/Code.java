@@ -1,15 +1,33 @@
 package org.opencds.cqf.cql.engine.runtime;
 
+import java.util.Objects;
+
 import org.opencds.cqf.cql.engine.elm.execution.EqualEvaluator;
 import org.opencds.cqf.cql.engine.elm.execution.EquivalentEvaluator;
 
 public class Code implements CqlType {
 
+    // set once the code is shared (e.g. a code defined by a library), after which it cannot be modified
+    private boolean frozen;
+    public boolean isFrozen() {
+        return frozen;
+    }
+    public Code freeze() {
+        frozen = true;
+        return this;
+    }
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException(String.format("The shared code %s cannot be modified", this));
+        }
+    }
+
     private String code;
     public String getCode() {
         return code;
     }
     public void setCode(String code) {
+        checkNotFrozen();
         this.code = code;
     }
     public Code withCode(String code) {
@@ -22,6 +40,7 @@ public class Code implements CqlType {
         return display;
     }
     public void setDisplay(String display) {
+        checkNotFrozen();
         this.display = display;
     }
     public Code withDisplay(String display) {
@@ -34,6 +53,7 @@ public class Code implements CqlType {
         return system;
     }
     public void setSystem(String system) {
+        checkNotFrozen();
         this.system = system;
     }
     public Code withSystem(String system) {
@@ -46,6 +66,7 @@ public class Code implements CqlType {
         return version;
     }
     public void setVersion(String version) {
+        checkNotFrozen();
         this.version = version;
     }
     public Code withVersion(String version) {
@@ -83,6 +104,25 @@ public class Code implements CqlType {
                 ? null : codeIsEqual && systemIsEqual && versionIsEqual && displayIsEqual;
     }
 
+    // Java equality (as opposed to CQL equality), so that codes can be used as keys
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Code)) {
+            return false;
+        }
+        Code otherCode = (Code) other;
+        return Objects.equals(code, otherCode.code) && Objects.equals(system, otherCode.system)
+                && Objects.equals(version, otherCode.version) && Objects.equals(display, otherCode.display);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(code, system, version, display);
+    }
+
     @Override
     public String toString() {
         return String.format(
@@ -2,6 +2,11 @@ package org.opencds.cqf.cql.engine.runtime;
 
 public class CodeSystem extends Vocabulary {
 
+    public CodeSystem freeze() {
+        setFrozen();
+        return this;
+    }
+
     public CodeSystem withId(String id) {
         setId(id);
         return this;
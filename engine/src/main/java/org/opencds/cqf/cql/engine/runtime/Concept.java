@@ -1,17 +1,39 @@
 package org.opencds.cqf.cql.engine.runtime;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 
 import org.opencds.cqf.cql.engine.elm.execution.EqualEvaluator;
 import org.opencds.cqf.cql.engine.elm.execution.EquivalentEvaluator;
 
 public class Concept implements CqlType {
+
+    // set once the concept is shared (e.g. a concept defined by a library), after which it cannot be modified
+    private boolean frozen;
+    public boolean isFrozen() {
+        return frozen;
+    }
+    public Concept freeze() {
+        for (Code code : codes) {
+            code.freeze();
+        }
+        frozen = true;
+        return this;
+    }
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException(String.format("The shared concept %s cannot be modified", this));
+        }
+    }
+
     private String display;
     public String getDisplay() {
         return display;
     }
     public void setDisplay(String display) {
+        checkNotFrozen();
         this.display = display;
     }
     public Concept withDisplay(String display) {
@@ -21,9 +43,10 @@ public class Concept implements CqlType {
 
     private List<Code> codes = new ArrayList<>();
     public Iterable<Code> getCodes() {
-        return codes;
+        return Collections.unmodifiableList(codes);
     }
     public void setCodes(Iterable<Code> codes) {
+        checkNotFrozen();
         this.codes.clear();
         if (codes != null) {
             for (Code code : codes) {
@@ -36,6 +59,7 @@ public class Concept implements CqlType {
         return this;
     }
     public Concept withCode(Code code) {
+        checkNotFrozen();
         codes.add(code);
         return this;
     }
@@ -71,6 +95,23 @@ public class Concept implements CqlType {
 
     }
 
+    // Java equality (as opposed to CQL equality), so that concepts can be used as keys
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Concept)) {
+            return false;
+        }
+        return Objects.equals(display, ((Concept) other).display) && codes.equals(((Concept) other).codes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(display, codes);
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder().append("Concept {\n");
@@ -0,0 +1,103 @@
+package org.opencds.cqf.cql.engine.runtime;
+
+import java.time.OffsetDateTime;
+
+/*
+Interval<DateTime> whose boundaries are all specified to the same precision.
+
+The starting and ending points (and the successor of the ending point) are normalized the same way
+    DateTime.compareToPrecision() normalizes them and packed into a single long per point, holding the date/time
+    components from year down to the precision of the boundaries. Comparing two keys gives the same answer as comparing
+    the DateTime values at that precision.
+*/
+
+public class DateTimeInterval extends SpecializedInterval {
+
+    // Radix of each date/time component, indexed by Precision.toDateTimeIndex()
+    private static final int[] RADIX = { 10000, 13, 32, 24, 60, 60, 1000 };
+
+    private final DateTime start;
+    private final DateTime end;
+    private final Precision precision;
+    private final long startKey;
+    private final long endKey;
+    private final long endSuccessorKey;
+
+    public DateTimeInterval(DateTime low, boolean lowClosed, DateTime high, boolean highClosed) {
+        super(low, lowClosed, high, highClosed);
+        this.precision = low.getPrecision();
+        this.start = (DateTime) super.getStart();
+        this.end = (DateTime) super.getEnd();
+        this.startKey = toKey(start, precision);
+        this.endKey = toKey(end, precision);
+        this.endSuccessorKey = toKey(new DateTime(end.getDateTime().plus(1, precision.toChronoUnit()), precision), precision);
+    }
+
+    public static long toKey(DateTime dateTime, Precision precision) {
+        OffsetDateTime normalized = dateTime.getNormalized(precision);
+        long key = 0;
+        for (int i = 0; i < RADIX.length; ++i) {
+            key *= RADIX[i];
+            if (i <= precision.toDateTimeIndex()) {
+                key += normalized.get(Precision.getDateTimeChronoFieldFromIndex(i));
+            }
+        }
+        return key;
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    public long getStartKey() {
+        return startKey;
+    }
+
+    public long getEndKey() {
+        return endKey;
+    }
+
+    @Override
+    public Object getStart() {
+        return start != null ? start : super.getStart();
+    }
+
+    @Override
+    public Object getEnd() {
+        return end != null ? end : super.getEnd();
+    }
+
+    @Override
+    protected boolean supportsPrecision(String precision) {
+        return precision == null || Precision.fromString(precision) == this.precision;
+    }
+
+    @Override
+    protected boolean isCompatible(SpecializedInterval other) {
+        return other instanceof DateTimeInterval && ((DateTimeInterval) other).precision == precision;
+    }
+
+    @Override
+    protected boolean isPointOfType(Object point) {
+        return point instanceof DateTime && ((DateTime) point).getPrecision() == precision;
+    }
+
+    @Override
+    protected int compareBoundaries(boolean start, SpecializedInterval other, boolean otherStart) {
+        DateTimeInterval otherInterval = (DateTimeInterval) other;
+        return Long.compare(
+                start ? startKey : endKey,
+                otherStart ? otherInterval.startKey : otherInterval.endKey
+        );
+    }
+
+    @Override
+    protected int comparePoint(Object point, boolean start) {
+        return Long.compare(toKey((DateTime) point, precision), start ? startKey : endKey);
+    }
+
+    @Override
+    protected boolean endPrecedes(SpecializedInterval other) {
+        return endSuccessorKey == ((DateTimeInterval) other).startKey;
+    }
+}
@@ -0,0 +1,64 @@
+package org.opencds.cqf.cql.engine.runtime;
+
+import java.math.BigDecimal;
+
+/*
+Interval<Decimal> with the starting and ending points (and the successor of the ending point) computed once.
+*/
+
+public class DecimalInterval extends SpecializedInterval {
+
+    private static final BigDecimal STEP = new BigDecimal("0.00000001");
+
+    private final BigDecimal start;
+    private final BigDecimal end;
+    private final BigDecimal endSuccessor;
+
+    public DecimalInterval(Object low, boolean lowClosed, Object high, boolean highClosed) {
+        super(low, lowClosed, high, highClosed);
+        this.start = (BigDecimal) super.getStart();
+        this.end = (BigDecimal) super.getEnd();
+        this.endSuccessor = end.compareTo(Value.MAX_DECIMAL) >= 0 ? null : end.add(STEP);
+    }
+
+    @Override
+    public Object getStart() {
+        return start != null ? start : super.getStart();
+    }
+
+    @Override
+    public Object getEnd() {
+        return end != null ? end : super.getEnd();
+    }
+
+    @Override
+    protected boolean supportsPrecision(String precision) {
+        return true;
+    }
+
+    @Override
+    protected boolean isCompatible(SpecializedInterval other) {
+        return other instanceof DecimalInterval;
+    }
+
+    @Override
+    protected boolean isPointOfType(Object point) {
+        return point instanceof BigDecimal;
+    }
+
+    @Override
+    protected int compareBoundaries(boolean start, SpecializedInterval other, boolean otherStart) {
+        DecimalInterval otherInterval = (DecimalInterval) other;
+        return (start ? this.start : end).compareTo(otherStart ? otherInterval.start : otherInterval.end);
+    }
+
+    @Override
+    protected int comparePoint(Object point, boolean start) {
+        return ((BigDecimal) point).compareTo(start ? this.start : end);
+    }
+
+    @Override
+    protected boolean endPrecedes(SpecializedInterval other) {
+        return endSuccessor != null && endSuccessor.compareTo(((DecimalInterval) other).start) == 0;
+    }
+}
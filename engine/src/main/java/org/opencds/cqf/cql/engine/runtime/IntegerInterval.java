@@ -0,0 +1,73 @@
+package org.opencds.cqf.cql.engine.runtime;
+
+/*
+Interval<Integer> with the starting and ending points held as primitive ints.
+*/
+
+public class IntegerInterval extends SpecializedInterval {
+
+    private final Integer start;
+    private final Integer end;
+    private final int startValue;
+    private final int endValue;
+
+    public IntegerInterval(Object low, boolean lowClosed, Object high, boolean highClosed) {
+        super(low, lowClosed, high, highClosed);
+        this.start = (Integer) super.getStart();
+        this.end = (Integer) super.getEnd();
+        this.startValue = start;
+        this.endValue = end;
+    }
+
+    public int getStartValue() {
+        return startValue;
+    }
+
+    public int getEndValue() {
+        return endValue;
+    }
+
+    @Override
+    public Object getStart() {
+        return start != null ? start : super.getStart();
+    }
+
+    @Override
+    public Object getEnd() {
+        return end != null ? end : super.getEnd();
+    }
+
+    @Override
+    protected boolean supportsPrecision(String precision) {
+        return true;
+    }
+
+    @Override
+    protected boolean isCompatible(SpecializedInterval other) {
+        return other instanceof IntegerInterval;
+    }
+
+    @Override
+    protected boolean isPointOfType(Object point) {
+        return point instanceof Integer;
+    }
+
+    @Override
+    protected int compareBoundaries(boolean start, SpecializedInterval other, boolean otherStart) {
+        IntegerInterval otherInterval = (IntegerInterval) other;
+        return Integer.compare(
+                start ? startValue : endValue,
+                otherStart ? otherInterval.startValue : otherInterval.endValue
+        );
+    }
+
+    @Override
+    protected int comparePoint(Object point, boolean start) {
+        return Integer.compare((Integer) point, start ? startValue : endValue);
+    }
+
+    @Override
+    protected boolean endPrecedes(SpecializedInterval other) {
+        return endValue != Value.MAX_INT && endValue + 1 == ((IntegerInterval) other).startValue;
+    }
+}
@@ -0,0 +1,73 @@
+package org.opencds.cqf.cql.engine.runtime;
+
+/*
+Interval<Long> with the starting and ending points held as primitive longs.
+*/
+
+public class LongInterval extends SpecializedInterval {
+
+    private final Long start;
+    private final Long end;
+    private final long startValue;
+    private final long endValue;
+
+    public LongInterval(Object low, boolean lowClosed, Object high, boolean highClosed) {
+        super(low, lowClosed, high, highClosed);
+        this.start = (Long) super.getStart();
+        this.end = (Long) super.getEnd();
+        this.startValue = start;
+        this.endValue = end;
+    }
+
+    public long getStartValue() {
+        return startValue;
+    }
+
+    public long getEndValue() {
+        return endValue;
+    }
+
+    @Override
+    public Object getStart() {
+        return start != null ? start : super.getStart();
+    }
+
+    @Override
+    public Object getEnd() {
+        return end != null ? end : super.getEnd();
+    }
+
+    @Override
+    protected boolean supportsPrecision(String precision) {
+        return true;
+    }
+
+    @Override
+    protected boolean isCompatible(SpecializedInterval other) {
+        return other instanceof LongInterval;
+    }
+
+    @Override
+    protected boolean isPointOfType(Object point) {
+        return point instanceof Long;
+    }
+
+    @Override
+    protected int compareBoundaries(boolean start, SpecializedInterval other, boolean otherStart) {
+        LongInterval otherInterval = (LongInterval) other;
+        return Long.compare(
+                start ? startValue : endValue,
+                otherStart ? otherInterval.startValue : otherInterval.endValue
+        );
+    }
+
+    @Override
+    protected int comparePoint(Object point, boolean start) {
+        return Long.compare((Long) point, start ? startValue : endValue);
+    }
+
+    @Override
+    protected boolean endPrecedes(SpecializedInterval other) {
+        return endValue != Value.MAX_LONG && endValue + 1 == ((LongInterval) other).startValue;
+    }
+}
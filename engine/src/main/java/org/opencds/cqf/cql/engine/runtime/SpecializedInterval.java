@@ -0,0 +1,148 @@
+package org.opencds.cqf.cql.engine.runtime;
+
+import java.math.BigDecimal;
+
+import org.opencds.cqf.cql.engine.exception.InvalidDateTime;
+import org.opencds.cqf.cql.engine.exception.TypeOverflow;
+
+/*
+An interval whose starting and ending points are normalized once, when the interval is built, into a representation
+    that can be compared directly (primitive values for Integer and Long, BigDecimal for Decimal and a packed
+    field key for DateTime).
+
+Instances are produced by create() when the point type is Integer, Long, Decimal or DateTime and both the starting and
+    ending points are known (i.e. neither boundary is an open null). DateTime intervals are only specialized when both
+    boundaries are specified to the same precision, which is the only case where every comparison used by the interval
+    operators is guaranteed to be certain.
+
+The kernels of the interval operators (In, Overlaps, IncludedIn/Includes, Meets, MeetsBefore, MeetsAfter, see
+    IntervalKernels) check isFastPath() and, when both operands are compatible specialized intervals, answer from the
+    normalized boundaries instead of comparing the boundaries one by one. The results are identical to the generic
+    evaluation.
+*/
+
+public abstract class SpecializedInterval extends Interval {
+
+    protected SpecializedInterval(Object low, boolean lowClosed, Object high, boolean highClosed) {
+        super(low, lowClosed, high, highClosed);
+    }
+
+    /*
+    Builds the specialized variant for the point type of the given boundaries if there is one, otherwise a plain Interval.
+     */
+    public static Interval create(Object low, boolean lowClosed, Object high, boolean highClosed) {
+        Object point = low != null ? low : high;
+        boolean boundariesKnown = (low != null || lowClosed) && (high != null || highClosed);
+
+        try {
+            if (point instanceof Integer && boundariesKnown) {
+                return new IntegerInterval(low, lowClosed, high, highClosed);
+            }
+            else if (point instanceof Long && boundariesKnown) {
+                return new LongInterval(low, lowClosed, high, highClosed);
+            }
+            else if (point instanceof BigDecimal && boundariesKnown) {
+                return new DecimalInterval(low, lowClosed, high, highClosed);
+            }
+            else if (low instanceof DateTime && high instanceof DateTime
+                    && ((DateTime) low).getPrecision() == ((DateTime) high).getPrecision())
+            {
+                return new DateTimeInterval((DateTime) low, lowClosed, (DateTime) high, highClosed);
+            }
+        }
+        catch (TypeOverflow | InvalidDateTime e) {
+            // A boundary sits at the edge of the point type - leave the successor/predecessor errors to the generic path
+        }
+
+        return new Interval(low, lowClosed, high, highClosed);
+    }
+
+    /*
+    Returns true if both arguments are specialized intervals of the same kind and the comparisons at the given
+        precision can be answered from the normalized boundaries.
+     */
+    public static boolean isFastPath(Object left, Object right, String precision) {
+        if (!(left instanceof SpecializedInterval) || !(right instanceof SpecializedInterval)) {
+            return false;
+        }
+
+        SpecializedInterval leftInterval = (SpecializedInterval) left;
+        SpecializedInterval rightInterval = (SpecializedInterval) right;
+        return !leftInterval.isUncertain() && !rightInterval.isUncertain()
+                && leftInterval.isCompatible(rightInterval)
+                && leftInterval.supportsPrecision(precision);
+    }
+
+    /*
+    Returns true if the given point can be compared against the normalized boundaries of this interval.
+     */
+    public boolean acceptsPoint(Object point, String precision) {
+        return !isUncertain() && supportsPrecision(precision) && isPointOfType(point);
+    }
+
+    protected abstract boolean supportsPrecision(String precision);
+
+    protected abstract boolean isCompatible(SpecializedInterval other);
+
+    protected abstract boolean isPointOfType(Object point);
+
+    // Compares the start (or end) of this interval with the start (or end) of the other interval
+    protected abstract int compareBoundaries(boolean start, SpecializedInterval other, boolean otherStart);
+
+    // Compares the given point with the start (or end) of this interval
+    protected abstract int comparePoint(Object point, boolean start);
+
+    // Returns true if the successor of the ending point of this interval is the starting point of the other interval
+    protected abstract boolean endPrecedes(SpecializedInterval other);
+
+    private static boolean boundaryIn(SpecializedInterval interval, boolean start, SpecializedInterval other) {
+        return interval.compareBoundaries(start, other, true) >= 0
+                && interval.compareBoundaries(start, other, false) <= 0;
+    }
+
+    public boolean in(Object point) {
+        return comparePoint(point, true) >= 0 && comparePoint(point, false) <= 0;
+    }
+
+    public boolean overlaps(SpecializedInterval other) {
+        return compareBoundaries(true, other, false) <= 0
+                && other.compareBoundaries(true, this, false) <= 0;
+    }
+
+    public boolean includedIn(SpecializedInterval other) {
+        return compareBoundaries(true, other, true) >= 0
+                && compareBoundaries(false, other, false) <= 0;
+    }
+
+    public boolean meetsBefore(SpecializedInterval other) {
+        if (compareBoundaries(true, other, false) > 0) {
+            return false;
+        }
+
+        if (boundaryIn(this, false, other) || boundaryIn(this, true, other)) {
+            return false;
+        }
+
+        return endPrecedes(other);
+    }
+
+    public boolean meetsAfter(SpecializedInterval other) {
+        if (other.compareBoundaries(true, this, false) > 0) {
+            return false;
+        }
+
+        if (boundaryIn(this, false, other) || boundaryIn(this, true, other) || boundaryIn(other, false, this)) {
+            return false;
+        }
+
+        return other.endPrecedes(this);
+    }
+
+    public boolean meets(SpecializedInterval other) {
+        if (boundaryIn(this, true, other) || boundaryIn(this, false, other)) {
+            return false;
+        }
+
+        return meetsBefore(other) || meetsAfter(other);
+    }
+}
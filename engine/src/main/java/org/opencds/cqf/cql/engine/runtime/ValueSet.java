@@ -1,9 +1,18 @@
 package org.opencds.cqf.cql.engine.runtime;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class ValueSet extends Vocabulary {
+
+    public ValueSet freeze() {
+        for (CodeSystem codeSystem : codeSystems) {
+            codeSystem.freeze();
+        }
+        setFrozen();
+        return this;
+    }
     public ValueSet withId(String id) {
         setId(id);
         return this;
@@ -19,9 +28,10 @@ public class ValueSet extends Vocabulary {
 
     private List<CodeSystem> codeSystems = new ArrayList<CodeSystem>();
     public Iterable<CodeSystem> getCodeSystems() {
-        return codeSystems;
+        return Collections.unmodifiableList(codeSystems);
     }
     public void setCodeSystems(List<CodeSystem> codeSystems) {
+        checkNotFrozen();
         this.codeSystems = new ArrayList<CodeSystem>();
         if (codeSystems != null) {
             for (CodeSystem cs : codeSystems) {
@@ -39,6 +49,7 @@ public class ValueSet extends Vocabulary {
         if (codeSystem == null) {
             throw new IllegalArgumentException("codeSystem is required");
         }
+        checkNotFrozen();
         codeSystems.add(codeSystem);
     }
     public ValueSet withCodeSystem(CodeSystem codeSystem) {
@@ -107,4 +118,14 @@ public class ValueSet extends Vocabulary {
         }
         return equal;
     }
+
+    @Override
+    public boolean equals(Object other) {
+        return this == other || (super.equals(other) && codeSystems.equals(((ValueSet) other).codeSystems));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + codeSystems.hashCode();
+    }
 }
@@ -1,5 +1,7 @@
 package org.opencds.cqf.cql.engine.runtime;
 
+import java.util.Objects;
+
 import org.opencds.cqf.cql.engine.elm.execution.AndEvaluator;
 import org.opencds.cqf.cql.engine.elm.execution.EqualEvaluator;
 import org.opencds.cqf.cql.engine.elm.execution.EquivalentEvaluator;
@@ -7,11 +9,27 @@ import org.opencds.cqf.cql.engine.elm.execution.OrEvaluator;
 
 public abstract class Vocabulary implements CqlType {
 
+    // set once the code system or value set is shared (e.g. one defined by a library), after which it cannot be modified
+    private boolean frozen;
+    public boolean isFrozen() {
+        return frozen;
+    }
+    protected void setFrozen() {
+        frozen = true;
+    }
+    protected void checkNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException(String.format("The shared %s %s cannot be modified",
+                    getClass().getSimpleName(), id));
+        }
+    }
+
     private String id;
     public String getId() {
         return id;
     }
     public void setId(String id) {
+        checkNotFrozen();
         this.id = id;
     }
 
@@ -20,6 +38,7 @@ public abstract class Vocabulary implements CqlType {
         return version;
     }
     public void setVersion(String version) {
+        checkNotFrozen();
         this.version = version;
     }
 
@@ -28,6 +47,7 @@ public abstract class Vocabulary implements CqlType {
         return name;
     }
     public void setName(String name) {
+        checkNotFrozen();
         this.name = name;
     }
 
@@ -50,4 +70,22 @@ public abstract class Vocabulary implements CqlType {
             OrEvaluator.or(id == null && otherV.id == null, EqualEvaluator.equal(id, otherV.id)),
             OrEvaluator.or(version == null && otherV.version == null, EqualEvaluator.equal(version, otherV.version)));
     }
+
+    // Java equality (as opposed to CQL equality), so that code systems and value sets can be used as keys
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (other == null || other.getClass() != getClass()) {
+            return false;
+        }
+        Vocabulary otherV = (Vocabulary) other;
+        return Objects.equals(id, otherV.id) && Objects.equals(version, otherV.version) && Objects.equals(name, otherV.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, version, name);
+    }
 }
@@ -0,0 +1,187 @@
+package org.opencds.cqf.cql.engine.terminology;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ValueSetDef;
+import org.cqframework.cql.elm.execution.ValueSetRef;
+import org.opencds.cqf.cql.engine.elm.execution.ValueSetRefEvaluator;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/**
+ * A TerminologyProvider that caches the expansions, membership results and lookups of another TerminologyProvider.
+ *
+ * Each kind of result is held in its own least recently used cache, bounded by a maximum weight: an expansion weighs
+ * the number of codes it contains, a membership result or lookup weighs 1. Results expire a fixed time after they were
+ * loaded. Failures of the underlying provider are not cached.
+ *
+ * The caches are thread-safe, so a single instance may be shared by all the contexts of a population run. The codes
+ * returned by lookup are frozen, as they are shared by all the callers.
+ */
+public class CachingTerminologyProvider implements TerminologyProvider {
+
+    public static final Duration DEFAULT_TTL = Duration.ofHours(1);
+    public static final long DEFAULT_MAX_WEIGHT = 1_000_000;
+
+    private final TerminologyProvider provider;
+    private final TerminologyCache<List<Code>> expansions;
+    private final TerminologyCache<Boolean> memberships;
+    private final TerminologyCache<Code> lookups;
+
+    public CachingTerminologyProvider(TerminologyProvider provider) {
+        this(provider, DEFAULT_TTL, DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * @param provider the TerminologyProvider whose results are cached
+     * @param ttl how long a result is cached after it was loaded
+     * @param maxWeight the maximum weight of each of the expansion, membership and lookup caches
+     */
+    public CachingTerminologyProvider(TerminologyProvider provider, Duration ttl, long maxWeight) {
+        this(provider, ttl, maxWeight, System::nanoTime);
+    }
+
+    CachingTerminologyProvider(TerminologyProvider provider, Duration ttl, long maxWeight, LongSupplier ticker) {
+        if (provider == null) {
+            throw new IllegalArgumentException("provider can not be null");
+        }
+        if (ttl == null || ttl.isNegative()) {
+            throw new IllegalArgumentException("ttl must be a non-negative duration");
+        }
+
+        this.provider = provider;
+        this.expansions = new TerminologyCache<>(ttl.toNanos(), maxWeight, List::size, ticker);
+        this.memberships = new TerminologyCache<>(ttl.toNanos(), maxWeight, x -> 1, ticker);
+        this.lookups = new TerminologyCache<>(ttl.toNanos(), maxWeight, x -> 1, ticker);
+    }
+
+    public TerminologyProvider getProvider() {
+        return provider;
+    }
+
+    @Override
+    public boolean in(Code code, ValueSetInfo valueSet) {
+        String key = TerminologyCache.key(valueSet) + '\u0000' + TerminologyCache.key(code);
+        return memberships.get(key, () -> provider.in(code, valueSet));
+    }
+
+    @Override
+    public List<Boolean> inBatch(List<Code> codes, ValueSetInfo valueSet) {
+        String valueSetKey = TerminologyCache.key(valueSet) + '\u0000';
+        List<Boolean> result = new ArrayList<>(codes.size());
+        List<Code> misses = new ArrayList<>();
+        List<Integer> missIndexes = new ArrayList<>();
+        for (Code code : codes) {
+            Boolean member = memberships.getIfPresent(valueSetKey + TerminologyCache.key(code));
+            if (member == null) {
+                misses.add(code);
+                missIndexes.add(result.size());
+            }
+            result.add(member);
+        }
+
+        if (!misses.isEmpty()) {
+            // the codes that aren't cached are checked together
+            List<Boolean> checked = provider.inBatch(misses, valueSet);
+            for (int i = 0; i < misses.size(); ++i) {
+                memberships.put(valueSetKey + TerminologyCache.key(misses.get(i)), checked.get(i));
+                result.set(missIndexes.get(i), checked.get(i));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Iterable<Code> expand(ValueSetInfo valueSet) {
+        return expansions.get(TerminologyCache.key(valueSet), () -> {
+            Iterable<Code> codes = provider.expand(valueSet);
+            if (codes == null) {
+                return null;
+            }
+            List<Code> expansion = new ArrayList<>();
+            codes.forEach(expansion::add);
+            return Collections.unmodifiableList(expansion);
+        });
+    }
+
+    @Override
+    public boolean isExpandable(ValueSetInfo valueSet) {
+        return provider.isExpandable(valueSet);
+    }
+
+    @Override
+    public Code lookup(Code code, CodeSystemInfo codeSystem) {
+        String key = TerminologyCache.key(codeSystem) + '\u0000' + TerminologyCache.key(code);
+        return lookups.get(key, () -> {
+            // the provider may return the given code, which belongs to the caller, so a frozen copy is shared instead
+            Code found = provider.lookup(code, codeSystem);
+            if (found == null) {
+                return null;
+            }
+            Code copy = new Code().withCode(found.getCode()).withSystem(found.getSystem())
+                    .withVersion(found.getVersion()).withDisplay(found.getDisplay());
+            copy.freeze();
+            return copy;
+        });
+    }
+
+    /**
+     * Expands all the ValueSets declared in the given library, in parallel, and waits until they are cached. They are
+     * expanded whether or not the underlying provider reports them as expandable, which only decides whether membership
+     * is checked against the expansions.
+     * @param library the library whose ValueSetDefs are expanded
+     * @param libraryLoader resolves the libraries that declare code systems referenced by the ValueSetDefs, may be
+     *                      null if they are all declared in the given library
+     * @param executor the executor the expansions run on
+     * @throws TerminologyProviderException if there's an error during expansion
+     */
+    public void preload(Library library, LibraryLoader libraryLoader, Executor executor) {
+        if (library.getValueSets() == null || library.getValueSets().getDef().isEmpty()) {
+            return;
+        }
+
+        // the contexts aren't thread-safe, so the value sets are resolved before any of them is expanded
+        Context context = new Context(library);
+        if (libraryLoader != null) {
+            context.registerLibraryLoader(libraryLoader);
+        }
+        List<ValueSetInfo> valueSets = new ArrayList<>();
+        for (ValueSetDef valueSetDef : library.getValueSets().getDef()) {
+            valueSets.add(ValueSetInfo.fromValueSet(
+                    ValueSetRefEvaluator.toValueSet(context, new ValueSetRef().withName(valueSetDef.getName()))));
+        }
+
+        CompletableFuture<?>[] expansions = new CompletableFuture<?>[valueSets.size()];
+        for (int i = 0; i < expansions.length; ++i) {
+            ValueSetInfo valueSet = valueSets.get(i);
+            expansions[i] = CompletableFuture.runAsync(() -> expand(valueSet), executor);
+        }
+        try {
+            CompletableFuture.allOf(expansions).join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Discards all cached results.
+     */
+    public void clear() {
+        expansions.clear();
+        memberships.clear();
+        lookups.clear();
+    }
+}
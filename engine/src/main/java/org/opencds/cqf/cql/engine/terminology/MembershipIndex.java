@@ -0,0 +1,249 @@
+package org.opencds.cqf.cql.engine.terminology;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ValueSetDef;
+import org.cqframework.cql.elm.execution.ValueSetRef;
+import org.opencds.cqf.cql.engine.elm.execution.ValueSetRefEvaluator;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.execution.SingleFlight;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Concept;
+
+/*
+Answers value set and code system membership checks for a TerminologyProvider.
+
+Each value set is expanded once through the provider, the first time it is checked against (or when the value sets of
+    a library are registered up front), and is given a number. The expansions are indexed in reverse: every code maps
+    to the set of numbers of the value sets that contain it, so a code is classified against all the registered value
+    sets with a single lookup, and each membership check is a bit test. A code without a system is a member if the
+    value set contains a code with the same code element. Value sets the provider reports as not expandable (or for
+    which the provider returns no expansion) aren't numbered, and are checked by calling the provider for every code.
+
+The expansion of a value set runs outside the index maps: concurrent first checks against the same value set share a
+    single expansion, and checks against other value sets don't wait for it.
+
+The bit sets in the index are never modified once they are published - adding a value set to a code replaces its bit
+    set with a copy - so they can be read without locking. The generation of the index is incremented whenever a value
+    set is indexed: a classification made at an earlier generation may be missing value sets, so callers that keep
+    classifications (e.g. of the resources of a RetrieveCache) make them again when the generation changes.
+
+Code system membership is determined by looking the code up through the provider, once per code and code system.
+    Concurrent first lookups of the same code share a single call, which also runs outside the map.
+*/
+
+public class MembershipIndex {
+
+    private static final int NOT_EXPANDED = -1;
+    private static final BitSet NONE = new BitSet();
+
+    private final TerminologyProvider provider;
+    private final AtomicInteger valueSetCount = new AtomicInteger();
+    private final AtomicLong generation = new AtomicLong();
+    // value set -> its number, or NOT_EXPANDED
+    private final Map<String, Integer> valueSets = new ConcurrentHashMap<>();
+    private final SingleFlight<String, Integer> expansions = new SingleFlight<>();
+    // system + code -> the value sets containing the code
+    private final Map<String, BitSet> byCode = new ConcurrentHashMap<>();
+    // code element -> the value sets containing a code with that code element
+    private final Map<String, BitSet> byCodeValue = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> lookups = new ConcurrentHashMap<>();
+    private final SingleFlight<String, Boolean> lookupCalls = new SingleFlight<>();
+
+    public MembershipIndex(TerminologyProvider provider) {
+        this.provider = provider;
+    }
+
+    public TerminologyProvider getProvider() {
+        return provider;
+    }
+
+    /*
+    Returns the number of the value set in the index, expanding and indexing it if it hasn't been, or -1 if the value
+        set isn't expanded.
+     */
+    public int register(ValueSetInfo valueSet) {
+        String key = TerminologyCache.key(valueSet);
+        Integer number = valueSets.get(key);
+        if (number != null) {
+            return number;
+        }
+
+        return expansions.execute(key, () -> {
+            // another thread may have registered the value set since it was looked up
+            Integer registered = valueSets.get(key);
+            if (registered != null) {
+                return registered;
+            }
+            int expanded = expand(valueSet);
+            valueSets.put(key, expanded);
+            return expanded;
+        });
+    }
+
+    /*
+    Registers all the value sets defined in the current library of the context and in the libraries it includes, so
+        codes are classified against all of them.
+     */
+    public void registerValueSets(Context context) {
+        registerValueSets(context, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    private void registerValueSets(Context context, Set<Library> registered) {
+        Library library = context.getCurrentLibrary();
+        if (!registered.add(library)) {
+            return;
+        }
+
+        if (library.getValueSets() != null) {
+            for (ValueSetDef valueSetDef : library.getValueSets().getDef()) {
+                register(ValueSetInfo.fromValueSet(
+                        ValueSetRefEvaluator.toValueSet(context, new ValueSetRef().withName(valueSetDef.getName()))));
+            }
+        }
+
+        if (library.getIncludes() != null) {
+            for (IncludeDef includeDef : library.getIncludes().getDef()) {
+                boolean enteredLibrary = context.enterLibrary(includeDef.getLocalIdentifier());
+                try {
+                    registerValueSets(context, registered);
+                }
+                finally {
+                    context.exitLibrary(enteredLibrary);
+                }
+            }
+        }
+    }
+
+    /*
+    Returns the numbers of the registered value sets that contain the code.
+     */
+    public BitSet classify(Code code) {
+        return (BitSet) valueSetsContaining(code).clone();
+    }
+
+    /*
+    Returns the numbers of the registered value sets that contain any code of the concept.
+     */
+    public BitSet classify(Concept concept) {
+        return classify(concept.getCodes());
+    }
+
+    /*
+    Returns the numbers of the registered value sets that contain any of the codes.
+     */
+    public BitSet classify(Iterable<Code> codes) {
+        BitSet result = new BitSet();
+        for (Code code : codes) {
+            if (code != null) {
+                result.or(valueSetsContaining(code));
+            }
+        }
+        return result;
+    }
+
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    public boolean in(Code code, ValueSetInfo valueSet) {
+        return in(code, valueSet, register(valueSet));
+    }
+
+    /*
+    Returns whether the code is in the value set, given the number register returned for it, so a value set checked
+        against several codes is only looked up once.
+     */
+    public boolean in(Code code, ValueSetInfo valueSet, int number) {
+        if (number == NOT_EXPANDED) {
+            return provider.in(code, valueSet);
+        }
+        return valueSetsContaining(code).get(number);
+    }
+
+    /*
+    Returns whether any of the given codes is in the value set. If the value set isn't expanded, the codes are checked
+        by the provider in a single batch.
+     */
+    public boolean anyIn(List<Code> codes, ValueSetInfo valueSet) {
+        int number = register(valueSet);
+        if (number == NOT_EXPANDED) {
+            return !codes.isEmpty() && provider.inBatch(codes, valueSet).contains(true);
+        }
+        for (Code code : codes) {
+            if (valueSetsContaining(code).get(number)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean inCodeSystem(Code code, CodeSystemInfo codeSystem) {
+        String key = TerminologyCache.key(codeSystem) + '\u0000' + TerminologyCache.key(code);
+        Boolean found = lookups.get(key);
+        if (found != null) {
+            return found;
+        }
+
+        // like the expansions, the lookup runs outside the map
+        return lookupCalls.execute(key, () -> {
+            Boolean lookedUp = lookups.get(key);
+            if (lookedUp != null) {
+                return lookedUp;
+            }
+            boolean result = provider.lookup(code, codeSystem) != null;
+            lookups.put(key, result);
+            return result;
+        });
+    }
+
+    private BitSet valueSetsContaining(Code code) {
+        if (code.getCode() == null) {
+            return NONE;
+        }
+        BitSet bits = code.getSystem() == null
+                ? byCodeValue.get(code.getCode())
+                : byCode.get(TerminologyCache.key(code.getSystem(), code.getCode()));
+        return bits == null ? NONE : bits;
+    }
+
+    private int expand(ValueSetInfo valueSet) {
+        if (!provider.isExpandable(valueSet)) {
+            return NOT_EXPANDED;
+        }
+
+        Iterable<Code> codes = provider.expand(valueSet);
+        if (codes == null) {
+            return NOT_EXPANDED;
+        }
+
+        int number = valueSetCount.getAndIncrement();
+        for (Code code : codes) {
+            if (code != null && code.getCode() != null) {
+                byCode.compute(TerminologyCache.key(code.getSystem(), code.getCode()), (k, bits) -> with(bits, number));
+                byCodeValue.compute(code.getCode(), (k, bits) -> with(bits, number));
+            }
+        }
+        generation.incrementAndGet();
+        return number;
+    }
+
+    private static BitSet with(BitSet bits, int number) {
+        if (bits != null && bits.get(number)) {
+            return bits;
+        }
+        BitSet result = bits == null ? new BitSet(number + 1) : (BitSet) bits.clone();
+        result.set(number);
+        return result;
+    }
+}
@@ -0,0 +1,137 @@
+package org.opencds.cqf.cql.engine.terminology;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import org.opencds.cqf.cql.engine.execution.SingleFlight;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/*
+A thread-safe, least recently used cache of terminology results, bounded by the total weight of its entries, whose
+    entries expire a fixed time after they were loaded.
+
+Values are loaded outside the lock. Concurrent misses for the same key share a single call of the loader, so a
+    result that many threads need at once (e.g. the expansion of a value set at the start of a population run) is only
+    loaded once. Null values are cached (e.g. a code that is not in a code system), failures are not.
+*/
+
+final class TerminologyCache<V> {
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long weight;
+        private final long expiresAt;
+
+        private Entry(V value, long weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlNanos;
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private final LongSupplier ticker;
+
+    private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final SingleFlight<String, V> loads = new SingleFlight<>();
+    private long weight;
+
+    TerminologyCache(long ttlNanos, long maxWeight, ToLongFunction<V> weigher, LongSupplier ticker) {
+        this.ttlNanos = ttlNanos;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.ticker = ticker;
+    }
+
+    V get(String key, Supplier<V> loader) {
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                if (ticker.getAsLong() - entry.expiresAt < 0) {
+                    return entry.value;
+                }
+                remove(key);
+            }
+        }
+
+        return loads.execute(key, () -> {
+            V value = loader.get();
+            put(key, value);
+            return value;
+        });
+    }
+
+    /*
+    Returns the cached value of the given key, or null if it isn't cached (so only for caches without null values).
+     */
+    V getIfPresent(String key) {
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            return entry != null && ticker.getAsLong() - entry.expiresAt < 0 ? entry.value : null;
+        }
+    }
+
+    void put(String key, V value) {
+        long valueWeight = value == null ? 1 : Math.max(1, weigher.applyAsLong(value));
+        if (valueWeight > maxWeight) {
+            return;
+        }
+
+        synchronized (entries) {
+            remove(key);
+            entries.put(key, new Entry<>(value, valueWeight, ticker.getAsLong() + ttlNanos));
+            weight += valueWeight;
+
+            Iterator<Entry<V>> eldest = entries.values().iterator();
+            while (weight > maxWeight) {
+                weight -= eldest.next().weight;
+                eldest.remove();
+            }
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+            weight = 0;
+        }
+    }
+
+    long weight() {
+        synchronized (entries) {
+            return weight;
+        }
+    }
+
+    private void remove(String key) {
+        Entry<V> removed = entries.remove(key);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    static String key(ValueSetInfo valueSet) {
+        StringBuilder key = new StringBuilder(key(valueSet.getId(), valueSet.getVersion()));
+        for (CodeSystemInfo codeSystem : valueSet.getCodeSystems()) {
+            key.append('\u0000').append(key(codeSystem));
+        }
+        return key.toString();
+    }
+
+    static String key(CodeSystemInfo codeSystem) {
+        return key(codeSystem.getId(), codeSystem.getVersion());
+    }
+
+    static String key(Code code) {
+        return key(code.getSystem(), code.getCode()) + '\u0001' + code.getVersion();
+    }
+
+    static String key(String first, String second) {
+        return first + '\u0001' + second;
+    }
+}
@@ -1,5 +1,8 @@
 package org.opencds.cqf.cql.engine.terminology;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.opencds.cqf.cql.engine.runtime.Code;
 
 public interface TerminologyProvider {
@@ -12,6 +15,22 @@ public interface TerminologyProvider {
      */
     boolean in(Code code, ValueSetInfo valueSet);
 
+    /**
+     * Checks which of the given Codes are members of a given ValueSetInfo. Providers that can check many codes in a
+     * single request should override this, by default each code is checked with in.
+     * @param codes the codes to check
+     * @param valueSet the valueSet to check
+     * @return whether each code, in the order given, is a member of the ValueSet
+     * @throws TerminologyProviderException if there's an exception during the membership check
+     */
+    default List<Boolean> inBatch(List<Code> codes, ValueSetInfo valueSet) {
+        List<Boolean> result = new ArrayList<>(codes.size());
+        for (Code code : codes) {
+            result.add(in(code, valueSet));
+        }
+        return result;
+    }
+
     /**
      * Expands the set of Codes for a given ValueSetInfo
      * @param valueSet the ValueSetInfo to expand
@@ -20,6 +39,18 @@ public interface TerminologyProvider {
      */
     Iterable<Code> expand(ValueSetInfo valueSet);
 
+    /**
+     * Indicates whether the engine may answer membership checks against a given ValueSetInfo from a single expansion
+     * of the ValueSet, rather than calling in for every code. By default it may. Providers should override this to
+     * return false for ValueSets that are too large or costly to expand, or whose membership can't be determined from
+     * an expansion, so every code is checked with in.
+     * @param valueSet the ValueSetInfo to check
+     * @return true if membership in the ValueSet may be determined from its expansion
+     */
+    default boolean isExpandable(ValueSetInfo valueSet) {
+        return true;
+    }
+
     /**
      * Looks up the display value for a given Code from a given CodeSystemInfo
      * @param code the Code to look up
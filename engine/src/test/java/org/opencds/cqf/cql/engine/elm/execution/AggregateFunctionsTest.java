@@ -0,0 +1,219 @@
+package org.opencds.cqf.cql.engine.elm.execution;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.CqlList;
+import org.opencds.cqf.cql.engine.runtime.Quantity;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/*
+Property-based equivalence of the single-pass aggregate accumulators with the sort and multiple-pass definitions of
+    Mode, Median, Avg, Variance, PopulationVariance and GeometricMean, on random lists with duplicates, nulls and
+    Decimals that are equal at different scales.
+
+The variances are computed from the exact sum of the squared deviations where the definitions truncate each squared
+    deviation to 8 decimal places, so those are compared to within 10^-7.
+*/
+
+public class AggregateFunctionsTest {
+
+    private static final int ITERATIONS = 5000;
+
+    private static final BigDecimal TOLERANCE = new BigDecimal("0.0000001");
+
+    private static final BigDecimal[] DECIMALS = {
+        new BigDecimal("-1.5"), BigDecimal.ZERO, new BigDecimal("0.00"), new BigDecimal("0.25"), new BigDecimal("1.0"),
+        new BigDecimal("1.00"), new BigDecimal("2"), new BigDecimal("3.3")
+    };
+
+    private final Random random = new Random(20221019L);
+
+    private interface Generator {
+        Object next(Random random);
+    }
+
+    @DataProvider
+    public Object[][] elementTypes() {
+        Generator integers = r -> r.nextInt(7) - 2;
+        Generator decimals = r -> DECIMALS[r.nextInt(DECIMALS.length)];
+        Generator quantities = r -> new Quantity().withValue(DECIMALS[r.nextInt(DECIMALS.length)]).withUnit("mL");
+        Generator strings = r -> String.valueOf((char) ('a' + r.nextInt(5)));
+
+        return new Object[][] {
+            { "Integer", integers },
+            { "Decimal", decimals },
+            { "Quantity", quantities },
+            { "String", strings }
+        };
+    }
+
+    @Test(dataProvider = "elementTypes")
+    public void testAccumulatorsMatchDefinitions(String name, Generator elements) {
+        Context context = null;
+        for (int i = 0; i < ITERATIONS; ++i) {
+            List<Object> source = new ArrayList<>();
+            int size = random.nextInt(9);
+            while (source.size() < size) {
+                source.add(random.nextInt(6) == 0 ? null : elements.next(random));
+            }
+
+            String label = String.format("%s: %s", name, source);
+            assertSame(label + " Mode", () -> Legacy.mode(source, context), () -> ModeEvaluator.mode(source, context), null);
+            assertSame(label + " Median", () -> Legacy.median(source, context), () -> MedianEvaluator.median(source, context), null);
+            if (name.equals("Decimal") || name.equals("Quantity")) {
+                assertSame(label + " Avg", () -> Legacy.avg(source, context), () -> AvgEvaluator.avg(source, context), null);
+                assertSame(label + " Variance", () -> Legacy.variance(source, context),
+                        () -> VarianceEvaluator.variance(source, context), TOLERANCE);
+                assertSame(label + " PopulationVariance", () -> Legacy.popVariance(source, context),
+                        () -> PopulationVarianceEvaluator.popVariance(source, context), TOLERANCE);
+            }
+            if (name.equals("Decimal")) {
+                assertSame(label + " GeometricMean", () -> Legacy.geometricMean(source, context),
+                        () -> GeometricMeanEvaluator.geometricMean(source, context), null);
+            }
+        }
+    }
+
+    private static void assertSame(String label, Supplier<Object> expected, Supplier<Object> actual, BigDecimal tolerance) {
+        Object expectedResult;
+        Object actualResult;
+        try {
+            expectedResult = expected.get();
+        }
+        catch (RuntimeException e) {
+            expectedResult = e.getClass();
+        }
+        try {
+            actualResult = actual.get();
+        }
+        catch (RuntimeException e) {
+            actualResult = e.getClass();
+        }
+
+        if (tolerance != null && expectedResult != null && actualResult != null && !(expectedResult instanceof Class)) {
+            BigDecimal expectedValue = expectedResult instanceof Quantity ? ((Quantity) expectedResult).getValue() : (BigDecimal) expectedResult;
+            BigDecimal actualValue = actualResult instanceof Quantity ? ((Quantity) actualResult).getValue() : (BigDecimal) actualResult;
+            Assert.assertTrue(expectedValue.subtract(actualValue).abs().compareTo(tolerance) <= 0,
+                    String.format("%s expected %s but found %s", label, expectedResult, actualResult));
+            return;
+        }
+
+        Assert.assertTrue(Objects.equals(String.valueOf(expectedResult), String.valueOf(actualResult)),
+                String.format("%s expected %s but found %s", label, expectedResult, actualResult));
+    }
+
+    /*
+    The aggregates as the evaluators implemented them before the single-pass accumulators.
+     */
+    private static class Legacy {
+
+        static Object mode(List<Object> source, Context context) {
+            List<Object> values = CqlList.toList(source, false);
+            if (values.isEmpty()) {
+                return null;
+            }
+
+            values.sort(new CqlList().valueSort);
+            int max = 0;
+            Object mode = new Object();
+            for (int i = 0; i < values.size(); ++i) {
+                int count = 0;
+                for (int j = i; j < values.size(); ++j) {
+                    Boolean equal = EqualEvaluator.equal(values.get(i), values.get(j), context);
+                    if (equal != null && equal) {
+                        ++count;
+                    }
+                }
+                if (count > max) {
+                    mode = values.get(i);
+                    max = count;
+                }
+            }
+            return mode;
+        }
+
+        static Object median(List<Object> source, Context context) {
+            List<Object> values = CqlList.toList(source, false);
+            if (values.isEmpty()) {
+                return null;
+            }
+
+            values.sort(new CqlList().valueSort);
+            if (values.size() % 2 != 0) {
+                return values.get(values.size() / 2);
+            }
+            if (values.get(0) instanceof Integer) {
+                return TruncatedDivideEvaluator.div(
+                        AddEvaluator.add(values.get(values.size() / 2), values.get((values.size() / 2) - 1)), 2, context);
+            }
+            if (values.get(0) instanceof BigDecimal || values.get(0) instanceof Quantity) {
+                return DivideEvaluator.divide(
+                        AddEvaluator.add(values.get(values.size() / 2), values.get((values.size() / 2) - 1)), new BigDecimal("2.0"), context);
+            }
+            throw new InvalidOperatorArgument("Median(List<Decimal>) or Median(List<Quantity>)", "Median(List)");
+        }
+
+        static Object avg(List<Object> source, Context context) {
+            Object avg = null;
+            int size = 1;
+            for (Object element : source) {
+                if (element == null) {
+                    continue;
+                }
+                if (avg == null) {
+                    avg = element;
+                }
+                else {
+                    ++size;
+                    avg = AddEvaluator.add(avg, element);
+                }
+            }
+            return DivideEvaluator.divide(avg, new BigDecimal(size), context);
+        }
+
+        static Object variance(List<Object> source, Context context) {
+            if (source.isEmpty()) {
+                return null;
+            }
+
+            Object mean = avg(source, context);
+            List<Object> newVals = new ArrayList<>();
+            for (Object element : source) {
+                if (element != null) {
+                    newVals.add(MultiplyEvaluator.multiply(
+                            SubtractEvaluator.subtract(element, mean), SubtractEvaluator.subtract(element, mean)));
+                }
+            }
+            return DivideEvaluator.divide(SumEvaluator.sum(newVals), new BigDecimal(newVals.size() - 1), context);
+        }
+
+        static Object popVariance(List<Object> source, Context context) {
+            if (source.isEmpty()) {
+                return null;
+            }
+
+            Object mean = avg(source, context);
+            List<Object> newVals = new ArrayList<>();
+            source.forEach(ae -> newVals.add(
+                    MultiplyEvaluator.multiply(SubtractEvaluator.subtract(ae, mean), SubtractEvaluator.subtract(ae, mean))));
+            return avg(newVals, context);
+        }
+
+        static Object geometricMean(List<Object> source, Context context) {
+            List<Object> cleanSource = CqlList.toList(source, false);
+            return PowerEvaluator.power(
+                    ProductEvaluator.product(cleanSource),
+                    DivideEvaluator.divide(new BigDecimal(1), ToDecimalEvaluator.toDecimal(CountEvaluator.count(cleanSource)), context)
+            );
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package org.opencds.cqf.cql.engine.elm.execution;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.BaseTemporal;
+import org.opencds.cqf.cql.engine.runtime.CqlList;
+import org.opencds.cqf.cql.engine.runtime.Date;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.runtime.Precision;
+import org.opencds.cqf.cql.engine.runtime.Quantity;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/*
+Property-based equivalence of the sweep-line Collapse and the arithmetic, lazily built Expand with the pairwise merge
+    and repeated-addition definitions, on random lists of Integer, Decimal, Date and DateTime intervals.
+*/
+
+public class CollapseExpandTest {
+
+    private static final int ITERATIONS = 3000;
+
+    private static final BigDecimal[] DECIMALS = {
+        new BigDecimal("-1.0"), new BigDecimal("-0.5"), BigDecimal.ZERO, new BigDecimal("0.00000001"),
+        new BigDecimal("0.5"), new BigDecimal("1.25"), new BigDecimal("2.0")
+    };
+
+    private final Random random = new Random(20221019L);
+
+    private interface Generator {
+        Object next(Random random);
+    }
+
+    @DataProvider
+    public Object[][] pointTypes() {
+        Generator integers = r -> r.nextInt(21) - 10;
+        Generator integerPers = r -> new Quantity().withValue(new BigDecimal(r.nextInt(3) + 1)).withDefaultUnit();
+        Generator decimals = r -> DECIMALS[r.nextInt(DECIMALS.length)];
+        Generator decimalPers = r -> new Quantity().withValue(new BigDecimal(r.nextBoolean() ? "0.5" : "1")).withDefaultUnit();
+        Generator dates = r -> new Date(2020, 1 + r.nextInt(3), 1 + r.nextInt(28));
+        Generator datePers = r -> new Quantity().withValue(new BigDecimal(r.nextInt(2) + 1))
+                .withUnit(new String[] { "day", "week", "month" }[r.nextInt(3)]);
+        Generator dateTimes = r -> new DateTime(BigDecimal.ZERO, 2020, 1, 1 + r.nextInt(4), r.nextInt(24));
+        Generator dateTimePers = r -> new Quantity().withValue(new BigDecimal(r.nextInt(3) + 1))
+                .withUnit(new String[] { "hour", "day", "minute" }[r.nextInt(3)]);
+
+        return new Object[][] {
+            { "Integer", integers, integerPers },
+            { "Decimal", decimals, decimalPers },
+            { "Date", dates, datePers },
+            { "DateTime", dateTimes, dateTimePers }
+        };
+    }
+
+    @Test
+    public void testExpansionsAreListsOfTheSameType() {
+        List<Interval> expansion = ExpandEvaluator.expand(Collections.singletonList(new Interval(1, true, 3, true)),
+                new Quantity().withValue(BigDecimal.ONE).withDefaultUnit(), null);
+        List<Interval> expected = new ArrayList<>(Arrays.asList(
+                new Interval(1, true, 1, true), new Interval(2, true, 2, true), new Interval(3, true, 3, true)));
+
+        Assert.assertEquals(EqualEvaluator.equal(expansion, expected, null), Boolean.TRUE);
+        Assert.assertEquals(EqualEvaluator.equal(expected, expansion, null), Boolean.TRUE);
+        Assert.assertEquals(EquivalentEvaluator.equivalent(expansion, expected, null), Boolean.TRUE);
+        Assert.assertEquals(EquivalentEvaluator.equivalent(expected, expansion, null), Boolean.TRUE);
+
+        // other Iterable implementations are still compared by class
+        Assert.assertEquals(EqualEvaluator.equal(new LinkedList<>(expected), expected, null), Boolean.FALSE);
+        Assert.assertEquals(EquivalentEvaluator.equivalent(new LinkedList<>(expected), expected, null), Boolean.FALSE);
+    }
+
+    @Test(dataProvider = "pointTypes")
+    public void testCollapseAndExpandMatchDefinitions(String name, Generator points, Generator pers) {
+        Context context = null;
+        for (int i = 0; i < ITERATIONS; ++i) {
+            List<Interval> intervals = new ArrayList<>();
+            int size = random.nextInt(6);
+            while (intervals.size() < size) {
+                Interval interval = nextInterval(points);
+                if (interval != null) {
+                    intervals.add(interval);
+                }
+            }
+            if (random.nextInt(5) == 0) {
+                intervals.add(null);
+            }
+            Quantity per = random.nextInt(4) == 0 ? null : (Quantity) pers.next(random);
+
+            String label = String.format("%s: %s per %s", name, intervals, per);
+            Quantity collapsePer = per == null || name.equals("Integer") || name.equals("Decimal") ? per : null;
+            assertSame(label + " Collapse",
+                    () -> Legacy.collapse(new ArrayList<>(intervals), collapsePer, context),
+                    () -> CollapseEvaluator.collapse(new ArrayList<>(intervals), collapsePer, context));
+            assertSame(label + " Expand",
+                    () -> Legacy.expand(new ArrayList<>(intervals), per, context),
+                    () -> ExpandEvaluator.expand(new ArrayList<>(intervals), per, context));
+        }
+    }
+
+    private Interval nextInterval(Generator points) {
+        try {
+            return new Interval(points.next(random), random.nextBoolean(), points.next(random), random.nextBoolean());
+        }
+        catch (RuntimeException e) {
+            // invalid interval - draw again
+            return null;
+        }
+    }
+
+    private static void assertSame(String label, Supplier<List<Interval>> expected, Supplier<List<Interval>> actual) {
+        Object expectedResult;
+        Object actualResult;
+        try {
+            expectedResult = String.valueOf(expected.get());
+        }
+        catch (RuntimeException e) {
+            expectedResult = e.getClass();
+        }
+        try {
+            actualResult = String.valueOf(actual.get());
+        }
+        catch (RuntimeException e) {
+            actualResult = e.getClass();
+        }
+        Assert.assertTrue(Objects.equals(expectedResult, actualResult),
+                String.format("%s expected %s but found %s", label, expectedResult, actualResult));
+    }
+
+    /*
+    Collapse and Expand as the evaluators implemented them before the sweep and the arithmetic expansion.
+     */
+    private static class Legacy {
+
+        static Interval withPer(Interval interval, Quantity per) {
+            if (per.getValue().equals(new BigDecimal("0"))) {
+                return interval;
+            }
+            if (interval.getStart() instanceof Integer) {
+                return new Interval(interval.getStart(), true, AddEvaluator.add(interval.getEnd(), per.getValue().intValue()), true);
+            }
+            if (interval.getStart() instanceof BigDecimal) {
+                return new Interval(interval.getStart(), true, AddEvaluator.add(interval.getEnd(), per.getValue()), true);
+            }
+            return new Interval(interval.getStart(), true, AddEvaluator.add(interval.getEnd(), per), true);
+        }
+
+        static List<Interval> collapse(List<Interval> list, Quantity per, Context context) {
+            List<Interval> intervals = CqlList.toList(list, false);
+            if (intervals.size() <= 1) {
+                return intervals;
+            }
+
+            boolean isTemporal = intervals.get(0).getStart() instanceof BaseTemporal;
+            intervals.sort(new CqlList().valueSort);
+            if (per == null) {
+                per = new Quantity().withValue(new BigDecimal(0)).withDefaultUnit();
+            }
+            String precision = per.getUnit().equals("1") ? null : per.getUnit();
+
+            for (int i = 0; i < intervals.size() - 1; ++i) {
+                Interval applyPer = withPer(intervals.get(i), per);
+                if (isTemporal) {
+                    if (per.getValue().compareTo(BigDecimal.ONE) == 0 || per.getValue().compareTo(BigDecimal.ZERO) == 0) {
+                        applyPer = intervals.get(i);
+                    }
+                    else {
+                        precision = "millisecond";
+                    }
+                }
+
+                Boolean overlaps = OverlapsEvaluator.overlaps(applyPer, intervals.get(i + 1), precision, context);
+                Boolean meets = MeetsEvaluator.meets(applyPer, intervals.get(i + 1), precision, context);
+                if ((overlaps != null && overlaps) || (meets != null && meets)) {
+                    Boolean isNextEndGreater = isTemporal
+                            ? AfterEvaluator.after(intervals.get(i + 1).getEnd(), applyPer.getEnd(), precision, context)
+                            : GreaterEvaluator.greater(intervals.get(i + 1).getEnd(), applyPer.getEnd(), context);
+                    intervals.set(i, new Interval(applyPer.getStart(), true,
+                            isNextEndGreater != null && isNextEndGreater ? intervals.get(i + 1).getEnd() : applyPer.getEnd(), true));
+                    intervals.remove(i + 1);
+                    i -= 1;
+                }
+            }
+
+            return intervals;
+        }
+
+        static Object addPer(Object addTo, Quantity per) {
+            if (addTo instanceof Integer) {
+                return AddEvaluator.add(addTo, per.getValue().intValue());
+            }
+            return AddEvaluator.add(addTo, per.getValue());
+        }
+
+        static List<Interval> expandNumeric(Interval interval, Quantity per, Context context) {
+            List<Interval> expansion = new ArrayList<>();
+            Object start = interval.getStart();
+            Object end = addPer(start, per);
+            if (!per.getUnit().equals("1")) {
+                return null;
+            }
+            if (EqualEvaluator.equal(start, interval.getEnd(), context)) {
+                expansion.add(new Interval(start, true, start, true));
+                return expansion;
+            }
+            while (LessOrEqualEvaluator.lessOrEqual(PredecessorEvaluator.predecessor(end), interval.getEnd(), context)) {
+                expansion.add(new Interval(start, true, end, false));
+                start = end;
+                end = addPer(start, per);
+            }
+            return expansion;
+        }
+
+        static List<Interval> expandTemporal(Interval interval, Quantity per, String precision) {
+            Object i;
+            try {
+                i = DurationBetweenEvaluator.duration(interval.getStart(), interval.getEnd(), Precision.fromString(precision));
+            }
+            catch (Exception e) {
+                return null;
+            }
+            if (!(i instanceof Integer)) {
+                return null;
+            }
+
+            List<Interval> expansion = new ArrayList<>();
+            Interval unit = null;
+            Object start = interval.getStart();
+            Object end = AddEvaluator.add(start, per);
+            for (int j = 0; j < (Integer) i; ++j) {
+                unit = new Interval(start, true, end, false);
+                expansion.add(unit);
+                start = end;
+                end = AddEvaluator.add(start, per);
+            }
+            if (unit != null) {
+                i = DurationBetweenEvaluator.duration(unit.getEnd(), interval.getEnd(), Precision.fromString(precision));
+                if (i instanceof Integer && (Integer) i == 1) {
+                    expansion.add(new Interval(start, true, end, false));
+                }
+            }
+            else if (((BaseTemporal) start).getPrecision() == Precision.fromString(precision)
+                    && ((BaseTemporal) end).getPrecision() == Precision.fromString(precision))
+            {
+                expansion.add(new Interval(start, true, end, false));
+            }
+            return expansion;
+        }
+
+        static List<Interval> expand(List<Interval> list, Quantity per, Context context) {
+            List<Interval> intervals = CqlList.toList(list, false);
+            if (intervals.isEmpty()) {
+                return intervals;
+            }
+
+            intervals = collapse(intervals, new Quantity().withValue(BigDecimal.ZERO).withUnit(per == null ? "1" : per.getUnit()), context);
+            boolean isTemporal = intervals.get(0).getStart() instanceof BaseTemporal;
+            intervals.sort(new CqlList().valueSort);
+
+            if (per == null) {
+                per = isTemporal
+                        ? new Quantity().withValue(new BigDecimal("1.0")).withUnit(BaseTemporal.getLowestPrecision(
+                                (BaseTemporal) intervals.get(0).getStart(), (BaseTemporal) intervals.get(0).getEnd()))
+                        : new Quantity().withValue(new BigDecimal("1.0")).withDefaultUnit();
+            }
+            String precision = per.getUnit().equals("1") ? null : per.getUnit();
+
+            Set<Interval> set = new TreeSet<>();
+            for (Interval interval : intervals) {
+                List<Interval> temp = isTemporal ? expandTemporal(interval, per, precision) : expandNumeric(interval, per, context);
+                if (temp == null) {
+                    return null;
+                }
+                set.addAll(temp);
+            }
+            return new ArrayList<>(set);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.opencds.cqf.cql.engine.elm.execution;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.BaseTemporal;
+import org.opencds.cqf.cql.engine.runtime.Date;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.runtime.SpecializedInterval;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/*
+Property-based equivalence of the interval relationship kernels (and the specialized interval fast paths) with the
+    definitions of In, Overlaps, IncludedIn, Meets, MeetsBefore and MeetsAfter in terms of the comparison and date/time
+    comparison operators. Intervals are drawn from small domains so that equal, adjacent, null, open and uncertain
+    boundaries are all frequent.
+*/
+
+public class IntervalKernelsTest {
+
+    private static final int ITERATIONS = 20000;
+
+    private static final BigDecimal[] DECIMALS = {
+        new BigDecimal("-1.0"), new BigDecimal("-0.5"), BigDecimal.ZERO, new BigDecimal("0.00000001"),
+        new BigDecimal("0.5"), new BigDecimal("0.50000001"), BigDecimal.ONE
+    };
+
+    private static final String[] DATE_TIME_PRECISIONS = { null, "day", "hour" };
+    private static final String[] DATE_PRECISIONS = { null, "month", "day" };
+
+    private final Random random = new Random(20221019L);
+
+    private interface PointGenerator {
+        Object next(Random random);
+    }
+
+    @DataProvider
+    public Object[][] pointTypes() {
+        PointGenerator integers = r -> r.nextInt(9) - 4;
+        PointGenerator decimals = r -> DECIMALS[r.nextInt(DECIMALS.length)];
+        PointGenerator dateTimes = r -> r.nextInt(4) == 0
+                ? new DateTime(null, 2020, 1, 1 + r.nextInt(3))
+                : new DateTime(null, 2020, 1, 1 + r.nextInt(3), r.nextInt(2) * 23);
+        PointGenerator dates = r -> r.nextInt(4) == 0
+                ? new Date(2020, 1 + r.nextInt(2))
+                : new Date(2020, 1 + r.nextInt(2), r.nextInt(2) == 0 ? 1 + r.nextInt(2) : 29 - r.nextInt(2));
+
+        return new Object[][] {
+            { "Integer", integers, new String[] { null } },
+            { "Decimal", decimals, new String[] { null } },
+            { "DateTime", dateTimes, DATE_TIME_PRECISIONS },
+            { "Date", dates, DATE_PRECISIONS }
+        };
+    }
+
+    @Test(dataProvider = "pointTypes")
+    public void testKernelsMatchOperatorDefinitions(String name, PointGenerator points, String[] precisions) {
+        Context context = null;
+        for (int i = 0; i < ITERATIONS; ++i) {
+            Interval left = nextInterval(points, false);
+            Interval right = nextInterval(points, false);
+            Object point = random.nextInt(10) == 0 ? null : points.next(random);
+            String precision = precisions[random.nextInt(precisions.length)];
+            if (left == null || right == null) {
+                continue;
+            }
+
+            String label = String.format("%s: %s, %s, %s, %s", name, point, left, right, precision);
+            assertSame(label + " In", () -> Legacy.in(point, right, precision, context), () -> IntervalKernels.in(point, right, precision, context));
+            assertSame(label + " Overlaps", () -> Legacy.overlaps(left, right, precision, context), () -> IntervalKernels.overlaps(left, right, precision, context));
+            assertSame(label + " IncludedIn", () -> Legacy.includedIn(left, right, precision, context), () -> IntervalKernels.includedIn(left, right, precision, context));
+            assertSame(label + " Meets", () -> Legacy.meets(left, right, precision, context), () -> IntervalKernels.meets(left, right, precision, context));
+            assertSame(label + " MeetsBefore", () -> Legacy.meetsBefore(left, right, precision, context), () -> IntervalKernels.meetsBefore(left, right, precision, context));
+            assertSame(label + " MeetsAfter", () -> Legacy.meetsAfter(left, right, precision, context), () -> IntervalKernels.meetsAfter(left, right, precision, context));
+        }
+    }
+
+    @Test(dataProvider = "pointTypes")
+    public void testEvaluatorsMatchOperatorDefinitions(String name, PointGenerator points, String[] precisions) {
+        Context context = null;
+        for (int i = 0; i < ITERATIONS; ++i) {
+            // the specialized variants (where the point type has one) go through the fast paths
+            Interval left = nextInterval(points, true);
+            Interval right = nextInterval(points, true);
+            Object point = random.nextInt(10) == 0 ? null : points.next(random);
+            String precision = precisions[random.nextInt(precisions.length)];
+            if (left == null || right == null) {
+                continue;
+            }
+
+            String label = String.format("%s: %s, %s, %s, %s", name, point, left, right, precision);
+            assertSame(label + " In", () -> Legacy.in(point, right, precision, context), () -> InEvaluator.in(point, right, precision, context));
+            assertSame(label + " Overlaps", () -> Legacy.overlaps(left, right, precision, context), () -> OverlapsEvaluator.overlaps(left, right, precision, context));
+            assertSame(label + " IncludedIn", () -> Legacy.includedIn(left, right, precision, context), () -> IncludedInEvaluator.includedIn(left, right, precision, context));
+            assertSame(label + " Includes", () -> Legacy.includedIn(right, left, precision, context), () -> IncludesEvaluator.includes(left, right, precision, context));
+            assertSame(label + " Meets", () -> Legacy.meets(left, right, precision, context), () -> MeetsEvaluator.meets(left, right, precision, context));
+            assertSame(label + " MeetsBefore", () -> Legacy.meetsBefore(left, right, precision, context), () -> MeetsBeforeEvaluator.meetsBefore(left, right, precision, context));
+            assertSame(label + " MeetsAfter", () -> Legacy.meetsAfter(left, right, precision, context), () -> MeetsAfterEvaluator.meetsAfter(left, right, precision, context));
+        }
+    }
+
+    private Interval nextInterval(PointGenerator points, boolean specialized) {
+        Object low = random.nextInt(8) == 0 ? null : points.next(random);
+        Object high = random.nextInt(8) == 0 ? null : points.next(random);
+        boolean lowClosed = random.nextBoolean();
+        boolean highClosed = random.nextBoolean();
+        try {
+            return specialized
+                    ? SpecializedInterval.create(low, lowClosed, high, highClosed)
+                    : new Interval(low, lowClosed, high, highClosed);
+        }
+        catch (RuntimeException e) {
+            // invalid or empty interval - draw again
+            return null;
+        }
+    }
+
+    private static void assertSame(String label, Supplier<Boolean> expected, Supplier<Boolean> actual) {
+        Object expectedResult;
+        Object actualResult;
+        try {
+            expectedResult = expected.get();
+        }
+        catch (RuntimeException e) {
+            expectedResult = e.getClass();
+        }
+        try {
+            actualResult = actual.get();
+        }
+        catch (RuntimeException e) {
+            actualResult = e.getClass();
+        }
+        Assert.assertTrue(Objects.equals(expectedResult, actualResult),
+                String.format("%s expected %s but found %s", label, expectedResult, actualResult));
+    }
+
+    /*
+    The operator definitions as the evaluators implemented them before the kernels were introduced.
+     */
+    private static class Legacy {
+
+        static Boolean in(Object left, Interval right, String precision, Context context) {
+            if (left == null) {
+                return null;
+            }
+
+            Object rightStart = right.getStart();
+            Object rightEnd = right.getEnd();
+
+            if (left instanceof BaseTemporal) {
+                if (AnyTrueEvaluator.anyTrue(Arrays.asList(SameAsEvaluator.sameAs(left, rightStart, precision, context), SameAsEvaluator.sameAs(left, rightEnd, precision, context)))) {
+                    return true;
+                }
+                else if (AnyTrueEvaluator.anyTrue(Arrays.asList(BeforeEvaluator.before(left, rightStart, precision, context), AfterEvaluator.after(left, rightEnd, precision, context)))) {
+                    return false;
+                }
+
+                Boolean pointSameOrAfterStart = rightStart == null && right.getLowClosed()
+                        ? Boolean.TRUE
+                        : SameOrAfterEvaluator.sameOrAfter(left, rightStart, precision, context);
+                Boolean pointSameOrBeforeEnd = rightEnd == null && right.getHighClosed()
+                        ? Boolean.TRUE
+                        : SameOrBeforeEvaluator.sameOrBefore(left, rightEnd, precision, context);
+
+                return AndEvaluator.and(pointSameOrAfterStart, pointSameOrBeforeEnd);
+            }
+
+            else if (AnyTrueEvaluator.anyTrue(Arrays.asList(EqualEvaluator.equal(left, rightStart, context), EqualEvaluator.equal(left, rightEnd, context)))) {
+                return true;
+            }
+            else if (AnyTrueEvaluator.anyTrue(Arrays.asList(LessEvaluator.less(left, rightStart, context), GreaterEvaluator.greater(left, rightEnd, context)))) {
+                return false;
+            }
+
+            Boolean greaterOrEqual = rightStart == null && right.getLowClosed()
+                    ? Boolean.TRUE
+                    : GreaterOrEqualEvaluator.greaterOrEqual(left, rightStart, context);
+            Boolean lessOrEqual = rightEnd == null && right.getHighClosed()
+                    ? Boolean.TRUE
+                    : LessOrEqualEvaluator.lessOrEqual(left, rightEnd, context);
+
+            return AndEvaluator.and(greaterOrEqual, lessOrEqual);
+        }
+
+        static Boolean overlaps(Interval left, Interval right, String precision, Context context) {
+            Object leftStart = left.getStart();
+            Object leftEnd = left.getEnd();
+            Object rightStart = right.getStart();
+            Object rightEnd = right.getEnd();
+
+            if (leftStart instanceof BaseTemporal && rightStart instanceof BaseTemporal) {
+                return AndEvaluator.and(
+                        SameOrBeforeEvaluator.sameOrBefore(leftStart, rightEnd, precision, context),
+                        SameOrBeforeEvaluator.sameOrBefore(rightStart, leftEnd, precision, context)
+                );
+            }
+
+            return AndEvaluator.and(
+                    LessOrEqualEvaluator.lessOrEqual(leftStart, rightEnd, context),
+                    LessOrEqualEvaluator.lessOrEqual(rightStart, leftEnd, context)
+            );
+        }
+
+        static Boolean includedIn(Interval left, Interval right, String precision, Context context) {
+            Object leftStart = left.getStart();
+            Object leftEnd = left.getEnd();
+            Object rightStart = right.getStart();
+            Object rightEnd = right.getEnd();
+
+            Boolean boundaryCheck = AndEvaluator.and(
+                    in(leftStart, right, precision, context),
+                    in(leftEnd, right, precision, context)
+            );
+
+            if (boundaryCheck != null && boundaryCheck) {
+                return true;
+            }
+
+            if (leftStart instanceof BaseTemporal || leftEnd instanceof BaseTemporal
+                    || rightStart instanceof BaseTemporal || rightEnd instanceof BaseTemporal)
+            {
+                if (AnyTrueEvaluator.anyTrue(Arrays.asList(BeforeEvaluator.before(leftStart, rightStart, precision, context), AfterEvaluator.after(leftEnd, rightEnd, precision, context)))) {
+                    return false;
+                }
+                return AndEvaluator.and(
+                        SameOrAfterEvaluator.sameOrAfter(leftStart, rightStart, precision, context),
+                        SameOrBeforeEvaluator.sameOrBefore(leftEnd, rightEnd, precision, context)
+                );
+            }
+
+            if (AnyTrueEvaluator.anyTrue(Arrays.asList(LessEvaluator.less(leftStart, rightStart, context), GreaterEvaluator.greater(leftEnd, rightEnd, context)))) {
+                return false;
+            }
+            return AndEvaluator.and(
+                    GreaterOrEqualEvaluator.greaterOrEqual(leftStart, rightStart, context),
+                    LessOrEqualEvaluator.lessOrEqual(leftEnd, rightEnd, context)
+            );
+        }
+
+        static Boolean meets(Interval left, Interval right, String precision, Context context) {
+            Boolean in = in(left.getStart(), right, precision, context);
+            if (in != null && in) {
+                return false;
+            }
+            in = in(left.getEnd(), right, precision, context);
+            if (in != null && in) {
+                return false;
+            }
+
+            return OrEvaluator.or(
+                    meetsBefore(left, right, precision, context),
+                    meetsAfter(left, right, precision, context)
+            );
+        }
+
+        static Boolean meetsBefore(Interval left, Interval right, String precision, Context context) {
+            Boolean isLeftStartGreater = GreaterEvaluator.greater(left.getStart(), right.getEnd(), context);
+            if (isLeftStartGreater != null && isLeftStartGreater) {
+                return false;
+            }
+
+            Boolean isIn = in(left.getEnd(), right, precision, context);
+            if (isIn != null && isIn) {
+                return false;
+            }
+            isIn = in(left.getStart(), right, precision, context);
+            if (isIn != null && isIn) {
+                return false;
+            }
+
+            return MeetsEvaluator.meetsOperation(left.getEnd(), right.getStart(), precision, context);
+        }
+
+        static Boolean meetsAfter(Interval left, Interval right, String precision, Context context) {
+            Boolean isRightStartGreater = GreaterEvaluator.greater(right.getStart(), left.getEnd(), context);
+            if (isRightStartGreater != null && isRightStartGreater) {
+                return false;
+            }
+
+            Boolean isIn = in(left.getEnd(), right, precision, context);
+            if (isIn != null && isIn) {
+                return false;
+            }
+            isIn = in(left.getStart(), right, precision, context);
+            if (isIn != null && isIn) {
+                return false;
+            }
+            isIn = in(right.getEnd(), left, precision, context);
+            if (isIn != null && isIn) {
+                return false;
+            }
+
+            return MeetsEvaluator.meetsOperation(right.getEnd(), left.getStart(), precision, context);
+        }
+    }
+}
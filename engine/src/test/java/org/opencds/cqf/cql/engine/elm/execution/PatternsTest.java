@@ -0,0 +1,71 @@
+package org.opencds.cqf.cql.engine.elm.execution;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.xml.namespace.QName;
+
+import org.cqframework.cql.elm.execution.Expression;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.testng.annotations.Test;
+
+public class PatternsTest {
+
+    private static Expression literal(String value) {
+        return new LiteralEvaluator().withValueType(new QName("urn:hl7-org:elm-types:r1", "String")).withValue(value);
+    }
+
+    private static Context context() {
+        return new Context(new Library().withIdentifier(new VersionedIdentifier().withId("Test")));
+    }
+
+    @Test
+    public void testLiteralPatternIsBoundOnce() {
+        Patterns.Bound bound = new Patterns.Bound();
+        Expression operand = literal("[0-9]+");
+
+        Pattern pattern = bound.get(operand, "[0-9]+");
+        assertThat(bound.get(operand, "[0-9]+"), sameInstance(pattern));
+        assertThat(pattern, not(sameInstance(Patterns.compile("[0-9]+"))));
+    }
+
+    @Test
+    public void testDynamicPatternsAreShared() {
+        Patterns.Bound bound = new Patterns.Bound();
+        Expression operand = new ExpressionRefEvaluator().withName("Pattern");
+
+        assertThat(bound.get(operand, "a|b"), sameInstance(Patterns.compile("a|b")));
+        for (int i = 0; i < 2 * Patterns.MAX_CACHED_PATTERNS; ++i) {
+            Patterns.compile("pattern" + i);
+        }
+        assertThat(Patterns.compile("a|b").matcher("b").matches(), is(true));
+    }
+
+    @Test
+    public void testOperatorsWithLiteralPatterns() {
+        Context context = context();
+
+        Expression matches = new MatchesEvaluator().withOperand(literal("http://loinc.org"), literal("http://.*\\.org"));
+        assertThat(matches.evaluate(context), is(true));
+        assertThat(matches.evaluate(context), is(true));
+
+        Expression replace = new ReplaceMatchesEvaluator().withOperand(literal("a1b22c"), literal("[0-9]+"), literal("-"));
+        assertThat(replace.evaluate(context), is("a-b-c"));
+
+        Expression split = new SplitOnMatchesEvaluator().withStringToSplit(literal("a, b,c")).withSeparatorPattern(literal(",\\s*"));
+        assertThat((List<?>) split.evaluate(context), contains("a", "b", "c"));
+
+        assertThat(MatchesEvaluator.matches("abc", (String) null), is(nullValue()));
+        assertThat(ReplaceMatchesEvaluator.replaceMatches("abc", "b", "$0$0"), is("abbc"));
+        assertThat((List<?>) SplitOnMatchesEvaluator.splitOnMatches("a1b", "[0-9]"), contains("a", "b"));
+    }
+}
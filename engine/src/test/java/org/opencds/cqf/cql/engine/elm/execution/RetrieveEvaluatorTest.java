@@ -0,0 +1,147 @@
+package org.opencds.cqf.cql.engine.elm.execution;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.cqframework.cql.elm.execution.AliasedQuerySource;
+import org.cqframework.cql.elm.execution.LetClause;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ReturnClause;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
+import org.opencds.cqf.cql.engine.data.SystemDataProvider;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.retrieve.BatchReadRetrieveProvider;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.runtime.Tuple;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RetrieveEvaluatorTest {
+
+    private static final String MODEL = "http://example.org/model";
+
+    private final List<String> retrieves = new ArrayList<>();
+    private Context context;
+
+    @BeforeMethod
+    public void setUp() {
+        retrieves.clear();
+        context = new Context(new Library().withIdentifier(new VersionedIdentifier().withId("Test")));
+        context.registerDataProvider(MODEL, new CompositeDataProvider(new SystemDataProvider(), new RetrieveProvider() {
+            @Override
+            public Iterable<Object> retrieve(String contextName, String contextPath, Object contextValue,
+                    String dataType, String templateId, String codePath, Iterable<Code> codes, String valueSet,
+                    String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+                retrieves.add("all");
+                return Arrays.asList("1", "2", "3");
+            }
+
+            @Override
+            public Object retrieveFirst(String contextName, String contextPath, Object contextValue,
+                    String dataType, String templateId, String codePath, Iterable<Code> codes, String valueSet,
+                    String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+                retrieves.add("first");
+                return "1";
+            }
+
+            @Override
+            public Integer retrieveCount(String contextName, String contextPath, Object contextValue,
+                    String dataType, String templateId, String codePath, Iterable<Code> codes, String valueSet,
+                    String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+                retrieves.add("count");
+                return 3;
+            }
+        }));
+    }
+
+    private static RetrieveEvaluator retrieve() {
+        RetrieveEvaluator retrieve = new RetrieveEvaluator();
+        retrieve.setDataType(new QName(MODEL, "Encounter"));
+        return retrieve;
+    }
+
+    @Test
+    public void testExistsCountAndFirstOfARetrieveArePushedDown() {
+        assertThat(new ExistsEvaluator().withOperand(retrieve()).evaluate(context), is(true));
+        assertThat(retrieves, is(Arrays.asList("all")));
+
+        context.setCardinalityPushdown(true);
+        assertThat(new ExistsEvaluator().withOperand(retrieve()).evaluate(context), is(true));
+        assertThat(new CountEvaluator().withSource(retrieve()).evaluate(context), is(3));
+        assertThat(new FirstEvaluator().withSource(retrieve()).evaluate(context), is("1"));
+        assertThat(retrieves, is(Arrays.asList("all", "first", "count", "first")));
+    }
+
+    @Test
+    public void testCachedRetrievesAreNotMadeAgain() {
+        context.setCardinalityPushdown(true);
+        context.setRetrieveCaching(true);
+
+        retrieve().evaluate(context);
+        assertThat(new ExistsEvaluator().withOperand(retrieve()).evaluate(context), is(true));
+        assertThat(new CountEvaluator().withSource(retrieve()).evaluate(context), is(3));
+        assertThat(retrieves, is(Arrays.asList("all")));
+    }
+
+    private static Tuple tuple(String name, Object value, String otherName, Object otherValue) {
+        LinkedHashMap<String, Object> elements = new LinkedHashMap<>();
+        elements.put(name, value);
+        elements.put(otherName, otherValue);
+        return new Tuple().withElements(elements);
+    }
+
+    @Test
+    public void testTheResourcesAQueryRetrievesByIdForEachRowAreReadTogether() {
+        Map<String, Object> medications = new LinkedHashMap<>();
+        medications.put("m1", tuple("id", "m1", "code", "a"));
+        medications.put("m2", tuple("id", "m2", "code", "b"));
+        context.registerDataProvider(MODEL, new CompositeDataProvider(new SystemDataProvider(),
+                new BatchReadRetrieveProvider() {
+                    @Override
+                    public Iterable<Object> retrieve(String contextName, String contextPath, Object contextValue,
+                            String dataType, String templateId, String codePath, Iterable<Code> codes,
+                            String valueSet, String datePath, String dateLowPath, String dateHighPath,
+                            Interval dateRange) {
+                        retrieves.add(dataType);
+                        return dataType.equals("MedicationRequest")
+                                ? Arrays.asList(tuple("id", "r1", "medication", "m1"),
+                                        tuple("id", "r2", "medication", "m2"), tuple("id", "r3", "medication", "m1"))
+                                : Collections.emptyList();
+                    }
+
+                    @Override
+                    public Map<String, Object> read(String dataType, List<String> ids) {
+                        retrieves.add("read " + dataType + " " + ids);
+                        return medications;
+                    }
+                }));
+        context.setRetrieveCaching(true);
+
+        RetrieveEvaluator medication = new RetrieveEvaluator();
+        medication.setDataType(new QName(MODEL, "Medication"));
+        medication.setCodeProperty("id");
+        medication.setCodes(new PropertyEvaluator().withScope("R").withPath("medication"));
+        RetrieveEvaluator requests = new RetrieveEvaluator();
+        requests.setDataType(new QName(MODEL, "MedicationRequest"));
+        QueryEvaluator query = new QueryEvaluator();
+        query.getSource().add(new AliasedQuerySource().withAlias("R").withExpression(requests));
+        query.getLet().add(new LetClause().withIdentifier("M").withExpression(medication));
+        query.setReturn(new ReturnClause().withDistinct(false).withExpression(new QueryLetRefEvaluator().withName("M")));
+
+        assertThat(query.evaluate(context), is(Arrays.asList(Arrays.asList(medications.get("m1")),
+                Arrays.asList(medications.get("m2")), Arrays.asList(medications.get("m1")))));
+        assertThat(retrieves, is(Arrays.asList("MedicationRequest", "read Medication [m1, m2]")));
+    }
+}
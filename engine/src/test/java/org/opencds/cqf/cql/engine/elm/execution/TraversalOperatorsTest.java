@@ -0,0 +1,129 @@
+package org.opencds.cqf.cql.engine.elm.execution;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.cqframework.cql.elm.execution.Expression;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.runtime.Quantity;
+import org.opencds.cqf.cql.engine.runtime.Tuple;
+import org.testng.annotations.Test;
+
+public class TraversalOperatorsTest {
+
+    private static final int DEPTH = 100000;
+
+    private static Tuple tuple(Object... elements) {
+        LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < elements.length; i += 2) {
+            map.put((String) elements[i], elements[i + 1]);
+        }
+        return new Tuple().withElements(map);
+    }
+
+    @Test
+    public void testChildren() {
+        assertThat(ChildrenEvaluator.children(null), is(nullValue()));
+        assertThat((List<?>) ChildrenEvaluator.children(1), contains(1));
+        assertThat((List<?>) ChildrenEvaluator.children(Arrays.asList(1, Arrays.asList(2, 3), null)), contains(1, 2, 3));
+
+        Quantity quantity = new Quantity().withValue(BigDecimal.ONE).withUnit("mg");
+        Tuple child = tuple("b", "x");
+        Interval interval = new Interval(1, true, 2, true);
+        Tuple tuple = tuple("a", quantity, "list", Arrays.asList(child, 4), "interval", interval);
+        assertThat((List<?>) ChildrenEvaluator.children(tuple), contains(quantity, child, 4, interval));
+        assertThat((List<?>) ChildrenEvaluator.children(interval), contains(1, 2));
+        assertThat((List<?>) ChildrenEvaluator.children(quantity), contains(BigDecimal.ONE, "mg"));
+    }
+
+    @Test
+    public void testChildrenOfSelfContainingList() {
+        List<Object> list = new ArrayList<>(Arrays.asList(1, 2));
+        list.add(list);
+        assertThat((List<?>) ChildrenEvaluator.children(list), contains(1, 2));
+
+        // a list that occurs more than once is not a cycle
+        List<Object> shared = Arrays.asList(1, 2);
+        assertThat((List<?>) ChildrenEvaluator.children(Arrays.asList(shared, shared)), contains(1, 2, 1, 2));
+    }
+
+    @Test
+    public void testDescendents() {
+        assertThat(DescendentsEvaluator.descendents(null), is(nullValue()));
+        assertThat((List<?>) DescendentsEvaluator.descendents(Arrays.asList(1, 2)), contains(1, 2));
+
+        Quantity quantity = new Quantity().withValue(BigDecimal.ONE).withUnit("mg");
+        Tuple child = tuple("b", "x", "c", quantity);
+        Tuple tuple = tuple("a", 1, "children", Arrays.asList(child, tuple("d", 2)));
+        Tuple last = (Tuple) ((List<?>) tuple.getElement("children")).get(1);
+        assertThat((List<?>) DescendentsEvaluator.descendents(tuple),
+                contains(1, child, "x", quantity, BigDecimal.ONE, "mg", last, 2));
+    }
+
+    @Test
+    public void testDescendentsOfDeepAndCyclicValues() {
+        Tuple deepest = tuple("value", 0);
+        Tuple tuple = deepest;
+        for (int i = 1; i < DEPTH; ++i) {
+            tuple = tuple("value", i, "next", tuple);
+        }
+        // every tuple but the innermost contributes its value and the next tuple
+        assertThat(((List<?>) DescendentsEvaluator.descendents(tuple)).size(), is(2 * DEPTH - 1));
+
+        List<Object> elements = new ArrayList<>();
+        Tuple cyclic = tuple("value", 1, "elements", elements);
+        elements.add(cyclic);
+        assertThat((List<?>) DescendentsEvaluator.descendents(cyclic), contains(1, cyclic));
+    }
+
+    @Test
+    public void testDescendentsAreProducedOnDemand() {
+        Tuple tuple = tuple("value", 0);
+        for (int i = 1; i < DEPTH; ++i) {
+            tuple = tuple("value", i, "next", tuple);
+        }
+        List<?> descendents = (List<?>) DescendentsEvaluator.descendents(tuple);
+        assertThat(descendents.get(0), is(DEPTH - 1));
+        assertThat(descendents.isEmpty(), is(false));
+    }
+
+    @Test
+    public void testRepeat() {
+        Context context = new Context(new Library().withIdentifier(new VersionedIdentifier().withId("Test")));
+
+        // X -> (X + 1) mod 5, which cycles back to the first element
+        Expression next = new Expression() {
+            @Override
+            protected Object internalEvaluate(Context context) {
+                return ((Integer) context.resolveVariable("X", true).getValue() + 1) % 5;
+            }
+        };
+        assertThat(RepeatEvaluator.repeat(null, next, "X", context), is(nullValue()));
+        assertThat((List<?>) RepeatEvaluator.repeat(Collections.singletonList(3), next, "X", context), contains(4, 0, 1, 2, 3));
+
+        // X -> the elements of X, on a deep structure
+        Expression elements = new Expression() {
+            @Override
+            protected Object internalEvaluate(Context context) {
+                return ((Tuple) context.resolveVariable("X", true).getValue()).getElement("next");
+            }
+        };
+        Tuple tuple = tuple("next", Collections.emptyList());
+        for (int i = 1; i < DEPTH; ++i) {
+            tuple = tuple("next", Collections.singletonList(tuple));
+        }
+        assertThat(((List<?>) RepeatEvaluator.repeat(tuple, elements, "X", context)).size(), is(DEPTH - 1));
+    }
+}
@@ -0,0 +1,255 @@
+package org.opencds.cqf.cql.engine.execution;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.namespace.QName;
+
+import org.cqframework.cql.elm.execution.CodeDef;
+import org.cqframework.cql.elm.execution.CodeSystemDef;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ValueSetDef;
+import org.cqframework.cql.elm.execution.ValueSetRef;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
+import org.opencds.cqf.cql.engine.data.SystemDataProvider;
+import org.opencds.cqf.cql.engine.elm.execution.AliasRefEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.CodeRefEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.CodeSystemRefEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.ExistsEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.ExpressionRefEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.FunctionRefEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.LastEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.LiteralEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.NullEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.PropertyEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.QueryLetRefEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.RetrieveEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.SplitEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.ToListEvaluator;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Tuple;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.testng.annotations.Test;
+
+public class DataRequirementsTest {
+
+    private static final String MODEL = "http://example.org/model";
+    private static final String SNOMED = "http://snomed.info/sct";
+
+    private static RetrieveEvaluator retrieve(String dataType, String valueSet) {
+        RetrieveEvaluator retrieve = new RetrieveEvaluator();
+        retrieve.setDataType(new QName(MODEL, dataType));
+        if (valueSet != null) {
+            retrieve.setCodeProperty("code");
+            retrieve.setCodes(new ValueSetRef().withName(valueSet));
+        }
+        return retrieve;
+    }
+
+    private static Tuple resource(String id, String code) {
+        LinkedHashMap<String, Object> elements = new LinkedHashMap<>();
+        elements.put("id", id);
+        elements.put("code", new Code().withSystem(SNOMED).withCode(code));
+        return new Tuple().withElements(elements);
+    }
+
+    private static Library library() {
+        RetrieveEvaluator datedObservations = retrieve("Observation", "Blood Pressure");
+        datedObservations.setDateProperty("effective");
+        datedObservations.setDateRange(new NullEvaluator());
+
+        return new Library().withIdentifier(new VersionedIdentifier().withId("Measure"))
+                .withValueSets(new Library.ValueSets().withDef(
+                        new ValueSetDef().withName("Inpatient").withId("inpatient"),
+                        new ValueSetDef().withName("Emergency").withId("emergency"),
+                        new ValueSetDef().withName("Blood Pressure").withId("blood-pressure")))
+                .withStatements(new Library.Statements().withDef(
+                        new ExpressionDef().withName("Inpatient").withContext("Patient")
+                                .withExpression(retrieve("Encounter", "Inpatient")),
+                        new ExpressionDef().withName("Has Emergency").withContext("Patient")
+                                .withExpression(new ExistsEvaluator().withOperand(retrieve("Encounter", "Emergency"))),
+                        new ExpressionDef().withName("Observations").withContext("Patient")
+                                .withExpression(retrieve("Observation", null)),
+                        new ExpressionDef().withName("Blood Pressures").withContext("Patient")
+                                .withExpression(datedObservations)));
+    }
+
+    @Test
+    public void testRetrievesAreCollectedAndMerged() {
+        Context context = new Context(library());
+        List<RetrieveRequirement> requirements = DataRequirements.collect(context);
+
+        assertThat(requirements.size(), is(4));
+        assertThat(requirements.get(1), is(new RetrieveRequirement("Patient", new QName(MODEL, "Encounter"), null,
+                "code", "emergency", true, false)));
+        assertThat(requirements.get(3).isDateFiltered(), is(true));
+
+        // value set retrieves of encounters are kept, observations are fetched once without filters
+        assertThat(DataRequirements.merge(requirements), contains(
+                new RetrieveRequirement("Patient", new QName(MODEL, "Encounter"), null, "code", "inpatient", true, false),
+                new RetrieveRequirement("Patient", new QName(MODEL, "Encounter"), null, "code", "emergency", true, false),
+                new RetrieveRequirement("Patient", new QName(MODEL, "Observation"), null, null, null, false, false)));
+    }
+
+    @Test
+    public void testOnlyTheRetrievesOfTheEvaluatedExpressionsAreCollected() {
+        Library library = new Library().withIdentifier(new VersionedIdentifier().withId("Measure"))
+                .withValueSets(new Library.ValueSets().withDef(
+                        new ValueSetDef().withName("Inpatient").withId("inpatient")))
+                .withStatements(new Library.Statements().withDef(
+                        new ExpressionDef().withName("Encounters").withContext("Patient")
+                                .withExpression(retrieve("Encounter", "Inpatient")),
+                        new ExpressionDef().withName("Has Encounters").withContext("Patient")
+                                .withExpression(new ExistsEvaluator().withOperand(
+                                        new ExpressionRefEvaluator().withName("Encounters"))),
+                        new ExpressionDef().withName("Conditions").withContext("Patient")
+                                .withExpression(retrieve("Condition", null)),
+                        new ExpressionDef().withName("All Observations").withContext("Unfiltered")
+                                .withExpression(retrieve("Observation", null)),
+                        new ExpressionDef().withName("Observations").withContext("Patient")
+                                .withExpression(new ExpressionRefEvaluator().withName("All Observations")),
+                        new FunctionDef().withName("Procedures").withContext("Patient")
+                                .withExpression(retrieve("Procedure", null)),
+                        new ExpressionDef().withName("Has Procedures").withContext("Patient")
+                                .withExpression(new FunctionRefEvaluator().withName("Procedures"))));
+        Context context = new Context(library);
+
+        assertThat(DataRequirements.collect(context,
+                new LinkedHashSet<>(Arrays.asList("Has Encounters", "Observations", "Has Procedures"))),
+                contains(new RetrieveRequirement("Patient", new QName(MODEL, "Encounter"), null, "code", "inpatient",
+                        true, false)));
+        assertThat(DataRequirements.collect(context).size(), is(2));
+    }
+
+    @Test
+    public void testCodeFiltersAreMergedAsAUnion() {
+        RetrieveEvaluator diabetes = retrieve("Condition", null);
+        diabetes.setCodeProperty("code");
+        diabetes.setCodes(new ToListEvaluator().withOperand(new CodeRefEvaluator().withName("Diabetes")));
+        RetrieveEvaluator datedInpatient = retrieve("Encounter", "Inpatient");
+        datedInpatient.setDateProperty("period");
+        datedInpatient.setDateRange(new NullEvaluator());
+        Library library = new Library().withIdentifier(new VersionedIdentifier().withId("Measure"))
+                .withCodeSystems(new Library.CodeSystems().withDef(new CodeSystemDef().withName("SNOMED").withId(SNOMED)))
+                .withCodes(new Library.Codes().withDef(new CodeDef().withName("Diabetes").withId("44054006")
+                        .withCodeSystem(new CodeSystemRefEvaluator().withName("SNOMED"))))
+                .withValueSets(new Library.ValueSets().withDef(
+                        new ValueSetDef().withName("Inpatient").withId("inpatient"),
+                        new ValueSetDef().withName("Emergency").withId("emergency")))
+                .withStatements(new Library.Statements().withDef(
+                        new ExpressionDef().withName("Diabetes").withContext("Patient").withExpression(diabetes),
+                        new ExpressionDef().withName("Inpatient").withContext("Patient").withExpression(datedInpatient),
+                        new ExpressionDef().withName("Emergency").withContext("Patient")
+                                .withExpression(retrieve("Encounter", "Emergency"))));
+        List<RetrieveRequirement> requirements = DataRequirements.collect(new Context(library));
+
+        Code diabetesCode = new Code().withSystem(SNOMED).withCode("44054006");
+        assertThat(requirements.get(0).getCodes(), contains(diabetesCode));
+        Code hypertension = new Code().withSystem(SNOMED).withCode("38341003");
+        requirements.add(new RetrieveRequirement("Patient", new QName(MODEL, "Condition"), null, "code", null,
+                Arrays.asList(hypertension, diabetesCode), true, true));
+
+        // the date filtered value set retrieve is made without its date range
+        assertThat(DataRequirements.merge(requirements), contains(
+                new RetrieveRequirement("Patient", new QName(MODEL, "Condition"), null, "code", null,
+                        Arrays.asList(diabetesCode, hypertension), true, false),
+                new RetrieveRequirement("Patient", new QName(MODEL, "Encounter"), null, "code", "inpatient", true, false),
+                new RetrieveRequirement("Patient", new QName(MODEL, "Encounter"), null, "code", "emergency", true, false)));
+    }
+
+    @Test
+    public void testEvaluationIsAnsweredFromThePrefetchedData() {
+        List<String> retrieves = Collections.synchronizedList(new ArrayList<>());
+        Context context = new Context(library());
+        context.registerDataProvider(MODEL, new CompositeDataProvider(new SystemDataProvider(),
+                (contextName, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath,
+                        dateLowPath, dateHighPath, dateRange) -> {
+                    retrieves.add(dataType + " " + valueSet + " " + contextValue);
+                    return dataType.equals("Observation")
+                            ? Arrays.asList(resource("1", "75367002"), resource("2", "271649006"))
+                            : Arrays.asList(resource(valueSet, "183452005"));
+                }));
+        context.registerTerminologyProvider(new TerminologyProvider() {
+            @Override
+            public boolean in(Code code, ValueSetInfo valueSet) {
+                return false;
+            }
+
+            @Override
+            public Iterable<Code> expand(ValueSetInfo valueSet) {
+                return Arrays.asList(new Code().withSystem(SNOMED).withCode("75367002"));
+            }
+
+            @Override
+            public Code lookup(Code code, CodeSystemInfo codeSystem) {
+                return null;
+            }
+        });
+        context.setContextValue("Patient", "123");
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            DataRequirements.prefetch(context, DataRequirements.merge(DataRequirements.collect(context)), executor);
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertThat(retrieves.size(), is(3));
+
+        context.enterContext("Patient");
+        List<Object> ids = new ArrayList<>();
+        for (ExpressionDef def : context.getCurrentLibrary().getStatements().getDef()) {
+            Object result = def.getExpression().evaluate(context);
+            if (result instanceof Iterable) {
+                for (Object resource : (Iterable<?>) result) {
+                    ids.add(((Tuple) resource).getElement("id"));
+                }
+            }
+            else {
+                ids.add(result);
+            }
+        }
+
+        assertThat(ids, contains("inpatient", true, "1", "2", "1"));
+        assertThat(retrieves.size(), is(3));
+        assertThat(context.getRetrieveCache().getHits(), is(3L));
+        assertThat(context.getRetrieveCache().getFilteredHits(), is(1L));
+    }
+
+    @Test
+    public void testExpressionsReferencingOnlyAQueryAlias() {
+        // Last(Split(R.medication, '/'))
+        LiteralEvaluator slash = new LiteralEvaluator();
+        slash.setValueType(new QName("urn:hl7-org:elm-types:r1", "String"));
+        slash.setValue("/");
+        LastEvaluator id = new LastEvaluator();
+        id.setSource(new SplitEvaluator().withStringToSplit(new PropertyEvaluator()
+                .withSource(new AliasRefEvaluator().withName("R")).withPath("medication")).withSeparator(slash));
+        assertThat(DataRequirements.referencesOnly(id, "R"), is(true));
+        assertThat(DataRequirements.referencesOnly(new PropertyEvaluator().withScope("R").withPath("medication"), "R"),
+                is(true));
+
+        assertThat(DataRequirements.referencesOnly(id, "S"), is(false));
+        assertThat(DataRequirements.referencesOnly(new PropertyEvaluator().withScope("S").withPath("medication"), "R"),
+                is(false));
+        assertThat(DataRequirements.referencesOnly(new PropertyEvaluator()
+                .withSource(new QueryLetRefEvaluator().withName("M")).withPath("id"), "R"), is(false));
+        assertThat(DataRequirements.referencesOnly(new ExpressionRefEvaluator().withName("Medication"), "R"),
+                is(false));
+    }
+}
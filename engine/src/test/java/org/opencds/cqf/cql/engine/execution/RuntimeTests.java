@@ -1,16 +1,35 @@
 package org.opencds.cqf.cql.engine.execution;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
 
 import org.opencds.cqf.cql.engine.debug.Location;
 import org.opencds.cqf.cql.engine.debug.SourceLocator;
+import org.opencds.cqf.cql.engine.elm.execution.InEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.IncludedInEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.IncludesEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.MeetsAfterEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.MeetsBeforeEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.MeetsEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.OverlapsEvaluator;
 import org.opencds.cqf.cql.engine.exception.InvalidInterval;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.DateTimeInterval;
+import org.opencds.cqf.cql.engine.runtime.DecimalInterval;
+import org.opencds.cqf.cql.engine.runtime.IntegerInterval;
 import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.runtime.LongInterval;
 import org.opencds.cqf.cql.engine.runtime.Quantity;
+import org.opencds.cqf.cql.engine.runtime.SpecializedInterval;
 import org.opencds.cqf.cql.engine.runtime.Tuple;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
 public class RuntimeTests {
@@ -36,6 +55,140 @@ public class RuntimeTests {
         new Interval( s, true, e, true );
     }
 
+    @Test
+    public void testSpecializedIntervals() {
+        Interval integerInterval = SpecializedInterval.create(1, true, 5, false);
+        assertThat(integerInterval, instanceOf(IntegerInterval.class));
+        assertThat(integerInterval.getEnd(), is(4));
+        assertThat(InEvaluator.in(4, integerInterval, null, null), is(true));
+        assertThat(InEvaluator.in(5, integerInterval, null, null), is(false));
+        assertThat(MeetsEvaluator.meets(integerInterval, SpecializedInterval.create(5, true, 10, true), null, null), is(true));
+        assertThat(OverlapsEvaluator.overlaps(integerInterval, SpecializedInterval.create(5, true, 10, true), null, null), is(false));
+
+        // an open null boundary has no known starting point
+        assertThat(SpecializedInterval.create(null, false, 5, true), instanceOf(Interval.class));
+        assertThat(SpecializedInterval.create(null, false, 5, true) instanceof SpecializedInterval, is(false));
+
+        Interval dayInterval = SpecializedInterval.create(new DateTime(null, 2020, 1, 1), true, new DateTime(null, 2020, 1, 31), true);
+        assertThat(dayInterval, instanceOf(DateTimeInterval.class));
+        assertThat(MeetsEvaluator.meets(dayInterval, SpecializedInterval.create(new DateTime(null, 2020, 2, 1), true, new DateTime(null, 2020, 2, 29), true), null, null), is(true));
+
+        // mixed precision boundaries stay on the generic path
+        Interval mixed = SpecializedInterval.create(new DateTime(null, 2020, 1, 1), true, new DateTime(null, 2020, 1, 31, 12), true);
+        assertThat(mixed instanceof SpecializedInterval, is(false));
+    }
+
+    @Test
+    public void testSpecializedIntegerIntervalsMatchGenericPath() {
+        assertThat(SpecializedInterval.create(1, true, 3, true), instanceOf(IntegerInterval.class));
+        assertMatchesGenericPath(new Object[] { 1, 2, 3, Integer.MAX_VALUE }, new String[] { null });
+    }
+
+    @Test
+    public void testSpecializedLongIntervalsMatchGenericPath() {
+        assertThat(SpecializedInterval.create(1L, true, 3L, true), instanceOf(LongInterval.class));
+        assertMatchesGenericPath(new Object[] { 1L, 2L, 3L, Long.MAX_VALUE }, new String[] { null });
+    }
+
+    @Test
+    public void testSpecializedDecimalIntervalsMatchGenericPath() {
+        assertThat(SpecializedInterval.create(BigDecimal.ZERO, true, BigDecimal.ONE, true), instanceOf(DecimalInterval.class));
+        assertMatchesGenericPath(
+                new Object[] { BigDecimal.ZERO, new BigDecimal("0.00000001"), new BigDecimal("0.5"), BigDecimal.ONE },
+                new String[] { null }
+        );
+    }
+
+    @Test
+    public void testSpecializedDateTimeIntervalsMatchGenericPath() {
+        assertMatchesGenericPath(
+                new Object[] { new DateTime(null, 2020, 1, 1), new DateTime(null, 2020, 1, 2), new DateTime(null, 2020, 1, 3) },
+                new String[] { null, "month", "day", "hour" }
+        );
+    }
+
+    /*
+    Builds every interval over the given points (including null boundaries) with every combination of open and closed
+        boundaries, and checks that the operators answer the same for the specialized variants as for plain Intervals,
+        which always take the generic path.
+     */
+    private static void assertMatchesGenericPath(Object[] points, String[] precisions) {
+        List<Object> boundaries = new ArrayList<>();
+        boundaries.add(null);
+        for (Object point : points) {
+            boundaries.add(point);
+        }
+
+        List<Interval[]> intervals = new ArrayList<>();
+        for (Object low : boundaries) {
+            for (Object high : boundaries) {
+                for (int closed = 0; closed < 4; ++closed) {
+                    boolean lowClosed = (closed & 1) != 0;
+                    boolean highClosed = (closed & 2) != 0;
+                    try {
+                        intervals.add(new Interval[] {
+                            SpecializedInterval.create(low, lowClosed, high, highClosed),
+                            new Interval(low, lowClosed, high, highClosed)
+                        });
+                    }
+                    catch (RuntimeException e) {
+                        // invalid interval
+                    }
+                }
+            }
+        }
+
+        for (String precision : precisions) {
+            for (Interval[] left : intervals) {
+                for (Object point : boundaries) {
+                    assertSame(String.format("%s In %s (%s)", point, left[1], precision),
+                            () -> InEvaluator.in(point, left[1], precision, null),
+                            () -> InEvaluator.in(point, left[0], precision, null));
+                }
+                for (Interval[] right : intervals) {
+                    String label = String.format("%s, %s (%s)", left[1], right[1], precision);
+                    assertSame(label + " Overlaps",
+                            () -> OverlapsEvaluator.overlaps(left[1], right[1], precision, null),
+                            () -> OverlapsEvaluator.overlaps(left[0], right[0], precision, null));
+                    assertSame(label + " IncludedIn",
+                            () -> IncludedInEvaluator.includedIn(left[1], right[1], precision, null),
+                            () -> IncludedInEvaluator.includedIn(left[0], right[0], precision, null));
+                    assertSame(label + " Includes",
+                            () -> IncludesEvaluator.includes(left[1], right[1], precision, null),
+                            () -> IncludesEvaluator.includes(left[0], right[0], precision, null));
+                    assertSame(label + " Meets",
+                            () -> MeetsEvaluator.meets(left[1], right[1], precision, null),
+                            () -> MeetsEvaluator.meets(left[0], right[0], precision, null));
+                    assertSame(label + " MeetsBefore",
+                            () -> MeetsBeforeEvaluator.meetsBefore(left[1], right[1], precision, null),
+                            () -> MeetsBeforeEvaluator.meetsBefore(left[0], right[0], precision, null));
+                    assertSame(label + " MeetsAfter",
+                            () -> MeetsAfterEvaluator.meetsAfter(left[1], right[1], precision, null),
+                            () -> MeetsAfterEvaluator.meetsAfter(left[0], right[0], precision, null));
+                }
+            }
+        }
+    }
+
+    private static void assertSame(String label, Supplier<Boolean> expected, Supplier<Boolean> actual) {
+        Object expectedResult;
+        Object actualResult;
+        try {
+            expectedResult = expected.get();
+        }
+        catch (RuntimeException e) {
+            expectedResult = e.getClass();
+        }
+        try {
+            actualResult = actual.get();
+        }
+        catch (RuntimeException e) {
+            actualResult = e.getClass();
+        }
+        Assert.assertTrue(Objects.equals(expectedResult, actualResult),
+                String.format("%s expected %s but found %s", label, expectedResult, actualResult));
+    }
+
     @Test
     public void testTupleToString() {
         Tuple t = new Tuple();
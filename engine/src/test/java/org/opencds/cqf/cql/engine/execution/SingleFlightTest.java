@@ -0,0 +1,151 @@
+package org.opencds.cqf.cql.engine.execution;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.retrieve.SingleFlightRetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SingleFlightTest {
+
+    private static final int THREADS = 8;
+
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void startExecutor() {
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterMethod
+    public void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    /*
+    Runs the call on all the threads at once, releasing the calls once every thread has started.
+     */
+    private <V> List<Future<V>> runConcurrently(Supplier<V> call, CountDownLatch release) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(THREADS);
+        List<Future<V>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; ++i) {
+            results.add(executor.submit(() -> {
+                started.countDown();
+                return call.get();
+            }));
+        }
+        started.await(10, TimeUnit.SECONDS);
+        // give the followers time to join the call in flight
+        Thread.sleep(200);
+        release.countDown();
+        return results;
+    }
+
+    @Test
+    public void testConcurrentCallsShareOneResult() throws Exception {
+        SingleFlight<String, Object> singleFlight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<Object>> results = runConcurrently(() -> singleFlight.execute("expand", () -> {
+            calls.incrementAndGet();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new Object();
+        }), release);
+
+        Object first = results.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<Object> result : results) {
+            assertThat(result.get(10, TimeUnit.SECONDS), sameInstance(first));
+        }
+        assertThat(calls.get(), is(1));
+
+        // completed calls are not cached
+        singleFlight.execute("expand", () -> calls.incrementAndGet());
+        assertThat(calls.get(), is(2));
+    }
+
+    @Test
+    public void testConcurrentCallsShareOneFailure() throws Exception {
+        SingleFlight<String, Object> singleFlight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<String>> results = runConcurrently(() -> {
+            try {
+                singleFlight.execute("expand", () -> {
+                    calls.incrementAndGet();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IllegalStateException("unavailable");
+                });
+                return "returned";
+            }
+            catch (IllegalStateException e) {
+                return e.getMessage();
+            }
+        }, release);
+
+        for (Future<String> result : results) {
+            assertThat(result.get(10, TimeUnit.SECONDS), is("unavailable"));
+        }
+        assertThat(calls.get(), is(1));
+    }
+
+    @Test
+    public void testIdenticalRetrievesAreCoalesced() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        RetrieveProvider provider = (context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                valueSet, datePath, dateLowPath, dateHighPath, dateRange) -> {
+            calls.incrementAndGet();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Arrays.asList(dataType, contextValue);
+        };
+        SingleFlightRetrieveProvider singleFlight = new SingleFlightRetrieveProvider(provider);
+
+        List<Future<Iterable<Object>>> results = runConcurrently(() -> singleFlight.retrieve("Patient", "subject",
+                "123", "Observation", null, "code", Arrays.asList(new Code().withSystem("http://loinc.org").withCode("8480-6")),
+                null, null, null, null, null), release);
+
+        for (Future<Iterable<Object>> result : results) {
+            assertThat(result.get(10, TimeUnit.SECONDS), contains("Observation", "123"));
+        }
+        assertThat(calls.get(), is(1));
+
+        // a retrieve with different codes is a different request
+        singleFlight.retrieve("Patient", "subject", "123", "Observation", null, "code",
+                Arrays.asList(new Code().withSystem("http://loinc.org").withCode("8462-4")), null, null, null, null, null);
+        assertThat(calls.get(), is(2));
+    }
+}
@@ -2,15 +2,25 @@ package org.opencds.cqf.cql.engine.execution;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
+import java.math.BigDecimal;
+import java.math.MathContext;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.fhir.ucum.Decimal;
 import org.fhir.ucum.UcumEssenceService;
 import org.fhir.ucum.UcumException;
 import org.fhir.ucum.UcumService;
 import org.opencds.cqf.cql.engine.data.SystemDataProvider;
+import org.opencds.cqf.cql.engine.elm.execution.ConvertQuantityEvaluator;
+import org.opencds.cqf.cql.engine.runtime.Quantity;
 import org.testng.annotations.Test;
 
 public class UcumTests {
@@ -27,4 +37,66 @@ public class UcumTests {
         Context context = new Context(new Library().withIdentifier(new VersionedIdentifier().withId("Test")), ZonedDateTime.now(), new SystemDataProvider(), ucumService);
         assertEquals(context.getUcumService(), ucumService);
     }
+
+    @Test
+    public void unitConverterMatchesUcumService() throws UcumException {
+        UcumService ucumService = new UcumEssenceService(UcumEssenceService.class.getResourceAsStream("/ucum-essence.xml"));
+        UnitConverter unitConverter = new UnitConverter(() -> ucumService);
+        String[] units = { "ug", "mg", "g", "kg", "mL", "dL", "L", "cm", "m", "mmol/L", "mol/L", "mg/dL", "g/L", "%", "1", "s", "h", "d", "wk", "mo", "a", "[lb_av]", "Cel" };
+        String[] values = { "5", "1.5", "0.25", "123456.789", "-2" };
+
+        for (String from : units) {
+            for (String to : units) {
+                for (String value : values) {
+                    BigDecimal expected;
+                    try {
+                        expected = new BigDecimal(ucumService.convert(new Decimal(value), from, to).asDecimal());
+                    }
+                    catch (Exception e) {
+                        expected = null;
+                    }
+                    BigDecimal actual = unitConverter.convert(new BigDecimal(value), from, to);
+
+                    String label = String.format("%s '%s' to '%s'", value, from, to);
+                    if (expected == null) {
+                        assertNull(actual, label);
+                    }
+                    else {
+                        assertNotNull(actual, label);
+                        // UCUM may round the exact conversion to the significant digits of the value
+                        assertTrue(expected.compareTo(actual.round(new MathContext(expected.precision()))) == 0, String.format("%s: expected %s but found %s", label, expected, actual));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void unitConverterDoesNotNeedUcumServiceForCommonUnits() {
+        UnitConverter unitConverter = new UnitConverter(() -> null);
+        assertEquals(unitConverter.convert(new BigDecimal("5"), "mg", "g"), new BigDecimal("0.005"));
+        assertEquals(unitConverter.convert(new BigDecimal("2"), "a", "d"), new BigDecimal("730.50"));
+        assertEquals(unitConverter.convert(new BigDecimal("3"), "kg", "g"), new BigDecimal("3000"));
+        assertNull(unitConverter.convert(new BigDecimal("5"), "[lb_av]", "kg"));
+        assertNull(unitConverter.convert(new BigDecimal("5"), "mg", "mL"));
+    }
+
+    @Test
+    public void convertQuantityReusesTheUnitConverterOfAUcumService() throws UcumException {
+        List<String> validated = new ArrayList<>();
+        UcumService ucumService = new UcumEssenceService(UcumEssenceService.class.getResourceAsStream("/ucum-essence.xml")) {
+            @Override
+            public String validate(String unit) {
+                validated.add(unit);
+                return super.validate(unit);
+            }
+        };
+        Quantity pounds = new Quantity().withValue(new BigDecimal("5")).withUnit("[lb_av]");
+
+        Quantity first = (Quantity) ConvertQuantityEvaluator.convertQuantity(pounds, "kg", ucumService);
+        assertEquals(validated, Arrays.asList("[lb_av]", "kg"));
+        Quantity second = (Quantity) ConvertQuantityEvaluator.convertQuantity(pounds, "kg", ucumService);
+        assertEquals(second.getValue(), first.getValue());
+        assertEquals(validated.size(), 2);
+    }
 }
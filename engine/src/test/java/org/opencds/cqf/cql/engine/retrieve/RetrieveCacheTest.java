@@ -0,0 +1,333 @@
+package org.opencds.cqf.cql.engine.retrieve;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
+import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.data.SystemDataProvider;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Date;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.runtime.Tuple;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RetrieveCacheTest {
+
+    private static final String SNOMED = "http://snomed.info/sct";
+
+    private static Tuple tuple(Object... elements) {
+        LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < elements.length; i += 2) {
+            map.put((String) elements[i], elements[i + 1]);
+        }
+        return new Tuple().withElements(map);
+    }
+
+    // an encounter with its type as a model concept
+    private static Tuple encounter(String id, String type) {
+        return tuple("id", id, "type", tuple("coding", Arrays.asList(tuple("system", SNOMED, "code", type))));
+    }
+
+    private final List<String> retrieves = new ArrayList<>();
+    private final List<Object> encounters = Arrays.asList(encounter("1", "183452005"), encounter("2", "4525004"),
+            encounter("3", "183452005"));
+
+    private final DataProvider dataProvider = new CompositeDataProvider(new SystemDataProvider(),
+            (context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath,
+                    dateLowPath, dateHighPath, dateRange) -> {
+                retrieves.add(dataType + " " + contextValue + " " + (codes != null || valueSet != null));
+                return codes == null && valueSet == null ? encounters : Collections.emptyList();
+            });
+
+    private Context context;
+
+    @BeforeMethod
+    public void clearRetrieves() {
+        retrieves.clear();
+        context = new Context(new Library().withIdentifier(new VersionedIdentifier().withId("Test")));
+    }
+
+    private Iterable<Object> retrieve(RetrieveCache cache, Object patient, List<Code> codes,
+            String valueSet) {
+        return cache.retrieve(dataProvider, "Patient", "subject", patient, "Encounter", null,
+                codes == null && valueSet == null ? null : "type", codes, valueSet, null, null, null, null);
+    }
+
+    private static List<Object> ids(Iterable<Object> resources) {
+        List<Object> ids = new ArrayList<>();
+        resources.forEach(resource -> ids.add(((Tuple) resource).getElement("id")));
+        return ids;
+    }
+
+    @Test
+    public void testIdenticalRetrievesAreMadeOnce() {
+        RetrieveCache cache = new RetrieveCache(context);
+
+        assertThat(ids(retrieve(cache, "123", null, null)), contains("1", "2", "3"));
+        assertThat(ids(retrieve(cache, "123", null, null)), contains("1", "2", "3"));
+        retrieve(cache, "456", null, null);
+
+        assertThat(retrieves, is(Arrays.asList("Encounter 123 false", "Encounter 456 false")));
+        assertThat(cache.getHits(), is(1L));
+        assertThat(cache.getMisses(), is(2L));
+
+        cache.clear();
+        retrieve(cache, "123", null, null);
+        assertThat(retrieves.size(), is(3));
+    }
+
+    @Test
+    public void testCodeFilteredRetrievesAreAnsweredFromUnfilteredOnes() {
+        RetrieveCache cache = new RetrieveCache(context);
+        retrieve(cache, "123", null, null);
+
+        assertThat(ids(retrieve(cache, "123", Arrays.asList(new Code().withSystem(SNOMED).withCode("183452005")), null)),
+                contains("1", "3"));
+        assertThat(ids(retrieve(cache, "123", Arrays.asList(new Code().withCode("4525004")), null)), contains("2"));
+        assertThat(ids(retrieve(cache, "123", Arrays.asList(new Code().withSystem("other").withCode("4525004")), null)),
+                is(Collections.emptyList()));
+        assertThat(cache.getFilteredHits(), is(3L));
+
+        // a value set filter needs a terminology provider
+        retrieve(cache, "123", null, "emergency");
+        assertThat(retrieves, is(Arrays.asList("Encounter 123 false", "Encounter 123 true")));
+
+        context.registerTerminologyProvider(new TerminologyProvider() {
+            @Override
+            public boolean in(Code code, ValueSetInfo valueSet) {
+                return "4525004".equals(code.getCode());
+            }
+
+            @Override
+            public Iterable<Code> expand(ValueSetInfo valueSet) {
+                return Arrays.asList(new Code().withSystem(SNOMED).withCode("183452005"));
+            }
+
+            @Override
+            public Code lookup(Code code, CodeSystemInfo codeSystem) {
+                return null;
+            }
+        });
+        assertThat(ids(retrieve(cache, "123", null, "inpatient")), contains("1", "3"));
+        assertThat(retrieves.size(), is(2));
+        assertThat(cache.getFilteredHits(), is(4L));
+    }
+
+    @Test
+    public void testCodeFilteredRetrievesAreAnsweredFromRetrievesWithMoreCodes() {
+        RetrieveCache cache = new RetrieveCache(context);
+        Code inpatient = new Code().withSystem(SNOMED).withCode("183452005");
+        Code emergency = new Code().withSystem(SNOMED).withCode("4525004");
+        cache.put(dataProvider, "Patient", "subject", "123", "Encounter", null, "type",
+                Arrays.asList(inpatient, emergency), null, null, null, null, null, encounters);
+
+        assertThat(ids(retrieve(cache, "123", Arrays.asList(emergency), null)), contains("2"));
+        assertThat(ids(retrieve(cache, "123", Arrays.asList(inpatient, null), null)), contains("1", "3"));
+        assertThat(cache.getFilteredHits(), is(2L));
+
+        // a code without a system isn't among the codes of the retrieve
+        retrieve(cache, "123", Arrays.asList(new Code().withCode("4525004")), null);
+        assertThat(retrieves, is(Arrays.asList("Encounter 123 true")));
+    }
+
+    @Test
+    public void testDateFilteredRetrievesAreNotAnsweredFromPrefetchedResources() {
+        List<Object> visits = Arrays.asList(tuple("id", "1", "date", new Date(2020, 1, 1)),
+                tuple("id", "2", "date", new Date(2022, 1, 1)));
+        DataProvider provider = new CompositeDataProvider(new SystemDataProvider(),
+                (context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath,
+                        dateLowPath, dateHighPath, dateRange) -> {
+                    retrieves.add(dataType + " " + (dateRange != null));
+                    return visits;
+                });
+        Interval range = new Interval(new Date(2019, 1, 1), true, new Date(2021, 1, 1), true);
+
+        // the resources retrieved during evaluation are filtered by dates in memory
+        RetrieveCache cache = new RetrieveCache(context);
+        cache.retrieve(provider, "Patient", "subject", "123", "Encounter", null, null, null, null, null, null, null,
+                null);
+        assertThat(ids(cache.retrieve(provider, "Patient", "subject", "123", "Encounter", null, null, null, null,
+                "date", null, null, range)), contains("1"));
+        assertThat(retrieves, is(Arrays.asList("Encounter false")));
+
+        // but not the prefetched ones, as the date search of a server may differ
+        cache = new RetrieveCache(context);
+        cache.put(provider, "Patient", "subject", "123", "Encounter", null, null, null, null, null, null, null, null,
+                visits);
+        assertThat(ids(cache.retrieve(provider, "Patient", "subject", "123", "Encounter", null, null, null, null,
+                "date", null, null, range)), contains("1", "2"));
+        assertThat(retrieves, is(Arrays.asList("Encounter false", "Encounter true")));
+    }
+
+    @Test
+    public void testTheCodesOfAResourceAreResolvedAndClassifiedOnce() {
+        List<String> types = new ArrayList<>();
+        DataProvider provider = new CompositeDataProvider(new SystemDataProvider() {
+            @Override
+            public Object resolvePath(Object target, String path) {
+                if (path.equals("type")) {
+                    types.add((String) ((Tuple) target).getElement("id"));
+                }
+                return super.resolvePath(target, path);
+            }
+        }, dataProvider);
+        List<String> expanded = new ArrayList<>();
+        context.registerTerminologyProvider(new TerminologyProvider() {
+            @Override
+            public boolean in(Code code, ValueSetInfo valueSet) {
+                throw new AssertionError("the value sets are expanded");
+            }
+
+            @Override
+            public Iterable<Code> expand(ValueSetInfo valueSet) {
+                expanded.add(valueSet.getId());
+                return Arrays.asList(new Code().withSystem(SNOMED)
+                        .withCode(valueSet.getId().equals("inpatient") ? "183452005" : "4525004"));
+            }
+
+            @Override
+            public Code lookup(Code code, CodeSystemInfo codeSystem) {
+                return null;
+            }
+        });
+
+        RetrieveCache cache = new RetrieveCache(context);
+        cache.retrieve(provider, "Patient", "subject", "123", "Encounter", null, null, null, null, null, null,
+                null, null);
+        assertThat(ids(cache.retrieve(provider, "Patient", "subject", "123", "Encounter", null, "type", null,
+                "inpatient", null, null, null, null)), contains("1", "3"));
+        // the classifications are made again once the emergency value set is indexed
+        assertThat(ids(cache.retrieve(provider, "Patient", "subject", "123", "Encounter", null, "type", null,
+                "emergency", null, null, null, null)), contains("2"));
+        assertThat(ids(cache.retrieve(provider, "Patient", "subject", "123", "Encounter", null, "type",
+                Arrays.asList(new Code().withCode("4525004")), null, null, null, null, null)), contains("2"));
+
+        assertThat(types, is(Arrays.asList("1", "2", "3")));
+        assertThat(expanded, is(Arrays.asList("inpatient", "emergency")));
+        assertThat(cache.getFilteredHits(), is(3L));
+    }
+
+    @Test
+    public void testRetrievesAreMadeWhenTheCodesCannotBeResolved() {
+        RetrieveCache cache = new RetrieveCache(context);
+        List<Object> unresolvable = Arrays.asList(tuple("id", "4", "type", tuple("text", "Inpatient")));
+        DataProvider provider = new CompositeDataProvider(new SystemDataProvider(),
+                (context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath,
+                        dateLowPath, dateHighPath, dateRange) -> {
+                    retrieves.add(dataType);
+                    return unresolvable;
+                });
+
+        cache.retrieve(provider, "Patient", "subject", "123", "Encounter", null, null, null, null, null, null,
+                null, null);
+        cache.retrieve(provider, "Patient", "subject", "123", "Encounter", null, "type",
+                Arrays.asList(new Code().withCode("183452005")), null, null, null, null, null);
+        assertThat(retrieves.size(), is(2));
+        assertThat(cache.getMisses(), is(2L));
+    }
+
+    @Test
+    public void testIncludedRetrievesAreAnsweredFromTheIncludedResources() {
+        RetrieveCache cache = new RetrieveCache(context);
+        List<RetrieveInclude> includes = Collections.singletonList(new RetrieveInclude("Medication", "medication", false));
+        DataProvider provider = new CompositeDataProvider(new SystemDataProvider(), new IncludeRetrieveProvider() {
+            @Override
+            public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                    String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                    String dateLowPath, String dateHighPath, Interval dateRange) {
+                retrieves.add(dataType);
+                return Collections.emptyList();
+            }
+
+            @Override
+            public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                    String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                    String dateLowPath, String dateHighPath, Interval dateRange, List<RetrieveInclude> includes,
+                    BiConsumer<String, Object> included) {
+                retrieves.add(dataType + " " + includes.size());
+                // both requests reference medication m1
+                included.accept("Medication", tuple("id", "m1"));
+                included.accept("Medication", tuple("id", "m2"));
+                included.accept("Medication", tuple("id", "m1"));
+                return Arrays.asList(tuple("id", "r1"), tuple("id", "r2"));
+            }
+        });
+
+        assertThat(ids(cache.retrieve(provider, "Patient", "subject", "123", "MedicationRequest", null, null, null,
+                null, null, null, null, null, "5", includes)), contains("r1", "r2"));
+        assertThat(ids(cache.retrieveIncluded(provider, "Patient", "123", "5", "Medication", null, null, null, null,
+                null, null, null)), contains("m1", "m2"));
+        assertThat(ids(cache.retrieveIncluded(provider, "Patient", "123", "5", "Medication", "id",
+                Arrays.asList(new Code().withCode("m2")), null, null, null, null, null)), contains("m2"));
+
+        // the include may not have covered a resource it has no match for, nor other patients
+        assertThat(cache.retrieveIncluded(provider, "Patient", "123", "5", "Medication", "id",
+                Arrays.asList(new Code().withCode("m3")), null, null, null, null, null), is(nullValue()));
+        assertThat(cache.retrieveIncluded(provider, "Patient", "456", "5", "Medication", null, null, null, null,
+                null, null, null), is(nullValue()));
+
+        // nor retrieves included in another retrieve, which wasn't made with its includes
+        assertThat(cache.retrieveIncluded(provider, "Patient", "123", "6", "Medication", null, null, null, null,
+                null, null, null), is(nullValue()));
+        cache.retrieve(provider, "Patient", "subject", "123", "MedicationRequest", null, null, null, null, null, null,
+                null, null, "6", includes);
+        assertThat(cache.retrieveIncluded(provider, "Patient", "123", "6", "Medication", null, null, null, null,
+                null, null, null), is(nullValue()));
+        assertThat(retrieves, is(Arrays.asList("MedicationRequest 1")));
+    }
+
+    @Test
+    public void testRetrievesByIdAreAnsweredFromTheResourcesReadTogether() {
+        RetrieveCache cache = new RetrieveCache(context);
+        Map<String, Object> medications = new LinkedHashMap<>();
+        medications.put("m1", tuple("id", "m1"));
+        medications.put("m2", tuple("id", "m2"));
+        DataProvider provider = new CompositeDataProvider(new SystemDataProvider(), new BatchReadRetrieveProvider() {
+            @Override
+            public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+                    String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+                    String dateLowPath, String dateHighPath, Interval dateRange) {
+                retrieves.add(dataType + " " + codes.iterator().next().getCode());
+                return Collections.emptyList();
+            }
+
+            @Override
+            public Map<String, Object> read(String dataType, List<String> ids) {
+                retrieves.add("read " + ids);
+                return medications;
+            }
+        });
+
+        cache.readTogether(provider, "Medication", Arrays.asList("m1", "m2", "m3", "m1"));
+        // the ids read already, and single ids, are left to the retrieves
+        cache.readTogether(provider, "Medication", Arrays.asList("m2", "m3"));
+        assertThat(ids(cache.retrieve(provider, "Patient", null, "123", "Medication", null, "id",
+                Arrays.asList(new Code().withCode("m2")), null, null, null, null, null)), contains("m2"));
+        assertThat(ids(cache.retrieve(provider, "Patient", null, "123", "Medication", null, "id",
+                Arrays.asList(new Code().withCode("m3")), null, null, null, null, null)), is(Collections.emptyList()));
+        assertThat(retrieves, is(Arrays.asList("read [m1, m2, m3]", "Medication m3")));
+
+        cache.clear();
+        cache.retrieve(provider, "Patient", null, "123", "Medication", null, "id",
+                Arrays.asList(new Code().withCode("m2")), null, null, null, null, null);
+        assertThat(retrieves.size(), is(3));
+    }
+}
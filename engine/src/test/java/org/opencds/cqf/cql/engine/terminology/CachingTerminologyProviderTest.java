@@ -0,0 +1,169 @@
+package org.opencds.cqf.cql.engine.terminology;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cqframework.cql.elm.execution.CodeSystemDef;
+import org.cqframework.cql.elm.execution.CodeSystemRef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ValueSetDef;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.testng.annotations.Test;
+
+public class CachingTerminologyProviderTest {
+
+    private static final String LOINC = "http://loinc.org";
+
+    private static class CountingProvider implements TerminologyProvider {
+        private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public boolean in(Code code, ValueSetInfo valueSet) {
+            calls.add("in " + code.getCode());
+            return code.getCode().startsWith("8");
+        }
+
+        @Override
+        public List<Boolean> inBatch(List<Code> codes, ValueSetInfo valueSet) {
+            calls.add("inBatch " + codes.size());
+            List<Boolean> result = new ArrayList<>();
+            for (Code code : codes) {
+                result.add(code.getCode().startsWith("8"));
+            }
+            return result;
+        }
+
+        @Override
+        public Iterable<Code> expand(ValueSetInfo valueSet) {
+            calls.add("expand " + valueSet.getId() + " " + valueSet.getCodeSystems().size());
+            List<Code> codes = new ArrayList<>();
+            for (int i = 0; i < valueSet.getId().length(); ++i) {
+                codes.add(new Code().withSystem(LOINC).withCode(String.valueOf(i)));
+            }
+            return codes;
+        }
+
+        @Override
+        public boolean isExpandable(ValueSetInfo valueSet) {
+            return !valueSet.getId().equals("large");
+        }
+
+        @Override
+        public Code lookup(Code code, CodeSystemInfo codeSystem) {
+            calls.add("lookup " + code.getCode());
+            return code.getCode().startsWith("8") ? code : null;
+        }
+    }
+
+    @Test
+    public void testResultsAreCachedUntilTheyExpire() {
+        CountingProvider provider = new CountingProvider();
+        AtomicLong ticker = new AtomicLong();
+        CachingTerminologyProvider cache = new CachingTerminologyProvider(provider, Duration.ofNanos(100), 100, ticker::get);
+        ValueSetInfo valueSet = new ValueSetInfo().withId("vs");
+        CodeSystemInfo codeSystem = new CodeSystemInfo().withId(LOINC);
+
+        for (int i = 0; i < 2; ++i) {
+            assertThat(cache.in(new Code().withSystem(LOINC).withCode("8480-6"), valueSet), is(true));
+            assertThat(cache.in(new Code().withSystem(LOINC).withCode("1234-5"), valueSet), is(false));
+            assertThat(cache.lookup(new Code().withSystem(LOINC).withCode("1234-5"), codeSystem), is(nullValue()));
+            assertThat(cache.expand(valueSet).iterator().hasNext(), is(true));
+        }
+        assertThat(provider.calls, containsInAnyOrder("in 8480-6", "in 1234-5", "lookup 1234-5", "expand vs 0"));
+
+        ticker.addAndGet(100);
+        cache.in(new Code().withSystem(LOINC).withCode("8480-6"), valueSet);
+        assertThat(provider.calls.size(), is(5));
+    }
+
+    @Test
+    public void testBatchesOnlyCheckTheCodesThatAreNotCached() {
+        CountingProvider provider = new CountingProvider();
+        CachingTerminologyProvider cache = new CachingTerminologyProvider(provider);
+        ValueSetInfo valueSet = new ValueSetInfo().withId("vs");
+        Code cached = new Code().withSystem(LOINC).withCode("8480-6");
+
+        assertThat(cache.in(cached, valueSet), is(true));
+        assertThat(cache.inBatch(Arrays.asList(new Code().withSystem(LOINC).withCode("1234-5"), cached,
+                new Code().withSystem(LOINC).withCode("8462-4")), valueSet), is(Arrays.asList(false, true, true)));
+        assertThat(cache.inBatch(Arrays.asList(cached, new Code().withSystem(LOINC).withCode("8462-4")), valueSet),
+                is(Arrays.asList(true, true)));
+        assertThat(provider.calls, is(Arrays.asList("in 8480-6", "inBatch 2")));
+    }
+
+    @Test
+    public void testCachesAreBoundedByWeight() {
+        CountingProvider provider = new CountingProvider();
+        CachingTerminologyProvider cache = new CachingTerminologyProvider(provider, Duration.ofHours(1), 10);
+
+        // expansions weigh their number of codes
+        cache.expand(new ValueSetInfo().withId("abcdef"));
+        cache.expand(new ValueSetInfo().withId("ghij"));
+        cache.expand(new ValueSetInfo().withId("klm"));
+        cache.expand(new ValueSetInfo().withId("ghij"));
+        cache.expand(new ValueSetInfo().withId("abcdef"));
+        // too heavy to cache at all
+        cache.expand(new ValueSetInfo().withId("nopqrstuvwxyz"));
+        cache.expand(new ValueSetInfo().withId("nopqrstuvwxyz"));
+
+        assertThat(provider.calls, is(Arrays.asList("expand abcdef 0", "expand ghij 0", "expand klm 0",
+                "expand abcdef 0", "expand nopqrstuvwxyz 0", "expand nopqrstuvwxyz 0")));
+    }
+
+    @Test
+    public void testPreloadExpandsTheValueSetsOfALibrary() {
+        CountingProvider provider = new CountingProvider();
+        CachingTerminologyProvider cache = new CachingTerminologyProvider(provider);
+        Library library = new Library().withIdentifier(new VersionedIdentifier().withId("Test"))
+                .withCodeSystems(new Library.CodeSystems().withDef(new CodeSystemDef().withName("LOINC").withId(LOINC)))
+                .withValueSets(new Library.ValueSets().withDef(
+                        new ValueSetDef().withName("A").withId("a").withCodeSystem(new CodeSystemRef().withName("LOINC")),
+                        new ValueSetDef().withName("B").withId("b"),
+                        new ValueSetDef().withName("Large").withId("large")));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            cache.preload(library, null, executor);
+        }
+        finally {
+            executor.shutdown();
+        }
+        // whether a value set is expandable only matters to the membership index
+        assertThat(provider.calls, containsInAnyOrder("expand a 1", "expand b 0", "expand large 0"));
+
+        cache.expand(new ValueSetInfo().withId("a").withCodeSystem(new CodeSystemInfo().withId(LOINC)));
+        cache.expand(new ValueSetInfo().withId("b"));
+        cache.expand(new ValueSetInfo().withId("large"));
+        assertThat(provider.calls.size(), is(3));
+    }
+
+    @Test
+    public void testLookupsAreCachedAsCopies() {
+        CountingProvider provider = new CountingProvider();
+        CachingTerminologyProvider cache = new CachingTerminologyProvider(provider);
+        CodeSystemInfo codeSystem = new CodeSystemInfo().withId(LOINC);
+        Code code = new Code().withSystem(LOINC).withCode("8480-6");
+
+        Code found = cache.lookup(code, codeSystem);
+        code.setDisplay("Changed by the caller");
+        assertThat(found, is(not(sameInstance(code))));
+        assertThat(found.isFrozen(), is(true));
+        assertThat(cache.lookup(new Code().withSystem(LOINC).withCode("8480-6"), codeSystem).getDisplay(),
+                is(nullValue()));
+        assertThat(provider.calls, is(Arrays.asList("lookup 8480-6")));
+    }
+}
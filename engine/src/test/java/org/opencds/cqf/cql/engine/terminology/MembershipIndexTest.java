@@ -0,0 +1,276 @@
+package org.opencds.cqf.cql.engine.terminology;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ValueSetDef;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.elm.execution.InCodeSystemEvaluator;
+import org.opencds.cqf.cql.engine.elm.execution.InValueSetEvaluator;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.CodeSystem;
+import org.opencds.cqf.cql.engine.runtime.Concept;
+import org.opencds.cqf.cql.engine.runtime.ValueSet;
+import org.testng.annotations.Test;
+
+public class MembershipIndexTest {
+
+    private static final String LOINC = "http://loinc.org";
+    private static final String SNOMED = "http://snomed.info/sct";
+
+    private static class CountingProvider implements TerminologyProvider {
+        private final Map<String, Integer> calls = new HashMap<>();
+
+        private void count(String operation) {
+            calls.merge(operation, 1, Integer::sum);
+        }
+
+        int calls(String operation) {
+            return calls.getOrDefault(operation, 0);
+        }
+
+        @Override
+        public boolean in(Code code, ValueSetInfo valueSet) {
+            count("in");
+            return "8480-6".equals(code.getCode());
+        }
+
+        @Override
+        public List<Boolean> inBatch(List<Code> codes, ValueSetInfo valueSet) {
+            count("inBatch");
+            return TerminologyProvider.super.inBatch(codes, valueSet);
+        }
+
+        @Override
+        public Iterable<Code> expand(ValueSetInfo valueSet) {
+            count("expand");
+            return Arrays.asList(new Code().withSystem(LOINC).withCode("8480-6"), new Code().withSystem(SNOMED).withCode("271649006"));
+        }
+
+        @Override
+        public boolean isExpandable(ValueSetInfo valueSet) {
+            return !valueSet.getId().equals("large");
+        }
+
+        @Override
+        public Code lookup(Code code, CodeSystemInfo codeSystem) {
+            count("lookup");
+            return codeSystem.getId().equals(code.getSystem()) ? code : null;
+        }
+    }
+
+    private static Context context(TerminologyProvider provider) {
+        Context context = new Context(new Library().withIdentifier(new VersionedIdentifier().withId("Test")));
+        context.registerTerminologyProvider(provider);
+        return context;
+    }
+
+    @Test
+    public void testValueSetIsExpandedOnce() {
+        CountingProvider provider = new CountingProvider();
+        Context context = context(provider);
+        ValueSet valueSet = new ValueSet().withId("blood-pressure");
+
+        assertThat(InValueSetEvaluator.inValueSet(context, new Code().withSystem(LOINC).withCode("8480-6"), valueSet), is(true));
+        assertThat(InValueSetEvaluator.inValueSet(context, new Code().withSystem(SNOMED).withCode("8480-6"), valueSet), is(false));
+        assertThat(InValueSetEvaluator.inValueSet(context, "271649006", valueSet), is(true));
+        assertThat(InValueSetEvaluator.inValueSet(context,
+                new Concept().withCodes(Arrays.asList(new Code().withSystem(LOINC).withCode("0000-0"),
+                        new Code().withSystem(SNOMED).withCode("271649006"))), valueSet), is(true));
+
+        assertThat(provider.calls("expand"), is(1));
+        assertThat(provider.calls("in"), is(0));
+
+        // a different version is a different value set
+        InValueSetEvaluator.inValueSet(context, "8480-6", new ValueSet().withId("blood-pressure").withVersion("2"));
+        assertThat(provider.calls("expand"), is(2));
+    }
+
+    @Test
+    public void testLargeValueSetsAreCheckedByTheProvider() {
+        CountingProvider provider = new CountingProvider();
+        Context context = context(provider);
+        ValueSet valueSet = new ValueSet().withId("large");
+
+        assertThat(InValueSetEvaluator.inValueSet(context, new Code().withSystem(LOINC).withCode("8480-6"), valueSet), is(true));
+        assertThat(InValueSetEvaluator.inValueSet(context, new Code().withSystem(LOINC).withCode("8462-4"), valueSet), is(false));
+        assertThat(provider.calls("expand"), is(0));
+        assertThat(provider.calls("in"), is(2));
+    }
+
+    @Test
+    public void testAnyInLargeValueSetIsCheckedInOneBatch() {
+        CountingProvider provider = new CountingProvider();
+        MembershipIndex index = context(provider).resolveMembershipIndex();
+        List<Code> codes = Arrays.asList(new Code().withSystem(LOINC).withCode("8462-4"),
+                new Code().withSystem(LOINC).withCode("8480-6"));
+
+        assertThat(index.anyIn(codes, new ValueSetInfo().withId("large")), is(true));
+        assertThat(index.anyIn(codes.subList(0, 1), new ValueSetInfo().withId("large")), is(false));
+        assertThat(provider.calls("inBatch"), is(2));
+        assertThat(provider.calls("expand"), is(0));
+
+        assertThat(index.anyIn(codes, new ValueSetInfo().withId("blood-pressure")), is(true));
+        assertThat(provider.calls("inBatch"), is(2));
+    }
+
+    @Test
+    public void testValueSetsAreNotExpandedWhenTheProviderOptsOut() {
+        AtomicInteger checks = new AtomicInteger();
+        TerminologyProvider provider = new TerminologyProvider() {
+            @Override
+            public boolean isExpandable(ValueSetInfo valueSet) {
+                return false;
+            }
+
+            @Override
+            public boolean in(Code code, ValueSetInfo valueSet) {
+                checks.incrementAndGet();
+                return "8480-6".equals(code.getCode());
+            }
+
+            @Override
+            public Iterable<Code> expand(ValueSetInfo valueSet) {
+                throw new AssertionError("expanded " + valueSet.getId());
+            }
+
+            @Override
+            public Code lookup(Code code, CodeSystemInfo codeSystem) {
+                return null;
+            }
+        };
+
+        Context context = context(provider);
+        assertThat(InValueSetEvaluator.inValueSet(context, new Code().withSystem(LOINC).withCode("8480-6"), new ValueSet().withId("blood-pressure")), is(true));
+        assertThat(checks.get(), is(1));
+    }
+
+    @Test
+    public void testConcurrentChecksShareOneExpansion() throws Exception {
+        CountDownLatch expanding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger expansions = new AtomicInteger();
+        MembershipIndex index = new MembershipIndex(new CountingProvider() {
+            @Override
+            public Iterable<Code> expand(ValueSetInfo valueSet) {
+                expansions.incrementAndGet();
+                expanding.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Arrays.asList(new Code().withSystem(LOINC).withCode("8480-6"));
+            }
+        });
+        ValueSetInfo valueSet = new ValueSetInfo().withId("blood-pressure");
+
+        CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> index.register(valueSet));
+        assertThat(expanding.await(10, TimeUnit.SECONDS), is(true));
+        CompletableFuture<Integer> second = CompletableFuture.supplyAsync(() -> index.register(valueSet));
+        // other value sets are not held up by the expansion in flight
+        assertThat(index.register(new ValueSetInfo().withId("large")), is(-1));
+        release.countDown();
+
+        assertThat(second.get(10, TimeUnit.SECONDS), is(first.get(10, TimeUnit.SECONDS)));
+        assertThat(expansions.get(), is(1));
+        assertThat(index.in(new Code().withSystem(LOINC).withCode("8480-6"), valueSet), is(true));
+    }
+
+    @Test
+    public void testCodeSystemLookupsAreCached() {
+        CountingProvider provider = new CountingProvider();
+        Context context = context(provider);
+        CodeSystem loinc = new CodeSystem().withId(LOINC);
+
+        for (int i = 0; i < 3; ++i) {
+            assertThat(InCodeSystemEvaluator.inCodeSystem(context, new Code().withSystem(LOINC).withCode("8480-6"), loinc), is(true));
+            assertThat(InCodeSystemEvaluator.inCodeSystem(context, new Code().withSystem(SNOMED).withCode("8480-6"), loinc), is(false));
+        }
+        assertThat(provider.calls("lookup"), is(2));
+    }
+
+    @Test
+    public void testCodeSystemLookupsCanCheckOtherCodes() {
+        CodeSystemInfo loinc = new CodeSystemInfo().withId(LOINC);
+        MembershipIndex[] index = new MembershipIndex[1];
+        CountingProvider provider = new CountingProvider() {
+            @Override
+            public Code lookup(Code code, CodeSystemInfo codeSystem) {
+                // e.g. a provider that checks the parent of the code
+                if (code.getCode().equals("8480-6.1")) {
+                    return index[0].inCodeSystem(new Code().withSystem(LOINC).withCode("8480-6"), codeSystem) ? code : null;
+                }
+                return super.lookup(code, codeSystem);
+            }
+        };
+        index[0] = new MembershipIndex(provider);
+
+        assertThat(index[0].inCodeSystem(new Code().withSystem(LOINC).withCode("8480-6.1"), loinc), is(true));
+        assertThat(index[0].inCodeSystem(new Code().withSystem(LOINC).withCode("8480-6"), loinc), is(true));
+        assertThat(provider.calls("lookup"), is(1));
+    }
+
+    @Test
+    public void testCodesAreClassifiedAgainstAllTheValueSetsOfALibrary() {
+        Map<String, List<Code>> expansions = new HashMap<>();
+        expansions.put("inpatient", Arrays.asList(new Code().withSystem(SNOMED).withCode("183452005"),
+                new Code().withSystem(SNOMED).withCode("32485007")));
+        expansions.put("emergency", Arrays.asList(new Code().withSystem(SNOMED).withCode("4525004")));
+        expansions.put("observation", Arrays.asList(new Code().withSystem(SNOMED).withCode("183452005"),
+                new Code().withSystem(SNOMED).withCode("448951000124107")));
+        CountingProvider provider = new CountingProvider() {
+            @Override
+            public Iterable<Code> expand(ValueSetInfo valueSet) {
+                super.expand(valueSet);
+                return expansions.get(valueSet.getId());
+            }
+        };
+        Context context = new Context(new Library().withIdentifier(new VersionedIdentifier().withId("Test"))
+                .withValueSets(new Library.ValueSets().withDef(
+                        new ValueSetDef().withName("Inpatient").withId("inpatient"),
+                        new ValueSetDef().withName("Emergency").withId("emergency"),
+                        new ValueSetDef().withName("Observation").withId("observation"),
+                        new ValueSetDef().withName("Large").withId("large"))));
+        context.registerTerminologyProvider(provider);
+        MembershipIndex index = context.resolveMembershipIndex();
+
+        assertThat(index.getGeneration(), is(0L));
+        index.registerValueSets(context);
+        assertThat(provider.calls("expand"), is(3));
+        // a value set that isn't expanded doesn't change the classifications
+        assertThat(index.getGeneration(), is(3L));
+        int inpatient = index.register(new ValueSetInfo().withId("inpatient"));
+        int emergency = index.register(new ValueSetInfo().withId("emergency"));
+        int observation = index.register(new ValueSetInfo().withId("observation"));
+        assertThat(index.register(new ValueSetInfo().withId("large")), is(-1));
+
+        BitSet expected = new BitSet();
+        expected.set(inpatient);
+        expected.set(observation);
+        assertThat(index.classify(new Code().withSystem(SNOMED).withCode("183452005")), is(expected));
+        assertThat(index.classify(new Code().withSystem(LOINC).withCode("183452005")).isEmpty(), is(true));
+
+        expected.set(emergency);
+        assertThat(index.classify(new Concept().withCodes(Arrays.asList(new Code().withSystem(SNOMED).withCode("4525004"),
+                new Code().withSystem(SNOMED).withCode("32485007"), new Code().withSystem(SNOMED).withCode("448951000124107")))),
+                is(expected));
+
+        assertThat(InValueSetEvaluator.inValueSet(context, "4525004", new ValueSet().withId("emergency")), is(true));
+        assertThat(InValueSetEvaluator.inValueSet(context, "4525004", new ValueSet().withId("inpatient")), is(false));
+        assertThat(provider.calls("expand"), is(3));
+    }
+}